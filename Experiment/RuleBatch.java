@@ -0,0 +1,367 @@
+import java.util.*;
+
+// Columnar batch of transactions: one primitive array per schema field,
+// indexed by row, plus the number of rows in use. Columns can be filled
+// directly (then call setRowCount) or row by row through append.
+final class TransactionBatch {
+    private final RecordSchema schema;
+    private final int capacity;
+    final double[][] doubles;
+    final long[][] longs;
+    final int[][] ints;
+    private int rowCount;
+
+    TransactionBatch(RecordSchema schema, int capacity) {
+        this.schema = schema;
+        this.capacity = capacity;
+        this.doubles = new double[schema.getDoubleCount()][capacity];
+        this.longs = new long[schema.getLongCount()][capacity];
+        this.ints = new int[schema.getIntCount()][capacity];
+    }
+
+    RecordSchema getSchema() { return schema; }
+    int getCapacity() { return capacity; }
+    int getRowCount() { return rowCount; }
+
+    double[] doubleColumn(int slot) { return doubles[slot]; }
+    long[] longColumn(int slot) { return longs[slot]; }
+    int[] intColumn(int slot) { return ints[slot]; }
+
+    void setRowCount(int rowCount) {
+        if (rowCount < 0 || rowCount > capacity) {
+            throw new IllegalArgumentException("Row count " + rowCount + " outside 0.." + capacity);
+        }
+        this.rowCount = rowCount;
+    }
+
+    // Copies a record into the next free row and returns its index
+    int append(TransactionRecord record) {
+        if (rowCount == capacity) {
+            throw new IllegalStateException("Batch is full: " + capacity + " rows");
+        }
+        int row = rowCount++;
+        for (int i = 0; i < doubles.length; i++) doubles[i][row] = record.doubles[i];
+        for (int i = 0; i < longs.length; i++) longs[i][row] = record.longs[i];
+        for (int i = 0; i < ints.length; i++) ints[i][row] = record.ints[i];
+        return row;
+    }
+
+    // Copies one row out into a reusable record
+    void readRow(int row, TransactionRecord into) {
+        for (int i = 0; i < doubles.length; i++) into.doubles[i] = doubles[i][row];
+        for (int i = 0; i < longs.length; i++) into.longs[i] = longs[i][row];
+        for (int i = 0; i < ints.length; i++) into.ints[i] = ints[i][row];
+    }
+
+    void clear() {
+        rowCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionBatch{rows=" + rowCount + ", capacity=" + capacity + ", schema=" + schema + "}";
+    }
+}
+
+// Helpers for selection bitmaps: bit (row & 63) of word (row >>> 6) is set
+// when the row is selected. Bits past the row count are always kept clear.
+final class Bitmaps {
+    private Bitmaps() {
+    }
+
+    static int words(int rows) {
+        return (rows + 63) >>> 6;
+    }
+
+    static boolean get(long[] bitmap, int row) {
+        return (bitmap[row >>> 6] & (1L << row)) != 0;
+    }
+
+    static int count(long[] bitmap, int rows) {
+        int count = 0;
+        for (int w = 0, n = words(rows); w < n; w++) {
+            count += Long.bitCount(bitmap[w]);
+        }
+        return count;
+    }
+
+    static boolean isEmpty(long[] bitmap, int words) {
+        long any = 0;
+        for (int w = 0; w < words; w++) {
+            any |= bitmap[w];
+        }
+        return any == 0;
+    }
+
+    static boolean isFull(long[] bitmap, int rows) {
+        int full = rows >>> 6;
+        for (int w = 0; w < full; w++) {
+            if (bitmap[w] != -1L) {
+                return false;
+            }
+        }
+        int tail = rows & 63;
+        return tail == 0 || bitmap[full] == (1L << tail) - 1;
+    }
+
+    static void and(long[] into, long[] other, int words) {
+        for (int w = 0; w < words; w++) {
+            into[w] &= other[w];
+        }
+    }
+
+    static void or(long[] into, long[] other, int words) {
+        for (int w = 0; w < words; w++) {
+            into[w] |= other[w];
+        }
+    }
+
+    static void not(long[] bitmap, int rows) {
+        int words = words(rows);
+        for (int w = 0; w < words; w++) {
+            bitmap[w] = ~bitmap[w];
+        }
+        int tail = rows & 63;
+        if (tail != 0) {
+            bitmap[words - 1] &= (1L << tail) - 1;
+        }
+    }
+
+    // Row indexes of the set bits, in order; returns how many were written
+    static int toSelection(long[] bitmap, int rows, int[] selection) {
+        int n = 0;
+        for (int w = 0, words = words(rows); w < words; w++) {
+            long bits = bitmap[w];
+            while (bits != 0) {
+                selection[n++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return n;
+    }
+}
+
+// Postfix form of a rule for whole-batch evaluation. Every comparison
+// produces a bitmap over the batch, AND/OR/NOT become word-wise
+// intersection, union and complement of the top of a bitmap stack.
+// SKIP_IF_NONE / SKIP_IF_ALL carry short-circuiting over to batches: when
+// the left side of an AND selects no row (or the left of an OR selects
+// every row) the right side is never scanned.
+final class BatchProgram {
+    static final int OP_AND = 0;
+    static final int OP_OR = 1;
+    static final int OP_NOT = 2;
+    static final int OP_SKIP_IF_NONE = 3; // if top selects no row, pc = operand
+    static final int OP_SKIP_IF_ALL = 4;  // if top selects every row, pc = operand
+
+    // push field[operand] <op> pool[next word]; the opcode is base + CompareOp.ordinal()
+    static final int OP_CMP_DOUBLE = RuleProgram.OP_CMP_DOUBLE;
+    static final int OP_CMP_LONG = RuleProgram.OP_CMP_LONG;
+    static final int OP_CMP_INT = RuleProgram.OP_CMP_INT;
+
+    private static final CompareOp[] COMPARE_OPS = CompareOp.values();
+
+    private final int[] code;
+    private final double[] doubleConstants;
+    private final long[] longConstants;
+    private final int maxDepth;
+    private final RecordSchema schema;
+
+    private BatchProgram(int[] code, double[] doubleConstants, long[] longConstants, int maxDepth,
+                         RecordSchema schema) {
+        this.code = code;
+        this.doubleConstants = doubleConstants;
+        this.longConstants = longConstants;
+        this.maxDepth = maxDepth;
+        this.schema = schema;
+    }
+
+    int[] getCode() { return code; }
+    int getMaxDepth() { return maxDepth; }
+    RecordSchema getSchema() { return schema; }
+
+    // Reuses the scalar compiler's constant pools and field resolution,
+    // then lays the tree out in postfix order
+    static BatchProgram compile(ASTNode root, RecordSchema schema) {
+        RuleProgram scalar = RuleCompiler.compile(root, schema);
+        Emitter emitter = new Emitter(scalar);
+        emitter.emitNode(root);
+        return new BatchProgram(Arrays.copyOf(emitter.code, emitter.size), scalar.getDoubleConstants(),
+                                scalar.getLongConstants(), emitter.maxDepth, schema);
+    }
+
+    // Evaluates the rule over every row of the batch into selection (at least
+    // Bitmaps.words(rowCount) long) and returns the number of selected rows
+    int select(TransactionBatch batch, long[] selection, BatchScratch scratch) {
+        if (batch.getSchema() != schema) {
+            throw new IllegalArgumentException("Batch was laid out by a different schema");
+        }
+        final int rows = batch.getRowCount();
+        final int words = Bitmaps.words(rows);
+        final long[][] stack = scratch.stack(maxDepth, words);
+        final int[] code = this.code;
+        int top = -1;
+        int pc = 0;
+        while (pc < code.length) {
+            int insn = code[pc++];
+            int op = RuleProgram.opcode(insn);
+            int operand = RuleProgram.operand(insn);
+            if (op >= OP_CMP_DOUBLE) {
+                int base = op & ~7;
+                CompareOp compare = COMPARE_OPS[op - base];
+                long[] out = stack[++top];
+                int constant = code[pc++];
+                if (base == OP_CMP_DOUBLE) {
+                    BatchKernels.compare(batch.doubles[operand], rows, compare, doubleConstants[constant], out);
+                } else if (base == OP_CMP_LONG) {
+                    BatchKernels.compare(batch.longs[operand], rows, compare, longConstants[constant], out);
+                } else {
+                    BatchKernels.compare(batch.ints[operand], rows, compare, longConstants[constant], out);
+                }
+                continue;
+            }
+            switch (op) {
+                case OP_AND: Bitmaps.and(stack[top - 1], stack[top], words); top--; break;
+                case OP_OR: Bitmaps.or(stack[top - 1], stack[top], words); top--; break;
+                case OP_NOT: Bitmaps.not(stack[top], rows); break;
+                case OP_SKIP_IF_NONE: if (Bitmaps.isEmpty(stack[top], words)) pc = operand; break;
+                case OP_SKIP_IF_ALL: if (Bitmaps.isFull(stack[top], rows)) pc = operand; break;
+                default: throw new IllegalStateException("Bad opcode at " + (pc - 1) + ": " + op);
+            }
+        }
+        System.arraycopy(stack[0], 0, selection, 0, words);
+        return Bitmaps.count(selection, rows);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchProgram{length=" + code.length + ", maxDepth=" + maxDepth + "}";
+    }
+
+    private static final class Emitter {
+        private final RuleProgram scalar;
+        private int[] code = new int[16];
+        private int size;
+        private int depth;
+        private int maxDepth;
+        // Position of the next compare instruction in the scalar program, whose
+        // slot and constant operands are copied as they are
+        private int scalarPc;
+
+        Emitter(RuleProgram scalar) {
+            this.scalar = scalar;
+        }
+
+        // The scalar compiler emits compares in the same left-to-right order
+        // as this walk, so each leaf takes the next compare from its code
+        void emitNode(ASTNode node) {
+            if (node instanceof ComparisonNode || node instanceof ValueNode) {
+                int[] scalarCode = scalar.getCode();
+                while (!RuleProgram.isCompare(RuleProgram.opcode(scalarCode[scalarPc]))) {
+                    scalarPc++;
+                }
+                emit(scalarCode[scalarPc]);
+                emit(scalarCode[scalarPc + 1]);
+                scalarPc += 2;
+                maxDepth = Math.max(maxDepth, ++depth);
+            } else if (node instanceof LogicalNode) {
+                LogicalNode logical = (LogicalNode) node;
+                boolean and = logical.getOperator().equals("AND");
+                emitNode(logical.getLeft());
+                int patch = emit(RuleProgram.encode(and ? OP_SKIP_IF_NONE : OP_SKIP_IF_ALL, 0));
+                emitNode(logical.getRight());
+                emit(RuleProgram.encode(and ? OP_AND : OP_OR, 0));
+                depth--;
+                code[patch] = RuleProgram.encode(and ? OP_SKIP_IF_NONE : OP_SKIP_IF_ALL, size);
+            } else if (node instanceof NotNode) {
+                emitNode(((NotNode) node).getOperand());
+                emit(RuleProgram.encode(OP_NOT, 0));
+            } else {
+                throw new IllegalArgumentException("Cannot compile node: " + node);
+            }
+        }
+
+        private int emit(int word) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size] = word;
+            return size++;
+        }
+    }
+}
+
+// Per-thread scratch space for batch evaluation: the bitmap stack.
+// Grows on demand and is reused across batches and rules.
+final class BatchScratch {
+    private long[][] stack = new long[0][];
+
+    long[][] stack(int depth, int words) {
+        if (stack.length < depth || (depth > 0 && stack[0].length < words)) {
+            int rows = Math.max(words, stack.length > 0 ? stack[0].length : 0);
+            stack = new long[Math.max(depth, stack.length)][rows];
+        }
+        return stack;
+    }
+}
+
+// Comparison kernels that turn a column into a selection bitmap.
+// Each operator gets its own branch-free loop over 64-row words, the shape
+// HotSpot's superword pass can vectorize. A jdk.incubator.vector variant
+// would slot in here, but that module needs --add-modules at build and run
+// time, which these sources can't assume.
+final class BatchKernels {
+    private BatchKernels() {
+    }
+
+    static void compare(double[] column, int rows, CompareOp op, double c, long[] out) {
+        for (int w = 0, words = Bitmaps.words(rows); w < words; w++) {
+            int base = w << 6;
+            int end = Math.min(64, rows - base);
+            long bits = 0;
+            switch (op) {
+                case EQ: for (int i = 0; i < end; i++) bits |= (column[base + i] == c ? 1L : 0L) << i; break;
+                case NE: for (int i = 0; i < end; i++) bits |= (column[base + i] != c ? 1L : 0L) << i; break;
+                case LT: for (int i = 0; i < end; i++) bits |= (column[base + i] < c ? 1L : 0L) << i; break;
+                case LE: for (int i = 0; i < end; i++) bits |= (column[base + i] <= c ? 1L : 0L) << i; break;
+                case GT: for (int i = 0; i < end; i++) bits |= (column[base + i] > c ? 1L : 0L) << i; break;
+                default: for (int i = 0; i < end; i++) bits |= (column[base + i] >= c ? 1L : 0L) << i; break;
+            }
+            out[w] = bits;
+        }
+    }
+
+    static void compare(long[] column, int rows, CompareOp op, long c, long[] out) {
+        for (int w = 0, words = Bitmaps.words(rows); w < words; w++) {
+            int base = w << 6;
+            int end = Math.min(64, rows - base);
+            long bits = 0;
+            switch (op) {
+                case EQ: for (int i = 0; i < end; i++) bits |= (column[base + i] == c ? 1L : 0L) << i; break;
+                case NE: for (int i = 0; i < end; i++) bits |= (column[base + i] != c ? 1L : 0L) << i; break;
+                case LT: for (int i = 0; i < end; i++) bits |= (column[base + i] < c ? 1L : 0L) << i; break;
+                case LE: for (int i = 0; i < end; i++) bits |= (column[base + i] <= c ? 1L : 0L) << i; break;
+                case GT: for (int i = 0; i < end; i++) bits |= (column[base + i] > c ? 1L : 0L) << i; break;
+                default: for (int i = 0; i < end; i++) bits |= (column[base + i] >= c ? 1L : 0L) << i; break;
+            }
+            out[w] = bits;
+        }
+    }
+
+    static void compare(int[] column, int rows, CompareOp op, long c, long[] out) {
+        for (int w = 0, words = Bitmaps.words(rows); w < words; w++) {
+            int base = w << 6;
+            int end = Math.min(64, rows - base);
+            long bits = 0;
+            switch (op) {
+                case EQ: for (int i = 0; i < end; i++) bits |= (column[base + i] == c ? 1L : 0L) << i; break;
+                case NE: for (int i = 0; i < end; i++) bits |= (column[base + i] != c ? 1L : 0L) << i; break;
+                case LT: for (int i = 0; i < end; i++) bits |= (column[base + i] < c ? 1L : 0L) << i; break;
+                case LE: for (int i = 0; i < end; i++) bits |= (column[base + i] <= c ? 1L : 0L) << i; break;
+                case GT: for (int i = 0; i < end; i++) bits |= (column[base + i] > c ? 1L : 0L) << i; break;
+                default: for (int i = 0; i < end; i++) bits |= (column[base + i] >= c ? 1L : 0L) << i; break;
+            }
+            out[w] = bits;
+        }
+    }
+}
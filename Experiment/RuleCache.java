@@ -0,0 +1,152 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded, thread-safe LRU cache of parsed rules keyed by normalized rule text.
+// Entries are spread over lock-striped segments, each an access-ordered
+// LinkedHashMap with its own share of the capacity, so LRU order is exact
+// within a segment and approximate across the whole cache. Parsing happens
+// outside the segment lock; parsed trees are immutable and safe to share.
+class RuleCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    RuleCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int segmentCount = Math.min(SEGMENTS, capacity);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // Spread the remainder so the segment capacities add up to capacity
+            segments[i] = new Segment(capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0), evictions);
+        }
+    }
+
+    ASTNode parse(String rule) {
+        String key = normalize(rule);
+        Segment segment = segmentFor(key);
+        ASTNode cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+        }
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        ASTNode parsed = new ASTParser().parse(key);
+        synchronized (segment) {
+            // Another thread may have parsed the same rule meanwhile; keep the first
+            ASTNode raced = segment.putIfAbsent(key, parsed);
+            return raced != null ? raced : parsed;
+        }
+    }
+
+    long getHits() { return hits.sum(); }
+    long getMisses() { return misses.sum(); }
+    long getEvictions() { return evictions.sum(); }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    // Collapses whitespace runs outside quoted strings and trims the ends,
+    // so formatting differences in user configuration share one entry.
+    // Text that is already normalized is returned as is, without copying.
+    static String normalize(String rule) {
+        if (isNormalized(rule)) {
+            return rule;
+        }
+        StringBuilder sb = new StringBuilder(rule.length());
+        boolean inString = false;
+        boolean pendingSpace = false;
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (!inString && Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+            if (c == '\'') {
+                inString = !inString;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isNormalized(String rule) {
+        int length = rule.length();
+        if (length > 0 && (Character.isWhitespace(rule.charAt(0))
+                || Character.isWhitespace(rule.charAt(length - 1)))) {
+            return false;
+        }
+        boolean inString = false;
+        for (int i = 0; i < length; i++) {
+            char c = rule.charAt(i);
+            if (c == '\'') {
+                inString = !inString;
+            } else if (!inString && Character.isWhitespace(c) && (c != ' ' || rule.charAt(i + 1) == ' ')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public String toString() {
+        return "RuleCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + "}";
+    }
+
+    // Static, so a segment holds no reference to its cache; evictions is
+    // the cache's counter
+    private static final class Segment extends LinkedHashMap<String, ASTNode> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ASTNode> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+import java.util.*;
+
+// Flat, array-backed form of a rule tree.
+// Each instruction starts with one int: the opcode sits in the low byte and
+// the operand in the upper 24 bits. Comparisons take a second int, the index
+// of their constant in the double or long pool. AND/OR are compiled into
+// conditional jumps over a single boolean accumulator, so evaluation needs
+// no operand stack, no recursion and no allocation.
+final class RuleProgram {
+    static final int OP_LOAD = 0;          // acc = precomputed value of variables[operand]
+    static final int OP_JUMP_IF_FALSE = 1; // if (!acc) pc = operand
+    static final int OP_JUMP_IF_TRUE = 2;  // if (acc) pc = operand
+    static final int OP_NOT = 3;           // acc = !acc
+
+    // acc = field[operand] <op> pool[next word]; the opcode is base + CompareOp.ordinal()
+    static final int OP_CMP_DOUBLE = 8;
+    static final int OP_CMP_LONG = 16;
+    static final int OP_CMP_INT = 24;
+
+    static final int OPCODE_MASK = 0xFF;
+    static final int OPERAND_SHIFT = 8;
+    static final int MAX_OPERAND = (1 << 24) - 1;
+
+    private final int[] code;
+    private final String[] variables;
+    private final double[] doubleConstants;
+    private final long[] longConstants;
+    private final RecordSchema schema;
+
+    RuleProgram(int[] code, String[] variables, double[] doubleConstants, long[] longConstants,
+                RecordSchema schema) {
+        this.code = code;
+        this.variables = variables;
+        this.doubleConstants = doubleConstants;
+        this.longConstants = longConstants;
+        this.schema = schema;
+    }
+
+    int[] getCode() { return code; }
+    String[] getVariables() { return variables; }
+    double[] getDoubleConstants() { return doubleConstants; }
+    long[] getLongConstants() { return longConstants; }
+    RecordSchema getSchema() { return schema; }
+
+    boolean evaluate(Context context) {
+        TransactionRecord record = context.getRecord();
+        if (schema != null && record == null) {
+            throw new IllegalStateException("Rule compares record fields; the context has no record");
+        }
+        return run(record, context);
+    }
+
+    // Hot path: reads only primitive slots, no hashing or boxing
+    boolean evaluate(TransactionRecord record) {
+        if (variables.length > 0) {
+            throw new IllegalStateException("Rule reads precomputed predicates " + Arrays.toString(variables));
+        }
+        return run(record, null);
+    }
+
+    private boolean run(TransactionRecord record, Context context) {
+        if (schema != null && record.getSchema() != schema) {
+            throw new IllegalArgumentException("Record was laid out by a different schema");
+        }
+        final int[] code = this.code;
+        final double[] doubleConstants = this.doubleConstants;
+        final long[] longConstants = this.longConstants;
+        final double[] doubles = record != null ? record.doubles : null;
+        final long[] longs = record != null ? record.longs : null;
+        final int[] ints = record != null ? record.ints : null;
+        boolean acc = false;
+        int pc = 0;
+        while (pc < code.length) {
+            int insn = code[pc++];
+            int operand = insn >>> OPERAND_SHIFT;
+            switch (insn & OPCODE_MASK) {
+                case OP_LOAD: acc = context.getValue(variables[operand]); break;
+                case OP_JUMP_IF_FALSE: if (!acc) pc = operand; break;
+                case OP_JUMP_IF_TRUE: if (acc) pc = operand; break;
+                case OP_NOT: acc = !acc; break;
+
+                case OP_CMP_DOUBLE + 0: acc = doubles[operand] == doubleConstants[code[pc++]]; break;
+                case OP_CMP_DOUBLE + 1: acc = doubles[operand] != doubleConstants[code[pc++]]; break;
+                case OP_CMP_DOUBLE + 2: acc = doubles[operand] < doubleConstants[code[pc++]]; break;
+                case OP_CMP_DOUBLE + 3: acc = doubles[operand] <= doubleConstants[code[pc++]]; break;
+                case OP_CMP_DOUBLE + 4: acc = doubles[operand] > doubleConstants[code[pc++]]; break;
+                case OP_CMP_DOUBLE + 5: acc = doubles[operand] >= doubleConstants[code[pc++]]; break;
+
+                case OP_CMP_LONG + 0: acc = longs[operand] == longConstants[code[pc++]]; break;
+                case OP_CMP_LONG + 1: acc = longs[operand] != longConstants[code[pc++]]; break;
+                case OP_CMP_LONG + 2: acc = longs[operand] < longConstants[code[pc++]]; break;
+                case OP_CMP_LONG + 3: acc = longs[operand] <= longConstants[code[pc++]]; break;
+                case OP_CMP_LONG + 4: acc = longs[operand] > longConstants[code[pc++]]; break;
+                case OP_CMP_LONG + 5: acc = longs[operand] >= longConstants[code[pc++]]; break;
+
+                case OP_CMP_INT + 0: acc = ints[operand] == longConstants[code[pc++]]; break;
+                case OP_CMP_INT + 1: acc = ints[operand] != longConstants[code[pc++]]; break;
+                case OP_CMP_INT + 2: acc = ints[operand] < longConstants[code[pc++]]; break;
+                case OP_CMP_INT + 3: acc = ints[operand] <= longConstants[code[pc++]]; break;
+                case OP_CMP_INT + 4: acc = ints[operand] > longConstants[code[pc++]]; break;
+                case OP_CMP_INT + 5: acc = ints[operand] >= longConstants[code[pc++]]; break;
+
+                default:
+                    throw new IllegalStateException("Bad opcode at " + (pc - 1) + ": " + (insn & OPCODE_MASK));
+            }
+        }
+        return acc;
+    }
+
+    static int opcode(int insn) { return insn & OPCODE_MASK; }
+    static int operand(int insn) { return insn >>> OPERAND_SHIFT; }
+
+    static boolean isCompare(int opcode) { return opcode >= OP_CMP_DOUBLE; }
+
+    static boolean isJump(int opcode) { return opcode == OP_JUMP_IF_FALSE || opcode == OP_JUMP_IF_TRUE; }
+
+    // Number of ints the instruction starting with insn occupies
+    static int length(int insn) { return isCompare(opcode(insn)) ? 2 : 1; }
+
+    static int encode(int opcode, int operand) {
+        if (operand < 0 || operand > MAX_OPERAND) {
+            throw new IllegalArgumentException("Operand out of range: " + operand);
+        }
+        return (operand << OPERAND_SHIFT) | opcode;
+    }
+
+    // Human readable listing, one instruction per line
+    String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc += length(code[pc])) {
+            int insn = code[pc];
+            int op = opcode(insn);
+            sb.append(String.format("%4d  ", pc));
+            if (isCompare(op)) {
+                int base = op & ~7;
+                CompareOp compare = CompareOp.values()[op - base];
+                String type = base == OP_CMP_DOUBLE ? "DOUBLE" : base == OP_CMP_LONG ? "LONG" : "INT";
+                Object constant = base == OP_CMP_DOUBLE ? (Object) doubleConstants[code[pc + 1]]
+                                                        : (Object) longConstants[code[pc + 1]];
+                sb.append("CMP_").append(type).append(" ").append(compare).append(" slot ")
+                  .append(operand(insn)).append(", ").append(constant);
+            } else {
+                switch (op) {
+                    case OP_LOAD: sb.append("LOAD ").append(variables[operand(insn)]); break;
+                    case OP_JUMP_IF_FALSE: sb.append("JUMP_IF_FALSE ").append(operand(insn)); break;
+                    case OP_JUMP_IF_TRUE: sb.append("JUMP_IF_TRUE ").append(operand(insn)); break;
+                    case OP_NOT: sb.append("NOT"); break;
+                    default: sb.append("??? ").append(insn);
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "RuleProgram{length=" + code.length + ", variables=" + Arrays.toString(variables) + "}";
+    }
+}
+
+// Turns an ASTNode tree into a RuleProgram.
+// "a AND b" becomes: <a>; JUMP_IF_FALSE end; <b>; end:
+// "a OR b"  becomes: <a>; JUMP_IF_TRUE end;  <b>; end:
+// A jump that lands on another jump whose outcome is already known is
+// threaded straight through, so a failing leaf in a long AND chain exits
+// with a single jump.
+// Without a schema every leaf is a LOAD of a precomputed predicate. With
+// one, comparisons are resolved to typed field slots and unknown fields are
+// rejected here rather than at evaluation time.
+final class RuleCompiler {
+    private final RecordSchema schema;
+    private int[] code = new int[16];
+    private int size;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> variables = new ArrayList<>();
+    private final Map<Double, Integer> doublePool = new HashMap<>();
+    private final Map<Long, Integer> longPool = new HashMap<>();
+
+    private RuleCompiler(RecordSchema schema) {
+        this.schema = schema;
+    }
+
+    static RuleProgram compile(ASTNode root) {
+        return compile(root, null);
+    }
+
+    static RuleProgram compile(ASTNode root, RecordSchema schema) {
+        RuleCompiler compiler = new RuleCompiler(schema);
+        compiler.emitNode(root);
+        int[] code = Arrays.copyOf(compiler.code, compiler.size);
+        threadJumps(code);
+        return new RuleProgram(code, compiler.variables.toArray(new String[0]),
+                               toDoubleArray(compiler.doublePool), toLongArray(compiler.longPool), schema);
+    }
+
+    private void emitNode(ASTNode node) {
+        if (node instanceof ComparisonNode) {
+            ComparisonNode comparison = (ComparisonNode) node;
+            if (schema == null) {
+                emit(RuleProgram.OP_LOAD, slotOf(comparison.getText()));
+                return;
+            }
+            RecordField field = schema.requireField(comparison.getField());
+            if (field.getType() == FieldType.DOUBLE) {
+                emitCompare(RuleProgram.OP_CMP_DOUBLE, comparison.getOp(), field.getSlot(),
+                            constant(doublePool, comparison.doubleConstant(field)));
+            } else {
+                int base = field.getType() == FieldType.LONG ? RuleProgram.OP_CMP_LONG : RuleProgram.OP_CMP_INT;
+                emitCompare(base, comparison.getOp(), field.getSlot(),
+                            constant(longPool, comparison.longConstant(schema, field)));
+            }
+        } else if (node instanceof ValueNode) {
+            String variable = ((ValueNode) node).getVariable();
+            if (schema == null) {
+                emit(RuleProgram.OP_LOAD, slotOf(variable));
+                return;
+            }
+            // A bare field is a truth test: field != 0
+            RecordField field = schema.requireField(variable);
+            switch (field.getType()) {
+                case DOUBLE:
+                    emitCompare(RuleProgram.OP_CMP_DOUBLE, CompareOp.NE, field.getSlot(), constant(doublePool, 0.0));
+                    break;
+                case LONG:
+                    emitCompare(RuleProgram.OP_CMP_LONG, CompareOp.NE, field.getSlot(), constant(longPool, 0L));
+                    break;
+                default:
+                    emitCompare(RuleProgram.OP_CMP_INT, CompareOp.NE, field.getSlot(), constant(longPool, 0L));
+            }
+        } else if (node instanceof LogicalNode) {
+            LogicalNode logical = (LogicalNode) node;
+            int jump;
+            switch (logical.getOperator()) {
+                case "AND": jump = RuleProgram.OP_JUMP_IF_FALSE; break;
+                case "OR": jump = RuleProgram.OP_JUMP_IF_TRUE; break;
+                default: throw new IllegalArgumentException("Unknown operator: " + logical.getOperator());
+            }
+            emitNode(logical.getLeft());
+            int patch = emit(jump, 0);
+            emitNode(logical.getRight());
+            code[patch] = RuleProgram.encode(jump, size);
+        } else if (node instanceof NotNode) {
+            emitNode(((NotNode) node).getOperand());
+            emit(RuleProgram.OP_NOT, 0);
+        } else {
+            throw new IllegalArgumentException("Cannot compile node: " + node);
+        }
+    }
+
+    private int slotOf(String variable) {
+        Integer slot = slots.get(variable);
+        if (slot == null) {
+            slot = variables.size();
+            slots.put(variable, slot);
+            variables.add(variable);
+        }
+        return slot;
+    }
+
+    private static <K> int constant(Map<K, Integer> pool, K value) {
+        Integer index = pool.get(value);
+        if (index == null) {
+            index = pool.size();
+            pool.put(value, index);
+        }
+        return index;
+    }
+
+    private static double[] toDoubleArray(Map<Double, Integer> pool) {
+        double[] values = new double[pool.size()];
+        pool.forEach((value, index) -> values[index] = value);
+        return values;
+    }
+
+    private static long[] toLongArray(Map<Long, Integer> pool) {
+        long[] values = new long[pool.size()];
+        pool.forEach((value, index) -> values[index] = value);
+        return values;
+    }
+
+    private void emitCompare(int base, CompareOp op, int slot, int constantIndex) {
+        emit(base + op.ordinal(), slot);
+        emitWord(constantIndex);
+    }
+
+    private int emit(int opcode, int operand) {
+        return emitWord(RuleProgram.encode(opcode, operand));
+    }
+
+    private int emitWord(int word) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size] = word;
+        return size++;
+    }
+
+    // Retarget every jump past jumps whose outcome is implied by its own.
+    // Targets only ever move forward, so this terminates.
+    static void threadJumps(int[] code) {
+        for (int pc = 0; pc < code.length; pc += RuleProgram.length(code[pc])) {
+            int op = RuleProgram.opcode(code[pc]);
+            if (!RuleProgram.isJump(op)) {
+                continue;
+            }
+            int target = RuleProgram.operand(code[pc]);
+            while (target < code.length) {
+                int next = RuleProgram.opcode(code[target]);
+                if (next == op) {
+                    // Same condition, and it holds: follow it
+                    target = RuleProgram.operand(code[target]);
+                } else if (RuleProgram.isJump(next)) {
+                    // Opposite condition: it can never be taken here
+                    target++;
+                } else {
+                    break;
+                }
+            }
+            code[pc] = RuleProgram.encode(op, target);
+        }
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.*;
+
 // Abstract base class for AST nodes
 abstract class ASTNode {
    abstract boolean evaluate(Context context);
@@ -11,12 +13,171 @@ class ValueNode extends ASTNode {
        this.variable = variable;
    }
 
+   String getVariable() {
+       return variable;
+   }
+
    @Override
    boolean evaluate(Context context) {
        return context.getValue(variable);
    }
 }
 
+// Comparison operators, with the symbol the parser accepts for each
+enum CompareOp {
+   EQ("="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">=");
+
+   final String symbol;
+
+   CompareOp(String symbol) {
+       this.symbol = symbol;
+   }
+
+   static CompareOp fromSymbol(String symbol) {
+       for (CompareOp op : values()) {
+           if (op.symbol.equals(symbol)) {
+               return op;
+           }
+       }
+       throw new IllegalArgumentException("Unknown comparison: " + symbol);
+   }
+
+   // The operator that gives the same result with the operands swapped
+   CompareOp flip() {
+       switch (this) {
+           case LT: return GT;
+           case LE: return GE;
+           case GT: return LT;
+           case GE: return LE;
+           default: return this;
+       }
+   }
+
+   boolean test(double a, double b) {
+       switch (this) {
+           case EQ: return a == b;
+           case NE: return a != b;
+           case LT: return a < b;
+           case LE: return a <= b;
+           case GT: return a > b;
+           default: return a >= b;
+       }
+   }
+
+   boolean test(long a, long b) {
+       switch (this) {
+           case EQ: return a == b;
+           case NE: return a != b;
+           case LT: return a < b;
+           case LE: return a <= b;
+           case GT: return a > b;
+           default: return a >= b;
+       }
+   }
+}
+
+// Leaf node comparing a record field with a constant, e.g. "amount > 100"
+// or "category_id = 'FOOD'". Against a Context without a record it falls
+// back to the precomputed result stored under its canonical text.
+class ComparisonNode extends ASTNode {
+   private final String field;
+   private final CompareOp op;
+   private final String literal;
+   private final boolean string;
+   private final double number;
+   private final long integer;
+   private final boolean integral;
+
+   ComparisonNode(String field, CompareOp op, String literal) {
+       this.field = field;
+       this.op = op;
+       this.literal = literal;
+       this.string = literal.startsWith("'");
+       if (string) {
+           this.number = Double.NaN;
+           this.integer = 0;
+           this.integral = false;
+       } else if (literal.indexOf('.') < 0) {
+           this.integer = Long.parseLong(literal);
+           this.number = integer;
+           this.integral = true;
+       } else {
+           this.number = Double.parseDouble(literal);
+           this.integer = (long) number;
+           this.integral = number == integer;
+       }
+   }
+
+   String getField() {
+       return field;
+   }
+
+   CompareOp getOp() {
+       return op;
+   }
+
+   String getLiteral() {
+       return literal;
+   }
+
+   boolean isString() {
+       return string;
+   }
+
+   String getStringValue() {
+       return literal.substring(1, literal.length() - 1);
+   }
+
+   // Canonical text, which is also the key of a precomputed result
+   String getText() {
+       return field + " " + op.symbol + " " + literal;
+   }
+
+   // The constant as compared against a DOUBLE field
+   double doubleConstant(RecordField target) {
+       if (string) {
+           throw new IllegalArgumentException("Cannot compare " + target.getType() + " field "
+                   + field + " with string " + literal);
+       }
+       return number;
+   }
+
+   // The constant as compared against a LONG or INT field; strings become
+   // dictionary codes, which only support equality. Encoding reserves a code
+   // for values no record has used yet, so a rule compiled early still
+   // matches records that arrive later.
+   long longConstant(RecordSchema schema, RecordField target) {
+       if (string) {
+           if (target.getType() != FieldType.INT || (op != CompareOp.EQ && op != CompareOp.NE)) {
+               throw new IllegalArgumentException("Cannot apply " + op.symbol + " to " + target.getType()
+                       + " field " + field + " and string " + literal);
+           }
+           return schema.encode(field, getStringValue());
+       }
+       if (!integral) {
+           throw new IllegalArgumentException("Field " + field + " is integral but " + literal + " is not");
+       }
+       return integer;
+   }
+
+   @Override
+   boolean evaluate(Context context) {
+       TransactionRecord record = context.getRecord();
+       if (record == null) {
+           return context.getValue(getText());
+       }
+       RecordField target = record.getSchema().requireField(field);
+       switch (target.getType()) {
+           case DOUBLE:
+               return op.test(record.getDouble(target.getSlot()), doubleConstant(target));
+           case LONG:
+               return op.test(record.getLong(target.getSlot()), longConstant(record.getSchema(), target));
+           default:
+               return op.test(record.getInt(target.getSlot()), longConstant(record.getSchema(), target));
+       }
+   }
+}
+
 // Node for logical operations
 class LogicalNode extends ASTNode {
    private final ASTNode left;
@@ -29,6 +190,18 @@ class LogicalNode extends ASTNode {
        this.operator = operator;
    }
 
+   ASTNode getLeft() {
+       return left;
+   }
+
+   ASTNode getRight() {
+       return right;
+   }
+
+   String getOperator() {
+       return operator;
+   }
+
    @Override
    boolean evaluate(Context context) {
        switch (operator) {
@@ -39,35 +212,255 @@ class LogicalNode extends ASTNode {
    }
 }
 
+// Node for logical negation
+class NotNode extends ASTNode {
+   private final ASTNode operand;
+
+   NotNode(ASTNode operand) {
+       this.operand = operand;
+   }
+
+   ASTNode getOperand() {
+       return operand;
+   }
+
+   @Override
+   boolean evaluate(Context context) {
+       return !operand.evaluate(context);
+   }
+}
+
+// Lexical token of a rule, with its offset in the source text
+class RuleToken {
+   enum Type { IDENTIFIER, NUMBER, STRING, COMPARISON, AND, OR, NOT, LPAREN, RPAREN, EOF }
+
+   final Type type;
+   final String text;
+   final int position;
+
+   RuleToken(Type type, String text, int position) {
+       this.type = type;
+       this.text = text;
+       this.position = position;
+   }
+
+   @Override
+   public String toString() {
+       return type + "(" + text + ")@" + position;
+   }
+}
+
+// Splits rule text into tokens. Keywords are case-insensitive and
+// comparison operators are canonicalised ("==" -> "=", "<>" -> "!=").
+class RuleTokenizer {
+   static List<RuleToken> tokenize(String rule) {
+       List<RuleToken> tokens = new ArrayList<>();
+       int length = rule.length();
+       int i = 0;
+       while (i < length) {
+           char c = rule.charAt(i);
+           if (Character.isWhitespace(c)) {
+               i++;
+           } else if (c == '(') {
+               tokens.add(new RuleToken(RuleToken.Type.LPAREN, "(", i++));
+           } else if (c == ')') {
+               tokens.add(new RuleToken(RuleToken.Type.RPAREN, ")", i++));
+           } else if (c == '<' || c == '>' || c == '=' || c == '!') {
+               int start = i++;
+               char next = i < length ? rule.charAt(i) : 0;
+               String op;
+               if (next == '=') {
+                   i++;
+                   op = c == '=' ? "=" : c + "=";
+               } else if (c == '<' && next == '>') {
+                   i++;
+                   op = "!=";
+               } else if (c == '!') {
+                   throw new IllegalArgumentException("Unexpected character '!' at position " + start);
+               } else {
+                   op = String.valueOf(c);
+               }
+               tokens.add(new RuleToken(RuleToken.Type.COMPARISON, op, start));
+           } else if (c == '\'') {
+               int start = i++;
+               while (i < length && rule.charAt(i) != '\'') {
+                   i++;
+               }
+               if (i == length) {
+                   throw new IllegalArgumentException("Unterminated string at position " + start);
+               }
+               i++;
+               tokens.add(new RuleToken(RuleToken.Type.STRING, rule.substring(start, i), start));
+           } else if (Character.isDigit(c) || (c == '-' && i + 1 < length && Character.isDigit(rule.charAt(i + 1)))) {
+               int start = i++;
+               while (i < length && (Character.isDigit(rule.charAt(i)) || rule.charAt(i) == '.')) {
+                   i++;
+               }
+               tokens.add(new RuleToken(RuleToken.Type.NUMBER, rule.substring(start, i), start));
+           } else if (Character.isLetter(c) || c == '_') {
+               int start = i++;
+               while (i < length && (Character.isLetterOrDigit(rule.charAt(i)) || rule.charAt(i) == '_' || rule.charAt(i) == '.')) {
+                   i++;
+               }
+               String word = rule.substring(start, i);
+               switch (word.toUpperCase()) {
+                   case "AND": tokens.add(new RuleToken(RuleToken.Type.AND, "AND", start)); break;
+                   case "OR": tokens.add(new RuleToken(RuleToken.Type.OR, "OR", start)); break;
+                   case "NOT": tokens.add(new RuleToken(RuleToken.Type.NOT, "NOT", start)); break;
+                   default: tokens.add(new RuleToken(RuleToken.Type.IDENTIFIER, word, start));
+               }
+           } else {
+               throw new IllegalArgumentException("Unexpected character '" + c + "' at position " + i);
+           }
+       }
+       tokens.add(new RuleToken(RuleToken.Type.EOF, "", length));
+       return tokens;
+   }
+}
+
+// Precedence-climbing parser for rule text.
+//   expression := unary (("AND" | "OR") unary)*     OR binds looser than AND
+//   unary      := "NOT" unary | "(" expression ")" | comparison | identifier
+//   comparison := operand ("=" | "!=" | "<" | "<=" | ">" | ">=") operand
+// A comparison of an identifier with a constant becomes a ComparisonNode,
+// written field-first ("100 < price" parses as "price > 100"). Any other
+// comparison becomes a ValueNode keyed by its canonical text.
 class ASTParser {
+   private List<RuleToken> tokens;
+   private int pos;
+
    ASTNode parse(String rule) {
-       // Example: Simplified hard-coded parsing
-       ASTNode left = new ValueNode("price > 100");
-       ASTNode right = new ValueNode("stock < 50");
-       return new LogicalNode(left, right, "AND");
+       tokens = RuleTokenizer.tokenize(rule);
+       pos = 0;
+       ASTNode root = parseExpression(1);
+       expect(RuleToken.Type.EOF, "end of rule");
+       return root;
+   }
+
+   private static int precedence(RuleToken token) {
+       switch (token.type) {
+           case OR: return 1;
+           case AND: return 2;
+           default: return 0;
+       }
+   }
+
+   private ASTNode parseExpression(int minPrecedence) {
+       ASTNode left = parseUnary();
+       while (precedence(peek()) >= minPrecedence && precedence(peek()) > 0) {
+           RuleToken op = tokens.get(pos++);
+           ASTNode right = parseExpression(precedence(op) + 1);
+           left = new LogicalNode(left, right, op.text);
+       }
+       return left;
+   }
+
+   private ASTNode parseUnary() {
+       RuleToken token = peek();
+       switch (token.type) {
+           case NOT:
+               pos++;
+               return new NotNode(parseUnary());
+           case LPAREN:
+               pos++;
+               ASTNode inner = parseExpression(1);
+               expect(RuleToken.Type.RPAREN, "')'");
+               return inner;
+           case IDENTIFIER:
+           case NUMBER:
+           case STRING:
+               pos++;
+               if (peek().type != RuleToken.Type.COMPARISON) {
+                   if (token.type != RuleToken.Type.IDENTIFIER) {
+                       throw error("comparison operator");
+                   }
+                   return new ValueNode(token.text);
+               }
+               RuleToken op = tokens.get(pos++);
+               RuleToken right = peek();
+               if (right.type != RuleToken.Type.IDENTIFIER && right.type != RuleToken.Type.NUMBER
+                       && right.type != RuleToken.Type.STRING) {
+                   throw error("operand");
+               }
+               pos++;
+               if (token.type == RuleToken.Type.IDENTIFIER && right.type != RuleToken.Type.IDENTIFIER) {
+                   return new ComparisonNode(token.text, CompareOp.fromSymbol(op.text), right.text);
+               }
+               if (token.type != RuleToken.Type.IDENTIFIER && right.type == RuleToken.Type.IDENTIFIER) {
+                   return new ComparisonNode(right.text, CompareOp.fromSymbol(op.text).flip(), token.text);
+               }
+               return new ValueNode(token.text + " " + op.text + " " + right.text);
+           default:
+               throw error("expression");
+       }
+   }
+
+   private RuleToken peek() {
+       return tokens.get(pos);
+   }
+
+   private void expect(RuleToken.Type type, String description) {
+       if (peek().type != type) {
+           throw error(description);
+       }
+       pos++;
+   }
+
+   private IllegalArgumentException error(String expected) {
+       RuleToken token = peek();
+       String found = token.type == RuleToken.Type.EOF ? "end of rule" : "'" + token.text + "'";
+       return new IllegalArgumentException("Expected " + expected + " but found " + found
+               + " at position " + token.position);
    }
 }
 
+// Inputs a rule is evaluated against: either precomputed predicate results
+// keyed by predicate text, or a typed TransactionRecord
 class Context {
    private final Map<String, Boolean> values;
+   private final TransactionRecord record;
 
    Context(Map<String, Boolean> values) {
        this.values = values;
+       this.record = null;
+   }
+
+   Context(TransactionRecord record) {
+       this.values = Collections.emptyMap();
+       this.record = record;
    }
 
+   // A bare variable is true when precomputed as true or, for a record
+   // field, when the field is non-zero
    boolean getValue(String variable) {
+       if (record != null) {
+           RecordField field = record.getSchema().field(variable);
+           if (field != null) {
+               switch (field.getType()) {
+                   case DOUBLE: return record.getDouble(field.getSlot()) != 0;
+                   case LONG: return record.getLong(field.getSlot()) != 0;
+                   default: return record.getInt(field.getSlot()) != 0;
+               }
+           }
+       }
        return values.getOrDefault(variable, false);
    }
+
+   TransactionRecord getRecord() {
+       return record;
+   }
 }
 
+// The engine spans RuleEngine.java and the Rule*.java companions; compile them together:
+//   javac -d out RuleEngine.java Rule*.java && java -cp out RuleEngine
 public class RuleEngine {
    public static void main(String[] args) {
        // Define the rule
        String rule = "price > 100 AND stock < 50";
 
-       // Parse the rule into an AST
-       ASTParser parser = new ASTParser();
-       ASTNode ast = parser.parse(rule);
+       // Parse the rule into an AST (repeat parses of the same text hit the cache)
+       RuleCache cache = new RuleCache(1024);
+       ASTNode ast = cache.parse(rule);
 
        // Create a context with variable values
        Map<String, Boolean> contextValues = new HashMap<>();
@@ -78,5 +471,19 @@ public class RuleEngine {
        // Evaluate the rule
        boolean result = ast.evaluate(context);
        System.out.println("Rule evaluation result: " + result);
+
+       // Compile the rule once and evaluate the flat program
+       RuleProgram program = RuleCompiler.compile(ast);
+       System.out.println("Compiled rule evaluation result: " + program.evaluate(context));
+       System.out.println("Parse cache: " + cache);
+
+       // Typed rules compare record fields directly; the compiled program
+       // reads primitive slots resolved at compile time
+       RecordSchema schema = RecordSchema.transactions();
+       ASTNode typed = cache.parse("amount > 100 AND category_id = 'FOOD'");
+       RuleProgram typedProgram = RuleCompiler.compile(typed, schema);
+       TransactionRecord record = schema.newRecord().set("amount", 250.0).set("category_id", "FOOD");
+       System.out.println("Typed rule evaluation result: " + typed.evaluate(new Context(record)));
+       System.out.println("Compiled typed rule evaluation result: " + typedProgram.evaluate(record));
    }
 }
\ No newline at end of file
@@ -0,0 +1,496 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+// Micro benchmarks for the rule engine.
+// Usage: java RuleEngineBenchmark [suite...]   (no arguments runs every suite)
+// There is no build manifest to pull in JMH, so this uses a plain
+// warmup-then-measure loop with a volatile sink to keep results alive.
+public class RuleEngineBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ROUND_NANOS = 200_000_000L;
+
+    private static volatile boolean sink;
+
+    public static void main(String[] args) {
+        Set<String> suites = new HashSet<>(Arrays.asList(args));
+        if (suites.isEmpty() || suites.contains("compiled")) {
+            compiledVersusTreeWalk();
+        }
+        if (suites.isEmpty() || suites.contains("parse")) {
+            parseVersusCache();
+        }
+        if (suites.isEmpty() || suites.contains("typed")) {
+            typedRecords();
+        }
+        if (suites.isEmpty() || suites.contains("batch")) {
+            batchVersusScalar();
+        }
+        if (suites.isEmpty() || suites.contains("ruleset")) {
+            sharedRuleSet();
+        }
+        if (suites.isEmpty() || suites.contains("incremental")) {
+            incrementalUpdates();
+        }
+        if (suites.isEmpty() || suites.contains("index")) {
+            indexedAlerts();
+        }
+        if (suites.isEmpty() || suites.contains("jit")) {
+            generatedBytecode();
+        }
+        if (suites.isEmpty() || suites.contains("registry")) {
+            registryUnderChurn();
+        }
+        if (suites.isEmpty() || suites.contains("profile")) {
+            profilerOverhead();
+        }
+    }
+
+    // =============== SUITES ===============
+
+    // Tree walk vs. flat program on balanced AND/OR trees of growing depth
+    static void compiledVersusTreeWalk() {
+        System.out.println("== compiled: tree walk vs. RuleProgram ==");
+        Random random = new Random(42);
+        for (int depth : new int[] {2, 6, 10}) {
+            List<String> variables = new ArrayList<>();
+            ASTNode rule = randomTree(depth, random, variables);
+            Map<String, Boolean> values = new HashMap<>();
+            for (String variable : variables) {
+                values.put(variable, random.nextBoolean());
+            }
+            Context context = new Context(values);
+            RuleProgram program = RuleCompiler.compile(rule);
+
+            report("tree walk, depth " + depth, () -> rule.evaluate(context));
+            report("compiled,  depth " + depth, () -> program.evaluate(context));
+        }
+    }
+
+    // Full parse of a configured rule vs. a hit in the shared RuleCache
+    static void parseVersusCache() {
+        System.out.println("== parse: ASTParser vs. RuleCache hit ==");
+        String rule = "(amount > 500 AND category = 'FOOD') OR (NOT is_recurring AND merchant_id != 42)";
+        RuleCache cache = new RuleCache(1024);
+        cache.parse(rule);
+
+        report("ASTParser.parse", () -> new ASTParser().parse(rule) != null);
+        report("RuleCache.parse (hit)", () -> cache.parse(rule) != null);
+        System.out.println("  " + cache);
+    }
+
+    // Precomputed-predicate map vs. typed record, interpreted and compiled
+    static void typedRecords() {
+        System.out.println("== typed: Map<String, Boolean> context vs. TransactionRecord ==");
+        Random random = new Random(42);
+        RecordSchema schema = RecordSchema.transactions();
+        for (int depth : new int[] {2, 6}) {
+            ASTNode rule = randomTypedTree(depth, random);
+            TransactionRecord record = randomRecord(schema, random);
+            Context recordContext = new Context(record);
+
+            // The legacy context needs every predicate precomputed by text
+            Map<String, Boolean> values = new HashMap<>();
+            RuleProgram legacy = RuleCompiler.compile(rule);
+            for (String predicate : legacy.getVariables()) {
+                values.put(predicate, new ASTParser().parse(predicate).evaluate(recordContext));
+            }
+            Context mapContext = new Context(values);
+            RuleProgram typed = RuleCompiler.compile(rule, schema);
+
+            report("map context, compiled, depth " + depth, () -> legacy.evaluate(mapContext));
+            report("record, tree walk, depth " + depth, () -> rule.evaluate(recordContext));
+            report("record, compiled, depth " + depth, () -> typed.evaluate(record));
+        }
+    }
+
+    // Row-at-a-time compiled programs vs. columnar bitmap evaluation
+    static void batchVersusScalar() {
+        System.out.println("== batch: scalar RuleProgram vs. BatchProgram (rows/s) ==");
+        Random random = new Random(42);
+        RecordSchema schema = RecordSchema.transactions();
+        int rows = 4096;
+        TransactionBatch batch = new TransactionBatch(schema, rows);
+        TransactionRecord record = schema.newRecord();
+        for (int i = 0; i < rows; i++) {
+            batch.append(fillRecord(record, random));
+        }
+        long[] selection = new long[Bitmaps.words(rows)];
+        BatchScratch scratch = new BatchScratch();
+        for (int depth : new int[] {1, 4, 8}) {
+            ASTNode rule = randomTypedTree(depth, random);
+            RuleProgram scalar = RuleCompiler.compile(rule, schema);
+            BatchProgram vectorized = BatchProgram.compile(rule, schema);
+
+            reportRows("scalar, depth " + depth, rows, () -> {
+                int matched = 0;
+                for (int row = 0; row < rows; row++) {
+                    batch.readRow(row, record);
+                    if (scalar.evaluate(record)) matched++;
+                }
+                return matched > 0;
+            });
+            reportRows("batch,  depth " + depth, rows, () -> vectorized.select(batch, selection, scratch) > 0);
+        }
+    }
+
+    // Independent compiled rules vs. one hash-consed RuleSet, for rule sets
+    // drawing their leaves from a fixed pool of 40 distinct predicates
+    static void sharedRuleSet() {
+        System.out.println("== ruleset: independent RulePrograms vs. shared RuleSet (per transaction) ==");
+        Random random = new Random(42);
+        RecordSchema schema = RecordSchema.transactions();
+        List<ASTNode> pool = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            pool.add(randomTypedTree(0, random));
+        }
+        TransactionRecord record = randomRecord(schema, random);
+        for (int ruleCount : new int[] {10, 100, 1000}) {
+            RuleSet set = new RuleSet(schema);
+            RuleProgram[] programs = new RuleProgram[ruleCount];
+            for (int i = 0; i < ruleCount; i++) {
+                ASTNode rule = randomPooledTree(3, random, pool);
+                set.add("rule" + i, rule);
+                programs[i] = RuleCompiler.compile(rule, schema);
+            }
+            RuleSetMatcher matcher = set.newMatcher();
+            int[] fired = new int[ruleCount];
+            System.out.println("  " + set);
+
+            report(ruleCount + " independent programs", () -> {
+                int count = 0;
+                for (RuleProgram program : programs) {
+                    if (program.evaluate(record)) count++;
+                }
+                return count > 0;
+            });
+            report(ruleCount + " rules in a RuleSet", () -> matcher.match(record, fired) > 0);
+        }
+    }
+
+    // Full RuleSet re-match vs. incremental propagation after a one-field change
+    static void incrementalUpdates() {
+        System.out.println("== incremental: full re-match vs. IncrementalMatcher (per field update) ==");
+        Random random = new Random(42);
+        RecordSchema schema = RecordSchema.transactions();
+        List<ASTNode> pool = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            pool.add(randomTypedTree(0, random));
+        }
+        for (int ruleCount : new int[] {100, 1000, 10000}) {
+            RuleSet set = new RuleSet(schema);
+            for (int i = 0; i < ruleCount; i++) {
+                set.add("rule" + i, randomPooledTree(3, random, pool));
+            }
+            int amountSlot = schema.requireField("amount").getSlot();
+            int[] events = new int[1];
+            RuleActivationListener counter = new RuleActivationListener() {
+                public void onActivated(int rule, String name) { events[0]++; }
+                public void onDeactivated(int rule, String name) { events[0]++; }
+            };
+            IncrementalMatcher incremental = new IncrementalMatcher(set, counter);
+            incremental.reset(randomRecord(schema, random));
+            TransactionRecord record = randomRecord(schema, random);
+            RuleSetMatcher full = set.newMatcher();
+            int[] fired = new int[ruleCount];
+            double[] amounts = new double[1024];
+            for (int i = 0; i < amounts.length; i++) {
+                amounts[i] = random.nextInt(100_000) / 100.0;
+            }
+            int[] next = new int[1];
+
+            report(ruleCount + " rules, full re-match", () -> {
+                record.setDouble(amountSlot, amounts[next[0]++ & 1023]);
+                return full.match(record, fired) > 0;
+            });
+            report(ruleCount + " rules, incremental", () -> {
+                incremental.updateDouble(amountSlot, amounts[next[0]++ & 1023]);
+                return events[0] > 0;
+            });
+        }
+    }
+
+    // Scanning every alert rule vs. RuleIndex candidate lookup, 10 to 100k rules
+    static void indexedAlerts() {
+        System.out.println("== index: scan all rules vs. RuleIndex (per transaction) ==");
+        Random random = new Random(42);
+        RecordSchema schema = RecordSchema.transactions();
+        TransactionRecord[] records = new TransactionRecord[256];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = randomRecord(schema, random).set("merchant_id", random.nextInt(10_000));
+        }
+        for (int ruleCount : new int[] {10, 100, 1_000, 10_000, 100_000}) {
+            RuleIndex index = new RuleIndex(schema);
+            RuleProgram[] programs = new RuleProgram[ruleCount];
+            for (int i = 0; i < ruleCount; i++) {
+                ASTNode rule = randomAlert(random);
+                index.add("alert" + i, rule);
+                programs[i] = RuleCompiler.compile(rule, schema);
+            }
+            index.build();
+            int[] fired = new int[ruleCount];
+            int[] next = new int[1];
+            System.out.println("  " + index);
+
+            report(ruleCount + " rules, scan", () -> {
+                TransactionRecord record = records[next[0]++ & 255];
+                int count = 0;
+                for (RuleProgram program : programs) {
+                    if (program.evaluate(record)) count++;
+                }
+                return count > 0;
+            });
+            report(ruleCount + " rules, indexed", () -> index.match(records[next[0]++ & 255], fired) > 0);
+        }
+    }
+
+    // Tree walk vs. RuleProgram interpreter vs. generated class on deep trees;
+    // records rotate so branch prediction cannot memorize one outcome
+    static void generatedBytecode() {
+        System.out.println("== jit: tree walk vs. RuleProgram vs. RuleJit ==");
+        Random random = new Random(42);
+        RecordSchema schema = RecordSchema.transactions();
+        TransactionRecord[] records = new TransactionRecord[256];
+        Context[] contexts = new Context[records.length];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = randomRecord(schema, random);
+            contexts[i] = new Context(records[i]);
+        }
+        for (int depth : new int[] {4, 6, 8}) {
+            ASTNode rule = randomTypedTree(depth, random);
+            RuleProgram program = RuleCompiler.compile(rule, schema);
+            CompiledRule compiled = RuleJit.compile(rule, schema);
+            TieredRule tiered = new TieredRule(rule, schema);
+            int[] next = new int[1];
+
+            report("tree walk, depth " + depth, () -> rule.evaluate(contexts[next[0]++ & 255]));
+            report("RuleProgram, depth " + depth, () -> program.evaluate(records[next[0]++ & 255]));
+            report("RuleJit, depth " + depth, () -> compiled.test(records[next[0]++ & 255]));
+            report("TieredRule, depth " + depth, () -> tiered.test(records[next[0]++ & 255]));
+            System.out.println("  " + tiered);
+        }
+    }
+
+    // Evaluation throughput of RuleRegistry snapshots on 1-64 reader
+    // threads while a writer thread keeps replacing rules
+    static void registryUnderChurn() {
+        System.out.println("== registry: lock-free snapshots under rule churn (evals/s) ==");
+        Random random = new Random(42);
+        RecordSchema schema = RecordSchema.transactions();
+        RuleRegistry registry = new RuleRegistry(schema);
+        int ruleCount = 100;
+        for (int i = 0; i < ruleCount; i++) {
+            registry.put("rule-" + i, randomAlert(random));
+        }
+        TransactionRecord[] records = new TransactionRecord[256];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = randomRecord(schema, random);
+        }
+        ASTNode[] replacements = new ASTNode[1024];
+        for (int i = 0; i < replacements.length; i++) {
+            replacements[i] = randomAlert(random);
+        }
+
+        for (int threads : new int[] {1, 2, 4, 8, 16, 32, 64}) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder evaluations = new LongAdder();
+            LongAdder swaps = new LongAdder();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                workers.add(new Thread(() -> {
+                    int[] fired = new int[ruleCount];
+                    int next = seed;
+                    long local = 0;
+                    boolean acc = false;
+                    while (running.get()) {
+                        RuleRegistry.Snapshot snapshot = registry.snapshot();
+                        acc ^= snapshot.match(records[next++ & 255], fired) > 0;
+                        local += snapshot.size();
+                    }
+                    sink = acc;
+                    evaluations.add(local);
+                }));
+            }
+            Thread churn = new Thread(() -> {
+                int next = 0;
+                while (running.get()) {
+                    registry.put("rule-" + (next % ruleCount), replacements[next++ & 1023]);
+                    swaps.increment();
+                    LockSupport.parkNanos(100_000);
+                }
+            });
+            workers.forEach(Thread::start);
+            churn.start();
+            long start = System.nanoTime();
+            LockSupport.parkNanos(2 * ROUND_NANOS * MEASURE_ROUNDS);
+            running.set(false);
+            for (Thread thread : workers) {
+                joinQuietly(thread);
+            }
+            joinQuietly(churn);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("  %-40s %14.0f evals/s %8.0f swaps/s%n", threads + " threads",
+                              evaluations.sum() / seconds, swaps.sum() / seconds);
+        }
+        System.out.println("  " + registry);
+    }
+
+    // Plain tree walk vs. a ProfiledRule with profiling off and on; the
+    // "off" row must match the plain row
+    static void profilerOverhead() {
+        System.out.println("== profile: RuleProfiler overhead ==");
+        Random random = new Random(42);
+        RecordSchema schema = RecordSchema.transactions();
+        Context[] contexts = new Context[256];
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i] = new Context(randomRecord(schema, random));
+        }
+        RuleProfiler profiler = new RuleProfiler();
+        for (int depth : new int[] {2, 6}) {
+            ASTNode rule = randomTypedTree(depth, random);
+            ProfiledRule profiled = new ProfiledRule("depth-" + depth, rule, profiler);
+            int[] next = new int[1];
+
+            report("plain, depth " + depth, () -> rule.evaluate(contexts[next[0]++ & 255]));
+            report("profiling off, depth " + depth, () -> profiled.evaluate(contexts[next[0]++ & 255]));
+            profiled.setProfiling(true);
+            report("profiling on, depth " + depth, () -> profiled.evaluate(contexts[next[0]++ & 255]));
+            profiled.setProfiling(false);
+            if (depth == 2) {
+                System.out.print(profiler.report().replaceAll("(?m)^", "  "));
+            }
+        }
+    }
+
+    // =============== FIXTURES ===============
+
+    // A typical user alert: a merchant or category anchor plus an amount
+    // threshold, an amount window, or (rarely) an unanchored OR
+    static ASTNode randomAlert(Random random) {
+        ASTNode threshold = new ComparisonNode("amount", CompareOp.GT, String.valueOf(random.nextInt(1000)));
+        switch (random.nextInt(10)) {
+            case 0:
+            case 1:
+            case 2:
+            case 3:
+                return new LogicalNode(new ComparisonNode("merchant_id", CompareOp.EQ,
+                        String.valueOf(random.nextInt(10_000))), threshold, "AND");
+            case 4:
+                return new LogicalNode(new ComparisonNode("category_id", CompareOp.EQ,
+                        "'" + CATEGORIES[random.nextInt(CATEGORIES.length)] + "'"), threshold, "AND");
+            case 5:
+                return new LogicalNode(threshold, new ComparisonNode("category_id", CompareOp.EQ,
+                        "'" + CATEGORIES[random.nextInt(CATEGORIES.length)] + "'"), "OR");
+            default:
+                int low = random.nextInt(100_000);
+                return new LogicalNode(new ComparisonNode("amount", CompareOp.GE, String.valueOf(low / 100.0)),
+                        new ComparisonNode("amount", CompareOp.LT, String.valueOf((low + 500) / 100.0)), "AND");
+        }
+    }
+
+    // Random AND/OR/NOT tree whose leaves are drawn from a shared pool
+    static ASTNode randomPooledTree(int depth, Random random, List<ASTNode> pool) {
+        if (depth == 0) {
+            return pool.get(random.nextInt(pool.size()));
+        }
+        ASTNode node = new LogicalNode(randomPooledTree(depth - 1, random, pool),
+                                       randomPooledTree(depth - 1, random, pool),
+                                       random.nextBoolean() ? "AND" : "OR");
+        return random.nextInt(8) == 0 ? new NotNode(node) : node;
+    }
+
+    static final String[] CATEGORIES = {"FOOD", "RENT", "TRAVEL", "FUEL", "SHOPPING", "BILLS"};
+
+    // Random AND/OR/NOT tree of comparisons over RecordSchema.transactions()
+    static ASTNode randomTypedTree(int depth, Random random) {
+        if (depth == 0) {
+            CompareOp op = CompareOp.values()[random.nextInt(6)];
+            switch (random.nextInt(4)) {
+                case 0: return new ComparisonNode("amount", op, String.valueOf(random.nextInt(1000)));
+                case 1: return new ComparisonNode("merchant_id", op, String.valueOf(random.nextInt(50)));
+                case 2: return new ComparisonNode("timestamp", op, String.valueOf(1_700_000_000_000L + random.nextInt(1_000_000)));
+                default:
+                    return new ComparisonNode("category_id", random.nextBoolean() ? CompareOp.EQ : CompareOp.NE,
+                                              "'" + CATEGORIES[random.nextInt(CATEGORIES.length)] + "'");
+            }
+        }
+        ASTNode node = new LogicalNode(randomTypedTree(depth - 1, random), randomTypedTree(depth - 1, random),
+                                       random.nextBoolean() ? "AND" : "OR");
+        return random.nextInt(8) == 0 ? new NotNode(node) : node;
+    }
+
+    static TransactionRecord randomRecord(RecordSchema schema, Random random) {
+        return fillRecord(schema.newRecord(), random);
+    }
+
+    static TransactionRecord fillRecord(TransactionRecord record, Random random) {
+        return record.set("amount", random.nextInt(100_000) / 100.0)
+                     .set("merchant_id", random.nextInt(50))
+                     .set("timestamp", 1_700_000_000_000L + random.nextInt(1_000_000))
+                     .set("category_id", CATEGORIES[random.nextInt(CATEGORIES.length)]);
+    }
+
+    static ASTNode randomTree(int depth, Random random, List<String> variables) {
+        if (depth == 0) {
+            String variable = "v" + variables.size() + " > " + random.nextInt(1000);
+            variables.add(variable);
+            return new ValueNode(variable);
+        }
+        return new LogicalNode(randomTree(depth - 1, random, variables),
+                               randomTree(depth - 1, random, variables),
+                               random.nextBoolean() ? "AND" : "OR");
+    }
+
+    // =============== HARNESS ===============
+
+    static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void report(String label, BooleanSupplier body) {
+        double nanosPerOp = measure(body);
+        System.out.printf("  %-40s %12.1f ns/op %14.0f ops/s%n", label, nanosPerOp, 1e9 / nanosPerOp);
+    }
+
+    static void reportRows(String label, int rowsPerOp, BooleanSupplier body) {
+        double nanosPerOp = measure(body);
+        System.out.printf("  %-40s %12.1f ns/row %14.0f rows/s%n", label, nanosPerOp / rowsPerOp,
+                          1e9 * rowsPerOp / nanosPerOp);
+    }
+
+    static double measure(BooleanSupplier body) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(body);
+        }
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            best = Math.min(best, round(body));
+        }
+        return best;
+    }
+
+    // Runs the body for roughly ROUND_NANOS and returns ns per invocation
+    private static double round(BooleanSupplier body) {
+        long ops = 0;
+        boolean acc = false;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 1024; i++) {
+                acc ^= body.getAsBoolean();
+            }
+            ops += 1024;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+        sink = acc;
+        return (double) elapsed / ops;
+    }
+}
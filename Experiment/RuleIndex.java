@@ -0,0 +1,339 @@
+import java.util.*;
+
+// Index over rule predicates, so a transaction only evaluates the rules
+// that could possibly match it.
+// Each rule's top-level AND chain is scanned for an anchor conjunct:
+//   - equality on an INT field (category_id = 'FOOD', merchant_id = 42)
+//     files the rule in a hash bucket for that value;
+//   - otherwise the range its conjuncts allow on one numeric field
+//     (amount > 500 AND amount <= 2000) files it in that field's interval
+//     tree.
+// Rules without an anchor (a top-level OR, say) are checked for every
+// transaction. Lookups only narrow the candidates: each candidate is still
+// fully evaluated with its compiled RuleProgram. A rule whose range is
+// empty can never match and is left out altogether.
+// add() and build() are not thread-safe; once built, match() may be called
+// from any number of threads.
+final class RuleIndex {
+    private final RecordSchema schema;
+    private final List<String> names = new ArrayList<>();
+    private final List<ASTNode> rules = new ArrayList<>();
+    private RuleProgram[] programs = new RuleProgram[0];
+
+    // Per INT field slot: value -> rules anchored on "field = value"
+    private IntBuckets[] equality;
+    // Per field index (see fieldIndex): interval tree of anchored ranges
+    private IntervalTree[] ranges;
+    private int[] unindexed;
+    private int neverMatching;
+    private boolean built;
+
+    RuleIndex(RecordSchema schema) {
+        this.schema = schema;
+    }
+
+    int add(String name, ASTNode rule) {
+        names.add(name);
+        rules.add(rule);
+        built = false;
+        return names.size() - 1;
+    }
+
+    int getRuleCount() { return names.size(); }
+    String getRuleName(int rule) { return names.get(rule); }
+
+    void build() {
+        int fieldCount = schema.getDoubleCount() + schema.getLongCount() + schema.getIntCount();
+        List<Map<Integer, List<Integer>>> buckets = new ArrayList<>();
+        for (int i = 0; i < schema.getIntCount(); i++) {
+            buckets.add(new HashMap<>());
+        }
+        List<List<double[]>> intervals = new ArrayList<>();
+        List<List<Integer>> intervalRules = new ArrayList<>();
+        for (int i = 0; i < fieldCount; i++) {
+            intervals.add(new ArrayList<>());
+            intervalRules.add(new ArrayList<>());
+        }
+        List<Integer> rest = new ArrayList<>();
+        programs = new RuleProgram[rules.size()];
+        neverMatching = 0;
+
+        for (int rule = 0; rule < rules.size(); rule++) {
+            ASTNode root = rules.get(rule);
+            programs[rule] = RuleCompiler.compile(root, schema);
+            List<ComparisonNode> conjuncts = new ArrayList<>();
+            collectConjuncts(root, conjuncts);
+
+            ComparisonNode anchor = equalityAnchor(conjuncts);
+            if (anchor != null) {
+                RecordField field = schema.requireField(anchor.getField());
+                int value = (int) anchor.longConstant(schema, field);
+                buckets.get(field.getSlot()).computeIfAbsent(value, k -> new ArrayList<>()).add(rule);
+                continue;
+            }
+            double[] range = rangeAnchor(conjuncts);
+            if (range == null) {
+                rest.add(rule);
+            } else if (range[1] > range[2]) {
+                neverMatching++;
+            } else {
+                intervals.get((int) range[0]).add(new double[] {range[1], range[2]});
+                intervalRules.get((int) range[0]).add(rule);
+            }
+        }
+
+        equality = new IntBuckets[buckets.size()];
+        for (int i = 0; i < equality.length; i++) {
+            equality[i] = buckets.get(i).isEmpty() ? null : new IntBuckets(buckets.get(i));
+        }
+        ranges = new IntervalTree[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            ranges[i] = intervals.get(i).isEmpty() ? null : new IntervalTree(intervals.get(i), intervalRules.get(i));
+        }
+        unindexed = rest.stream().mapToInt(Integer::intValue).toArray();
+        built = true;
+    }
+
+    // Writes the ids of the rules the record satisfies into fired (at least
+    // getRuleCount() long, in no particular order) and returns how many fired
+    int match(TransactionRecord record, int[] fired) {
+        int count = candidates(record, fired);
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            int rule = fired[i];
+            if (programs[rule].evaluate(record)) {
+                fired[matched++] = rule;
+            }
+        }
+        return matched;
+    }
+
+    // Rules that may match the record, before full evaluation
+    int candidates(TransactionRecord record, int[] out) {
+        if (!built) {
+            throw new IllegalStateException("RuleIndex has rules added since the last build()");
+        }
+        if (record.getSchema() != schema) {
+            throw new IllegalArgumentException("Record was laid out by a different schema");
+        }
+        int count = 0;
+        for (int slot = 0; slot < equality.length; slot++) {
+            if (equality[slot] != null) {
+                int[] bucket = equality[slot].get(record.ints[slot]);
+                if (bucket != null) {
+                    System.arraycopy(bucket, 0, out, count, bucket.length);
+                    count += bucket.length;
+                }
+            }
+        }
+        int longBase = schema.getDoubleCount();
+        int intBase = longBase + schema.getLongCount();
+        for (int field = 0; field < ranges.length; field++) {
+            IntervalTree tree = ranges[field];
+            if (tree != null) {
+                double value = field < longBase ? record.doubles[field]
+                             : field < intBase ? record.longs[field - longBase]
+                             : record.ints[field - intBase];
+                count = tree.stab(value, out, count);
+            }
+        }
+        System.arraycopy(unindexed, 0, out, count, unindexed.length);
+        return count + unindexed.length;
+    }
+
+    @Override
+    public String toString() {
+        if (!built) {
+            return "RuleIndex{rules=" + names.size() + ", unbuilt}";
+        }
+        int byEquality = 0;
+        for (IntBuckets buckets : equality) {
+            if (buckets != null) byEquality += buckets.size();
+        }
+        int byRange = 0;
+        for (IntervalTree tree : ranges) {
+            if (tree != null) byRange += tree.size();
+        }
+        return "RuleIndex{rules=" + names.size() + ", equality=" + byEquality + ", range=" + byRange
+                + ", unindexed=" + unindexed.length + ", neverMatching=" + neverMatching + "}";
+    }
+
+    // =============== ANCHOR SELECTION ===============
+
+    private static void collectConjuncts(ASTNode node, List<ComparisonNode> out) {
+        if (node instanceof LogicalNode && ((LogicalNode) node).getOperator().equals("AND")) {
+            collectConjuncts(((LogicalNode) node).getLeft(), out);
+            collectConjuncts(((LogicalNode) node).getRight(), out);
+        } else if (node instanceof ComparisonNode) {
+            out.add((ComparisonNode) node);
+        }
+    }
+
+    private ComparisonNode equalityAnchor(List<ComparisonNode> conjuncts) {
+        for (ComparisonNode conjunct : conjuncts) {
+            RecordField field = schema.requireField(conjunct.getField());
+            if (conjunct.getOp() == CompareOp.EQ && field.getType() == FieldType.INT) {
+                long value = conjunct.longConstant(schema, field);
+                if (value == (int) value) {
+                    return conjunct;
+                }
+            }
+        }
+        return null;
+    }
+
+    // {field index, low, high} of the tightest closed range the conjuncts
+    // allow on one field, preferring ranges bounded on both sides; null if
+    // no conjunct constrains a range. Bounds are widened to closed doubles
+    // so that the lookup never drops a rule the full evaluation would keep.
+    private double[] rangeAnchor(List<ComparisonNode> conjuncts) {
+        Map<Integer, double[]> byField = new LinkedHashMap<>();
+        for (ComparisonNode conjunct : conjuncts) {
+            if (conjunct.isString() || conjunct.getOp() == CompareOp.NE) {
+                continue;
+            }
+            RecordField field = schema.requireField(conjunct.getField());
+            double c = field.getType() == FieldType.DOUBLE ? conjunct.doubleConstant(field)
+                                                           : conjunct.longConstant(schema, field);
+            double[] range = byField.computeIfAbsent(fieldIndex(field),
+                    k -> new double[] {k, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY});
+            switch (conjunct.getOp()) {
+                case EQ: range[1] = Math.max(range[1], c); range[2] = Math.min(range[2], c); break;
+                case GT: case GE: range[1] = Math.max(range[1], c); break;
+                default: range[2] = Math.min(range[2], c); break;
+            }
+        }
+        double[] best = null;
+        for (double[] range : byField.values()) {
+            if (range[1] > range[2]) {
+                return range; // contradictory: the rule can never match
+            }
+            if (best == null || (isBounded(range) && !isBounded(best))) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBounded(double[] range) {
+        return range[1] != Double.NEGATIVE_INFINITY && range[2] != Double.POSITIVE_INFINITY;
+    }
+
+    private int fieldIndex(RecordField field) {
+        switch (field.getType()) {
+            case DOUBLE: return field.getSlot();
+            case LONG: return schema.getDoubleCount() + field.getSlot();
+            default: return schema.getDoubleCount() + schema.getLongCount() + field.getSlot();
+        }
+    }
+
+    // =============== INDEX STRUCTURES ===============
+
+    // Open-addressing map from int keys to rule id arrays; no boxing on lookup
+    private static final class IntBuckets {
+        private final int[] keys;
+        private final int[][] values;
+        private final int mask;
+        private final int size;
+
+        IntBuckets(Map<Integer, List<Integer>> buckets) {
+            int capacity = Integer.highestOneBit(Math.max(2, buckets.size() * 2 - 1)) << 1;
+            keys = new int[capacity];
+            values = new int[capacity][];
+            mask = capacity - 1;
+            int total = 0;
+            for (Map.Entry<Integer, List<Integer>> entry : buckets.entrySet()) {
+                int i = hash(entry.getKey()) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = entry.getKey();
+                values[i] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+                total += values[i].length;
+            }
+            size = total;
+        }
+
+        int[] get(int key) {
+            int i = hash(key) & mask;
+            int[] value;
+            while ((value = values[i]) != null) {
+                if (keys[i] == key) {
+                    return value;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        int size() { return size; }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // Static interval tree for stabbing queries: intervals sorted by low end,
+    // laid out as an implicit balanced tree over the array where each middle
+    // element also records the largest high end of its subrange. A query
+    // prunes every subrange whose largest high end is below the point, so it
+    // costs O(log n + matches).
+    private static final class IntervalTree {
+        private final double[] lows;
+        private final double[] highs;
+        private final double[] maxHighs;
+        private final int[] rules;
+
+        IntervalTree(List<double[]> intervals, List<Integer> ruleIds) {
+            int n = intervals.size();
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingDouble(i -> intervals.get(i)[0]));
+            lows = new double[n];
+            highs = new double[n];
+            maxHighs = new double[n];
+            rules = new int[n];
+            for (int i = 0; i < n; i++) {
+                lows[i] = intervals.get(order[i])[0];
+                highs[i] = intervals.get(order[i])[1];
+                rules[i] = ruleIds.get(order[i]);
+            }
+            augment(0, n);
+        }
+
+        int size() { return rules.length; }
+
+        private double augment(int from, int to) {
+            if (from >= to) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            int mid = (from + to) >>> 1;
+            double max = Math.max(highs[mid], Math.max(augment(from, mid), augment(mid + 1, to)));
+            maxHighs[mid] = max;
+            return max;
+        }
+
+        int stab(double point, int[] out, int count) {
+            return stab(0, rules.length, point, out, count);
+        }
+
+        private int stab(int from, int to, double point, int[] out, int count) {
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (maxHighs[mid] < point) {
+                    return count;
+                }
+                count = stab(from, mid, point, out, count);
+                if (lows[mid] > point) {
+                    return count; // everything to the right starts even later
+                }
+                if (highs[mid] >= point) {
+                    out[count++] = rules[mid];
+                }
+                from = mid + 1;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+// A rule compiled to JVM bytecode
+interface CompiledRule {
+    boolean test(TransactionRecord record);
+}
+
+// Generates a hidden class per rule whose test method is the rule written
+// out as straight-line branches over the record's primitive arrays, with
+// slots and constants inlined. HotSpot then treats it like any handwritten
+// method: it can inline it into the caller and register-allocate it.
+// The class file is emitted by hand because the ClassFile API is not
+// available on JDK 17. It targets class file version 49, whose verifier
+// does not require StackMapTable frames. Hidden classes are unloaded once
+// nothing references them, so replacing rules does not leak metaspace.
+final class RuleJit {
+    // HotSpot will not JIT methods above 8000 bytes of bytecode
+    // (-XX:HugeMethodLimit), and an interpreted generated method is slower
+    // than RuleProgram, so larger rules are refused and stay interpreted
+    static final int MAX_CODE_LENGTH = 8000;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private RuleJit() {
+    }
+
+    // Throws IllegalArgumentException for rules that cannot be compiled
+    static CompiledRule compile(ASTNode rule, RecordSchema schema) {
+        byte[] classFile = new Generator(schema).generate(rule);
+        try {
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(classFile, true);
+            return (CompiledRule) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                                        .invoke();
+        } catch (Error | RuntimeException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Could not load generated rule class", t);
+        }
+    }
+
+    // =============== CODE GENERATION ===============
+
+    private static final class Generator {
+        private static final int ACC_PUBLIC = 0x0001;
+        private static final int ACC_FINAL = 0x0010;
+        private static final int ACC_SUPER = 0x0020;
+
+        // Local variable slots of test(TransactionRecord)
+        private static final int LOCAL_RECORD = 1;
+        private static final int LOCAL_DOUBLES = 2;
+        private static final int LOCAL_LONGS = 3;
+        private static final int LOCAL_INTS = 4;
+
+        private final RecordSchema schema;
+        private final ConstantPool pool = new ConstantPool();
+        private final Bytecode code = new Bytecode();
+
+        Generator(RecordSchema schema) {
+            this.schema = schema;
+        }
+
+        byte[] generate(ASTNode rule) {
+            int thisClass = pool.classRef("RuleJitClass");
+            int superClass = pool.classRef("java/lang/Object");
+            int iface = pool.classRef("CompiledRule");
+            int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+            int codeName = pool.utf8("Code");
+
+            code.aload(LOCAL_RECORD).fieldInsn(Bytecode.GETFIELD,
+                    pool.fieldRef("TransactionRecord", "doubles", "[D")).astore(LOCAL_DOUBLES);
+            code.aload(LOCAL_RECORD).fieldInsn(Bytecode.GETFIELD,
+                    pool.fieldRef("TransactionRecord", "longs", "[J")).astore(LOCAL_LONGS);
+            code.aload(LOCAL_RECORD).fieldInsn(Bytecode.GETFIELD,
+                    pool.fieldRef("TransactionRecord", "ints", "[I")).astore(LOCAL_INTS);
+            Label whenFalse = new Label();
+            branch(rule, whenFalse, false);
+            code.op(Bytecode.ICONST_1).op(Bytecode.IRETURN);
+            code.place(whenFalse);
+            code.op(Bytecode.ICONST_0).op(Bytecode.IRETURN);
+            if (code.size() > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("Rule too large to compile: " + code.size() + " bytes of code");
+            }
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + code.size());
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                int initName = pool.utf8("<init>");
+                int initType = pool.utf8("()V");
+                int testName = pool.utf8("test");
+                int testType = pool.utf8("(LTransactionRecord;)Z");
+                pool.writeTo(out);
+                out.writeShort(ACC_FINAL | ACC_SUPER);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(iface);
+                out.writeShort(0); // fields
+                out.writeShort(2); // methods
+
+                // public <init>() { super(); }
+                byte[] init = new Bytecode().aload(0).methodInsn(Bytecode.INVOKESPECIAL, objectInit)
+                                            .op(Bytecode.RETURN).toByteArray();
+                writeMethod(out, ACC_PUBLIC, initName, initType, codeName, 1, 1, init);
+                // public boolean test(TransactionRecord record)
+                writeMethod(out, ACC_PUBLIC | ACC_FINAL, testName, testType, codeName, 4, 5, code.toByteArray());
+
+                out.writeShort(0); // class attributes
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeMethod(DataOutputStream out, int access, int name, int type, int codeName,
+                                        int maxStack, int maxLocals, byte[] body) throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // code attributes
+        }
+
+        // Emits code that jumps to target when node evaluates to jumpWhen and
+        // falls through otherwise. AND/OR short-circuit by construction.
+        private void branch(ASTNode node, Label target, boolean jumpWhen) {
+            if (node instanceof ComparisonNode) {
+                ComparisonNode comparison = (ComparisonNode) node;
+                RecordField field = schema.requireField(comparison.getField());
+                if (field.getType() == FieldType.DOUBLE) {
+                    compare(field, comparison.getOp(), comparison.doubleConstant(field), 0L, target, jumpWhen);
+                } else {
+                    compare(field, comparison.getOp(), 0.0, comparison.longConstant(schema, field), target, jumpWhen);
+                }
+            } else if (node instanceof ValueNode) {
+                // A bare field is a truth test: field != 0
+                RecordField field = schema.requireField(((ValueNode) node).getVariable());
+                compare(field, CompareOp.NE, 0.0, 0L, target, jumpWhen);
+            } else if (node instanceof NotNode) {
+                branch(((NotNode) node).getOperand(), target, !jumpWhen);
+            } else if (node instanceof LogicalNode) {
+                LogicalNode logical = (LogicalNode) node;
+                boolean and;
+                switch (logical.getOperator()) {
+                    case "AND": and = true; break;
+                    case "OR": and = false; break;
+                    default: throw new IllegalArgumentException("Unknown operator: " + logical.getOperator());
+                }
+                // AND jumping on false and OR jumping on true pass target straight
+                // down; the other two need a local label to skip the right side
+                if (and != jumpWhen) {
+                    branch(logical.getLeft(), target, jumpWhen);
+                    branch(logical.getRight(), target, jumpWhen);
+                } else {
+                    Label skip = new Label();
+                    branch(logical.getLeft(), skip, !jumpWhen);
+                    branch(logical.getRight(), target, jumpWhen);
+                    code.place(skip);
+                }
+            } else {
+                throw new IllegalArgumentException("Cannot compile node: " + node);
+            }
+        }
+
+        private void compare(RecordField field, CompareOp op, double doubleConstant, long longConstant,
+                             Label target, boolean jumpWhen) {
+            switch (field.getType()) {
+                case DOUBLE:
+                    code.aload(LOCAL_DOUBLES).pushInt(field.getSlot()).op(Bytecode.DALOAD);
+                    code.ldc2(pool.doubleConst(doubleConstant));
+                    // NaN must make every comparison but != false: dcmpl yields -1
+                    // for NaN, which fails > and >=; dcmpg yields 1, failing < and <=
+                    code.op(op == CompareOp.LT || op == CompareOp.LE ? Bytecode.DCMPG : Bytecode.DCMPL);
+                    break;
+                case LONG:
+                    code.aload(LOCAL_LONGS).pushInt(field.getSlot()).op(Bytecode.LALOAD);
+                    code.ldc2(pool.longConst(longConstant)).op(Bytecode.LCMP);
+                    break;
+                default:
+                    code.aload(LOCAL_INTS).pushInt(field.getSlot()).op(Bytecode.IALOAD).op(Bytecode.I2L);
+                    code.ldc2(pool.longConst(longConstant)).op(Bytecode.LCMP);
+            }
+            code.jump(ifOpcode(jumpWhen ? op : negate(op)), target);
+        }
+
+        private static CompareOp negate(CompareOp op) {
+            switch (op) {
+                case EQ: return CompareOp.NE;
+                case NE: return CompareOp.EQ;
+                case LT: return CompareOp.GE;
+                case LE: return CompareOp.GT;
+                case GT: return CompareOp.LE;
+                default: return CompareOp.LT;
+            }
+        }
+
+        // Branch on the int left by dcmp/lcmp
+        private static int ifOpcode(CompareOp op) {
+            switch (op) {
+                case EQ: return Bytecode.IFEQ;
+                case NE: return Bytecode.IFNE;
+                case LT: return Bytecode.IFLT;
+                case LE: return Bytecode.IFLE;
+                case GT: return Bytecode.IFGT;
+                default: return Bytecode.IFGE;
+            }
+        }
+    }
+
+    // =============== CLASS FILE PRIMITIVES ===============
+
+    private static final class Label {
+        private int position = -1;
+        private final List<Integer> fixups = new ArrayList<>();
+    }
+
+    private static final class Bytecode {
+        static final int ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11, LDC2_W = 0x14;
+        static final int ALOAD = 0x19, ALOAD_0 = 0x2a, ASTORE = 0x3a, ASTORE_0 = 0x4b;
+        static final int IALOAD = 0x2e, LALOAD = 0x2f, DALOAD = 0x31, I2L = 0x85;
+        static final int LCMP = 0x94, DCMPL = 0x97, DCMPG = 0x98;
+        static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+        static final int IRETURN = 0xac, RETURN = 0xb1, GETFIELD = 0xb4, INVOKESPECIAL = 0xb7;
+
+        private byte[] bytes = new byte[64];
+        private int size;
+
+        int size() { return size; }
+
+        Bytecode op(int opcode) {
+            return u1(opcode);
+        }
+
+        Bytecode aload(int local) {
+            return local <= 3 ? u1(ALOAD_0 + local) : u1(ALOAD).u1(local);
+        }
+
+        Bytecode astore(int local) {
+            return local <= 3 ? u1(ASTORE_0 + local) : u1(ASTORE).u1(local);
+        }
+
+        Bytecode pushInt(int value) {
+            if (value <= 5) return u1(ICONST_0 + value);
+            if (value <= Byte.MAX_VALUE) return u1(BIPUSH).u1(value);
+            return u1(SIPUSH).u2(value);
+        }
+
+        Bytecode ldc2(int index) {
+            return u1(LDC2_W).u2(index);
+        }
+
+        Bytecode fieldInsn(int opcode, int index) {
+            return u1(opcode).u2(index);
+        }
+
+        Bytecode methodInsn(int opcode, int index) {
+            return u1(opcode).u2(index);
+        }
+
+        void jump(int opcode, Label target) {
+            target.fixups.add(size);
+            u1(opcode).u2(0);
+        }
+
+        // Binds the label here and patches every jump recorded against it;
+        // all jumps are forward, so they were emitted before the label
+        void place(Label label) {
+            label.position = size;
+            for (int at : label.fixups) {
+                int offset = size - at;
+                bytes[at + 1] = (byte) (offset >>> 8);
+                bytes[at + 2] = (byte) offset;
+            }
+        }
+
+        private Bytecode u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        private Bytecode u2(int value) {
+            return u1(value >>> 8).u1(value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    // Deduplicating constant pool; Long and Double entries take two indexes
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, 1, o -> {
+                o.writeByte(1);
+                o.writeUTF(value);
+            });
+        }
+
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            return entry("C" + internalName, 1, o -> {
+                o.writeByte(7);
+                o.writeShort(name);
+            });
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        int longConst(long value) {
+            return entry("J" + value, 2, o -> {
+                o.writeByte(5);
+                o.writeLong(value);
+            });
+        }
+
+        int doubleConst(double value) {
+            return entry("D" + Double.doubleToRawLongBits(value), 2, o -> {
+                o.writeByte(6);
+                o.writeDouble(value);
+            });
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            int ownerClass = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + ":" + descriptor, 1, o -> {
+                o.writeByte(12);
+                o.writeShort(nameIndex);
+                o.writeShort(typeIndex);
+            });
+            return entry(tag + owner + "." + name + ":" + descriptor, 1, o -> {
+                o.writeByte(tag);
+                o.writeShort(ownerClass);
+                o.writeShort(nameAndType);
+            });
+        }
+
+        private int entry(String key, int width, Writer writer) {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                writer.write(out);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            index = next;
+            next += width;
+            entries.put(key, index);
+            return index;
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(next);
+            bytes.writeTo(target);
+        }
+
+        private interface Writer {
+            void write(DataOutputStream out) throws IOException;
+        }
+    }
+}
+
+// A rule that starts on the RuleProgram interpreter and is promoted to a
+// generated class once it has been evaluated jitThreshold times. Before
+// the generated class is installed it is checked against the tree-walking
+// ASTNode.evaluate on the record that triggered promotion; a rule that
+// fails the check or cannot be generated stays interpreted for good.
+// Thread-safe; the invocation counter is deliberately racy, as it only
+// steers when promotion happens.
+final class TieredRule {
+    static final int DEFAULT_JIT_THRESHOLD = 10_000;
+
+    static final int TIER_INTERPRETED = 0;
+    static final int TIER_COMPILED = 1;
+
+    private final ASTNode rule;
+    private final RecordSchema schema;
+    private final RuleProgram program;
+    private final int jitThreshold;
+    private volatile CompiledRule compiled;
+    private volatile boolean promotionFailed;
+    private int interpretedInvocations;
+
+    TieredRule(ASTNode rule, RecordSchema schema) {
+        this(rule, schema, DEFAULT_JIT_THRESHOLD);
+    }
+
+    TieredRule(ASTNode rule, RecordSchema schema, int jitThreshold) {
+        this.rule = rule;
+        this.schema = schema;
+        this.program = RuleCompiler.compile(rule, schema);
+        this.jitThreshold = jitThreshold;
+    }
+
+    boolean test(TransactionRecord record) {
+        CompiledRule compiled = this.compiled;
+        if (compiled != null) {
+            return compiled.test(record);
+        }
+        if (++interpretedInvocations >= jitThreshold && !promotionFailed) {
+            promote(record);
+        }
+        return program.evaluate(record);
+    }
+
+    int getTier() {
+        return compiled != null ? TIER_COMPILED : TIER_INTERPRETED;
+    }
+
+    int getInterpretedInvocations() { return interpretedInvocations; }
+    boolean isPromotionFailed() { return promotionFailed; }
+    ASTNode getRule() { return rule; }
+
+    private synchronized void promote(TransactionRecord sample) {
+        if (compiled != null || promotionFailed) {
+            return;
+        }
+        try {
+            CompiledRule candidate = RuleJit.compile(rule, schema);
+            if (candidate.test(sample) != rule.evaluate(new Context(sample))) {
+                promotionFailed = true;
+                return;
+            }
+            compiled = candidate;
+        } catch (RuntimeException | LinkageError e) {
+            // Not only rules the generator rejects: a class that fails to
+            // load or verify must not fail the evaluation either, which
+            // carries on in the interpreter
+            promotionFailed = true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TieredRule{tier=" + getTier() + ", interpretedInvocations=" + interpretedInvocations
+                + ", promotionFailed=" + promotionFailed + "}";
+    }
+}
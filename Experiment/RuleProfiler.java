@@ -0,0 +1,345 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear latency histogram in the style of HdrHistogram: values below
+// 32 get a bucket each, and every power of two above that is split into 16
+// buckets, so any recorded value is reported within about 6%. Recording is
+// one atomic increment and never locks, so any number of threads may
+// record while another reads percentiles.
+final class LatencyHistogram {
+    private static final int LINEAR = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = LINEAR + 59 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        sum.add(value);
+    }
+
+    long getCount() { return total.sum(); }
+
+    double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // Lower bound of the bucket holding the given percentile (0-100)
+    long valueAtPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+
+    private static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4; // value >>> shift is in [16, 32)
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        return (long) (SUB_BUCKETS + (bucket - LINEAR) % SUB_BUCKETS) << shift;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount() + ", p50=" + valueAtPercentile(50)
+                + "ns, p99=" + valueAtPercentile(99) + "ns}";
+    }
+}
+
+// Counters for one node of a profiled rule; all of them lock-free
+final class NodeStats {
+    final String label;
+    final LongAdder invocations = new LongAdder();
+    final LongAdder trueResults = new LongAdder();
+    // AND/OR only: evaluations decided by the left child alone
+    final LongAdder shortCircuits = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    NodeStats(String label) {
+        this.label = label;
+    }
+
+    double getTrueRate() {
+        long n = invocations.sum();
+        return n == 0 ? 0 : (double) trueResults.sum() / n;
+    }
+
+    double getShortCircuitRate() {
+        long n = invocations.sum();
+        return n == 0 ? 0 : (double) shortCircuits.sum() / n;
+    }
+}
+
+// Decorator that counts and samples the evaluations of the node it wraps.
+// AND/OR/NOT wrappers evaluate their own profiled children, so every node
+// of the original tree gets its own NodeStats.
+final class ProfiledNode extends ASTNode {
+    private final ASTNode node;          // the original node
+    private final ProfiledNode left;     // AND/OR left or NOT operand
+    private final ProfiledNode right;    // AND/OR right
+    private final boolean and;
+    private final NodeStats stats;
+    private final int sampleMask;
+
+    ProfiledNode(ASTNode node, ProfiledNode left, ProfiledNode right, NodeStats stats, int sampleMask) {
+        this.node = node;
+        this.left = left;
+        this.right = right;
+        this.and = node instanceof LogicalNode && ((LogicalNode) node).getOperator().equals("AND");
+        this.stats = stats;
+        this.sampleMask = sampleMask;
+    }
+
+    ASTNode getNode() { return node; }
+    ProfiledNode getLeft() { return left; }
+    ProfiledNode getRight() { return right; }
+    NodeStats getStats() { return stats; }
+
+    @Override
+    boolean evaluate(Context context) {
+        if ((ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+            return count(evaluateChildren(context));
+        }
+        long start = System.nanoTime();
+        boolean result = evaluateChildren(context);
+        stats.latency.record(System.nanoTime() - start);
+        return count(result);
+    }
+
+    private boolean count(boolean result) {
+        stats.invocations.increment();
+        if (result) {
+            stats.trueResults.increment();
+        }
+        return result;
+    }
+
+    private boolean evaluateChildren(Context context) {
+        if (right != null) {
+            boolean first = left.evaluate(context);
+            if (first != and) {
+                stats.shortCircuits.increment();
+                return first;
+            }
+            return right.evaluate(context);
+        }
+        if (left != null) {
+            return !left.evaluate(context);
+        }
+        return node.evaluate(context);
+    }
+}
+
+// Optional per-rule and per-node instrumentation of ASTNode.evaluate.
+// instrument() returns a profiled copy of a rule; the original tree and
+// its evaluate methods are untouched, so rules that are not profiled pay
+// nothing. Invocation and short-circuit counts are exact; latency is
+// sampled on one evaluation in sampleRate (a power of two), as reading
+// the clock costs as much as evaluating a leaf.
+// The report ranks rules by total sampled cost and suggests reordering
+// AND/OR children where the other order is cheaper on the observed data.
+final class RuleProfiler {
+    static final int DEFAULT_SAMPLE_RATE = 64;
+
+    private final int sampleMask;
+    private final Map<String, ProfiledNode> rules = new ConcurrentHashMap<>();
+
+    RuleProfiler() {
+        this(DEFAULT_SAMPLE_RATE);
+    }
+
+    RuleProfiler(int sampleRate) {
+        if (sampleRate <= 0 || Integer.bitCount(sampleRate) != 1) {
+            throw new IllegalArgumentException("Sample rate must be a power of two: " + sampleRate);
+        }
+        this.sampleMask = sampleRate - 1;
+    }
+
+    // Profiled copy of the rule; its root's stats are the rule's stats
+    ProfiledNode instrument(String name, ASTNode rule) {
+        ProfiledNode profiled = wrap(rule);
+        rules.put(name, profiled);
+        return profiled;
+    }
+
+    ProfiledNode getRule(String name) {
+        return rules.get(name);
+    }
+
+    private ProfiledNode wrap(ASTNode node) {
+        ProfiledNode left = null;
+        ProfiledNode right = null;
+        if (node instanceof LogicalNode) {
+            left = wrap(((LogicalNode) node).getLeft());
+            right = wrap(((LogicalNode) node).getRight());
+        } else if (node instanceof NotNode) {
+            left = wrap(((NotNode) node).getOperand());
+        }
+        return new ProfiledNode(node, left, right, new NodeStats(describe(node)), sampleMask);
+    }
+
+    // =============== REORDERING ===============
+
+    // Expected cost of evaluating first then second, assuming independent
+    // children: second only runs when first does not short-circuit
+    static double expectedCost(ProfiledNode first, ProfiledNode second, boolean and) {
+        double proceed = and ? first.getStats().getTrueRate() : 1 - first.getStats().getTrueRate();
+        return first.getStats().latency.getMean() + proceed * second.getStats().latency.getMean();
+    }
+
+    // The original rule with every AND/OR child pair put in the cheaper
+    // observed order. Nodes never evaluated keep their order.
+    static ASTNode reorder(ProfiledNode profiled) {
+        ASTNode node = profiled.getNode();
+        if (node instanceof NotNode) {
+            return new NotNode(reorder(profiled.getLeft()));
+        }
+        if (!(node instanceof LogicalNode)) {
+            return node;
+        }
+        LogicalNode logical = (LogicalNode) node;
+        ASTNode left = reorder(profiled.getLeft());
+        ASTNode right = reorder(profiled.getRight());
+        return shouldSwap(profiled) ? new LogicalNode(right, left, logical.getOperator())
+                                    : new LogicalNode(left, right, logical.getOperator());
+    }
+
+    private static boolean shouldSwap(ProfiledNode profiled) {
+        ProfiledNode left = profiled.getLeft();
+        ProfiledNode right = profiled.getRight();
+        // Without latency samples for both sides there is nothing to go on
+        if (left.getStats().latency.getCount() == 0 || right.getStats().latency.getCount() == 0) {
+            return false;
+        }
+        boolean and = ((LogicalNode) profiled.getNode()).getOperator().equals("AND");
+        return expectedCost(right, left, and) < expectedCost(left, right, and);
+    }
+
+    // =============== REPORT ===============
+
+    // Rules by total sampled cost, most expensive first, with their node
+    // statistics and any reorderings worth making
+    String report() {
+        List<Map.Entry<String, ProfiledNode>> entries = new ArrayList<>(rules.entrySet());
+        entries.sort(Comparator.comparingDouble((Map.Entry<String, ProfiledNode> e) -> totalCost(e.getValue()))
+                               .reversed());
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ProfiledNode> entry : entries) {
+            NodeStats stats = entry.getValue().getStats();
+            sb.append(String.format("%s: %d evaluations, %.1f%% true, mean %.0fns, p50 %dns, p99 %dns%n",
+                    entry.getKey(), stats.invocations.sum(), 100 * stats.getTrueRate(), stats.latency.getMean(),
+                    stats.latency.valueAtPercentile(50), stats.latency.valueAtPercentile(99)));
+            appendNodes(sb, entry.getValue(), 1);
+        }
+        return sb.toString();
+    }
+
+    private static double totalCost(ProfiledNode rule) {
+        return rule.getStats().latency.getMean() * rule.getStats().invocations.sum();
+    }
+
+    private static void appendNodes(StringBuilder sb, ProfiledNode node, int depth) {
+        NodeStats stats = node.getStats();
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+        sb.append(String.format("%-50s %10d calls %6.1f%% true", abbreviate(stats.label),
+                stats.invocations.sum(), 100 * stats.getTrueRate()));
+        if (node.getRight() != null) {
+            sb.append(String.format(" %6.1f%% short-circuit", 100 * stats.getShortCircuitRate()));
+            if (shouldSwap(node)) {
+                boolean and = ((LogicalNode) node.getNode()).getOperator().equals("AND");
+                sb.append(String.format("  -> swap children: %.0fns -> %.0fns",
+                        expectedCost(node.getLeft(), node.getRight(), and),
+                        expectedCost(node.getRight(), node.getLeft(), and)));
+            }
+        }
+        sb.append(System.lineSeparator());
+        if (node.getLeft() != null) {
+            appendNodes(sb, node.getLeft(), depth + 1);
+        }
+        if (node.getRight() != null) {
+            appendNodes(sb, node.getRight(), depth + 1);
+        }
+    }
+
+    private static String describe(ASTNode node) {
+        if (node instanceof ComparisonNode) {
+            return ((ComparisonNode) node).getText();
+        } else if (node instanceof ValueNode) {
+            return ((ValueNode) node).getVariable();
+        } else if (node instanceof NotNode) {
+            return "NOT " + describe(((NotNode) node).getOperand());
+        } else if (node instanceof LogicalNode) {
+            LogicalNode logical = (LogicalNode) node;
+            return "(" + describe(logical.getLeft()) + " " + logical.getOperator() + " "
+                    + describe(logical.getRight()) + ")";
+        }
+        return String.valueOf(node);
+    }
+
+    private static String abbreviate(String text) {
+        return text.length() <= 50 ? text : text.substring(0, 47) + "...";
+    }
+
+    @Override
+    public String toString() {
+        return "RuleProfiler{rules=" + rules.size() + ", sampleRate=" + (sampleMask + 1) + "}";
+    }
+}
+
+// A rule whose profiling can be switched on and off while it is being
+// evaluated. Switching swaps which tree a volatile field points at, so
+// with profiling off evaluation is the plain ASTNode.evaluate.
+final class ProfiledRule {
+    private final String name;
+    private final ASTNode plain;
+    private final RuleProfiler profiler;
+    private volatile ASTNode active;
+
+    ProfiledRule(String name, ASTNode rule, RuleProfiler profiler) {
+        this.name = name;
+        this.plain = rule;
+        this.profiler = profiler;
+        this.active = rule;
+    }
+
+    boolean evaluate(Context context) {
+        return active.evaluate(context);
+    }
+
+    // Each enable starts from fresh counters
+    void setProfiling(boolean enabled) {
+        active = enabled ? profiler.instrument(name, plain) : plain;
+    }
+
+    boolean isProfiling() {
+        return active != plain;
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.*;
+
+// Storage class of a record field
+enum FieldType {
+    DOUBLE, LONG, INT
+}
+
+// A named field and the slot it occupies in its type's value array
+final class RecordField {
+    private final String name;
+    private final FieldType type;
+    private final int slot;
+
+    RecordField(String name, FieldType type, int slot) {
+        this.name = name;
+        this.type = type;
+        this.slot = slot;
+    }
+
+    String getName() { return name; }
+    FieldType getType() { return type; }
+    int getSlot() { return slot; }
+
+    @Override
+    public String toString() {
+        return "RecordField{name=" + name + ", type=" + type + ", slot=" + slot + "}";
+    }
+}
+
+// Field layout shared by rules and records. Rules resolve field names to
+// slots once, at compile time; records are plain primitive arrays indexed
+// by those slots. INT fields double as dictionary-encoded strings, so
+// "category_id = 'FOOD'" compares integer codes at evaluation time.
+final class RecordSchema {
+    private final Map<String, RecordField> fields = new LinkedHashMap<>();
+    private final Map<String, Map<String, Integer>> dictionaries = new HashMap<>();
+    private int doubleCount;
+    private int longCount;
+    private int intCount;
+
+    // The standard layout of a bank transaction
+    static RecordSchema transactions() {
+        return new RecordSchema()
+                .addField("amount", FieldType.DOUBLE)
+                .addField("category_id", FieldType.INT)
+                .addField("merchant_id", FieldType.INT)
+                .addField("timestamp", FieldType.LONG);
+    }
+
+    RecordSchema addField(String name, FieldType type) {
+        if (fields.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate field: " + name);
+        }
+        int slot;
+        switch (type) {
+            case DOUBLE: slot = doubleCount++; break;
+            case LONG: slot = longCount++; break;
+            default: slot = intCount++; break;
+        }
+        fields.put(name, new RecordField(name, type, slot));
+        return this;
+    }
+
+    // Null when the schema has no such field
+    RecordField field(String name) {
+        return fields.get(name);
+    }
+
+    RecordField requireField(String name) {
+        RecordField field = fields.get(name);
+        if (field == null) {
+            throw new IllegalArgumentException("Unknown field: " + name);
+        }
+        return field;
+    }
+
+    Collection<RecordField> getFields() { return fields.values(); }
+    int getDoubleCount() { return doubleCount; }
+    int getLongCount() { return longCount; }
+    int getIntCount() { return intCount; }
+
+    // Dictionary code of a string value of an INT field, assigned on first
+    // use. Codes start at 1: 0 is what an unset INT field holds, so it
+    // stands for "absent" and matches no string
+    synchronized int encode(String field, String value) {
+        if (requireField(field).getType() != FieldType.INT) {
+            throw new IllegalArgumentException("Field " + field + " is not dictionary encoded");
+        }
+        Map<String, Integer> dictionary = dictionaries.computeIfAbsent(field, k -> new HashMap<>());
+        Integer code = dictionary.get(value);
+        if (code == null) {
+            code = dictionary.size() + 1;
+            dictionary.put(value, code);
+        }
+        return code;
+    }
+
+    TransactionRecord newRecord() {
+        return new TransactionRecord(this);
+    }
+
+    @Override
+    public String toString() {
+        return "RecordSchema{fields=" + fields.keySet() + "}";
+    }
+}
+
+// One transaction's field values, laid out by a RecordSchema.
+// Meant to be reused: fill it, evaluate rules against it, clear, repeat.
+final class TransactionRecord {
+    private final RecordSchema schema;
+    final double[] doubles;
+    final long[] longs;
+    final int[] ints;
+
+    TransactionRecord(RecordSchema schema) {
+        this.schema = schema;
+        this.doubles = new double[schema.getDoubleCount()];
+        this.longs = new long[schema.getLongCount()];
+        this.ints = new int[schema.getIntCount()];
+    }
+
+    RecordSchema getSchema() { return schema; }
+
+    double getDouble(int slot) { return doubles[slot]; }
+    long getLong(int slot) { return longs[slot]; }
+    int getInt(int slot) { return ints[slot]; }
+
+    void setDouble(int slot, double value) { doubles[slot] = value; }
+    void setLong(int slot, long value) { longs[slot] = value; }
+    void setInt(int slot, int value) { ints[slot] = value; }
+
+    // Name-based setters resolve the slot on every call; use them for
+    // setup, and the slot-based ones in loops
+    TransactionRecord set(String field, double value) {
+        RecordField f = schema.requireField(field);
+        switch (f.getType()) {
+            case DOUBLE: doubles[f.getSlot()] = value; break;
+            case LONG: longs[f.getSlot()] = (long) value; break;
+            default: ints[f.getSlot()] = (int) value; break;
+        }
+        return this;
+    }
+
+    TransactionRecord set(String field, long value) {
+        RecordField f = schema.requireField(field);
+        switch (f.getType()) {
+            case DOUBLE: doubles[f.getSlot()] = value; break;
+            case LONG: longs[f.getSlot()] = value; break;
+            default: ints[f.getSlot()] = (int) value; break;
+        }
+        return this;
+    }
+
+    TransactionRecord set(String field, String value) {
+        ints[schema.requireField(field).getSlot()] = schema.encode(field, value);
+        return this;
+    }
+
+    void clear() {
+        Arrays.fill(doubles, 0);
+        Arrays.fill(longs, 0);
+        Arrays.fill(ints, 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TransactionRecord{");
+        boolean first = true;
+        for (RecordField f : schema.getFields()) {
+            if (!first) sb.append(", ");
+            first = false;
+            sb.append(f.getName()).append('=');
+            switch (f.getType()) {
+                case DOUBLE: sb.append(doubles[f.getSlot()]); break;
+                case LONG: sb.append(longs[f.getSlot()]); break;
+                default: sb.append(ints[f.getSlot()]); break;
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
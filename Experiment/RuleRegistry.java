@@ -0,0 +1,188 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Thread-safe registry of named rules that users add, edit and remove
+// while request threads evaluate them.
+// Every change builds a new immutable Snapshot and publishes it with a
+// compare-and-set, so readers never lock: they call snapshot() once per
+// request and evaluate against that consistent view, however many writers
+// run meanwhile. Writers retry on conflict. Rule parsing and compilation
+// happen before the retry loop, so a conflict only costs an array copy.
+// Unchanged rules keep their TieredRule across snapshots, so a hot rule
+// stays promoted when some other rule is edited.
+final class RuleRegistry {
+    private final RecordSchema schema;
+    private final int jitThreshold;
+    private final AtomicReference<Snapshot> current;
+
+    RuleRegistry(RecordSchema schema) {
+        this(schema, TieredRule.DEFAULT_JIT_THRESHOLD);
+    }
+
+    RuleRegistry(RecordSchema schema, int jitThreshold) {
+        this.schema = schema;
+        this.jitThreshold = jitThreshold;
+        this.current = new AtomicReference<>(new Snapshot(schema, 0, new String[0], new TieredRule[0], new long[0]));
+    }
+
+    RecordSchema getSchema() { return schema; }
+
+    Snapshot snapshot() {
+        return current.get();
+    }
+
+    // Adds or replaces a rule and returns the version that contains it
+    long put(String name, ASTNode rule) {
+        TieredRule compiled = new TieredRule(rule, schema, jitThreshold);
+        while (true) {
+            Snapshot base = current.get();
+            Snapshot next = base.with(name, compiled);
+            if (current.compareAndSet(base, next)) {
+                return next.version;
+            }
+        }
+    }
+
+    // Versioned hot-swap: replaces the rule only if it is still at
+    // expectedRevision (0 meaning absent), so two users editing the same rule
+    // cannot silently overwrite each other. Returns the new version, or -1
+    // if the rule had been changed in between.
+    long replace(String name, long expectedRevision, ASTNode rule) {
+        TieredRule compiled = new TieredRule(rule, schema, jitThreshold);
+        while (true) {
+            Snapshot base = current.get();
+            if (base.getRevision(name) != expectedRevision) {
+                return -1;
+            }
+            Snapshot next = base.with(name, compiled);
+            if (current.compareAndSet(base, next)) {
+                return next.version;
+            }
+        }
+    }
+
+    // Returns the version without the rule, or -1 if there was no such rule
+    long remove(String name) {
+        while (true) {
+            Snapshot base = current.get();
+            int index = base.indexOf(name);
+            if (index < 0) {
+                return -1;
+            }
+            Snapshot next = base.without(index);
+            if (current.compareAndSet(base, next)) {
+                return next.version;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        Snapshot snapshot = current.get();
+        return "RuleRegistry{version=" + snapshot.version + ", rules=" + snapshot.size() + "}";
+    }
+
+    // An immutable view of the registry at one version. Rules are kept
+    // sorted by name, so lookups are a binary search and match() reports
+    // rules in name order.
+    static final class Snapshot {
+        private final RecordSchema schema;
+        private final long version;
+        private final String[] names;
+        private final TieredRule[] rules;
+        private final long[] revisions; // version at which each rule last changed
+
+        private Snapshot(RecordSchema schema, long version, String[] names, TieredRule[] rules, long[] revisions) {
+            this.schema = schema;
+            this.version = version;
+            this.names = names;
+            this.rules = rules;
+            this.revisions = revisions;
+        }
+
+        long getVersion() { return version; }
+        int size() { return names.length; }
+        String getRuleName(int rule) { return names[rule]; }
+        ASTNode getRule(int rule) { return rules[rule].getRule(); }
+
+        int indexOf(String name) {
+            return Arrays.binarySearch(names, name);
+        }
+
+        // The version at which the rule was last put, or 0 if it is absent
+        long getRevision(String name) {
+            int index = indexOf(name);
+            return index < 0 ? 0 : revisions[index];
+        }
+
+        boolean evaluate(String name, TransactionRecord record) {
+            int index = indexOf(name);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown rule: " + name);
+            }
+            return rules[index].test(record);
+        }
+
+        // Writes the indexes of the rules the record satisfies into fired (at
+        // least size() long) in ascending order, and returns how many fired
+        int match(TransactionRecord record, int[] fired) {
+            if (record.getSchema() != schema) {
+                throw new IllegalArgumentException("Record was laid out by a different schema");
+            }
+            TieredRule[] rules = this.rules;
+            int count = 0;
+            for (int rule = 0; rule < rules.length; rule++) {
+                if (rules[rule].test(record)) {
+                    fired[count++] = rule;
+                }
+            }
+            return count;
+        }
+
+        private Snapshot with(String name, TieredRule rule) {
+            long nextVersion = version + 1;
+            int index = indexOf(name);
+            if (index >= 0) {
+                TieredRule[] nextRules = rules.clone();
+                long[] nextRevisions = revisions.clone();
+                nextRules[index] = rule;
+                nextRevisions[index] = nextVersion;
+                return new Snapshot(schema, nextVersion, names, nextRules, nextRevisions);
+            }
+            int at = -index - 1;
+            int n = names.length;
+            String[] nextNames = new String[n + 1];
+            TieredRule[] nextRules = new TieredRule[n + 1];
+            long[] nextRevisions = new long[n + 1];
+            System.arraycopy(names, 0, nextNames, 0, at);
+            System.arraycopy(rules, 0, nextRules, 0, at);
+            System.arraycopy(revisions, 0, nextRevisions, 0, at);
+            nextNames[at] = name;
+            nextRules[at] = rule;
+            nextRevisions[at] = nextVersion;
+            System.arraycopy(names, at, nextNames, at + 1, n - at);
+            System.arraycopy(rules, at, nextRules, at + 1, n - at);
+            System.arraycopy(revisions, at, nextRevisions, at + 1, n - at);
+            return new Snapshot(schema, nextVersion, nextNames, nextRules, nextRevisions);
+        }
+
+        private Snapshot without(int index) {
+            int n = names.length;
+            String[] nextNames = new String[n - 1];
+            TieredRule[] nextRules = new TieredRule[n - 1];
+            long[] nextRevisions = new long[n - 1];
+            System.arraycopy(names, 0, nextNames, 0, index);
+            System.arraycopy(rules, 0, nextRules, 0, index);
+            System.arraycopy(revisions, 0, nextRevisions, 0, index);
+            System.arraycopy(names, index + 1, nextNames, index, n - index - 1);
+            System.arraycopy(rules, index + 1, nextRules, index, n - index - 1);
+            System.arraycopy(revisions, index + 1, nextRevisions, index, n - index - 1);
+            return new Snapshot(schema, version + 1, nextNames, nextRules, nextRevisions);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{version=" + version + ", rules=" + names.length + "}";
+        }
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.*;
+
+// Receives rule state changes from an IncrementalMatcher
+interface RuleActivationListener {
+    void onActivated(int rule, String name);
+    void onDeactivated(int rule, String name);
+}
+
+// Rete-style incremental matching over a RuleSet's shared DAG, for a
+// stream of updates to one working record (a user's running financial
+// state). Comparison nodes form the alpha network and are indexed by the
+// field they read; AND/OR/NOT nodes form the beta network. Every node
+// keeps its current truth value as its memory.
+// An update re-tests only the comparisons on the changed field and pushes
+// actual changes up to the parents that depend on them, in id order, so
+// each affected node is recomputed once. Rules whose root flips are
+// reported as activations or deactivations.
+// The RuleSet must not change once a matcher is built over it. Not
+// thread-safe: use one matcher per working record.
+final class IncrementalMatcher {
+    private final RuleSet rules;
+    private final RuleActivationListener listener;
+    private final TransactionRecord state;
+    private final int nodeCount;
+
+    private final boolean[] memory;
+    private final int[][] parents;           // node -> nodes that read it
+    private final int[][] alphaByField;      // field index -> comparison nodes reading it
+    private final int[][] rulesByRoot;       // node -> rules rooted at it
+    private final BitSet dirty;
+
+    private long nodeEvaluations;
+
+    IncrementalMatcher(RuleSet rules, RuleActivationListener listener) {
+        this.rules = rules;
+        this.listener = listener;
+        this.state = rules.getSchema().newRecord();
+        this.nodeCount = rules.getNodeCount();
+        this.memory = new boolean[nodeCount];
+        this.dirty = new BitSet(nodeCount);
+
+        RecordSchema schema = rules.getSchema();
+        int fieldCount = schema.getDoubleCount() + schema.getLongCount() + schema.getIntCount();
+        List<List<Integer>> parentLists = lists(nodeCount);
+        List<List<Integer>> alphaLists = lists(fieldCount);
+        for (int node = 0; node < nodeCount; node++) {
+            int kind = rules.kind(node);
+            if (kind >= RuleProgram.OP_CMP_DOUBLE) {
+                alphaLists.get(fieldIndex(schema, kind & ~7, rules.left(node))).add(node);
+            } else {
+                parentLists.get(rules.left(node)).add(node);
+                if (kind != RuleSet.KIND_NOT) {
+                    parentLists.get(rules.right(node)).add(node);
+                }
+            }
+        }
+        List<List<Integer>> ruleLists = lists(nodeCount);
+        for (int rule = 0; rule < rules.getRuleCount(); rule++) {
+            ruleLists.get(rules.getRoot(rule)).add(rule);
+        }
+        this.parents = toArrays(parentLists);
+        this.alphaByField = toArrays(alphaLists);
+        this.rulesByRoot = toArrays(ruleLists);
+        // Memories start out false; the first sweep activates every rule that
+        // holds for the initial all-zero record
+        recomputeAll();
+    }
+
+    // The working record; change it only through the update methods
+    TransactionRecord getState() { return state; }
+
+    boolean isActive(int rule) {
+        return memory[rules.getRoot(rule)];
+    }
+
+    // Nodes re-evaluated so far, including the initial full evaluation
+    long getNodeEvaluations() { return nodeEvaluations; }
+
+    // Replaces the whole working record, re-evaluating every node
+    void reset(TransactionRecord record) {
+        System.arraycopy(record.doubles, 0, state.doubles, 0, state.doubles.length);
+        System.arraycopy(record.longs, 0, state.longs, 0, state.longs.length);
+        System.arraycopy(record.ints, 0, state.ints, 0, state.ints.length);
+        recomputeAll();
+    }
+
+    void update(String field, double value) {
+        RecordField f = rules.getSchema().requireField(field);
+        switch (f.getType()) {
+            case DOUBLE: updateDouble(f.getSlot(), value); break;
+            case LONG: updateLong(f.getSlot(), (long) value); break;
+            default: updateInt(f.getSlot(), (int) value); break;
+        }
+    }
+
+    void update(String field, String value) {
+        updateInt(rules.getSchema().requireField(field).getSlot(), rules.getSchema().encode(field, value));
+    }
+
+    void updateDouble(int slot, double value) {
+        if (state.doubles[slot] != value) {
+            state.doubles[slot] = value;
+            touch(slot);
+        }
+    }
+
+    void updateLong(int slot, long value) {
+        if (state.longs[slot] != value) {
+            state.longs[slot] = value;
+            touch(state.doubles.length + slot);
+        }
+    }
+
+    void updateInt(int slot, int value) {
+        if (state.ints[slot] != value) {
+            state.ints[slot] = value;
+            touch(state.doubles.length + state.longs.length + slot);
+        }
+    }
+
+    private void touch(int field) {
+        for (int node : alphaByField[field]) {
+            dirty.set(node);
+        }
+        propagate();
+    }
+
+    // Parents always have larger ids than their children, so one ascending
+    // sweep over the dirty set sees every node after all of its inputs
+    private void propagate() {
+        for (int node = dirty.nextSetBit(0); node >= 0; node = dirty.nextSetBit(node + 1)) {
+            dirty.clear(node);
+            nodeEvaluations++;
+            boolean value = evaluate(node);
+            if (value == memory[node]) {
+                continue;
+            }
+            memory[node] = value;
+            for (int parent : parents[node]) {
+                dirty.set(parent);
+            }
+            for (int rule : rulesByRoot[node]) {
+                if (value) {
+                    listener.onActivated(rule, rules.getRuleName(rule));
+                } else {
+                    listener.onDeactivated(rule, rules.getRuleName(rule));
+                }
+            }
+        }
+    }
+
+    // Marks every node dirty; memories that end up unchanged stay silent, so
+    // only rules whose state really differs are reported
+    private void recomputeAll() {
+        dirty.set(0, nodeCount);
+        propagate();
+    }
+
+    private boolean evaluate(int node) {
+        int kind = rules.kind(node);
+        switch (kind) {
+            case RuleSet.KIND_AND: return memory[rules.left(node)] && memory[rules.right(node)];
+            case RuleSet.KIND_OR: return memory[rules.left(node)] || memory[rules.right(node)];
+            case RuleSet.KIND_NOT: return !memory[rules.left(node)];
+            default: return RuleSetMatcher.compare(kind, rules.left(node), rules.constant(node), state);
+        }
+    }
+
+    private static int fieldIndex(RecordSchema schema, int compareBase, int slot) {
+        switch (compareBase) {
+            case RuleProgram.OP_CMP_DOUBLE: return slot;
+            case RuleProgram.OP_CMP_LONG: return schema.getDoubleCount() + slot;
+            default: return schema.getDoubleCount() + schema.getLongCount() + slot;
+        }
+    }
+
+    private static List<List<Integer>> lists(int count) {
+        List<List<Integer>> lists = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lists.add(new ArrayList<>(2));
+        }
+        return lists;
+    }
+
+    private static int[][] toArrays(List<List<Integer>> lists) {
+        int[][] arrays = new int[lists.size()][];
+        for (int i = 0; i < arrays.length; i++) {
+            List<Integer> list = lists.get(i);
+            arrays[i] = new int[list.size()];
+            for (int j = 0; j < arrays[i].length; j++) {
+                arrays[i][j] = list.get(j);
+            }
+        }
+        return arrays;
+    }
+
+    @Override
+    public String toString() {
+        return "IncrementalMatcher{rules=" + rules.getRuleCount() + ", nodes=" + nodeCount
+                + ", nodeEvaluations=" + nodeEvaluations + "}";
+    }
+}
@@ -0,0 +1,261 @@
+import java.util.*;
+
+// A set of named rules whose trees are hash-consed into one DAG.
+// Structurally identical subtrees - above all the same predicate repeated
+// across many rules - become a single node, so a RuleSetMatcher evaluates
+// each distinct predicate once per transaction no matter how many
+// rules mention it. AND/OR children are put in canonical order before
+// interning, so "a AND b" and "b AND a" share a node too.
+// Rules are added up front; add must not race with matching.
+final class RuleSet {
+    static final int KIND_AND = 0;
+    static final int KIND_OR = 1;
+    static final int KIND_NOT = 2;
+    // Comparison nodes use the RuleProgram compare opcodes as their kind
+
+    private final RecordSchema schema;
+    private final Map<NodeKey, Integer> interned = new HashMap<>();
+    private int[] kinds = new int[64];
+    private int[] left = new int[64];   // first child, or the field slot of a comparison
+    private int[] right = new int[64];  // second child
+    private long[] constants = new long[64]; // comparison constant; doubles as raw bits
+    private int nodeCount;
+    private int treeNodeCount;
+
+    private final List<String> ruleNames = new ArrayList<>();
+    private int[] roots = new int[16];
+
+    RuleSet(RecordSchema schema) {
+        this.schema = schema;
+    }
+
+    RecordSchema getSchema() { return schema; }
+    int getRuleCount() { return ruleNames.size(); }
+    String getRuleName(int rule) { return ruleNames.get(rule); }
+    int getRoot(int rule) { return roots[rule]; }
+
+    // Distinct DAG nodes, against the node count of all rule trees added
+    int getNodeCount() { return nodeCount; }
+    int getTreeNodeCount() { return treeNodeCount; }
+
+    int getPredicateCount() {
+        int count = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (kinds[i] >= RuleProgram.OP_CMP_DOUBLE) count++;
+        }
+        return count;
+    }
+
+    int kind(int node) { return kinds[node]; }
+    int left(int node) { return left[node]; }
+    int right(int node) { return right[node]; }
+    long constant(int node) { return constants[node]; }
+
+    // Registers a rule and returns its id
+    int add(String name, ASTNode rule) {
+        int root = intern(rule);
+        int id = ruleNames.size();
+        if (id == roots.length) {
+            roots = Arrays.copyOf(roots, id * 2);
+        }
+        roots[id] = root;
+        ruleNames.add(name);
+        return id;
+    }
+
+    RuleSetMatcher newMatcher() {
+        return new RuleSetMatcher(this);
+    }
+
+    private int intern(ASTNode node) {
+        treeNodeCount++;
+        if (node instanceof ComparisonNode) {
+            ComparisonNode comparison = (ComparisonNode) node;
+            RecordField field = schema.requireField(comparison.getField());
+            long constant;
+            int base;
+            switch (field.getType()) {
+                case DOUBLE:
+                    base = RuleProgram.OP_CMP_DOUBLE;
+                    constant = Double.doubleToLongBits(comparison.doubleConstant(field));
+                    break;
+                case LONG:
+                    base = RuleProgram.OP_CMP_LONG;
+                    constant = comparison.longConstant(schema, field);
+                    break;
+                default:
+                    base = RuleProgram.OP_CMP_INT;
+                    constant = comparison.longConstant(schema, field);
+            }
+            return node(base + comparison.getOp().ordinal(), field.getSlot(), 0, constant);
+        } else if (node instanceof ValueNode) {
+            // A bare field is a truth test: field != 0
+            RecordField field = schema.requireField(((ValueNode) node).getVariable());
+            int base = field.getType() == FieldType.DOUBLE ? RuleProgram.OP_CMP_DOUBLE
+                     : field.getType() == FieldType.LONG ? RuleProgram.OP_CMP_LONG : RuleProgram.OP_CMP_INT;
+            long zero = field.getType() == FieldType.DOUBLE ? Double.doubleToLongBits(0.0) : 0L;
+            return node(base + CompareOp.NE.ordinal(), field.getSlot(), 0, zero);
+        } else if (node instanceof LogicalNode) {
+            LogicalNode logical = (LogicalNode) node;
+            int kind;
+            switch (logical.getOperator()) {
+                case "AND": kind = KIND_AND; break;
+                case "OR": kind = KIND_OR; break;
+                default: throw new IllegalArgumentException("Unknown operator: " + logical.getOperator());
+            }
+            int a = intern(logical.getLeft());
+            int b = intern(logical.getRight());
+            if (a == b) {
+                return a; // x AND x, x OR x
+            }
+            return node(kind, Math.min(a, b), Math.max(a, b), 0);
+        } else if (node instanceof NotNode) {
+            int operand = intern(((NotNode) node).getOperand());
+            if (kinds[operand] == KIND_NOT) {
+                return left[operand]; // NOT NOT x
+            }
+            return node(KIND_NOT, operand, 0, 0);
+        }
+        throw new IllegalArgumentException("Cannot add node to a rule set: " + node);
+    }
+
+    private int node(int kind, int a, int b, long constant) {
+        NodeKey key = new NodeKey(kind, a, b, constant);
+        Integer existing = interned.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if (nodeCount == kinds.length) {
+            int capacity = nodeCount * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            constants = Arrays.copyOf(constants, capacity);
+        }
+        int id = nodeCount++;
+        kinds[id] = kind;
+        left[id] = a;
+        right[id] = b;
+        constants[id] = constant;
+        interned.put(key, id);
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "RuleSet{rules=" + getRuleCount() + ", nodes=" + nodeCount + ", treeNodes=" + treeNodeCount
+                + ", predicates=" + getPredicateCount() + "}";
+    }
+
+    private static final class NodeKey {
+        private final int kind;
+        private final int a;
+        private final int b;
+        private final long constant;
+
+        NodeKey(int kind, int a, int b, long constant) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.constant = constant;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NodeKey)) return false;
+            NodeKey other = (NodeKey) o;
+            return kind == other.kind && a == other.a && b == other.b && constant == other.constant;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = kind;
+            h = 31 * h + a;
+            h = 31 * h + b;
+            return 31 * h + Long.hashCode(constant);
+        }
+    }
+}
+
+// Evaluates every rule of a RuleSet against one transaction at a time.
+// Interning gives every node a larger id than its children, so a single
+// pass over the DAG in id order computes each distinct node exactly once,
+// with no recursion and no memo bookkeeping. Cost per transaction is the
+// number of distinct nodes, however many rules share them.
+// Not thread-safe: use one matcher per thread.
+final class RuleSetMatcher {
+    private final RuleSet rules;
+    private boolean[] values = new boolean[0];
+
+    RuleSetMatcher(RuleSet rules) {
+        this.rules = rules;
+    }
+
+    // Writes the ids of the rules the record satisfies into fired (at least
+    // getRuleCount() long) in ascending order, and returns how many fired
+    int match(TransactionRecord record, int[] fired) {
+        evaluateAll(record);
+        RuleSet rules = this.rules;
+        boolean[] values = this.values;
+        int count = 0;
+        for (int rule = 0, n = rules.getRuleCount(); rule < n; rule++) {
+            if (values[rules.getRoot(rule)]) {
+                fired[count++] = rule;
+            }
+        }
+        return count;
+    }
+
+    boolean matches(int rule, TransactionRecord record) {
+        evaluateAll(record);
+        return values[rules.getRoot(rule)];
+    }
+
+    private void evaluateAll(TransactionRecord record) {
+        RuleSet rules = this.rules;
+        if (record.getSchema() != rules.getSchema()) {
+            throw new IllegalArgumentException("Record was laid out by a different schema");
+        }
+        int nodes = rules.getNodeCount();
+        if (values.length < nodes) {
+            values = new boolean[nodes];
+        }
+        boolean[] values = this.values;
+        for (int node = 0; node < nodes; node++) {
+            int kind = rules.kind(node);
+            switch (kind) {
+                case RuleSet.KIND_AND: values[node] = values[rules.left(node)] && values[rules.right(node)]; break;
+                case RuleSet.KIND_OR: values[node] = values[rules.left(node)] || values[rules.right(node)]; break;
+                case RuleSet.KIND_NOT: values[node] = !values[rules.left(node)]; break;
+                default: values[node] = compare(kind, rules.left(node), rules.constant(node), record);
+            }
+        }
+    }
+
+    static boolean compare(int kind, int slot, long constant, TransactionRecord record) {
+        switch (kind) {
+            case RuleProgram.OP_CMP_DOUBLE + 0: return record.doubles[slot] == Double.longBitsToDouble(constant);
+            case RuleProgram.OP_CMP_DOUBLE + 1: return record.doubles[slot] != Double.longBitsToDouble(constant);
+            case RuleProgram.OP_CMP_DOUBLE + 2: return record.doubles[slot] < Double.longBitsToDouble(constant);
+            case RuleProgram.OP_CMP_DOUBLE + 3: return record.doubles[slot] <= Double.longBitsToDouble(constant);
+            case RuleProgram.OP_CMP_DOUBLE + 4: return record.doubles[slot] > Double.longBitsToDouble(constant);
+            case RuleProgram.OP_CMP_DOUBLE + 5: return record.doubles[slot] >= Double.longBitsToDouble(constant);
+
+            case RuleProgram.OP_CMP_LONG + 0: return record.longs[slot] == constant;
+            case RuleProgram.OP_CMP_LONG + 1: return record.longs[slot] != constant;
+            case RuleProgram.OP_CMP_LONG + 2: return record.longs[slot] < constant;
+            case RuleProgram.OP_CMP_LONG + 3: return record.longs[slot] <= constant;
+            case RuleProgram.OP_CMP_LONG + 4: return record.longs[slot] > constant;
+            case RuleProgram.OP_CMP_LONG + 5: return record.longs[slot] >= constant;
+
+            case RuleProgram.OP_CMP_INT + 0: return record.ints[slot] == constant;
+            case RuleProgram.OP_CMP_INT + 1: return record.ints[slot] != constant;
+            case RuleProgram.OP_CMP_INT + 2: return record.ints[slot] < constant;
+            case RuleProgram.OP_CMP_INT + 3: return record.ints[slot] <= constant;
+            case RuleProgram.OP_CMP_INT + 4: return record.ints[slot] > constant;
+            case RuleProgram.OP_CMP_INT + 5: return record.ints[slot] >= constant;
+
+            default: throw new IllegalStateException("Bad node kind: " + kind);
+        }
+    }
+}
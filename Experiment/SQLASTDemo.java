@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 // Base AST Node
 abstract class ASTNode {
@@ -14,18 +16,57 @@ abstract class ASTNode {
     public abstract <T> T accept(ASTVisitor<T> visitor);
 }
 
-// Visitor pattern interface
+// Visitor pattern interface: one method per concrete node type, and every
+// node's accept() calls the one for its own type. A visit method decides
+// itself whether to descend; SQLTreeWalker gives the same coverage without
+// recursion.
 interface ASTVisitor<T> {
+    // Statements
     T visit(SelectStatement node);
     T visit(InsertStatement node);
     T visit(UpdateStatement node);
     T visit(DeleteStatement node);
     T visit(CreateTableStatement node);
+
+    // Query parts
+    T visit(CommonTableExpression node);
+    T visit(SetOperation node);
+    T visit(SelectItem node);
+    T visit(FromClause node);
+    T visit(WhereClause node);
+    T visit(GroupByClause node);
+    T visit(HavingClause node);
+    T visit(OrderByClause node);
+    T visit(OrderByElement node);
+    T visit(LimitClause node);
+
+    // Table expressions
+    T visit(TableReference node);
+    T visit(JoinExpression node);
+    T visit(DerivedTable node);
+
+    // Expressions
     T visit(ColumnReference node);
     T visit(LiteralExpression node);
+    T visit(ParameterExpression node);
     T visit(FunctionCall node);
+    T visit(BinaryExpression node);
+    T visit(UnaryExpression node);
+    T visit(ExpressionList node);
+    T visit(SubqueryExpression node);
     T visit(BooleanExpression node);
-    // Add more visit methods as needed
+    T visit(CaseExpression node);
+    T visit(WhenClause node);
+
+    // DML and DDL parts
+    T visit(ValuesClause node);
+    T visit(SetClause node);
+    T visit(ColumnDefinition node);
+    T visit(CharacterType node);
+    T visit(NumericType node);
+    T visit(NotNullConstraint node);
+    T visit(PrimaryKeyConstraint node);
+    T visit(PrimaryKeyTableConstraint node);
 }
 
 // Root SQL Statement
@@ -46,11 +87,13 @@ class SelectStatement extends SQLStatement {
     private OrderByClause orderByClause;
     private LimitClause limitClause;
     private List<CommonTableExpression> cteList;
+    private List<SetOperation> setOperations;
     
     public SelectStatement(int line, int column) {
         super(line, column);
         this.selectList = new ArrayList<>();
         this.cteList = new ArrayList<>();
+        this.setOperations = new ArrayList<>();
     }
     
     // Getters and setters
@@ -81,6 +124,11 @@ class SelectStatement extends SQLStatement {
     public List<CommonTableExpression> getCteList() { return cteList; }
     public void addCTE(CommonTableExpression cte) { this.cteList.add(cte); }
     
+    // UNION/INTERSECT/EXCEPT operands, applied left to right; ORDER BY and
+    // LIMIT of this statement then apply to the combined result
+    public List<SetOperation> getSetOperations() { return setOperations; }
+    public void addSetOperation(SetOperation setOperation) { this.setOperations.add(setOperation); }
+    
     @Override
     public String toString() {
         return "SelectStatement{distinct=" + distinct + ", selectList=" + selectList + "}";
@@ -92,6 +140,34 @@ class SelectStatement extends SQLStatement {
     }
 }
 
+class SetOperation extends ASTNode {
+    public enum Type {
+        UNION, UNION_ALL, INTERSECT, EXCEPT
+    }
+    
+    private Type type;
+    private SelectStatement query;
+    
+    public SetOperation(Type type, SelectStatement query, int line, int column) {
+        super(line, column);
+        this.type = type;
+        this.query = query;
+    }
+    
+    public Type getType() { return type; }
+    public SelectStatement getQuery() { return query; }
+    
+    @Override
+    public String toString() {
+        return "SetOperation{type=" + type + ", query=" + query + "}";
+    }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visit(this);
+    }
+}
+
 class SelectItem extends ASTNode {
     private Expression expression;
     private String alias;
@@ -112,7 +188,7 @@ class SelectItem extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return expression.accept(visitor);
+        return visitor.visit(this);
     }
 }
 
@@ -134,7 +210,7 @@ class FromClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return tableExpression.accept(visitor);
+        return visitor.visit(this);
     }
 }
 
@@ -164,8 +240,7 @@ class TableReference extends TableExpression {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        // Handle table reference visit
-        return null;
+        return visitor.visit(this);
     }
 }
 
@@ -202,7 +277,32 @@ class JoinExpression extends TableExpression {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return joinCondition.accept(visitor);
+        return visitor.visit(this);
+    }
+}
+
+// Subquery in FROM: (SELECT ...) alias
+class DerivedTable extends TableExpression {
+    private SelectStatement query;
+    private String alias;
+    
+    public DerivedTable(SelectStatement query, String alias, int line, int column) {
+        super(line, column);
+        this.query = query;
+        this.alias = alias;
+    }
+    
+    public SelectStatement getQuery() { return query; }
+    public String getAlias() { return alias; }
+    
+    @Override
+    public String toString() {
+        return "DerivedTable{query=" + query + ", alias=" + alias + "}";
+    }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visit(this);
     }
 }
 
@@ -224,7 +324,7 @@ class WhereClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return condition.accept(visitor);
+        return visitor.visit(this);
     }
 }
 
@@ -291,6 +391,32 @@ class LiteralExpression extends Expression {
     }
 }
 
+// Positional placeholder for a literal lifted out of a query, numbered
+// from 0 in source order; type is the type of the literal it replaced
+class ParameterExpression extends Expression {
+    private int index;
+    private LiteralExpression.LiteralType type;
+    
+    public ParameterExpression(int index, LiteralExpression.LiteralType type, int line, int column) {
+        super(line, column);
+        this.index = index;
+        this.type = type;
+    }
+    
+    public int getIndex() { return index; }
+    public LiteralExpression.LiteralType getType() { return type; }
+    
+    @Override
+    public String toString() {
+        return "ParameterExpression{index=" + index + ", type=" + type + "}";
+    }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visit(this);
+    }
+}
+
 class FunctionCall extends Expression {
     private String functionName;
     private List<Expression> arguments;
@@ -351,7 +477,79 @@ class BinaryExpression extends Expression {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle binary expression visit
+        return visitor.visit(this);
+    }
+}
+
+class UnaryExpression extends Expression {
+    public enum Operator {
+        NOT, NEGATE, IS_NULL, IS_NOT_NULL, EXISTS
+    }
+    
+    private Operator operator;
+    private Expression operand;
+    
+    public UnaryExpression(Operator operator, Expression operand, int line, int column) {
+        super(line, column);
+        this.operator = operator;
+        this.operand = operand;
+    }
+    
+    public Operator getOperator() { return operator; }
+    public Expression getOperand() { return operand; }
+    
+    @Override
+    public String toString() {
+        return "UnaryExpression{operator=" + operator + ", operand=" + operand + "}";
+    }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visit(this);
+    }
+}
+
+// Parenthesised list, the right-hand side of IN (a, b, c)
+class ExpressionList extends Expression {
+    private List<Expression> expressions;
+    
+    public ExpressionList(List<Expression> expressions, int line, int column) {
+        super(line, column);
+        this.expressions = expressions;
+    }
+    
+    public List<Expression> getExpressions() { return expressions; }
+    
+    @Override
+    public String toString() {
+        return "ExpressionList{expressions=" + expressions + "}";
+    }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visit(this);
+    }
+}
+
+// Subquery used as a value: scalar subquery, IN (SELECT ...), EXISTS (SELECT ...)
+class SubqueryExpression extends Expression {
+    private SelectStatement query;
+    
+    public SubqueryExpression(SelectStatement query, int line, int column) {
+        super(line, column);
+        this.query = query;
+    }
+    
+    public SelectStatement getQuery() { return query; }
+    
+    @Override
+    public String toString() {
+        return "SubqueryExpression{query=" + query + "}";
+    }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visit(this);
     }
 }
 
@@ -402,7 +600,7 @@ class CaseExpression extends Expression {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle case expression visit
+        return visitor.visit(this);
     }
 }
 
@@ -426,7 +624,7 @@ class WhenClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle when clause visit
+        return visitor.visit(this);
     }
 }
 
@@ -479,7 +677,7 @@ class ValuesClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle values clause visit
+        return visitor.visit(this);
     }
 }
 
@@ -535,7 +733,7 @@ class SetClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle set clause visit
+        return visitor.visit(this);
     }
 }
 
@@ -627,7 +825,7 @@ class ColumnDefinition extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle column definition visit
+        return visitor.visit(this);
     }
 }
 
@@ -662,7 +860,7 @@ class CharacterType extends DataType {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle character type visit
+        return visitor.visit(this);
     }
 }
 
@@ -693,7 +891,7 @@ class NumericType extends DataType {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle numeric type visit
+        return visitor.visit(this);
     }
 }
 
@@ -727,7 +925,7 @@ class NotNullConstraint extends ColumnConstraint {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle not null constraint visit
+        return visitor.visit(this);
     }
 }
 
@@ -743,7 +941,7 @@ class PrimaryKeyConstraint extends ColumnConstraint {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle primary key constraint visit
+        return visitor.visit(this);
     }
 }
 
@@ -753,6 +951,27 @@ abstract class TableConstraint extends Constraint {
     }
 }
 
+class PrimaryKeyTableConstraint extends TableConstraint {
+    private List<String> columnNames;
+    
+    public PrimaryKeyTableConstraint(String constraintName, List<String> columnNames, int line, int column) {
+        super(constraintName, line, column);
+        this.columnNames = columnNames;
+    }
+    
+    public List<String> getColumnNames() { return columnNames; }
+    
+    @Override
+    public String toString() {
+        return "PrimaryKeyTableConstraint{constraintName=" + constraintName + ", columnNames=" + columnNames + "}";
+    }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visit(this);
+    }
+}
+
 // =============== OTHER CLAUSES ===============
 class GroupByClause extends ASTNode {
     private List<Expression> groupingExpressions;
@@ -771,7 +990,7 @@ class GroupByClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle group by clause visit
+        return visitor.visit(this);
     }
 }
 
@@ -792,7 +1011,7 @@ class HavingClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return condition.accept(visitor);
+        return visitor.visit(this);
     }
 }
 
@@ -813,7 +1032,7 @@ class OrderByClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle order by clause visit
+        return visitor.visit(this);
     }
 }
 
@@ -841,7 +1060,7 @@ class OrderByElement extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return expression.accept(visitor);
+        return visitor.visit(this);
     }
 }
 
@@ -865,7 +1084,7 @@ class LimitClause extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return null; // Handle limit clause visit
+        return visitor.visit(this);
     }
 }
 
@@ -899,7 +1118,7 @@ class CommonTableExpression extends ASTNode {
     
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
-        return query.accept(visitor);
+        return visitor.visit(this);
     }
 }
 
@@ -1078,6 +1297,11 @@ class SQLPrettyPrinter implements ASTVisitor<String> {
             sb.append("\nHAVING ").append(node.getHavingClause().getCondition().accept(this));
         }
         
+        // UNION / INTERSECT / EXCEPT
+        for (SetOperation setOperation : node.getSetOperations()) {
+            sb.append("\n").append(setOperation.accept(this));
+        }
+        
         // ORDER BY clause
         if (node.getOrderByClause() != null) {
             sb.append("\nORDER BY ");
@@ -1199,7 +1423,7 @@ class SQLPrettyPrinter implements ASTVisitor<String> {
         // Table constraints
         for (TableConstraint constraint : node.getTableConstraints()) {
             sb.append(",\n").append(indent());
-            sb.append("-- Table constraint: ").append(constraint.getClass().getSimpleName());
+            sb.append(constraint.accept(this));
         }
         
         indentLevel--;
@@ -1280,116 +1504,702 @@ class SQLPrettyPrinter implements ASTVisitor<String> {
     public String visit(BooleanExpression node) {
         return node.getCondition().accept(this);
     }
+    
+    @Override
+    public String visit(CommonTableExpression node) {
+        StringBuilder sb = new StringBuilder(node.getName());
+        if (node.getColumnList() != null && !node.getColumnList().isEmpty()) {
+            sb.append(" (").append(String.join(", ", node.getColumnList())).append(")");
+        }
+        return sb.append(" AS (\n").append(node.getQuery().accept(this)).append("\n)").toString();
+    }
+    
+    @Override
+    public String visit(SetOperation node) {
+        String keyword = node.getType() == SetOperation.Type.UNION_ALL ? "UNION ALL" : node.getType().toString();
+        return keyword + "\n" + node.getQuery().accept(this);
+    }
+    
+    @Override
+    public String visit(SelectItem node) {
+        String expression = node.getExpression().accept(this);
+        return node.getAlias() != null ? expression + " AS " + node.getAlias() : expression;
+    }
+    
+    @Override
+    public String visit(FromClause node) {
+        return "FROM " + node.getTableExpression().accept(this);
+    }
+    
+    @Override
+    public String visit(WhereClause node) {
+        return "WHERE " + node.getCondition().accept(this);
+    }
+    
+    @Override
+    public String visit(GroupByClause node) {
+        return "GROUP BY " + join(node.getGroupingExpressions());
+    }
+    
+    @Override
+    public String visit(HavingClause node) {
+        return "HAVING " + node.getCondition().accept(this);
+    }
+    
+    @Override
+    public String visit(OrderByClause node) {
+        return "ORDER BY " + join(node.getOrderByElements());
+    }
+    
+    @Override
+    public String visit(OrderByElement node) {
+        return node.getExpression().accept(this) + " " + node.getDirection();
+    }
+    
+    @Override
+    public String visit(LimitClause node) {
+        String limit = "LIMIT " + node.getRowCount().accept(this);
+        return node.getOffset() != null ? limit + " OFFSET " + node.getOffset().accept(this) : limit;
+    }
+    
+    @Override
+    public String visit(TableReference node) {
+        return node.getAlias() != null ? node.getTableName() + " " + node.getAlias() : node.getTableName();
+    }
+    
+    @Override
+    public String visit(JoinExpression node) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(node.getLeftTable().accept(this)).append("\n");
+        sb.append(node.getJoinType() == JoinExpression.JoinType.INNER ? "" : node.getJoinType() + " ");
+        sb.append("JOIN ").append(node.getRightTable().accept(this));
+        if (node.getJoinCondition() != null) {
+            sb.append(" ON ").append(node.getJoinCondition().accept(this));
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public String visit(DerivedTable node) {
+        String query = "(" + node.getQuery().accept(this) + ")";
+        return node.getAlias() != null ? query + " " + node.getAlias() : query;
+    }
+    
+    @Override
+    public String visit(ParameterExpression node) {
+        return "?";
+    }
+    
+    @Override
+    public String visit(BinaryExpression node) {
+        int rank = rank(node);
+        String left = node.getLeft().accept(this);
+        String right = node.getRight().accept(this);
+        // Parenthesize operands that bind looser, and equal ones on the right
+        if (rank(node.getLeft()) < rank) {
+            left = "(" + left + ")";
+        }
+        if (rank(node.getRight()) <= rank) {
+            right = "(" + right + ")";
+        }
+        return left + " " + symbol(node.getOperator()) + " " + right;
+    }
+    
+    private static int rank(Expression expression) {
+        if (!(expression instanceof BinaryExpression)) {
+            return Integer.MAX_VALUE;
+        }
+        switch (((BinaryExpression) expression).getOperator()) {
+            case OR: return 1;
+            case AND: return 2;
+            case PLUS:
+            case MINUS: return 4;
+            case MULTIPLY:
+            case DIVIDE:
+            case MODULO: return 5;
+            default: return 3;
+        }
+    }
+    
+    private static String symbol(BinaryExpression.Operator operator) {
+        switch (operator) {
+            case PLUS: return "+";
+            case MINUS: return "-";
+            case MULTIPLY: return "*";
+            case DIVIDE: return "/";
+            case MODULO: return "%";
+            case EQUALS: return "=";
+            case NOT_EQUALS: return "<>";
+            case LESS_THAN: return "<";
+            case GREATER_THAN: return ">";
+            case LESS_THAN_OR_EQUAL: return "<=";
+            case GREATER_THAN_OR_EQUAL: return ">=";
+            default: return operator.toString();
+        }
+    }
+    
+    @Override
+    public String visit(UnaryExpression node) {
+        String operand = node.getOperand().accept(this);
+        if (node.getOperand() instanceof BinaryExpression) {
+            operand = "(" + operand + ")";
+        }
+        switch (node.getOperator()) {
+            case NOT: return "NOT " + operand;
+            case NEGATE: return "-" + operand;
+            case IS_NULL: return operand + " IS NULL";
+            case IS_NOT_NULL: return operand + " IS NOT NULL";
+            default: return node.getOperator() + " " + operand;
+        }
+    }
+    
+    @Override
+    public String visit(ExpressionList node) {
+        return "(" + join(node.getExpressions()) + ")";
+    }
+    
+    @Override
+    public String visit(SubqueryExpression node) {
+        return "(" + node.getQuery().accept(this) + ")";
+    }
+    
+    @Override
+    public String visit(CaseExpression node) {
+        StringBuilder sb = new StringBuilder("CASE");
+        if (!node.isSearchedCase()) {
+            sb.append(" ").append(node.getCaseOperand().accept(this));
+        }
+        for (WhenClause when : node.getWhenClauses()) {
+            sb.append(" ").append(when.accept(this));
+        }
+        if (node.getElseExpression() != null) {
+            sb.append(" ELSE ").append(node.getElseExpression().accept(this));
+        }
+        return sb.append(" END").toString();
+    }
+    
+    @Override
+    public String visit(WhenClause node) {
+        return "WHEN " + node.getWhenCondition().accept(this) + " THEN " + node.getThenExpression().accept(this);
+    }
+    
+    @Override
+    public String visit(ValuesClause node) {
+        StringBuilder sb = new StringBuilder("VALUES ");
+        for (int i = 0; i < node.getValuesList().size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("(").append(join(node.getValuesList().get(i))).append(")");
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public String visit(SetClause node) {
+        return node.getColumnName() + " = " + node.getValue().accept(this);
+    }
+    
+    @Override
+    public String visit(ColumnDefinition node) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(node.getColumnName()).append(" ").append(node.getDataType().accept(this));
+        for (ColumnConstraint constraint : node.getConstraints()) {
+            sb.append(" ").append(constraint.accept(this));
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public String visit(CharacterType node) {
+        return formatDataType(node);
+    }
+    
+    @Override
+    public String visit(NumericType node) {
+        return formatDataType(node);
+    }
+    
+    @Override
+    public String visit(NotNullConstraint node) {
+        return "NOT NULL";
+    }
+    
+    @Override
+    public String visit(PrimaryKeyConstraint node) {
+        return "PRIMARY KEY";
+    }
+    
+    @Override
+    public String visit(PrimaryKeyTableConstraint node) {
+        return "PRIMARY KEY (" + String.join(", ", node.getColumnNames()) + ")";
+    }
+    
+    private String join(List<? extends ASTNode> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(nodes.get(i).accept(this));
+        }
+        return sb.toString();
+    }
 }
 
-// AST Analyzer visitor - counts different node types
+// AST Analyzer visitor - counts node types and collects the tables, columns
+// and functions a statement references.
+// node.accept(analyzer) counts the node and everything below it. The
+// descent is done by an SQLTreeWalker, which calls back into this visitor
+// for each node, so deep trees don't recurse. Counts accumulate across
+// calls, so one analyzer can take a whole log of statements.
+// Names are normalized like SQLEngine resolves them: tables and columns
+// lower case, functions upper case. Columns are reported as table.column
+// where the statement says which table, through a qualifier, an alias or
+// by having a single table; aliases and CTE names are looked up across
+// the whole statement, not per subquery. Columns of CTEs and derived
+// tables and * are not reported.
+// Not thread-safe; analyzeAll() and analyzeSql() run a batch on a
+// ForkJoinPool with an analyzer per task and merge them.
 class SQLASTAnalyzer implements ASTVisitor<Integer> {
-    private Map<String, Integer> nodeCounts = new HashMap<>();
-    
+    // Statements per task when a batch is split across a pool
+    static final int BATCH_GRAIN = 128;
+
+    enum NodeKind {
+        SELECT_STATEMENT, INSERT_STATEMENT, UPDATE_STATEMENT, DELETE_STATEMENT, CREATE_TABLE_STATEMENT,
+        COMMON_TABLE_EXPRESSION, SET_OPERATION, SELECT_ITEM, FROM_CLAUSE, WHERE_CLAUSE, GROUP_BY_CLAUSE,
+        HAVING_CLAUSE, ORDER_BY_CLAUSE, ORDER_BY_ELEMENT, LIMIT_CLAUSE, TABLE_REFERENCE, JOIN_EXPRESSION,
+        DERIVED_TABLE, COLUMN_REFERENCE, LITERAL_EXPRESSION, PARAMETER_EXPRESSION, FUNCTION_CALL,
+        BINARY_EXPRESSION, UNARY_EXPRESSION, EXPRESSION_LIST, SUBQUERY_EXPRESSION, BOOLEAN_EXPRESSION,
+        CASE_EXPRESSION, WHEN_CLAUSE, VALUES_CLAUSE, SET_CLAUSE, COLUMN_DEFINITION, CHARACTER_TYPE,
+        NUMERIC_TYPE, NOT_NULL_CONSTRAINT, PRIMARY_KEY_CONSTRAINT, PRIMARY_KEY_TABLE_CONSTRAINT;
+
+        // The node class's name, SELECT_STATEMENT -> SelectStatement
+        final String typeName;
+
+        NodeKind() {
+            StringBuilder name = new StringBuilder();
+            for (String word : name().split("_")) {
+                name.append(word.charAt(0)).append(word.substring(1).toLowerCase(Locale.ROOT));
+            }
+            typeName = name.toString();
+        }
+    }
+
+    private static final NodeKind[] KINDS = NodeKind.values();
+
+    private final int[] counts = new int[KINDS.length];
+    private final Tally tables = new Tally();
+    private final Tally columns = new Tally();
+    private final Tally functions = new Tally();
+    private final SQLTreeWalker walker = new SQLTreeWalker();
+    private boolean walking;
+
+    // What the statement being walked refers to, resolved once the walk
+    // has seen all of it
+    private final Map<String, String> aliases = new HashMap<>();
+    private final Set<String> virtualTables = new HashSet<>(); // CTE names and derived table aliases
+    private final List<String> tableNames = new ArrayList<>();
+    private final List<String> qualifiers = new ArrayList<>(); // parallel to columnNames, null if unqualified
+    private final List<String> columnNames = new ArrayList<>();
+    private String target; // of the UPDATE being walked, for its SET columns
+    
+    // Node counts by node class name, for the kinds seen
     public Map<String, Integer> getNodeCounts() {
+        Map<String, Integer> nodeCounts = new HashMap<>();
+        for (NodeKind kind : KINDS) {
+            if (counts[kind.ordinal()] > 0) {
+                nodeCounts.put(kind.typeName, counts[kind.ordinal()]);
+            }
+        }
         return nodeCounts;
     }
-    
-    private void incrementCount(String nodeType) {
-        nodeCounts.put(nodeType, nodeCounts.getOrDefault(nodeType, 0) + 1);
+
+    public int getCount(NodeKind kind) {
+        return counts[kind.ordinal()];
     }
-    
-    @Override
-    public Integer visit(SelectStatement node) {
-        incrementCount("SelectStatement");
-        
-        // Visit child nodes
-        for (SelectItem item : node.getSelectList()) {
-            item.getExpression().accept(this);
+
+    // References per table, column or function name, sorted by name
+    public SortedMap<String, Integer> getTables() { return tables.snapshot(); }
+    public SortedMap<String, Integer> getColumns() { return columns.snapshot(); }
+    public SortedMap<String, Integer> getFunctions() { return functions.snapshot(); }
+
+    // Adds other's counts and references to this analyzer's
+    void merge(SQLASTAnalyzer other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
         }
-        
-        if (node.getFromClause() != null) {
-            node.getFromClause().accept(this);
+        tables.addAll(other.tables);
+        columns.addAll(other.columns);
+        functions.addAll(other.functions);
+    }
+
+    // =============== BATCHES ===============
+
+    // Analyzes parsed statements on pool, BATCH_GRAIN statements per task
+    static SQLASTAnalyzer analyzeAll(List<? extends ASTNode> statements, ForkJoinPool pool) {
+        return pool.invoke(new Batch(statements, false, 0, statements.size()));
+    }
+
+    // Parses and analyzes statements on pool; the first statement that
+    // fails to parse fails the batch with its SQLParseException
+    static SQLASTAnalyzer analyzeSql(List<? extends CharSequence> statements, ForkJoinPool pool) {
+        return pool.invoke(new Batch(statements, true, 0, statements.size()));
+    }
+
+    // Halves its range until it is BATCH_GRAIN statements or fewer; idle
+    // workers steal the forked halves
+    private static final class Batch extends RecursiveTask<SQLASTAnalyzer> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<?> statements;
+        private final boolean parse;
+        private final int from;
+        private final int to;
+
+        Batch(List<?> statements, boolean parse, int from, int to) {
+            this.statements = statements;
+            this.parse = parse;
+            this.from = from;
+            this.to = to;
         }
-        
-        if (node.getWhereClause() != null) {
-            node.getWhereClause().accept(this);
+
+        @Override
+        protected SQLASTAnalyzer compute() {
+            if (to - from > BATCH_GRAIN) {
+                int middle = (from + to) >>> 1;
+                Batch right = new Batch(statements, parse, middle, to);
+                right.fork();
+                SQLASTAnalyzer analyzer = new Batch(statements, parse, from, middle).compute();
+                analyzer.merge(right.join());
+                return analyzer;
+            }
+            SQLASTAnalyzer analyzer = new SQLASTAnalyzer();
+            SQLParser parser = parse ? new SQLParser() : null;
+            for (int i = from; i < to; i++) {
+                Object statement = statements.get(i);
+                ASTNode node = parse ? parser.parse((CharSequence) statement) : (ASTNode) statement;
+                node.accept(analyzer);
+            }
+            return analyzer;
         }
-        
-        if (node.getOrderByClause() != null) {
-            for (OrderByElement element : node.getOrderByClause().getOrderByElements()) {
-                element.getExpression().accept(this);
+    }
+
+    // =============== COUNTING ===============
+
+    // Counts the node when called from the walk; called from accept() on
+    // a root, walks the whole subtree and then resolves its references
+    private Integer count(ASTNode node, NodeKind kind) {
+        if (walking) {
+            counts[kind.ordinal()]++;
+        } else {
+            walking = true;
+            try {
+                walker.walk(node, child -> {
+                    child.accept(this);
+                    return true;
+                });
+                resolve();
+            } finally {
+                walking = false;
+                aliases.clear();
+                virtualTables.clear();
+                tableNames.clear();
+                qualifiers.clear();
+                columnNames.clear();
+                target = null;
             }
         }
-        
-        return nodeCounts.get("SelectStatement");
+        return counts[kind.ordinal()];
+    }
+
+    private void resolve() {
+        Set<String> real = new HashSet<>();
+        for (String table : tableNames) {
+            if (!virtualTables.contains(table)) {
+                tables.add(table);
+                real.add(table);
+            }
+        }
+        String only = real.size() == 1 && virtualTables.isEmpty() ? real.iterator().next() : null;
+        for (int i = 0; i < columnNames.size(); i++) {
+            String column = lower(columnNames.get(i));
+            if (column.equals("*")) {
+                continue;
+            }
+            String qualifier = qualifiers.get(i);
+            if (qualifier == null) {
+                columns.add(only != null ? only + "." + column : column);
+                continue;
+            }
+            String table = aliases.getOrDefault(qualifier, qualifier);
+            if (!virtualTables.contains(table)) {
+                columns.add(table + "." + column);
+            }
+        }
+    }
+
+    private void table(String name, String alias) {
+        String table = lower(name);
+        tableNames.add(table);
+        if (alias != null) {
+            aliases.put(lower(alias), table);
+        }
+    }
+
+    private void column(String qualifier, String name) {
+        qualifiers.add(qualifier == null ? null : lower(qualifier));
+        columnNames.add(name);
+    }
+
+    private static String lower(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // Reference counts by name, held in int[1] cells so counting doesn't box
+    private static final class Tally {
+        private final Map<String, int[]> counts = new HashMap<>();
+
+        void add(String name) {
+            counts.computeIfAbsent(name, key -> new int[1])[0]++;
+        }
+
+        void addAll(Tally other) {
+            for (Map.Entry<String, int[]> entry : other.counts.entrySet()) {
+                counts.computeIfAbsent(entry.getKey(), key -> new int[1])[0] += entry.getValue()[0];
+            }
+        }
+
+        SortedMap<String, Integer> snapshot() {
+            SortedMap<String, Integer> snapshot = new TreeMap<>();
+            for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                snapshot.put(entry.getKey(), entry.getValue()[0]);
+            }
+            return snapshot;
+        }
+    }
+
+    // =============== NODES ===============
+    
+    @Override
+    public Integer visit(SelectStatement node) {
+        return count(node, NodeKind.SELECT_STATEMENT);
     }
     
     @Override
     public Integer visit(InsertStatement node) {
-        incrementCount("InsertStatement");
-        return nodeCounts.get("InsertStatement");
+        if (walking) {
+            table(node.getTableName(), null);
+            for (String column : node.getColumnList()) {
+                column(node.getTableName(), column);
+            }
+        }
+        return count(node, NodeKind.INSERT_STATEMENT);
     }
     
     @Override
     public Integer visit(UpdateStatement node) {
-        incrementCount("UpdateStatement");
-        
-        for (SetClause setClause : node.getSetClauses()) {
-            setClause.getValue().accept(this);
-        }
-        
-        if (node.getWhereClause() != null) {
-            node.getWhereClause().accept(this);
+        if (walking) {
+            table(node.getTableName(), node.getTableAlias());
+            target = node.getTableName();
         }
-        
-        return nodeCounts.get("UpdateStatement");
+        return count(node, NodeKind.UPDATE_STATEMENT);
     }
     
     @Override
     public Integer visit(DeleteStatement node) {
-        incrementCount("DeleteStatement");
-        
-        if (node.getWhereClause() != null) {
-            node.getWhereClause().accept(this);
+        if (walking) {
+            table(node.getTableName(), node.getTableAlias());
         }
-        
-        return nodeCounts.get("DeleteStatement");
+        return count(node, NodeKind.DELETE_STATEMENT);
     }
     
     @Override
     public Integer visit(CreateTableStatement node) {
-        incrementCount("CreateTableStatement");
-        return nodeCounts.get("CreateTableStatement");
+        if (walking) {
+            table(node.getTableName(), null);
+        }
+        return count(node, NodeKind.CREATE_TABLE_STATEMENT);
+    }
+    
+    @Override
+    public Integer visit(CommonTableExpression node) {
+        if (walking) {
+            virtualTables.add(lower(node.getName()));
+        }
+        return count(node, NodeKind.COMMON_TABLE_EXPRESSION);
+    }
+    
+    @Override
+    public Integer visit(SetOperation node) {
+        return count(node, NodeKind.SET_OPERATION);
+    }
+    
+    @Override
+    public Integer visit(SelectItem node) {
+        return count(node, NodeKind.SELECT_ITEM);
+    }
+    
+    @Override
+    public Integer visit(FromClause node) {
+        return count(node, NodeKind.FROM_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(WhereClause node) {
+        return count(node, NodeKind.WHERE_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(GroupByClause node) {
+        return count(node, NodeKind.GROUP_BY_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(HavingClause node) {
+        return count(node, NodeKind.HAVING_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(OrderByClause node) {
+        return count(node, NodeKind.ORDER_BY_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(OrderByElement node) {
+        return count(node, NodeKind.ORDER_BY_ELEMENT);
+    }
+    
+    @Override
+    public Integer visit(LimitClause node) {
+        return count(node, NodeKind.LIMIT_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(TableReference node) {
+        if (walking) {
+            table(node.getTableName(), node.getAlias());
+        }
+        return count(node, NodeKind.TABLE_REFERENCE);
+    }
+    
+    @Override
+    public Integer visit(JoinExpression node) {
+        return count(node, NodeKind.JOIN_EXPRESSION);
+    }
+    
+    @Override
+    public Integer visit(DerivedTable node) {
+        if (walking && node.getAlias() != null) {
+            virtualTables.add(lower(node.getAlias()));
+        }
+        return count(node, NodeKind.DERIVED_TABLE);
     }
     
     @Override
     public Integer visit(ColumnReference node) {
-        incrementCount("ColumnReference");
-        return nodeCounts.get("ColumnReference");
+        if (walking) {
+            column(node.getTableName(), node.getColumnName());
+        }
+        return count(node, NodeKind.COLUMN_REFERENCE);
     }
     
     @Override
     public Integer visit(LiteralExpression node) {
-        incrementCount("LiteralExpression");
-        return nodeCounts.get("LiteralExpression");
+        return count(node, NodeKind.LITERAL_EXPRESSION);
+    }
+    
+    @Override
+    public Integer visit(ParameterExpression node) {
+        return count(node, NodeKind.PARAMETER_EXPRESSION);
     }
     
     @Override
     public Integer visit(FunctionCall node) {
-        incrementCount("FunctionCall");
-        
-        for (Expression arg : node.getArguments()) {
-            arg.accept(this);
+        if (walking) {
+            functions.add(node.getFunctionName().toUpperCase(Locale.ROOT));
         }
-        
-        return nodeCounts.get("FunctionCall");
+        return count(node, NodeKind.FUNCTION_CALL);
+    }
+    
+    @Override
+    public Integer visit(BinaryExpression node) {
+        return count(node, NodeKind.BINARY_EXPRESSION);
+    }
+    
+    @Override
+    public Integer visit(UnaryExpression node) {
+        return count(node, NodeKind.UNARY_EXPRESSION);
+    }
+    
+    @Override
+    public Integer visit(ExpressionList node) {
+        return count(node, NodeKind.EXPRESSION_LIST);
+    }
+    
+    @Override
+    public Integer visit(SubqueryExpression node) {
+        return count(node, NodeKind.SUBQUERY_EXPRESSION);
     }
     
     @Override
     public Integer visit(BooleanExpression node) {
-        incrementCount("BooleanExpression");
-        node.getCondition().accept(this);
-        return nodeCounts.get("BooleanExpression");
+        return count(node, NodeKind.BOOLEAN_EXPRESSION);
+    }
+    
+    @Override
+    public Integer visit(CaseExpression node) {
+        return count(node, NodeKind.CASE_EXPRESSION);
+    }
+    
+    @Override
+    public Integer visit(WhenClause node) {
+        return count(node, NodeKind.WHEN_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(ValuesClause node) {
+        return count(node, NodeKind.VALUES_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(SetClause node) {
+        if (walking && target != null) {
+            column(target, node.getColumnName());
+        }
+        return count(node, NodeKind.SET_CLAUSE);
+    }
+    
+    @Override
+    public Integer visit(ColumnDefinition node) {
+        return count(node, NodeKind.COLUMN_DEFINITION);
+    }
+    
+    @Override
+    public Integer visit(CharacterType node) {
+        return count(node, NodeKind.CHARACTER_TYPE);
+    }
+    
+    @Override
+    public Integer visit(NumericType node) {
+        return count(node, NodeKind.NUMERIC_TYPE);
+    }
+    
+    @Override
+    public Integer visit(NotNullConstraint node) {
+        return count(node, NodeKind.NOT_NULL_CONSTRAINT);
+    }
+    
+    @Override
+    public Integer visit(PrimaryKeyConstraint node) {
+        return count(node, NodeKind.PRIMARY_KEY_CONSTRAINT);
+    }
+    
+    @Override
+    public Integer visit(PrimaryKeyTableConstraint node) {
+        return count(node, NodeKind.PRIMARY_KEY_TABLE_CONSTRAINT);
     }
 }
 
 // =============== MAIN DEMONSTRATION CLASS ===============
+// The SQL tooling spans SQLASTDemo.java and the SQL*.java companions; compile them together:
+//   javac -d out SQLASTDemo.java SQL*.java && java -cp out SQLASTDemo
 public class SQLASTDemo {
     public static void main(String[] args) {
         System.out.println("=== SQL AST Demonstration ===\n");
@@ -0,0 +1,1220 @@
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+// Micro benchmarks for the SQL tooling.
+// Usage: java SQLBenchmark [suite...]   (no arguments runs every suite)
+// Like RuleEngineBenchmark, this is a plain warmup-then-measure loop with a
+// volatile sink, as there is no build manifest to pull in JMH.
+public class SQLBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 5;
+    private static final long ROUND_NANOS = 200_000_000L;
+
+    private static volatile boolean sink;
+
+    public static void main(String[] args) {
+        Set<String> suites = new HashSet<>(Arrays.asList(args));
+        if (suites.isEmpty() || suites.contains("parse")) {
+            parseThroughput();
+        }
+        if (suites.isEmpty() || suites.contains("prepared")) {
+            preparedQueries();
+        }
+        if (suites.isEmpty() || suites.contains("print")) {
+            printing();
+        }
+        if (suites.isEmpty() || suites.contains("walk")) {
+            walking();
+        }
+        if (suites.isEmpty() || suites.contains("engine")) {
+            engine();
+        }
+        if (suites.isEmpty() || suites.contains("optimize")) {
+            optimizing();
+        }
+        if (suites.isEmpty() || suites.contains("join")) {
+            joins();
+        }
+        if (suites.isEmpty() || suites.contains("group")) {
+            grouping();
+        }
+        if (suites.isEmpty() || suites.contains("sort")) {
+            sorting();
+        }
+        if (suites.isEmpty() || suites.contains("binary")) {
+            binary();
+        }
+        if (suites.isEmpty() || suites.contains("analyze")) {
+            analyzing();
+        }
+        if (suites.isEmpty() || suites.contains("filter")) {
+            filtering();
+        }
+        if (suites.isEmpty() || suites.contains("catalog")) {
+            cataloging();
+        }
+        if (suites.isEmpty() || suites.contains("bulk")) {
+            bulkLoading();
+        }
+        if (suites.isEmpty() || suites.contains("recursive")) {
+            recursing();
+        }
+    }
+
+    // =============== SUITES ===============
+
+    // SQLParser throughput over a script of generated report queries
+    static void parseThroughput() {
+        System.out.println("== parse: SQLParser throughput ==");
+        Random random = new Random(42);
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            script.append(randomReportQuery(random)).append(";\n");
+        }
+        String text = script.toString();
+        SQLParser parser = new SQLParser();
+        System.out.printf("  script: %d statements, %d chars%n", parser.parseScript(text).size(), text.length());
+
+        reportBytes("parseScript(String)", text.length(), () -> parser.parseScript(text).size() > 0);
+        String single = randomReportQuery(random);
+        char[] singleChars = single.toCharArray();
+        reportBytes("parse(String), one query", single.length(), () -> parser.parse(single) != null);
+        reportBytes("parse(char[]), one query", single.length(),
+                    () -> parser.parse(singleChars, 0, singleChars.length) != null);
+    }
+
+    // Parse and analyze on every request against SQLQueryCache hits, over
+    // report queries that share one shape but differ in their literals
+    static void preparedQueries() {
+        System.out.println("== prepared: parse + analyze vs. cached query shape ==");
+        Random random = new Random(42);
+        String[] queries = new String[256];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = randomReportQuery(random);
+        }
+        SQLParser parser = new SQLParser();
+        int[] next = {0};
+        report("parse + SQLASTAnalyzer", () -> {
+            SQLASTAnalyzer analyzer = new SQLASTAnalyzer();
+            parser.parse(queries[next[0]++ & 255]).accept(analyzer);
+            return analyzer.getCount(SQLASTAnalyzer.NodeKind.SELECT_STATEMENT) == 0;
+        });
+        SQLQueryCache cache = new SQLQueryCache(1024);
+        report("SQLQueryCache.prepare, hit", () -> cache.prepare(queries[next[0]++ & 255]).getParameterCount() > 0);
+        System.out.printf("  %s%n", cache);
+        checkCachedResults();
+    }
+
+    // Fails unless queries served through SQLQueryCache return what they
+    // return parsed directly, column names and errors included: ORDER BY
+    // and GROUP BY positions and literal select items
+    private static void checkCachedResults() {
+        SQLEngine engine = new SQLEngine();
+        engine.register(transactionsTable(1000, new Random(7)));
+        String[] queries = {
+            "SELECT id, amount FROM transactions WHERE id < 20 ORDER BY 2",
+            "SELECT id, amount FROM transactions WHERE id < 20 ORDER BY 1 DESC",
+            "SELECT category, COUNT(*) FROM transactions GROUP BY 1 ORDER BY 2 DESC, 1",
+            "SELECT id FROM transactions ORDER BY -1",
+            "SELECT 1 + 2, 'x', -3, 2.50 FROM transactions LIMIT 1",
+        };
+        SQLQueryCache cache = new SQLQueryCache(16);
+        for (String sql : queries) {
+            String expected = resultOrError(() -> engine.execute(sql));
+            for (int pass = 0; pass < 2; pass++) {
+                if (!expected.equals(resultOrError(() -> engine.execute(cache.prepare(sql))))) {
+                    throw new IllegalStateException("SQLQueryCache changed the result of " + sql);
+                }
+            }
+        }
+    }
+
+    private static String resultOrError(java.util.function.Supplier<SQLTable> query) {
+        try {
+            return query.get().format(Integer.MAX_VALUE);
+        } catch (SQLExecutionException e) {
+            return e.getMessage();
+        }
+    }
+
+    // SQLPrettyPrinter against SQLWriter, time and bytes allocated per
+    // statement, on a 200-row INSERT and on the report query
+    static void printing() {
+        System.out.println("== print: SQLPrettyPrinter vs. SQLWriter ==");
+        Random random = new Random(42);
+        StringBuilder insert = new StringBuilder("INSERT INTO transactions (id, user_id, category, amount, note) VALUES ");
+        for (int i = 0; i < 200; i++) {
+            insert.append(i == 0 ? "(" : ", (").append(i).append(", ").append(random.nextInt(1000)).append(", '")
+                  .append(CATEGORIES[random.nextInt(CATEGORIES.length)]).append("', ")
+                  .append(random.nextInt(100_000) / 100.0).append(", UPPER('it''s'))");
+        }
+        printing(new SQLParser().parse(insert));
+        printing(new SQLParser().parse(randomReportQuery(random)));
+    }
+
+    private static void printing(SQLStatement statement) {
+        SQLPrettyPrinter printer = new SQLPrettyPrinter();
+        SQLWriter pretty = SQLWriter.pretty();
+        SQLWriter compact = SQLWriter.compact();
+        StringBuilder out = new StringBuilder();
+        System.out.printf("  %s, %d chars pretty, %d compact%n", statement.getClass().getSimpleName(),
+                          pretty.write(statement).length(),
+                          compact.write(statement).length());
+
+        // One untimed pass over SQLWriter first: on few cores its compilation
+        // otherwise lands on whichever variant is measured first
+        measure(() -> pretty.write(statement, out.delete(0, out.length())).length() > 0);
+        reportAllocation("SQLPrettyPrinter", () -> statement.accept(printer).length() > 0);
+        reportAllocation("SQLWriter.write, pretty", () -> pretty.write(statement).length() > 0);
+        reportAllocation("SQLWriter into StringBuilder, pretty", () -> {
+            out.setLength(0);
+            return pretty.write(statement, out).length() > 0;
+        });
+        reportAllocation("SQLWriter into StringBuilder, compact", () -> {
+            out.setLength(0);
+            return compact.write(statement, out).length() > 0;
+        });
+        java.io.Writer writer = new java.io.Writer() {
+            @Override public void write(char[] chars, int offset, int length) { sink = length > 0; }
+            @Override public void flush() {}
+            @Override public void close() {}
+        };
+        reportAllocation("SQLWriter into Writer, pretty", () -> {
+            try {
+                pretty.write(statement, writer);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            return sink;
+        });
+    }
+
+    // SQLTreeWalker over ~100k-node WHERE clauses: a balanced AND/OR tree
+    // and a flat OR chain, which parses 25k levels deep
+    static void walking() {
+        System.out.println("== walk: SQLTreeWalker on 100k-node trees ==");
+        StringBuilder balanced = new StringBuilder("SELECT a FROM t WHERE ");
+        balancedCondition(balanced, 15, new int[1]);
+        StringBuilder chain = new StringBuilder("SELECT a FROM t WHERE a = 0");
+        for (int i = 1; i < 25_000; i++) {
+            chain.append(" OR a = ").append(i);
+        }
+        SQLParser parser = new SQLParser();
+        walking("balanced", parser.parse(balanced));
+        walking("OR chain", parser.parse(chain));
+    }
+
+    private static void balancedCondition(StringBuilder sql, int depth, int[] counter) {
+        if (depth == 0) {
+            sql.append("c").append(counter[0] % 10).append(" = ").append(counter[0]++);
+            return;
+        }
+        sql.append('(');
+        balancedCondition(sql, depth - 1, counter);
+        sql.append(depth % 2 == 0 ? " AND " : " OR ");
+        balancedCondition(sql, depth - 1, counter);
+        sql.append(')');
+    }
+
+    private static void walking(String name, SQLStatement statement) {
+        SQLTreeWalker walker = new SQLTreeWalker();
+        int[] nodes = {0};
+        int[] depth = {0};
+        walker.walk(statement, node -> {
+            nodes[0]++;
+            depth[0] = Math.max(depth[0], walker.getDepth());
+            return true;
+        });
+        System.out.printf("  %s: %d nodes, %d deep%n", name, nodes[0], depth[0]);
+
+        int[] count = {0};
+        reportPerNode("walk, enter only", nodes[0], () -> {
+            count[0] = 0;
+            walker.walk(statement, node -> ++count[0] > 0);
+            return count[0] == nodes[0];
+        });
+        SQLTreeListener both = new SQLTreeListener() {
+            @Override
+            public boolean enter(ASTNode node) {
+                count[0]++;
+                return true;
+            }
+
+            @Override
+            public void leave(ASTNode node) {
+                count[0]--;
+            }
+        };
+        reportPerNode("walk, enter + leave", nodes[0], () -> {
+            walker.walk(statement, both);
+            return count[0] == 0;
+        });
+        reportPerNode("walk, pruning comparisons", nodes[0], () -> {
+            count[0] = 0;
+            walker.walk(statement, node -> {
+                count[0]++;
+                return !(node instanceof BinaryExpression) || isConnective((BinaryExpression) node);
+            });
+            return count[0] > 0;
+        });
+        reportPerNode("SQLASTAnalyzer", nodes[0], () -> {
+            SQLASTAnalyzer analyzer = new SQLASTAnalyzer();
+            statement.accept(analyzer);
+            return analyzer.getCount(SQLASTAnalyzer.NodeKind.SELECT_STATEMENT) == 0;
+        });
+        try {
+            statement.accept(new SQLPrettyPrinter());
+            System.out.println("  recursive SQLPrettyPrinter: completed");
+        } catch (StackOverflowError e) {
+            System.out.println("  recursive SQLPrettyPrinter: StackOverflowError");
+        }
+    }
+
+    // AND and OR are walked into, comparisons are pruned
+    private static boolean isConnective(BinaryExpression node) {
+        return node.getOperator() == BinaryExpression.Operator.AND || node.getOperator() == BinaryExpression.Operator.OR;
+    }
+
+    // SQLEngine on TPC-H-flavoured queries over a million generated
+    // transactions: a Q1-style grouped scan, a Q6-style filtered sum, a
+    // top-N with HAVING, and a LIKE filter on a dictionary column
+    static void engine() {
+        System.out.println("== engine: SQLEngine over 1M transactions ==");
+        SQLTable transactions = transactionsTable(1_000_000, new Random(42));
+        SQLEngine engine = new SQLEngine();
+        engine.register(transactions);
+        int rows = transactions.getRowCount();
+        String[][] queries = {
+            {"Q1 pricing summary", "SELECT category, COUNT(*) AS n, SUM(amount) AS total, AVG(amount) AS mean,"
+                    + " MIN(posted_at), MAX(posted_at) FROM transactions"
+                    + " WHERE posted_at <= DATE '2024-09-02' GROUP BY category ORDER BY category"},
+            {"Q6 filtered sum", "SELECT SUM(amount * 0.05) AS fee FROM transactions"
+                    + " WHERE posted_at >= DATE '2024-03-01' AND posted_at < DATE '2024-09-01'"
+                    + " AND amount BETWEEN 50 AND 70 AND category IN ('FOOD', 'FUEL')"},
+            {"top spenders", "SELECT user_id, SUM(amount) AS spent, COUNT(*) AS n FROM transactions"
+                    + " WHERE category <> 'RENT' GROUP BY user_id HAVING COUNT(*) > 50"
+                    + " ORDER BY spent DESC LIMIT 10"},
+            {"LIKE merchant", "SELECT id, merchant, amount FROM transactions"
+                    + " WHERE merchant LIKE '%mart #1%' AND amount > 900 ORDER BY amount DESC LIMIT 20"},
+        };
+        for (String[] query : queries) {
+            SQLTable result = engine.execute(query[1]);
+            System.out.printf("  %s: %d result rows%n", query[0], result.getRowCount());
+            reportRows(query[0], rows, () -> engine.execute(query[1]).getRowCount() > 0);
+        }
+    }
+
+    // SQLOptimizer cost per report query, then SQLEngine time on queries
+    // written the way generators write them, before and after optimizing
+    static void optimizing() {
+        System.out.println("== optimize: SQLOptimizer ==");
+        Random random = new Random(42);
+        SQLParser parser = new SQLParser();
+        SelectStatement[] reports = new SelectStatement[64];
+        for (int i = 0; i < reports.length; i++) {
+            reports[i] = (SelectStatement) parser.parse(randomReportQuery(random));
+        }
+        SQLOptimizer optimizer = new SQLOptimizer();
+        checkOptimizedResults(optimizer);
+        int[] next = {0};
+        report("optimize report query", () -> optimizer.optimize(reports[next[0]++ & 63]) != null);
+
+        SQLTable transactions = transactionsTable(1_000_000, new Random(42));
+        SQLEngine engine = new SQLEngine();
+        engine.register(transactions);
+        SQLOptimizer tuned = new SQLOptimizer();
+        tuned.getCostModel().setTableRows("transactions", transactions.getRowCount());
+        String[][] queries = {
+            {"generated filter", "SELECT COUNT(*) FROM transactions WHERE 1 = 1 AND amount > 10 AND amount > 5"
+                    + " AND posted_at >= DATE '2024-01-01' + 30 AND (category = 'FOOD' OR FALSE)"},
+            {"CTE + wide derived table", "WITH recent AS (SELECT id, user_id, merchant, category, amount"
+                    + " FROM transactions WHERE posted_at >= DATE '2024-06-01')"
+                    + " SELECT r.id FROM (SELECT id, user_id, merchant, amount FROM recent) r LIMIT 1000"},
+        };
+        for (String[] query : queries) {
+            SelectStatement original = (SelectStatement) parser.parse(query[1]);
+            SelectStatement optimized = tuned.optimize(original);
+            System.out.printf("  %s: %s%n", query[0], SQLWriter.compact().write(optimized));
+            reportRows(query[0] + " (as written)", transactions.getRowCount(),
+                       () -> engine.execute(original).getRowCount() > 0);
+            reportRows(query[0] + " (optimized)", transactions.getRowCount(),
+                       () -> engine.execute(optimized).getRowCount() > 0);
+        }
+        System.out.print(tuned.report());
+    }
+
+    // Fails unless queries the optimizer rewrites return the same rows as
+    // written: WITH entries that shadow tables or read later entries, and
+    // column lists over bodies that sort or group by their aliases
+    private static void checkOptimizedResults(SQLOptimizer optimizer) {
+        SQLEngine engine = new SQLEngine();
+        engine.register(transactionsTable(1000, new Random(7)));
+        String[] queries = {
+            "WITH a AS (SELECT id FROM transactions), transactions AS (SELECT 1 AS id) SELECT id FROM a",
+            "WITH a AS (SELECT id, amount FROM transactions WHERE amount > 100),"
+                    + " b AS (SELECT id FROM a WHERE amount < 500) SELECT COUNT(*) FROM b",
+            "WITH a AS (SELECT user_id FROM transactions), b AS (SELECT user_id FROM a),"
+                    + " c AS (SELECT x.user_id FROM b x JOIN a y ON x.user_id = y.user_id) SELECT COUNT(*) FROM c",
+            "WITH c(x) AS (SELECT amount AS a FROM transactions ORDER BY a LIMIT 3) SELECT x FROM c",
+            "WITH c(x) AS (SELECT user_id AS id FROM transactions ORDER BY id DESC LIMIT 3) SELECT x FROM c",
+            "WITH c(x, n) AS (SELECT category AS k, COUNT(*) FROM transactions GROUP BY k HAVING COUNT(*) > 1)"
+                    + " SELECT x, n FROM c ORDER BY x",
+        };
+        SQLParser parser = new SQLParser();
+        for (String sql : queries) {
+            SelectStatement written = (SelectStatement) parser.parse(sql);
+            SelectStatement optimized = optimizer.optimize(written);
+            String expected = engine.execute(written).format(Integer.MAX_VALUE);
+            String actual = engine.execute(optimized).format(Integer.MAX_VALUE);
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException("Optimizing changed the result of " + sql + " (rewritten as "
+                                                + SQLWriter.compact().write(optimized) + ")");
+            }
+        }
+    }
+
+    // SQLEngine joins of a million transactions: to a merchant dimension
+    // on a string key, to filtered users (the filter runs first and the
+    // small side is built), a merge join of two inputs in key order, and
+    // a hash join of two shuffled million-row inputs, in memory and
+    // spilling in partitions of 64k build rows
+    static void joins() {
+        System.out.println("== join: SQLEngine joins over 1M transactions ==");
+        Random random = new Random(42);
+        SQLTable transactions = transactionsTable(1_000_000, random);
+        int rows = transactions.getRowCount();
+        List<String> merchantNames = new ArrayList<>();
+        for (String prefix : MERCHANT_PREFIXES) {
+            for (String suffix : MERCHANT_SUFFIXES) {
+                for (int i = 0; i < 50; i++) {
+                    merchantNames.add(prefix + suffix + " #" + i);
+                }
+            }
+        }
+        String[] names = merchantNames.toArray(new String[0]);
+        String[] regions = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            regions[i] = "region " + (i % 7);
+        }
+        SQLTable merchants = new SQLTable("merchants", names.length, Arrays.asList(
+                StringColumn.encode("name", names, names.length), StringColumn.encode("region", regions, names.length)));
+        long[] userIds = new long[10_000];
+        String[] tiers = new String[userIds.length];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = i;
+            tiers[i] = i % 20 == 0 ? "gold" : "basic";
+        }
+        SQLTable users = new SQLTable("users", userIds.length, Arrays.asList(
+                new LongColumn("id", SQLType.BIGINT, userIds, null), StringColumn.encode("tier", tiers, userIds.length)));
+        long[] paid = new long[rows];
+        double[] fees = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            paid[i] = i;
+            fees[i] = random.nextInt(500) / 100.0;
+        }
+        for (int i = rows - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long swap = paid[i];
+            paid[i] = paid[j];
+            paid[j] = swap;
+        }
+        SQLTable payments = new SQLTable("payments", rows, Arrays.asList(
+                new LongColumn("transaction_id", SQLType.BIGINT, paid, null), new DoubleColumn("fee", fees, null)));
+
+        SQLEngine engine = new SQLEngine();
+        SQLEngine spilling = new SQLEngine();
+        for (SQLTable table : Arrays.asList(transactions, merchants, users, payments)) {
+            engine.register(table);
+            spilling.register(table);
+        }
+        spilling.setJoinSpill(1 << 16, java.nio.file.Paths.get(System.getProperty("java.io.tmpdir")));
+        String[][] queries = {
+            {"string key to dimension", "SELECT m.region, SUM(t.amount) FROM transactions t"
+                    + " JOIN merchants m ON m.name = t.merchant GROUP BY m.region"},
+            {"filtered dimension", "SELECT COUNT(*), SUM(t.amount) FROM transactions t, users u"
+                    + " WHERE u.id = t.user_id AND u.tier = 'gold'"},
+            {"merge join in key order", "SELECT COUNT(*) FROM transactions a JOIN transactions b ON b.id = a.id"},
+            {"hash join 1M x 1M", "SELECT SUM(p.fee) FROM transactions t JOIN payments p ON p.transaction_id = t.id"},
+        };
+        for (String[] query : queries) {
+            SQLTable result = engine.execute(query[1]);
+            System.out.printf("  %s: %d result rows%n", query[0], result.getRowCount());
+            reportRows(query[0], rows, () -> engine.execute(query[1]).getRowCount() > 0);
+        }
+        String spilled = queries[3][1];
+        reportRows(queries[3][0] + " (spilling)", rows, () -> spilling.execute(spilled).getRowCount() > 0);
+    }
+
+    // GROUP BY over a 10M-row ledger on pools of 1, 2, 4, ... threads up to
+    // the available cores
+    static void grouping() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("== group: SQLEngine GROUP BY over a 10M-row ledger, " + cores + " cores ==");
+        SQLTable ledger = ledgerTable(10_000_000, new Random(42));
+        int rows = ledger.getRowCount();
+        String[][] queries = {
+            {"monthly category summary", "SELECT category, month, SUM(amount), COUNT(*), AVG(amount),"
+                    + " MIN(amount), MAX(amount) FROM ledger GROUP BY category, month"},
+            {"per-user totals", "SELECT user_id, SUM(amount) FROM ledger GROUP BY user_id"},
+            {"distinct payers", "SELECT category, COUNT(DISTINCT user_id) FROM ledger GROUP BY category"},
+        };
+        List<Integer> threads = new ArrayList<>();
+        for (int n = 1; n < cores; n *= 2) {
+            threads.add(n);
+        }
+        threads.add(cores);
+        for (int n : threads) {
+            java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(n);
+            SQLEngine engine = new SQLEngine();
+            engine.register(ledger);
+            engine.setPool(pool);
+            for (String[] query : queries) {
+                reportSlowRows(query[0] + " (" + n + (n == 1 ? " thread)" : " threads)"), rows,
+                               () -> engine.execute(query[1]).getRowCount() > 0);
+            }
+            pool.shutdown();
+        }
+    }
+
+    // ORDER BY with and without LIMIT, and a full sort through run files
+    static void sorting() {
+        System.out.println("== sort: SQLEngine ORDER BY over 1M transactions ==");
+        SQLTable transactions = transactionsTable(1_000_000, new Random(42));
+        int rows = transactions.getRowCount();
+        SQLEngine engine = new SQLEngine();
+        SQLEngine spilling = new SQLEngine();
+        engine.register(transactions);
+        spilling.register(transactions);
+        spilling.setSortSpill(1 << 17, java.nio.file.Paths.get(System.getProperty("java.io.tmpdir")));
+        String[][] queries = {
+            {"top 20 expenses", "SELECT id, amount FROM transactions ORDER BY amount DESC LIMIT 20"},
+            {"top 1000, three keys", "SELECT id FROM transactions ORDER BY category, posted_at DESC, amount LIMIT 1000"},
+            {"full sort", "SELECT id FROM transactions ORDER BY amount DESC"},
+            {"full sort, three keys", "SELECT id FROM transactions ORDER BY category, posted_at DESC, amount"},
+        };
+        for (String[] query : queries) {
+            reportRows(query[0], rows, () -> engine.execute(query[1]).getRowCount() > 0);
+        }
+        String sort = queries[2][1];
+        reportRows("full sort (8 runs)", rows, () -> spilling.execute(sort).getRowCount() > 0);
+    }
+
+    // SQLBinary round trips on the report queries and DML/DDL samples,
+    // then encode/decode time and size against SQL text and Java
+    // serialization
+    static void binary() {
+        System.out.println("== binary: SQLBinary vs. SQL text and Java serialization ==");
+        Random random = new Random(42);
+        SQLParser parser = new SQLParser();
+        List<SQLStatement> corpus = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            corpus.add(parser.parse(randomReportQuery(random)));
+        }
+        corpus.addAll(parser.parseScript(BINARY_SAMPLES));
+        corpus.add(parser.parseParameterized(randomReportQuery(random), new ArrayList<>()));
+        SQLBinaryWriter writer = new SQLBinaryWriter();
+        SQLBinaryReader reader = new SQLBinaryReader();
+        SQLWriter text = SQLWriter.compact();
+        for (SQLStatement statement : corpus) {
+            byte[] bytes = writer.write(statement);
+            java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(bytes.length).put(bytes);
+            for (ASTNode copy : new ASTNode[] {reader.read(bytes), reader.read(direct, 0)}) {
+                if (!text.write((SQLStatement) copy).equals(text.write(statement))
+                        || !positions(copy).equals(positions(statement))) {
+                    throw new IllegalStateException("Round trip changed " + text.write(statement));
+                }
+            }
+        }
+        System.out.printf("  round trip: %d statements unchanged, positions included%n", corpus.size());
+
+        StringBuilder insert = new StringBuilder("INSERT INTO transactions (id, user_id, category, amount, note) VALUES ");
+        for (int i = 0; i < 200; i++) {
+            insert.append(i == 0 ? "(" : ", (").append(i).append(", ").append(random.nextInt(1000)).append(", '")
+                  .append(CATEGORIES[random.nextInt(CATEGORIES.length)]).append("', ")
+                  .append(random.nextInt(100_000) / 100.0).append(", 'note ").append(i).append("')");
+        }
+        binary("report query", corpus.get(0));
+        binary("200-row INSERT", parser.parse(insert));
+    }
+
+    static final String BINARY_SAMPLES =
+            "CREATE TABLE budgets (user_id BIGINT NOT NULL, category VARCHAR(20) NOT NULL, "
+            + "monthly_limit DECIMAL(10, 2), note TEXT, CONSTRAINT pk_budgets PRIMARY KEY (user_id, category));\n"
+            + "CREATE TABLE users (id INTEGER PRIMARY KEY, name CHAR(40), score DOUBLE PRECISION);\n"
+            + "INSERT INTO users (id, name) VALUES (1, 'Zo\u00eb'), (2, NULL), (-3, 'x''y');\n"
+            + "INSERT INTO archive SELECT * FROM transactions WHERE posted_at < DATE '2023-01-01';\n"
+            + "UPDATE budgets b SET monthly_limit = monthly_limit * 1.05, note = 'raised' WHERE b.user_id = 7;\n"
+            + "DELETE FROM transactions t WHERE NOT EXISTS (SELECT 1 FROM users u WHERE u.id = t.user_id);\n"
+            + "SELECT DISTINCT category FROM transactions UNION ALL SELECT category FROM budgets "
+            + "EXCEPT SELECT 'RENT';\n"
+            + "SELECT CASE category WHEN 'FOOD' THEN 1 WHEN 'RENT' THEN 2 END, -amount, "
+            + "COUNT(DISTINCT user_id), 12345678901234 + 0.000000000000000000001, TRUE OR FALSE "
+            + "FROM (SELECT * FROM transactions) AS s CROSS JOIN users "
+            + "WHERE user_id IN (SELECT id FROM users) AND note LIKE 'a%' AND amount IS NOT NULL "
+            + "ORDER BY 1 DESC LIMIT 10 OFFSET 20;\n"
+            + "WITH RECURSIVE tree (id, depth) AS (SELECT id, 0 FROM users UNION ALL "
+            + "SELECT u.id, t.depth + 1 FROM users u JOIN tree t ON u.id = t.id + 1) SELECT * FROM tree";
+
+    private static void binary(String name, SQLStatement statement) {
+        SQLBinaryWriter writer = new SQLBinaryWriter();
+        SQLBinaryReader reader = new SQLBinaryReader();
+        SQLWriter text = SQLWriter.compact();
+        SQLParser parser = new SQLParser();
+        byte[] bytes = writer.write(statement);
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(bytes.length).put(bytes);
+        String sql = text.write(statement);
+        byte[] serialized = serialize(statement);
+        System.out.printf("  %s: %d bytes binary, %d chars SQL, %d bytes serialized%n",
+                          name, bytes.length, sql.length(), serialized.length);
+
+        // Untimed passes first, as in printing(): on few cores compilation
+        // otherwise lands in whichever variant is measured first
+        measure(() -> writer.write(statement).length > 0);
+        measure(() -> reader.read(bytes) != null);
+        report("encode, SQLBinaryWriter", () -> writer.write(statement).length > 0);
+        report("decode, SQLBinaryReader", () -> reader.read(bytes) != null);
+        report("decode, SQLBinaryReader, direct", () -> reader.read(direct, 0) != null);
+        report("encode, SQLWriter", () -> text.write(statement).length() > 0);
+        report("decode, SQLParser", () -> parser.parse(sql) != null);
+        report("encode, ObjectOutputStream", () -> serialize(statement).length > 0);
+        report("decode, ObjectInputStream", () -> deserialize(serialized) != null);
+    }
+
+    // Every node's class and position, in walk order
+    private static String positions(ASTNode root) {
+        StringBuilder out = new StringBuilder();
+        new SQLTreeWalker().walk(root, node -> {
+            out.append(node.getClass().getSimpleName()).append('@').append(node.line).append(':').append(node.column)
+               .append(' ');
+            return true;
+        });
+        return out.toString();
+    }
+
+    private static byte[] serialize(ASTNode node) {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        try (java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes)) {
+            out.writeObject(SerializedNode.mirror(node));
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        try (java.io.ObjectInputStream in = new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // What Java serialization of a statement costs, without the AST being
+    // Serializable: a mirror of the tree holding each node's class name and
+    // field values, nested nodes and lists mirrored in turn. Decoding stops
+    // at the mirror, so it understates what rebuilding the nodes would take.
+    private static final class SerializedNode implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+        private static final Map<Class<?>, java.lang.reflect.Field[]> FIELDS = new HashMap<>();
+
+        private final String type;
+        private final Object[] values;
+
+        private SerializedNode(Object node) {
+            java.lang.reflect.Field[] fields = fields(node.getClass());
+            type = node.getClass().getName();
+            values = new Object[fields.length];
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = mirror(fields[i].get(node));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Nodes and lists are mirrored; other values, such as literals'
+        // Strings, numbers and dates, are Serializable as they are
+        static Object mirror(Object value) {
+            if (value instanceof ASTNode) {
+                return new SerializedNode(value);
+            }
+            if (value instanceof List) {
+                ArrayList<Object> list = new ArrayList<>(((List<?>) value).size());
+                for (Object element : (List<?>) value) {
+                    list.add(mirror(element));
+                }
+                return list;
+            }
+            return value;
+        }
+
+        // Instance fields of the class and its superclasses
+        private static java.lang.reflect.Field[] fields(Class<?> type) {
+            return FIELDS.computeIfAbsent(type, t -> {
+                List<java.lang.reflect.Field> fields = new ArrayList<>();
+                for (Class<?> c = t; c != Object.class; c = c.getSuperclass()) {
+                    for (java.lang.reflect.Field field : c.getDeclaredFields()) {
+                        if (!java.lang.reflect.Modifier.isStatic(field.getModifiers())) {
+                            field.setAccessible(true);
+                            fields.add(field);
+                        }
+                    }
+                }
+                return fields.toArray(new java.lang.reflect.Field[0]);
+            });
+        }
+    }
+
+    // SQLASTAnalyzer batches over a generated SQL log, parsing included and
+    // not, on pools of 1, 2, 4, ... threads up to the available cores
+    static void analyzing() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("== analyze: SQLASTAnalyzer batches over a 50k-statement log, " + cores + " cores ==");
+        Random random = new Random(42);
+        SQLParser parser = new SQLParser();
+        List<SQLStatement> samples = parser.parseScript(BINARY_SAMPLES);
+        SQLWriter text = SQLWriter.compact();
+        List<String> log = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            log.add(i % 10 == 0 ? text.write(samples.get(i / 10 % samples.size())) : randomReportQuery(random));
+        }
+        List<SQLStatement> parsed = new ArrayList<>();
+        for (String sql : log) {
+            parsed.add(parser.parse(sql));
+        }
+        SQLASTAnalyzer summary = SQLASTAnalyzer.analyzeAll(parsed, java.util.concurrent.ForkJoinPool.commonPool());
+        System.out.printf("  %d tables, %d columns, %d functions referenced%n",
+                          summary.getTables().size(), summary.getColumns().size(), summary.getFunctions().size());
+
+        List<Integer> threads = new ArrayList<>();
+        for (int n = 1; n < cores; n *= 2) {
+            threads.add(n);
+        }
+        threads.add(cores);
+        for (int n : threads) {
+            java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(n);
+            String suffix = " (" + n + (n == 1 ? " thread)" : " threads)");
+            reportStatements("parse + analyze" + suffix, log.size(),
+                             () -> SQLASTAnalyzer.analyzeSql(log, pool).getTables().size() > 0);
+            reportStatements("analyze parsed" + suffix, log.size(),
+                             () -> SQLASTAnalyzer.analyzeAll(parsed, pool).getTables().size() > 0);
+            pool.shutdown();
+        }
+    }
+
+    // WHERE clauses compiled to SQLFilters, over 1M transactions: column
+    // kernels, OR and NOT, and predicates left to the vector evaluator
+    static void filtering() {
+        System.out.println("== filter: compiled WHERE over 1M transactions ==");
+        SQLTable transactions = transactionsTable(1_000_000, new Random(42));
+        SQLEngine engine = new SQLEngine();
+        engine.register(transactions);
+        int rows = transactions.getRowCount();
+        String[][] queries = {
+            {"BETWEEN on DOUBLE", "amount BETWEEN 100 AND 200"},
+            {"date range", "posted_at >= DATE '2024-03-01' AND posted_at < DATE '2024-06-01'"},
+            {"IN and NOT LIKE", "category IN ('FOOD', 'FUEL') AND merchant NOT LIKE 'Mega%'"},
+            {"OR of ranges", "amount < 10 OR amount > 990 OR user_id = 42"},
+            {"NOT over AND", "NOT (category = 'RENT' AND amount > 500) AND user_id IN (1, 2, 3, 5, 8, 13)"},
+            {"arithmetic, evaluated", "amount * 1.2 > 1000 OR user_id % 97 = 0"},
+        };
+        for (String[] query : queries) {
+            String sql = "SELECT COUNT(*) FROM transactions WHERE " + query[1];
+            System.out.printf("  %s: %s rows%n", query[0], engine.execute(sql).getValue(0, 0));
+            reportRows(query[0], rows, () -> engine.execute(sql).getRowCount() > 0);
+        }
+    }
+
+    // SQLCatalog resolution of 10k generated joins against 500 tables:
+    // parsed trees resolved on every call, parse included, and query
+    // shapes served from SQLQueryCache with their resolution memoized
+    static void cataloging() {
+        System.out.println("== catalog: column resolution against 500 tables ==");
+        Random random = new Random(42);
+        String ddl = catalogSchema(500, random);
+        SQLParser parser = new SQLParser();
+        List<SQLStatement> schema = parser.parseScript(ddl);
+        SQLCatalog catalog = new SQLCatalog();
+        catalog.defineAll(schema);
+        List<String> log = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            log.add(randomCatalogQuery(catalog, random));
+        }
+        List<SQLStatement> parsed = new ArrayList<>();
+        int references = 0;
+        for (String sql : log) {
+            parsed.add(parser.parse(sql));
+            references += catalog.resolve(parsed.get(parsed.size() - 1)).check().getResolvedCount();
+        }
+        System.out.printf("  %d tables, %d statements, %d column references%n",
+                          catalog.getTableCount(), log.size(), references);
+
+        reportStatements("define 500 tables", schema.size(), () -> {
+            SQLCatalog fresh = new SQLCatalog();
+            fresh.defineAll(schema);
+            return fresh.getTableCount() > 0;
+        });
+        reportStatements("resolve parsed", parsed.size(), () -> {
+            int valid = 0;
+            for (SQLStatement statement : parsed) {
+                valid += catalog.resolve(statement).isValid() ? 1 : 0;
+            }
+            return valid > 0;
+        });
+        reportStatements("parse + resolve", log.size(), () -> {
+            int valid = 0;
+            for (String sql : log) {
+                valid += catalog.resolve(parser.parse(sql)).isValid() ? 1 : 0;
+            }
+            return valid > 0;
+        });
+        SQLQueryCache cache = new SQLQueryCache(16_384);
+        reportStatements("SQLQueryCache.prepare + resolve", log.size(), () -> {
+            int valid = 0;
+            for (String sql : log) {
+                valid += catalog.resolve(cache.prepare(sql)).isValid() ? 1 : 0;
+            }
+            return valid > 0;
+        });
+        System.out.printf("  %s%n", cache);
+    }
+
+    // A year of bank transactions imported as 100k single-row INSERTs:
+    // coalescing them into SQLBulkRows batches from parsed trees and from
+    // SQLQueryCache hits, then streaming the rows back out as chunked
+    // INSERTs and as COPY, against SQLWriter on the equivalent AST
+    static void bulkLoading() {
+        System.out.println("== bulk: 100k single-row INSERTs, batched and streamed ==");
+        SQLTable transactions = transactionsTable(100_000, new Random(42));
+        int rows = transactions.getRowCount();
+        List<String> inserts = new ArrayList<>(rows);
+        StringBuilder sql = new StringBuilder();
+        for (int row = 0; row < rows; row++) {
+            sql.setLength(0);
+            sql.append("INSERT INTO transactions (id, user_id, category, merchant, amount, posted_at) VALUES (");
+            for (int column = 0; column < transactions.getColumnCount(); column++) {
+                Object value = transactions.getValue(row, column);
+                sql.append(column > 0 ? ", " : "");
+                if (value == null) {
+                    sql.append("NULL");
+                } else if (value instanceof String) {
+                    sql.append('\'').append(((String) value).replace("'", "''")).append('\'');
+                } else if (column == 5) {
+                    sql.append("DATE '").append(value).append('\'');
+                } else {
+                    sql.append(value);
+                }
+            }
+            inserts.add(sql.append(')').toString());
+        }
+        SQLParser parser = new SQLParser();
+        List<SQLStatement> parsed = new ArrayList<>(rows);
+        for (String insert : inserts) {
+            parsed.add(parser.parse(insert));
+        }
+        checkBatchLengths(parser);
+        List<SQLBulkRows> batches = new ArrayList<>();
+        SQLInsertBatcher batcher = new SQLInsertBatcher(1000, 1 << 20, batches::add);
+        for (SQLStatement statement : parsed) {
+            batcher.add((InsertStatement) statement);
+        }
+        batcher.flush();
+        SQLBulkRows all = SQLBulkRows.of((InsertStatement) parsed.get(0));
+        for (SQLStatement statement : parsed) {
+            all.add((InsertStatement) statement);
+        }
+        InsertStatement multiRow = all.toStatement();
+        System.out.printf("  %s, %.1f buffer bytes/row, %d chars as one statement%n", batcher,
+                          (double) all.getBufferBytes() / rows, SQLBulkWriter.insertHeaderLength(all) + all.getValuesLength());
+        String multiRowText = SQLWriter.compact().write(multiRow);
+        System.out.printf("  %-40s %12.1f B/row%n", "parse one multi-row INSERT",
+                          (double) allocatedBytes(() -> parser.parse(multiRowText) != null) / rows);
+
+        reportRows("parse + batch INSERTs", rows, () -> {
+            SQLInsertBatcher b = new SQLInsertBatcher(1000, 1 << 20, batch -> { });
+            for (String insert : inserts) {
+                b.add((InsertStatement) parser.parse(insert));
+            }
+            b.flush();
+            return b.getBatches() > 0;
+        });
+        reportRows("batch parsed INSERTs", rows, () -> {
+            SQLInsertBatcher b = new SQLInsertBatcher(1000, 1 << 20, batch -> { });
+            for (SQLStatement statement : parsed) {
+                b.add((InsertStatement) statement);
+            }
+            b.flush();
+            return b.getBatches() > 0;
+        });
+        SQLQueryCache cache = new SQLQueryCache(16);
+        reportRows("batch SQLQueryCache hits", rows, () -> {
+            SQLInsertBatcher b = new SQLInsertBatcher(1000, 1 << 20, batch -> { });
+            for (String insert : inserts) {
+                b.add(cache.prepare(insert));
+            }
+            b.flush();
+            return b.getBatches() > 0;
+        });
+        java.io.CharArrayWriter out = new java.io.CharArrayWriter(1 << 24);
+        SQLBulkWriter writer = new SQLBulkWriter(1000, 1 << 20);
+        reportRows("SQLBulkWriter INSERT chunks", rows, () -> {
+            out.reset();
+            try {
+                return writer.writeInserts(all, out) > 0;
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        });
+        reportRows("SQLBulkWriter COPY", rows, () -> {
+            out.reset();
+            try {
+                writer.writeCopy(all, out);
+                return out.size() > 0;
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        });
+        SQLWriter text = SQLWriter.compact();
+        StringBuilder buffer = new StringBuilder(1 << 24);
+        reportRows("SQLWriter, multi-row InsertStatement", rows, () -> {
+            buffer.setLength(0);
+            return text.write(multiRow, buffer).length() > 0;
+        });
+    }
+
+    // Fails unless every batch renders within maxChars, also when a row
+    // that did not fit had widened the scale of a DECIMAL column
+    private static void checkBatchLengths(SQLParser parser) {
+        int maxChars = 80;
+        List<SQLBulkRows> batches = new ArrayList<>();
+        SQLInsertBatcher batcher = new SQLInsertBatcher(1000, maxChars, batches::add);
+        for (String value : new String[] {"1.5", "2.5", "3.5", "4.5", "5.5", "6.5", "7.123456789", "8", "9.25"}) {
+            batcher.add((InsertStatement) parser.parse("INSERT INTO t (x) VALUES (" + value + ")"));
+        }
+        batcher.flush();
+        for (SQLBulkRows batch : batches) {
+            String text = SQLWriter.compact().write(batch.toStatement());
+            long length = SQLBulkWriter.insertHeaderLength(batch) + batch.getValuesLength();
+            if (batch.getRowCount() > 1 && length > maxChars) {
+                throw new IllegalStateException("Batch of " + length + " chars passed " + maxChars + ": " + text);
+            }
+        }
+    }
+
+    // WITH RECURSIVE over category hierarchies, one bushy and one 20k
+    // levels deep, and over a graph of 1M transfers between 200k accounts:
+    // every account reachable from one, which closes cycles, and chains of
+    // large transfers a few hops long
+    static void recursing() {
+        System.out.println("== recursive: WITH RECURSIVE over hierarchies and a 1M-transfer graph ==");
+        Random random = new Random(42);
+        SQLEngine engine = new SQLEngine();
+        engine.register(categoryTree("categories", 100_000, 0, random));
+        engine.register(categoryTree("deep_categories", 20_000, 3, random));
+        int edges = 1_000_000;
+        int accounts = 200_000;
+        long[] from = new long[edges];
+        long[] to = new long[edges];
+        double[] amounts = new double[edges];
+        for (int i = 0; i < edges; i++) {
+            from[i] = random.nextInt(accounts);
+            to[i] = random.nextInt(accounts);
+            amounts[i] = (1 + random.nextInt(100_000)) / 100.0;
+        }
+        engine.register(new SQLTable("transfers", edges, Arrays.asList(
+                new LongColumn("from_account", SQLType.BIGINT, from, null),
+                new LongColumn("to_account", SQLType.BIGINT, to, null), new DoubleColumn("amount", amounts, null))));
+        String[][] queries = {
+            {"subtree of 100k bushy categories", "WITH RECURSIVE sub(id, depth) AS (SELECT id, 0 FROM categories"
+                    + " WHERE parent_id IS NULL UNION ALL SELECT c.id, s.depth + 1 FROM categories c"
+                    + " JOIN sub s ON c.parent_id = s.id) SELECT COUNT(*), MAX(depth) FROM sub"},
+            {"subtree of 20k categories, deep", "WITH RECURSIVE sub(id, depth) AS (SELECT id, 0 FROM deep_categories"
+                    + " WHERE parent_id IS NULL UNION ALL SELECT c.id, s.depth + 1 FROM deep_categories c"
+                    + " JOIN sub s ON c.parent_id = s.id) SELECT COUNT(*), MAX(depth) FROM sub"},
+            {"ancestors of a deep category", "WITH RECURSIVE up(id, parent_id) AS (SELECT id, parent_id"
+                    + " FROM deep_categories WHERE id = 19999 UNION SELECT c.id, c.parent_id FROM deep_categories c"
+                    + " JOIN up ON c.id = up.parent_id) SELECT COUNT(*) FROM up"},
+            {"accounts reachable, UNION", "WITH RECURSIVE r(account) AS (SELECT 0 UNION SELECT t.to_account"
+                    + " FROM transfers t JOIN r ON t.from_account = r.account) SELECT COUNT(*) FROM r"},
+            {"chains of large transfers, 6 hops", "WITH RECURSIVE chain(account, hops) AS (SELECT from_account, 0"
+                    + " FROM transfers WHERE amount > 999 UNION ALL SELECT t.to_account, c.hops + 1 FROM chain c"
+                    + " JOIN transfers t ON t.from_account = c.account WHERE c.hops < 6 AND t.amount > 900)"
+                    + " SELECT COUNT(*), MAX(hops) FROM chain"},
+        };
+        for (String[] query : queries) {
+            SQLTable result = engine.execute(query[1]);
+            long rows = (Long) result.getValue(0, 0);
+            System.out.printf("  %s: %d rows%s%n", query[0], rows,
+                              result.getColumnCount() > 1 ? ", " + result.getValue(0, 1) + " deep" : "");
+            if (query[0].contains("deep")) {
+                // A level or two per iteration: the cost is per iteration
+                long levels = result.getColumnCount() > 1 ? (Long) result.getValue(0, 1) + 1 : rows;
+                reportLevels(query[0], (int) levels, () -> engine.execute(query[1]).getRowCount() > 0);
+            } else {
+                reportSlowRows(query[0], (int) rows, () -> engine.execute(query[1]).getRowCount() > 0);
+            }
+        }
+    }
+
+    // =============== FIXTURES ===============
+
+    // Categories (id, parent_id), id 0 the root with a NULL parent. With
+    // spread 0 each parent is any earlier category, giving a bushy tree
+    // about log(rows) deep; otherwise one of the spread categories just
+    // before it, giving a chain about rows * 2 / (spread + 1) deep.
+    static SQLTable categoryTree(String name, int rows, int spread, Random random) {
+        long[] ids = new long[rows];
+        long[] parents = new long[rows];
+        boolean[] roots = new boolean[rows];
+        roots[0] = true;
+        for (int i = 1; i < rows; i++) {
+            ids[i] = i;
+            parents[i] = spread == 0 ? random.nextInt(i) : Math.max(0, i - 1 - random.nextInt(spread));
+        }
+        return new SQLTable(name, rows, Arrays.asList(new LongColumn("id", SQLType.BIGINT, ids, null),
+                                                      new LongColumn("parent_id", SQLType.BIGINT, parents, roots)));
+    }
+
+    static final String[] CATEGORIES = {"FOOD", "RENT", "TRAVEL", "FUEL", "SHOPPING", "BILLS"};
+
+    // A monthly spending report of the kind users generate: a CTE, joins,
+    // a CASE, an IN list, grouping and ordering
+    static String randomReportQuery(Random random) {
+        int threshold = 100 + random.nextInt(5000);
+        String category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+        String other = CATEGORIES[random.nextInt(CATEGORIES.length)];
+        return "WITH monthly AS (\n"
+                + "  SELECT t.user_id, t.category, SUM(t.amount) AS total, COUNT(*) AS n\n"
+                + "  FROM transactions t\n"
+                + "  WHERE t.posted_at >= DATE '2024-0" + (1 + random.nextInt(9)) + "-01'\n"
+                + "    AND t.category IN ('" + category + "', '" + other + "')\n"
+                + "    AND t.amount BETWEEN " + random.nextInt(10) + " AND " + threshold + ".50\n"
+                + "  GROUP BY t.user_id, t.category\n"
+                + "  HAVING COUNT(*) > " + random.nextInt(20) + "\n"
+                + ")\n"
+                + "SELECT u.name, m.category, m.total,\n"
+                + "       CASE WHEN m.total > " + threshold + " THEN 'high' ELSE 'low' END AS band\n"
+                + "FROM monthly m\n"
+                + "JOIN users u ON u.id = m.user_id\n"
+                + "LEFT JOIN budgets b ON b.user_id = u.id AND b.category = m.category\n"
+                + "WHERE b.user_id IS NULL OR m.total > b.monthly_limit * 1.1 -- over budget\n"
+                + "ORDER BY m.total DESC, u.name\n"
+                + "LIMIT " + (10 + random.nextInt(90));
+    }
+
+    static final String[] COMMON_COLUMNS = {"id", "name", "status", "created_at", "updated_at", "owner_id", "amount",
+                                            "quantity", "code", "region", "priority", "score"};
+
+    // CREATE TABLE scripts for tables t0, t1, ...: an id, 6 to 12 other
+    // common columns and a column named after the table
+    static String catalogSchema(int tables, Random random) {
+        StringBuilder ddl = new StringBuilder();
+        for (int t = 0; t < tables; t++) {
+            ddl.append("CREATE TABLE t").append(t).append(" (id INTEGER PRIMARY KEY");
+            List<String> others = new ArrayList<>(Arrays.asList(COMMON_COLUMNS).subList(1, COMMON_COLUMNS.length));
+            Collections.shuffle(others, random);
+            for (String column : others.subList(0, 6 + random.nextInt(6))) {
+                ddl.append(", ").append(column).append(column.equals("name") || column.equals("status")
+                        || column.equals("code") || column.equals("region") ? " VARCHAR(40)" : " BIGINT");
+            }
+            ddl.append(", t").append(t).append("_ref INTEGER NOT NULL);\n");
+        }
+        return ddl.toString();
+    }
+
+    // A join of two or three random catalog tables on their id and _ref
+    // columns, filtering and ordering on columns the tables define
+    static String randomCatalogQuery(SQLCatalog catalog, Random random) {
+        int tables = catalog.getTableCount();
+        int joined = 2 + random.nextInt(2);
+        CatalogTable[] from = new CatalogTable[joined];
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int j = 0; j < joined; j++) {
+            from[j] = catalog.getTable("t" + random.nextInt(tables));
+            for (int k = 0; k < j; k++) {
+                if (from[k] == from[j]) {
+                    j--; // distinct tables, so the unqualified _ref below is not ambiguous
+                    break;
+                }
+            }
+        }
+        for (int j = 0; j < joined; j++) {
+            sql.append(j == 0 ? "" : ", ").append('a').append(j).append('.')
+               .append(from[j].getColumn(1 + random.nextInt(from[j].getColumnCount() - 1)).getName());
+        }
+        sql.append("\nFROM ").append(from[0].getName()).append(" a0");
+        for (int j = 1; j < joined; j++) {
+            sql.append("\nJOIN ").append(from[j].getName()).append(" a").append(j).append(" ON a").append(j)
+               .append(".id = a").append(j - 1).append('.').append(from[j - 1].getName()).append("_ref");
+        }
+        CatalogColumn filter = from[0].getColumn(1 + random.nextInt(from[0].getColumnCount() - 2));
+        sql.append("\nWHERE a0.").append(filter.getName())
+           .append(filter.getType() instanceof CharacterType ? " <> 'x" + random.nextInt(100) + "'"
+                                                             : " > " + random.nextInt(1000))
+           .append(" AND ").append(from[0].getName()).append("_ref IN (")
+           .append(random.nextInt(100)).append(", ").append(random.nextInt(100)).append(')');
+        sql.append("\nORDER BY a0.id LIMIT ").append(1 + random.nextInt(100));
+        return sql.toString();
+    }
+
+    static final String[] MERCHANT_PREFIXES = {"Quick", "Mega", "Corner", "Fresh", "City"};
+    static final String[] MERCHANT_SUFFIXES = {"mart", "shop", "store", "deli"};
+
+    // A transactions table: id, user_id (10k users), category (a few
+    // values), merchant (1000 values), amount (0.01 to 1000.00, 1% NULL)
+    // and posted_at (2024)
+    static SQLTable transactionsTable(int rows, Random random) {
+        long[] ids = new long[rows];
+        long[] users = new long[rows];
+        String[] categories = new String[rows];
+        String[] merchants = new String[rows];
+        double[] amounts = new double[rows];
+        boolean[] noAmount = new boolean[rows];
+        long[] days = new long[rows];
+        long start = java.time.LocalDate.of(2024, 1, 1).toEpochDay();
+        for (int i = 0; i < rows; i++) {
+            ids[i] = i;
+            users[i] = random.nextInt(10_000);
+            categories[i] = CATEGORIES[random.nextInt(CATEGORIES.length)];
+            merchants[i] = MERCHANT_PREFIXES[random.nextInt(MERCHANT_PREFIXES.length)]
+                    + MERCHANT_SUFFIXES[random.nextInt(MERCHANT_SUFFIXES.length)] + " #" + random.nextInt(50);
+            amounts[i] = (1 + random.nextInt(100_000)) / 100.0;
+            noAmount[i] = random.nextInt(100) == 0;
+            days[i] = start + random.nextInt(366);
+        }
+        List<SQLColumn> columns = new ArrayList<>();
+        columns.add(new LongColumn("id", SQLType.BIGINT, ids, null));
+        columns.add(new LongColumn("user_id", SQLType.BIGINT, users, null));
+        columns.add(StringColumn.encode("category", categories, rows));
+        columns.add(StringColumn.encode("merchant", merchants, rows));
+        columns.add(new DoubleColumn("amount", amounts, noAmount));
+        columns.add(new LongColumn("posted_at", SQLType.DATE, days, null));
+        return new SQLTable("transactions", rows, columns);
+    }
+
+    // A ledger: user_id (100k users), category, month (1 to 12) and
+    // amount (0.01 to 1000.00)
+    static SQLTable ledgerTable(int rows, Random random) {
+        long[] users = new long[rows];
+        String[] categories = new String[rows];
+        long[] months = new long[rows];
+        double[] amounts = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            users[i] = random.nextInt(100_000);
+            categories[i] = CATEGORIES[random.nextInt(CATEGORIES.length)];
+            months[i] = 1 + random.nextInt(12);
+            amounts[i] = (1 + random.nextInt(100_000)) / 100.0;
+        }
+        List<SQLColumn> columns = new ArrayList<>();
+        columns.add(new LongColumn("user_id", SQLType.BIGINT, users, null));
+        columns.add(StringColumn.encode("category", categories, rows));
+        columns.add(new LongColumn("month", SQLType.BIGINT, months, null));
+        columns.add(new DoubleColumn("amount", amounts, null));
+        return new SQLTable("ledger", rows, columns);
+    }
+
+    // =============== HARNESS ===============
+
+    static void report(String label, BooleanSupplier body) {
+        double nanosPerOp = measure(body);
+        System.out.printf("  %-40s %12.1f ns/op %14.0f ops/s%n", label, nanosPerOp, 1e9 / nanosPerOp);
+    }
+
+    // Throughput in MB/s of chars (counted as bytes: SQL is almost all ASCII)
+    static void reportBytes(String label, int bytesPerOp, BooleanSupplier body) {
+        double nanosPerOp = measure(body);
+        System.out.printf("  %-40s %12.1f ns/op %11.1f MB/s%n", label, nanosPerOp, bytesPerOp * 1e3 / nanosPerOp);
+    }
+
+    static void reportPerNode(String label, int nodes, BooleanSupplier body) {
+        double nanosPerOp = measure(body);
+        System.out.printf("  %-40s %12.2f ns/node %9.1f M nodes/s%n", label, nanosPerOp / nodes, nodes * 1e3 / nanosPerOp);
+    }
+
+    static void reportRows(String label, int rows, BooleanSupplier body) {
+        printRows(label, rows, measure(body));
+    }
+
+    // reportRows for bodies of a second or so, measured one call at a time
+    static void reportSlowRows(String label, int rows, BooleanSupplier body) {
+        printRows(label, rows, measure(body, 1));
+    }
+
+    // Statements per second for a body handling a batch of statements,
+    // measured one call at a time
+    static void reportStatements(String label, int statements, BooleanSupplier body) {
+        double nanosPerOp = measure(body, 1);
+        System.out.printf("  %-40s %12.2f ms/op %9.1f k stmts/s%n", label, nanosPerOp / 1e6, statements * 1e6 / nanosPerOp);
+    }
+
+    // Time per level of a recursive query, measured one call at a time
+    static void reportLevels(String label, int levels, BooleanSupplier body) {
+        double nanosPerOp = measure(body, 1);
+        System.out.printf("  %-40s %12.2f ms/op %9.1f us/level%n", label, nanosPerOp / 1e6, nanosPerOp / 1e3 / levels);
+    }
+
+    private static void printRows(String label, int rows, double nanosPerOp) {
+        System.out.printf("  %-40s %12.2f ms/op %9.1f M rows/s%n", label, nanosPerOp / 1e6, rows * 1e3 / nanosPerOp);
+    }
+
+    // Time and bytes allocated per op, from the JVM's per-thread counter
+    static void reportAllocation(String label, BooleanSupplier body) {
+        double nanosPerOp = measure(body);
+        int ops = 100_000;
+        long bytes = allocatedBytes(() -> {
+            boolean acc = false;
+            for (int i = 0; i < ops; i++) {
+                acc ^= body.getAsBoolean();
+            }
+            return acc;
+        });
+        System.out.printf("  %-40s %12.1f ns/op %12.1f B/op%n", label, nanosPerOp, (double) bytes / ops);
+    }
+
+    // Bytes the current thread allocates running the body once
+    static long allocatedBytes(BooleanSupplier body) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        sink = body.getAsBoolean();
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    static double measure(BooleanSupplier body) {
+        return measure(body, 16);
+    }
+
+    // batch is how many calls run between clock reads; 1 for bodies that
+    // take most of a round by themselves
+    static double measure(BooleanSupplier body, int batch) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(body, batch);
+        }
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            best = Math.min(best, round(body, batch));
+        }
+        return best;
+    }
+
+    // Runs the body for roughly ROUND_NANOS and returns ns per invocation
+    private static double round(BooleanSupplier body, int batch) {
+        long ops = 0;
+        boolean acc = false;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < batch; i++) {
+                acc ^= body.getAsBoolean();
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+        sink = acc;
+        return (double) elapsed / ops;
+    }
+}
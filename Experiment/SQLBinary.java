@@ -0,0 +1,1060 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.*;
+
+// Binary encoding of AST trees, for shipping parsed statements between
+// processes and caching them on disk without going back through SQL text.
+// Unlike printing and re-parsing, it keeps every node's line and column.
+//
+// Layout: the magic bytes "SQLB", a version byte, the 4-byte big-endian
+// offset of the string table, the root node, then the string table.
+// A node is a tag byte (0 for an absent optional node), its line and
+// column as zigzag varint deltas from the previous node's, then its
+// fields in a fixed order per tag. Strings are varint indexes into the
+// table, plus one, with 0 for null. Lists are a varint length plus one,
+// again 0 for null. Enums are their ordinal byte. The table is a varint
+// count followed by each string as a varint byte length and UTF-8 bytes.
+final class SQLBinary {
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 9;
+
+    // Node tags
+    static final int NONE = 0;
+    static final int SELECT = 1;
+    static final int SET_OPERATION = 2;
+    static final int SELECT_ITEM = 3;
+    static final int FROM = 4;
+    static final int TABLE_REFERENCE = 5;
+    static final int JOIN = 6;
+    static final int DERIVED_TABLE = 7;
+    static final int WHERE = 8;
+    static final int COLUMN_REFERENCE = 9;
+    static final int LITERAL = 10;
+    static final int PARAMETER = 11;
+    static final int FUNCTION_CALL = 12;
+    static final int BINARY = 13;
+    static final int UNARY = 14;
+    static final int EXPRESSION_LIST = 15;
+    static final int SUBQUERY = 16;
+    static final int BOOLEAN = 17;
+    static final int CASE = 18;
+    static final int WHEN = 19;
+    static final int INSERT = 20;
+    static final int VALUES = 21;
+    static final int UPDATE = 22;
+    static final int SET_CLAUSE = 23;
+    static final int DELETE = 24;
+    static final int CREATE_TABLE = 25;
+    static final int COLUMN_DEFINITION = 26;
+    static final int CHARACTER_TYPE = 27;
+    static final int NUMERIC_TYPE = 28;
+    static final int NOT_NULL = 29;
+    static final int PRIMARY_KEY = 30;
+    static final int PRIMARY_KEY_TABLE = 31;
+    static final int GROUP_BY = 32;
+    static final int HAVING = 33;
+    static final int ORDER_BY = 34;
+    static final int ORDER_BY_ELEMENT = 35;
+    static final int LIMIT = 36;
+    static final int CTE = 37;
+
+    // Literal value kinds
+    static final int VALUE_NULL = 0;
+    static final int VALUE_INT = 1;
+    static final int VALUE_LONG = 2;
+    static final int VALUE_DECIMAL = 3;     // scale, unscaled value as a long
+    static final int VALUE_BIG_DECIMAL = 4; // scale, unscaled value's bytes
+    static final int VALUE_STRING = 5;
+    static final int VALUE_FALSE = 6;
+    static final int VALUE_TRUE = 7;
+    static final int VALUE_DATE = 8;        // epoch day
+    static final int VALUE_DOUBLE = 9;      // 8 bytes
+
+    private SQLBinary() {
+    }
+}
+
+// Encodes trees into a reused buffer. Not thread-safe; an instance keeps
+// its buffer and string table and is meant to be reused.
+final class SQLBinaryWriter implements ASTVisitor<Void> {
+    private byte[] bytes = new byte[1024];
+    private int size;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private int line;
+    private int column;
+
+    // The encoding of node and everything under it
+    byte[] write(ASTNode node) {
+        size = 0;
+        ids.clear();
+        strings.clear();
+        line = 0;
+        column = 0;
+        writeBytes('S', 'Q', 'L', 'B');
+        writeByte(SQLBinary.VERSION);
+        size += 4; // string table offset, filled in below
+        node(node);
+        int table = size;
+        bytes[5] = (byte) (table >>> 24);
+        bytes[6] = (byte) (table >>> 16);
+        bytes[7] = (byte) (table >>> 8);
+        bytes[8] = (byte) table;
+        writeVarint(strings.size());
+        for (String string : strings) {
+            utf8(string);
+        }
+        return Arrays.copyOf(bytes, size);
+    }
+
+    // =============== NODES ===============
+
+    private void node(ASTNode node) {
+        if (node == null) {
+            writeByte(SQLBinary.NONE);
+        } else {
+            node.accept(this);
+        }
+    }
+
+    private void start(int tag, ASTNode node) {
+        writeByte(tag);
+        writeVarint(zigzag(node.line - line));
+        writeVarint(zigzag(node.column - column));
+        line = node.line;
+        column = node.column;
+    }
+
+    private void nodes(List<? extends ASTNode> nodes) {
+        if (nodes == null) {
+            writeVarint(0);
+            return;
+        }
+        writeVarint(nodes.size() + 1);
+        for (ASTNode node : nodes) {
+            node(node);
+        }
+    }
+
+    @Override
+    public Void visit(SelectStatement node) {
+        start(SQLBinary.SELECT, node);
+        writeByte(node.isDistinct() ? 1 : 0);
+        nodes(node.getCteList());
+        nodes(node.getSelectList());
+        node(node.getFromClause());
+        node(node.getWhereClause());
+        node(node.getGroupByClause());
+        node(node.getHavingClause());
+        node(node.getOrderByClause());
+        node(node.getLimitClause());
+        nodes(node.getSetOperations());
+        return null;
+    }
+
+    @Override
+    public Void visit(InsertStatement node) {
+        start(SQLBinary.INSERT, node);
+        string(node.getTableName());
+        strings(node.getColumnList());
+        node(node.getValuesClause());
+        node(node.getSelectStatement());
+        return null;
+    }
+
+    @Override
+    public Void visit(UpdateStatement node) {
+        start(SQLBinary.UPDATE, node);
+        string(node.getTableName());
+        string(node.getTableAlias());
+        nodes(node.getSetClauses());
+        node(node.getWhereClause());
+        return null;
+    }
+
+    @Override
+    public Void visit(DeleteStatement node) {
+        start(SQLBinary.DELETE, node);
+        string(node.getTableName());
+        string(node.getTableAlias());
+        node(node.getWhereClause());
+        return null;
+    }
+
+    @Override
+    public Void visit(CreateTableStatement node) {
+        start(SQLBinary.CREATE_TABLE, node);
+        string(node.getTableName());
+        nodes(node.getColumnDefinitions());
+        nodes(node.getTableConstraints());
+        return null;
+    }
+
+    @Override
+    public Void visit(CommonTableExpression node) {
+        start(SQLBinary.CTE, node);
+        string(node.getName());
+        strings(node.getColumnList());
+        writeByte(node.isRecursive() ? 1 : 0);
+        node(node.getQuery());
+        return null;
+    }
+
+    @Override
+    public Void visit(SetOperation node) {
+        start(SQLBinary.SET_OPERATION, node);
+        writeByte(node.getType().ordinal());
+        node(node.getQuery());
+        return null;
+    }
+
+    @Override
+    public Void visit(SelectItem node) {
+        start(SQLBinary.SELECT_ITEM, node);
+        node(node.getExpression());
+        string(node.getAlias());
+        return null;
+    }
+
+    @Override
+    public Void visit(FromClause node) {
+        start(SQLBinary.FROM, node);
+        node(node.getTableExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(WhereClause node) {
+        start(SQLBinary.WHERE, node);
+        node(node.getCondition());
+        return null;
+    }
+
+    @Override
+    public Void visit(GroupByClause node) {
+        start(SQLBinary.GROUP_BY, node);
+        nodes(node.getGroupingExpressions());
+        return null;
+    }
+
+    @Override
+    public Void visit(HavingClause node) {
+        start(SQLBinary.HAVING, node);
+        node(node.getCondition());
+        return null;
+    }
+
+    @Override
+    public Void visit(OrderByClause node) {
+        start(SQLBinary.ORDER_BY, node);
+        nodes(node.getOrderByElements());
+        return null;
+    }
+
+    @Override
+    public Void visit(OrderByElement node) {
+        start(SQLBinary.ORDER_BY_ELEMENT, node);
+        node(node.getExpression());
+        writeByte(node.getDirection().ordinal());
+        return null;
+    }
+
+    @Override
+    public Void visit(LimitClause node) {
+        start(SQLBinary.LIMIT, node);
+        node(node.getRowCount());
+        node(node.getOffset());
+        return null;
+    }
+
+    @Override
+    public Void visit(TableReference node) {
+        start(SQLBinary.TABLE_REFERENCE, node);
+        string(node.getTableName());
+        string(node.getAlias());
+        return null;
+    }
+
+    @Override
+    public Void visit(JoinExpression node) {
+        start(SQLBinary.JOIN, node);
+        writeByte(node.getJoinType().ordinal());
+        node(node.getLeftTable());
+        node(node.getRightTable());
+        node(node.getJoinCondition());
+        return null;
+    }
+
+    @Override
+    public Void visit(DerivedTable node) {
+        start(SQLBinary.DERIVED_TABLE, node);
+        node(node.getQuery());
+        string(node.getAlias());
+        return null;
+    }
+
+    @Override
+    public Void visit(ColumnReference node) {
+        start(SQLBinary.COLUMN_REFERENCE, node);
+        string(node.getTableName());
+        string(node.getColumnName());
+        return null;
+    }
+
+    @Override
+    public Void visit(LiteralExpression node) {
+        start(SQLBinary.LITERAL, node);
+        writeByte(node.getType().ordinal());
+        Object value = node.getValue();
+        if (value == null) {
+            writeByte(SQLBinary.VALUE_NULL);
+        } else if (value instanceof Integer) {
+            writeByte(SQLBinary.VALUE_INT);
+            writeVarint(zigzag((Integer) value));
+        } else if (value instanceof Long) {
+            writeByte(SQLBinary.VALUE_LONG);
+            writeVarlong(zigzag((Long) value));
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            BigInteger unscaled = decimal.unscaledValue();
+            boolean small = unscaled.bitLength() < 64;
+            writeByte(small ? SQLBinary.VALUE_DECIMAL : SQLBinary.VALUE_BIG_DECIMAL);
+            writeVarint(zigzag(decimal.scale()));
+            if (small) {
+                writeVarlong(zigzag(unscaled.longValue()));
+            } else {
+                byte[] magnitude = unscaled.toByteArray();
+                writeVarint(magnitude.length);
+                ensure(magnitude.length);
+                System.arraycopy(magnitude, 0, bytes, size, magnitude.length);
+                size += magnitude.length;
+            }
+        } else if (value instanceof String) {
+            writeByte(SQLBinary.VALUE_STRING);
+            string((String) value);
+        } else if (value instanceof Boolean) {
+            writeByte((Boolean) value ? SQLBinary.VALUE_TRUE : SQLBinary.VALUE_FALSE);
+        } else if (value instanceof LocalDate) {
+            writeByte(SQLBinary.VALUE_DATE);
+            writeVarlong(zigzag(((LocalDate) value).toEpochDay()));
+        } else if (value instanceof Double) {
+            writeByte(SQLBinary.VALUE_DOUBLE);
+            long bits = Double.doubleToRawLongBits((Double) value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (bits >>> shift));
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot encode a literal of " + value.getClass().getName()
+                                               + " at line " + node.line + ", column " + node.column);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(ParameterExpression node) {
+        start(SQLBinary.PARAMETER, node);
+        writeVarint(node.getIndex());
+        writeByte(node.getType().ordinal());
+        return null;
+    }
+
+    @Override
+    public Void visit(FunctionCall node) {
+        start(SQLBinary.FUNCTION_CALL, node);
+        string(node.getFunctionName());
+        writeByte(node.isDistinct() ? 1 : 0);
+        nodes(node.getArguments());
+        return null;
+    }
+
+    // A generated chain (a = 1 OR a = 2 OR ...) nests as deep as it is
+    // long on its left operands, so its links are written in a loop: each
+    // link's tag, position and operator top down, as the recursion would,
+    // then the innermost left operand and the right operands bottom up
+    @Override
+    public Void visit(BinaryExpression node) {
+        List<BinaryExpression> links = new ArrayList<>();
+        Expression left = node;
+        while (left instanceof BinaryExpression) {
+            BinaryExpression link = (BinaryExpression) left;
+            start(SQLBinary.BINARY, link);
+            writeByte(link.getOperator().ordinal());
+            links.add(link);
+            left = link.getLeft();
+        }
+        node(left);
+        for (int i = links.size() - 1; i >= 0; i--) {
+            node(links.get(i).getRight());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(UnaryExpression node) {
+        start(SQLBinary.UNARY, node);
+        writeByte(node.getOperator().ordinal());
+        node(node.getOperand());
+        return null;
+    }
+
+    @Override
+    public Void visit(ExpressionList node) {
+        start(SQLBinary.EXPRESSION_LIST, node);
+        nodes(node.getExpressions());
+        return null;
+    }
+
+    @Override
+    public Void visit(SubqueryExpression node) {
+        start(SQLBinary.SUBQUERY, node);
+        node(node.getQuery());
+        return null;
+    }
+
+    @Override
+    public Void visit(BooleanExpression node) {
+        start(SQLBinary.BOOLEAN, node);
+        node(node.getCondition());
+        return null;
+    }
+
+    @Override
+    public Void visit(CaseExpression node) {
+        start(SQLBinary.CASE, node);
+        node(node.getCaseOperand());
+        nodes(node.getWhenClauses());
+        node(node.getElseExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(WhenClause node) {
+        start(SQLBinary.WHEN, node);
+        node(node.getWhenCondition());
+        node(node.getThenExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(ValuesClause node) {
+        start(SQLBinary.VALUES, node);
+        writeVarint(node.getValuesList().size());
+        for (List<Expression> row : node.getValuesList()) {
+            nodes(row);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(SetClause node) {
+        start(SQLBinary.SET_CLAUSE, node);
+        string(node.getColumnName());
+        node(node.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(ColumnDefinition node) {
+        start(SQLBinary.COLUMN_DEFINITION, node);
+        string(node.getColumnName());
+        node(node.getDataType());
+        nodes(node.getConstraints());
+        return null;
+    }
+
+    @Override
+    public Void visit(CharacterType node) {
+        start(SQLBinary.CHARACTER_TYPE, node);
+        writeByte(node.getType().ordinal());
+        optionalInt(node.getLength());
+        return null;
+    }
+
+    @Override
+    public Void visit(NumericType node) {
+        start(SQLBinary.NUMERIC_TYPE, node);
+        writeByte(node.getType().ordinal());
+        optionalInt(node.getPrecision());
+        optionalInt(node.getScale());
+        return null;
+    }
+
+    @Override
+    public Void visit(NotNullConstraint node) {
+        start(SQLBinary.NOT_NULL, node);
+        string(node.getConstraintName());
+        return null;
+    }
+
+    @Override
+    public Void visit(PrimaryKeyConstraint node) {
+        start(SQLBinary.PRIMARY_KEY, node);
+        string(node.getConstraintName());
+        return null;
+    }
+
+    @Override
+    public Void visit(PrimaryKeyTableConstraint node) {
+        start(SQLBinary.PRIMARY_KEY_TABLE, node);
+        string(node.getConstraintName());
+        strings(node.getColumnNames());
+        return null;
+    }
+
+    // =============== PRIMITIVES ===============
+
+    private void string(String value) {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = strings.size();
+            ids.put(value, id);
+            strings.add(value);
+        }
+        writeVarint(id + 1);
+    }
+
+    private void strings(List<String> values) {
+        if (values == null) {
+            writeVarint(0);
+            return;
+        }
+        writeVarint(values.size() + 1);
+        for (String value : values) {
+            string(value);
+        }
+    }
+
+    // Absent as 0, otherwise zigzag value + 1
+    private void optionalInt(Integer value) {
+        writeVarlong(value == null ? 0 : zigzag(value) + 1);
+    }
+
+    // Length, then UTF-8 bytes; ASCII strings are copied char by char
+    private void utf8(String value) {
+        int length = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            writeVarint(length);
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                bytes[size++] = (byte) value.charAt(i);
+            }
+            return;
+        }
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(encoded.length);
+        ensure(encoded.length);
+        System.arraycopy(encoded, 0, bytes, size, encoded.length);
+        size += encoded.length;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void writeVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    private void writeVarlong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    private void writeByte(int value) {
+        ensure(1);
+        bytes[size++] = (byte) value;
+    }
+
+    private void writeBytes(int... values) {
+        for (int value : values) {
+            writeByte(value);
+        }
+    }
+
+    private void ensure(int more) {
+        if (size + more > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(size + more, bytes.length * 2));
+        }
+    }
+}
+
+// Decodes trees straight out of a ByteBuffer with absolute reads: nothing
+// is copied out of the buffer except each string, once, the first time a
+// node refers to it. Works on heap and direct buffers alike and leaves
+// the buffer's position and limit alone. Malformed input, a node of the
+// wrong kind or a count longer than the bytes left included, fails with
+// an IllegalArgumentException. Not thread-safe, but reusable across buffers.
+final class SQLBinaryReader {
+    private ByteBuffer buffer;
+    private int position;
+    private int line;
+    private int column;
+    private int[] offsets = new int[64]; // of each table string's length
+    private String[] strings = new String[64];
+    private byte[] scratch = new byte[64];
+
+    // The tree encoded at buffer[start..]
+    ASTNode read(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        try {
+            if (buffer.get(start) != 'S' || buffer.get(start + 1) != 'Q' || buffer.get(start + 2) != 'L'
+                    || buffer.get(start + 3) != 'B') {
+                throw new IllegalArgumentException("Not an encoded SQL tree");
+            }
+            if (buffer.get(start + 4) != SQLBinary.VERSION) {
+                throw new IllegalArgumentException("Unsupported encoding version " + buffer.get(start + 4));
+            }
+            indexStrings(start + buffer.getInt(start + 5));
+            position = start + SQLBinary.HEADER_SIZE;
+            line = 0;
+            column = 0;
+            return node();
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated SQL tree encoding", e);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Malformed SQL tree encoding", e);
+        } finally {
+            this.buffer = null;
+        }
+    }
+
+    ASTNode read(ByteBuffer buffer) {
+        return read(buffer, buffer.position());
+    }
+
+    ASTNode read(byte[] bytes) {
+        return read(ByteBuffer.wrap(bytes), 0);
+    }
+
+    // Finds where each table string starts without decoding any
+    private void indexStrings(int table) {
+        position = table;
+        int count = count(readVarint());
+        if (offsets.length < count) {
+            offsets = new int[Math.max(count, offsets.length * 2)];
+            strings = new String[offsets.length];
+        } else {
+            Arrays.fill(strings, 0, count, null);
+        }
+        for (int i = 0; i < count; i++) {
+            offsets[i] = position;
+            int length = readVarint();
+            position += length;
+        }
+        if (position > buffer.limit()) {
+            throw new IllegalArgumentException("Truncated SQL tree encoding");
+        }
+    }
+
+    // =============== NODES ===============
+
+    private ASTNode node() {
+        int offset = position;
+        int tag = readByte();
+        if (tag == SQLBinary.NONE) {
+            return null;
+        }
+        line += unzigzag(readVarint());
+        column += unzigzag(readVarint());
+        int line = this.line;
+        int column = this.column;
+        switch (tag) {
+            case SQLBinary.SELECT: {
+                SelectStatement select = new SelectStatement(line, column);
+                select.setDistinct(readByte() != 0);
+                for (int i = 0, n = count(readVarint() - 1); i < n; i++) {
+                    select.addCTE(node(CommonTableExpression.class));
+                }
+                for (int i = 0, n = count(readVarint() - 1); i < n; i++) {
+                    select.addSelectItem(node(SelectItem.class));
+                }
+                select.setFromClause(node(FromClause.class));
+                select.setWhereClause(node(WhereClause.class));
+                select.setGroupByClause(node(GroupByClause.class));
+                select.setHavingClause(node(HavingClause.class));
+                select.setOrderByClause(node(OrderByClause.class));
+                select.setLimitClause(node(LimitClause.class));
+                for (int i = 0, n = count(readVarint() - 1); i < n; i++) {
+                    select.addSetOperation(node(SetOperation.class));
+                }
+                return select;
+            }
+            case SQLBinary.SET_OPERATION: {
+                SetOperation.Type type = SetOperation.Type.values()[readByte()];
+                return new SetOperation(type, node(SelectStatement.class), line, column);
+            }
+            case SQLBinary.SELECT_ITEM: {
+                Expression expression = node(Expression.class);
+                return new SelectItem(expression, string(), line, column);
+            }
+            case SQLBinary.FROM:
+                return new FromClause(node(TableExpression.class), line, column);
+            case SQLBinary.TABLE_REFERENCE: {
+                String name = string();
+                return new TableReference(name, string(), line, column);
+            }
+            case SQLBinary.JOIN: {
+                JoinExpression.JoinType type = JoinExpression.JoinType.values()[readByte()];
+                TableExpression left = node(TableExpression.class);
+                TableExpression right = node(TableExpression.class);
+                return new JoinExpression(type, left, right, node(Expression.class), line, column);
+            }
+            case SQLBinary.DERIVED_TABLE: {
+                SelectStatement query = node(SelectStatement.class);
+                return new DerivedTable(query, string(), line, column);
+            }
+            case SQLBinary.WHERE:
+                return new WhereClause(node(Expression.class), line, column);
+            case SQLBinary.COLUMN_REFERENCE: {
+                String table = string();
+                return new ColumnReference(table, string(), line, column);
+            }
+            case SQLBinary.LITERAL: {
+                LiteralExpression.LiteralType type = LiteralExpression.LiteralType.values()[readByte()];
+                return new LiteralExpression(type, value(), line, column);
+            }
+            case SQLBinary.PARAMETER: {
+                int index = readVarint();
+                return new ParameterExpression(index, LiteralExpression.LiteralType.values()[readByte()], line, column);
+            }
+            case SQLBinary.FUNCTION_CALL: {
+                String name = string();
+                boolean distinct = readByte() != 0;
+                return new FunctionCall(name, expressions(), distinct, line, column);
+            }
+            case SQLBinary.BINARY:
+                return binary(line, column);
+            case SQLBinary.UNARY: {
+                UnaryExpression.Operator operator = UnaryExpression.Operator.values()[readByte()];
+                return new UnaryExpression(operator, node(Expression.class), line, column);
+            }
+            case SQLBinary.EXPRESSION_LIST:
+                return new ExpressionList(expressions(), line, column);
+            case SQLBinary.SUBQUERY:
+                return new SubqueryExpression(node(SelectStatement.class), line, column);
+            case SQLBinary.BOOLEAN:
+                return new BooleanExpression(node(Expression.class), line, column);
+            case SQLBinary.CASE: {
+                Expression operand = node(Expression.class);
+                List<WhenClause> whens = null;
+                int n = count(readVarint() - 1);
+                if (n >= 0) {
+                    whens = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        whens.add(node(WhenClause.class));
+                    }
+                }
+                return new CaseExpression(operand, whens, node(Expression.class), line, column);
+            }
+            case SQLBinary.WHEN: {
+                Expression condition = node(Expression.class);
+                return new WhenClause(condition, node(Expression.class), line, column);
+            }
+            case SQLBinary.INSERT: {
+                InsertStatement insert = new InsertStatement(string(), line, column);
+                List<String> columns = strings();
+                if (columns != null) {
+                    insert.getColumnList().addAll(columns);
+                }
+                insert.setValuesClause(node(ValuesClause.class));
+                insert.setSelectStatement(node(SelectStatement.class));
+                return insert;
+            }
+            case SQLBinary.VALUES: {
+                ValuesClause values = new ValuesClause(line, column);
+                for (int i = 0, n = count(readVarint()); i < n; i++) {
+                    values.addValues(expressions());
+                }
+                return values;
+            }
+            case SQLBinary.UPDATE: {
+                UpdateStatement update = new UpdateStatement(string(), line, column);
+                update.setTableAlias(string());
+                for (int i = 0, n = count(readVarint() - 1); i < n; i++) {
+                    update.addSetClause(node(SetClause.class));
+                }
+                update.setWhereClause(node(WhereClause.class));
+                return update;
+            }
+            case SQLBinary.SET_CLAUSE: {
+                String name = string();
+                return new SetClause(name, node(Expression.class), line, column);
+            }
+            case SQLBinary.DELETE: {
+                DeleteStatement delete = new DeleteStatement(string(), line, column);
+                delete.setTableAlias(string());
+                delete.setWhereClause(node(WhereClause.class));
+                return delete;
+            }
+            case SQLBinary.CREATE_TABLE: {
+                CreateTableStatement create = new CreateTableStatement(string(), line, column);
+                for (int i = 0, n = count(readVarint() - 1); i < n; i++) {
+                    create.addColumnDefinition(node(ColumnDefinition.class));
+                }
+                for (int i = 0, n = count(readVarint() - 1); i < n; i++) {
+                    create.addTableConstraint(node(TableConstraint.class));
+                }
+                return create;
+            }
+            case SQLBinary.COLUMN_DEFINITION: {
+                String name = string();
+                ColumnDefinition definition = new ColumnDefinition(name, node(DataType.class), line, column);
+                for (int i = 0, n = count(readVarint() - 1); i < n; i++) {
+                    definition.addConstraint(node(ColumnConstraint.class));
+                }
+                return definition;
+            }
+            case SQLBinary.CHARACTER_TYPE: {
+                CharacterType.CharType type = CharacterType.CharType.values()[readByte()];
+                return new CharacterType(type, optionalInt(), line, column);
+            }
+            case SQLBinary.NUMERIC_TYPE: {
+                NumericType.NumType type = NumericType.NumType.values()[readByte()];
+                Integer precision = optionalInt();
+                return new NumericType(type, precision, optionalInt(), line, column);
+            }
+            case SQLBinary.NOT_NULL:
+                return new NotNullConstraint(string(), line, column);
+            case SQLBinary.PRIMARY_KEY:
+                return new PrimaryKeyConstraint(string(), line, column);
+            case SQLBinary.PRIMARY_KEY_TABLE: {
+                String name = string();
+                return new PrimaryKeyTableConstraint(name, strings(), line, column);
+            }
+            case SQLBinary.GROUP_BY:
+                return new GroupByClause(expressions(), line, column);
+            case SQLBinary.HAVING:
+                return new HavingClause(node(Expression.class), line, column);
+            case SQLBinary.ORDER_BY: {
+                List<OrderByElement> elements = null;
+                int n = count(readVarint() - 1);
+                if (n >= 0) {
+                    elements = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        elements.add(node(OrderByElement.class));
+                    }
+                }
+                return new OrderByClause(elements, line, column);
+            }
+            case SQLBinary.ORDER_BY_ELEMENT: {
+                Expression expression = node(Expression.class);
+                return new OrderByElement(expression, OrderByElement.SortDirection.values()[readByte()], line, column);
+            }
+            case SQLBinary.LIMIT: {
+                Expression rowCount = node(Expression.class);
+                return new LimitClause(rowCount, node(Expression.class), line, column);
+            }
+            case SQLBinary.CTE: {
+                String name = string();
+                List<String> columns = strings();
+                boolean recursive = readByte() != 0;
+                return new CommonTableExpression(name, columns, node(SelectStatement.class), recursive, line, column);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown node tag " + tag + " at offset " + offset);
+        }
+    }
+
+    // The next node, which must be absent or of kind
+    private <T extends ASTNode> T node(Class<T> kind) {
+        ASTNode node = node();
+        if (node != null && !kind.isInstance(node)) {
+            throw new IllegalArgumentException("Malformed SQL tree encoding");
+        }
+        return kind.cast(node);
+    }
+
+    // The links of a chain down its left operands are read in a loop, as
+    // SQLBinaryWriter writes them: their headers top down, then the
+    // innermost left operand and the right operands bottom up
+    private Expression binary(int line, int column) {
+        List<int[]> links = new ArrayList<>(); // {operator, line, column}
+        links.add(new int[] {readByte(), line, column});
+        while (buffer.get(position) == SQLBinary.BINARY) {
+            position++;
+            this.line += unzigzag(readVarint());
+            this.column += unzigzag(readVarint());
+            links.add(new int[] {readByte(), this.line, this.column});
+        }
+        Expression left = node(Expression.class);
+        for (int i = links.size() - 1; i >= 0; i--) {
+            int[] link = links.get(i);
+            BinaryExpression.Operator operator = BinaryExpression.Operator.values()[link[0]];
+            left = new BinaryExpression(left, operator, node(Expression.class), link[1], link[2]);
+        }
+        return left;
+    }
+
+    private List<Expression> expressions() {
+        int n = count(readVarint() - 1);
+        if (n < 0) {
+            return null;
+        }
+        List<Expression> expressions = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            expressions.add(node(Expression.class));
+        }
+        return expressions;
+    }
+
+    private Object value() {
+        int kind = readByte();
+        switch (kind) {
+            case SQLBinary.VALUE_NULL:
+                return null;
+            case SQLBinary.VALUE_INT:
+                return unzigzag(readVarint());
+            case SQLBinary.VALUE_LONG:
+                return unzigzag(readVarlong());
+            case SQLBinary.VALUE_DECIMAL: {
+                int scale = unzigzag(readVarint());
+                return BigDecimal.valueOf(unzigzag(readVarlong()), scale);
+            }
+            case SQLBinary.VALUE_BIG_DECIMAL: {
+                int scale = unzigzag(readVarint());
+                byte[] magnitude = new byte[count(readVarint())];
+                for (int i = 0; i < magnitude.length; i++) {
+                    magnitude[i] = buffer.get(position++);
+                }
+                return new BigDecimal(new BigInteger(magnitude), scale);
+            }
+            case SQLBinary.VALUE_STRING:
+                return string();
+            case SQLBinary.VALUE_FALSE:
+                return Boolean.FALSE;
+            case SQLBinary.VALUE_TRUE:
+                return Boolean.TRUE;
+            case SQLBinary.VALUE_DATE:
+                return LocalDate.ofEpochDay(unzigzag(readVarlong()));
+            case SQLBinary.VALUE_DOUBLE: {
+                long bits = buffer.getLong(position);
+                position += 8;
+                return Double.longBitsToDouble(bits);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown literal kind " + kind + " at offset " + (position - 1));
+        }
+    }
+
+    // =============== PRIMITIVES ===============
+
+    private String string() {
+        int id = readVarint() - 1;
+        if (id < 0) {
+            return null;
+        }
+        String value = strings[id];
+        if (value == null) {
+            value = decode(offsets[id]);
+            strings[id] = value;
+        }
+        return value;
+    }
+
+    private List<String> strings() {
+        int n = count(readVarint() - 1);
+        if (n < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            values.add(string());
+        }
+        return values;
+    }
+
+    // The table string whose length is at offset
+    private String decode(int offset) {
+        int saved = position;
+        position = offset;
+        int length = readVarint();
+        int start = position;
+        position = saved;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(start + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // A count read from the input, -1 for an absent list; each element
+    // takes at least a byte, so one past the bytes left is malformed
+    private int count(int n) {
+        if (n < -1 || n > buffer.limit() - position) {
+            throw new IllegalArgumentException("Malformed SQL tree encoding");
+        }
+        return n;
+    }
+
+    private Integer optionalInt() {
+        long value = readVarlong();
+        return value == 0 ? null : (int) unzigzag(value - 1);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get(position++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at offset " + position);
+    }
+
+    private long readVarlong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get(position++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at offset " + position);
+    }
+
+    private int readByte() {
+        return buffer.get(position++) & 0xFF;
+    }
+}
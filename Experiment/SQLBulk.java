@@ -0,0 +1,979 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Rows for one INSERT target held by column in primitive buffers, in
+// place of the List<List<Expression>> of LiteralExpressions a
+// ValuesClause keeps. Each column takes the type of its first non-NULL
+// value: INTEGER, DECIMAL, BOOLEAN and DATE values are longs (unscaled
+// for DECIMAL, at the column's scale; epoch days for DATE), and STRING
+// values are ranges of one shared char array. An INTEGER column widens
+// to DECIMAL, and a DECIMAL column to a larger scale, by rescaling what
+// it holds; other mixes are rejected.
+// The rows also track the length of their VALUES list as SQLBulkWriter
+// renders it, so batches can be capped by statement size without
+// rendering them.
+final class SQLBulkRows {
+    private final String tableName;
+    private final List<String> columnNames;
+    private final Column[] columns;
+    private int rowCount;
+    private long valuesLength;
+
+    SQLBulkRows(String tableName, List<String> columnNames, int columnCount) {
+        if (!columnNames.isEmpty() && columnNames.size() != columnCount) {
+            throw new IllegalArgumentException(columnNames.size() + " column names for " + columnCount + " columns");
+        }
+        this.tableName = tableName;
+        this.columnNames = columnNames;
+        this.columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = new Column();
+        }
+    }
+
+    // Rows for the target of an INSERT; its column list may be empty
+    static SQLBulkRows of(InsertStatement insert) {
+        List<String> names = insert.getColumnList();
+        int width = !names.isEmpty() ? names.size()
+                  : insert.getValuesClause() != null && !insert.getValuesClause().getValuesList().isEmpty()
+                  ? insert.getValuesClause().getValuesList().get(0).size() : 0;
+        return new SQLBulkRows(insert.getTableName(), new ArrayList<>(names), width);
+    }
+
+    String getTableName() { return tableName; }
+    List<String> getColumnNames() { return columnNames; }
+    int getColumnCount() { return columns.length; }
+    int getRowCount() { return rowCount; }
+    LiteralExpression.LiteralType getType(int column) { return columns[column].type; }
+    int getScale(int column) { return columns[column].scale; }
+
+    // Whether an INSERT writes the same columns of the same table
+    boolean accepts(InsertStatement insert) {
+        if (!tableName.equalsIgnoreCase(insert.getTableName())) {
+            return false;
+        }
+        List<String> names = insert.getColumnList();
+        if (names.size() != columnNames.size()) {
+            return false;
+        }
+        if (names.isEmpty()) {
+            ValuesClause values = insert.getValuesClause();
+            return values == null || values.getValuesList().isEmpty()
+                    || values.getValuesList().get(0).size() == columns.length;
+        }
+        for (int i = 0; i < names.size(); i++) {
+            if (!names.get(i).equalsIgnoreCase(columnNames.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Appends the VALUES rows of an INSERT with literal values
+    void add(InsertStatement insert) {
+        add(insert, null);
+    }
+
+    // Appends the rows of a prepared INSERT with its bound parameters, so
+    // INSERTs served from SQLQueryCache are taken as they come
+    void add(BoundQuery bound) {
+        if (!(bound.getStatement() instanceof InsertStatement)) {
+            throw new IllegalArgumentException("Not an INSERT: " + bound.getStatement());
+        }
+        add((InsertStatement) bound.getStatement(), bound);
+    }
+
+    private void add(InsertStatement insert, BoundQuery bound) {
+        if (insert.getValuesClause() == null) {
+            throw new IllegalArgumentException("Bulk rows take INSERT ... VALUES, not INSERT ... SELECT");
+        }
+        int before = rowCount;
+        try {
+            for (List<Expression> row : insert.getValuesClause().getValuesList()) {
+                addRow(row, bound);
+            }
+        } catch (IllegalArgumentException e) {
+            truncate(before);
+            throw e;
+        }
+    }
+
+    // Appends one VALUES row, taking parameters from bound
+    void addRow(List<Expression> row, BoundQuery bound) {
+        addRow(values(row, bound));
+    }
+
+    // The values of one VALUES row as addRow(Object...) takes them
+    Object[] values(List<Expression> row, BoundQuery bound) {
+        if (row.size() != columns.length) {
+            throw new IllegalArgumentException("Row of " + row.size() + " values for " + columns.length + " columns");
+        }
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = value(row.get(i), bound);
+        }
+        return values;
+    }
+
+    // Appends one row of Integer, Long, BigDecimal, Double, String,
+    // LocalDate, Boolean or null values
+    void addRow(Object... values) {
+        if (values.length != columns.length) {
+            throw new IllegalArgumentException("Row of " + values.length + " values for " + columns.length + " columns");
+        }
+        int row = rowCount;
+        int i = 0;
+        try {
+            for (; i < values.length; i++) {
+                valuesLength += columns[i].append(row, values[i]);
+            }
+        } catch (IllegalArgumentException e) {
+            // A rescale may have run before the failure, so the length
+            // is recounted rather than unwound
+            valuesLength = 0;
+            for (Column column : columns) {
+                column.truncate(row);
+            }
+            for (int r = 0; r < row; r++) {
+                valuesLength += rowLength(r) + (r > 0 ? 2 : 0);
+            }
+            throw new IllegalArgumentException(describe(i) + " " + e.getMessage(), e);
+        }
+        rowCount++;
+        valuesLength += 2 + 2 * Math.max(0, columns.length - 1) + (row > 0 ? 2 : 0);
+    }
+
+    // Drops the rows from count on; column types and scales stay
+    void truncate(int count) {
+        while (rowCount > count) {
+            valuesLength -= rowLength(rowCount - 1) + (rowCount > 1 ? 2 : 0);
+            rowCount--;
+            for (Column column : columns) {
+                column.truncate(rowCount);
+            }
+        }
+    }
+
+    void clear() {
+        truncate(0);
+    }
+
+    // Length of "(v1, v2), (v3, v4)" for all rows, as SQLBulkWriter
+    // renders them
+    long getValuesLength() { return valuesLength; }
+
+    // Length of "(v1, v2)" for one row
+    int rowLength(int row) {
+        int length = 2 + 2 * Math.max(0, columns.length - 1);
+        for (Column column : columns) {
+            length += column.length(row);
+        }
+        return length;
+    }
+
+    boolean isNull(int row, int column) {
+        return columns[column].isNull(row);
+    }
+
+    Object getValue(int row, int column) {
+        Column c = columns[column];
+        if (c.isNull(row)) {
+            return null;
+        }
+        switch (c.type) {
+            case INTEGER: return c.longs[row];
+            case DECIMAL: return BigDecimal.valueOf(c.longs[row], c.scale);
+            case BOOLEAN: return c.longs[row] != 0;
+            case DATE: return LocalDate.ofEpochDay(c.longs[row]);
+            default: return new String(c.chars, c.start(row), c.ends[row] - c.start(row));
+        }
+    }
+
+    // Bytes held by the buffers, capacity included
+    long getBufferBytes() {
+        long bytes = 0;
+        for (Column column : columns) {
+            bytes += column.bytes();
+        }
+        return bytes;
+    }
+
+    // The rows as a multi-row INSERT statement
+    InsertStatement toStatement() {
+        InsertStatement insert = new InsertStatement(tableName, 1, 1);
+        insert.getColumnList().addAll(columnNames);
+        ValuesClause values = new ValuesClause(1, 1);
+        for (int row = 0; row < rowCount; row++) {
+            List<Expression> expressions = new ArrayList<>(columns.length);
+            for (int column = 0; column < columns.length; column++) {
+                Object value = getValue(row, column);
+                expressions.add(new LiteralExpression(value == null ? LiteralExpression.LiteralType.NULL
+                                                                    : columns[column].type, value, 1, 1));
+            }
+            values.addValues(expressions);
+        }
+        insert.setValuesClause(values);
+        return insert;
+    }
+
+    // The rows as an SQLTable for SQLEngine: DECIMAL columns become
+    // DOUBLE, and columns without names are named column1, column2, ...
+    SQLTable toTable() {
+        List<SQLColumn> built = new ArrayList<>(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            Column column = columns[i];
+            String name = columnNames.isEmpty() ? "column" + (i + 1) : columnNames.get(i);
+            boolean[] nulls = column.nulls == null ? null : Arrays.copyOf(column.nulls, rowCount);
+            switch (column.type) {
+                case INTEGER:
+                case BOOLEAN:
+                case DATE: {
+                    SQLType type = column.type == LiteralExpression.LiteralType.INTEGER ? SQLType.BIGINT
+                                 : column.type == LiteralExpression.LiteralType.BOOLEAN ? SQLType.BOOLEAN : SQLType.DATE;
+                    built.add(new LongColumn(name, type, Arrays.copyOf(column.longs, rowCount), nulls));
+                    break;
+                }
+                case DECIMAL: {
+                    double[] values = new double[rowCount];
+                    double unit = Math.pow(10, column.scale);
+                    for (int row = 0; row < rowCount; row++) {
+                        values[row] = column.longs[row] / unit;
+                    }
+                    built.add(new DoubleColumn(name, values, nulls));
+                    break;
+                }
+                default: {
+                    String[] values = new String[rowCount];
+                    for (int row = 0; row < rowCount; row++) {
+                        values[row] = (String) getValue(row, i);
+                    }
+                    built.add(StringColumn.encode(name, values, rowCount));
+                    break;
+                }
+            }
+        }
+        return new SQLTable(tableName, rowCount, built);
+    }
+
+    // Package access for SQLBulkWriter
+    Column column(int index) { return columns[index]; }
+
+    Object[] getRow(int row) {
+        Object[] values = new Object[columns.length];
+        for (int column = 0; column < values.length; column++) {
+            values[column] = getValue(row, column);
+        }
+        return values;
+    }
+
+    private String describe(int column) {
+        return "Column " + (columnNames.isEmpty() ? String.valueOf(column + 1) : columnNames.get(column));
+    }
+
+    // The value of a literal, a lifted parameter, or either negated
+    private static Object value(Expression expression, BoundQuery bound) {
+        if (expression instanceof LiteralExpression) {
+            LiteralExpression literal = (LiteralExpression) expression;
+            if (literal.getType() == LiteralExpression.LiteralType.BOOLEAN) {
+                Object value = literal.getValue();
+                return Boolean.TRUE.equals(value) || "true".equalsIgnoreCase(String.valueOf(value));
+            }
+            return literal.getType() == LiteralExpression.LiteralType.NULL ? null : literal.getValue();
+        }
+        if (expression instanceof ParameterExpression && bound != null) {
+            return bound.getParameter(((ParameterExpression) expression).getIndex());
+        }
+        if (expression instanceof UnaryExpression
+                && ((UnaryExpression) expression).getOperator() == UnaryExpression.Operator.NEGATE) {
+            Object value = value(((UnaryExpression) expression).getOperand(), bound);
+            if (value instanceof Integer || value instanceof Long) {
+                return Math.negateExact(((Number) value).longValue());
+            }
+            if (value instanceof BigDecimal) {
+                return ((BigDecimal) value).negate();
+            }
+        }
+        throw new IllegalArgumentException("Bulk rows take literal values only, not " + expression);
+    }
+
+    // =============== COLUMN BUFFERS ===============
+
+    static final class Column {
+        LiteralExpression.LiteralType type = LiteralExpression.LiteralType.NULL;
+        long[] longs;
+        int scale;
+        char[] chars;
+        int[] ends;      // STRING: end of each row's range in chars
+        boolean[] nulls;
+        int size;
+        private int nonNulls;
+
+        boolean isNull(int row) {
+            return nulls != null && nulls[row];
+        }
+
+        int start(int row) {
+            return row == 0 ? 0 : ends[row - 1];
+        }
+
+        // Appends the value as row number size and returns its rendered
+        // length, plus what a rescale added to the values already held
+        int append(int row, Object value) {
+            int grown = 0;
+            if (value == null) {
+                grow(row + 1);
+                if (nulls == null) {
+                    nulls = new boolean[capacity()];
+                }
+                nulls[row] = true;
+                if (ends != null) {
+                    ends[row] = start(row);
+                }
+                size = row + 1;
+                return 4;
+            }
+            if (value instanceof Integer || value instanceof Long) {
+                long v = ((Number) value).longValue();
+                if (type == LiteralExpression.LiteralType.DECIMAL) {
+                    put(row, scaled(v, scale));
+                } else {
+                    require(LiteralExpression.LiteralType.INTEGER);
+                    put(row, v);
+                }
+            } else if (value instanceof BigDecimal || value instanceof Double || value instanceof Float) {
+                BigDecimal v = value instanceof BigDecimal ? (BigDecimal) value : decimal(((Number) value).doubleValue());
+                if (v.scale() < 0) {
+                    v = v.setScale(0);
+                }
+                boolean widen = type == LiteralExpression.LiteralType.INTEGER || type == LiteralExpression.LiteralType.NULL
+                        || (type == LiteralExpression.LiteralType.DECIMAL && v.scale() > scale);
+                int newScale = widen ? Math.max(v.scale(), type == LiteralExpression.LiteralType.DECIMAL ? scale : 0)
+                                     : scale;
+                // The value is converted first, so that nothing has changed
+                // when it does not fit
+                long unscaled;
+                try {
+                    unscaled = v.setScale(newScale).unscaledValue().longValueExact();
+                } catch (ArithmeticException e) {
+                    throw new IllegalArgumentException("cannot hold " + v + " at scale " + newScale);
+                }
+                if (widen) {
+                    grown = rescale(newScale);
+                }
+                require(LiteralExpression.LiteralType.DECIMAL);
+                put(row, unscaled);
+            } else if (value instanceof String) {
+                require(LiteralExpression.LiteralType.STRING);
+                String s = (String) value;
+                grow(row + 1);
+                int start = start(row);
+                if (start + s.length() > chars.length) {
+                    chars = Arrays.copyOf(chars, Math.max(start + s.length(), chars.length + (chars.length >> 1)));
+                }
+                s.getChars(0, s.length(), chars, start);
+                ends[row] = start + s.length();
+                size = row + 1;
+                nonNulls++;
+            } else if (value instanceof LocalDate) {
+                require(LiteralExpression.LiteralType.DATE);
+                put(row, ((LocalDate) value).toEpochDay());
+            } else if (value instanceof Boolean) {
+                require(LiteralExpression.LiteralType.BOOLEAN);
+                put(row, (Boolean) value ? 1 : 0);
+            } else {
+                throw new IllegalArgumentException("cannot hold " + value + " (" + value.getClass().getSimpleName() + ")");
+            }
+            return length(row) + grown;
+        }
+
+        // Rendered length of a row's value, as SQL
+        int length(int row) {
+            if (isNull(row)) {
+                return 4;
+            }
+            switch (type) {
+                case INTEGER: return digits(longs[row]);
+                case DECIMAL: return decimalLength(longs[row], scale);
+                case BOOLEAN: return longs[row] != 0 ? 4 : 5;
+                case DATE: return 13 + yearDigits(longs[row]);
+                default: {
+                    int length = 2;
+                    for (int i = start(row); i < ends[row]; i++) {
+                        length += chars[i] == '\'' ? 2 : 1;
+                    }
+                    return length;
+                }
+            }
+        }
+
+        void truncate(int count) {
+            for (int row = count; row < size; row++) {
+                if (!isNull(row)) {
+                    nonNulls--;
+                }
+                if (nulls != null) {
+                    nulls[row] = false;
+                }
+            }
+            size = Math.min(size, count);
+        }
+
+        long bytes() {
+            return (longs != null ? 8L * longs.length : 0) + (chars != null ? 2L * chars.length : 0)
+                    + (ends != null ? 4L * ends.length : 0) + (nulls != null ? nulls.length : 0);
+        }
+
+        private void put(int row, long value) {
+            grow(row + 1);
+            longs[row] = value;
+            size = row + 1;
+            nonNulls++;
+        }
+
+        private void require(LiteralExpression.LiteralType wanted) {
+            if (type == LiteralExpression.LiteralType.NULL) {
+                type = wanted;
+                int capacity = Math.max(16, nulls != null ? nulls.length : 0);
+                if (wanted == LiteralExpression.LiteralType.STRING) {
+                    chars = new char[capacity * 8];
+                    ends = new int[capacity];
+                } else {
+                    longs = new long[capacity];
+                }
+            } else if (type != wanted) {
+                throw new IllegalArgumentException("holds " + type + " values, not " + wanted);
+            }
+        }
+
+        // Widens INTEGER or NULL to DECIMAL, or a DECIMAL to a larger
+        // scale, and returns how much longer the values held now render:
+        // the added digits, and the point if there was none. The values are
+        // rescaled into a new array, swapped in once all of them fit, so a
+        // value that overflows leaves the column as it was.
+        private int rescale(int newScale) {
+            if (type == LiteralExpression.LiteralType.NULL) {
+                require(LiteralExpression.LiteralType.DECIMAL);
+                scale = newScale;
+                return 0;
+            }
+            if (type != LiteralExpression.LiteralType.INTEGER && type != LiteralExpression.LiteralType.DECIMAL) {
+                throw new IllegalArgumentException("holds " + type + " values, not DECIMAL");
+            }
+            long[] rescaled = new long[longs.length];
+            for (int row = 0; row < size; row++) {
+                if (!isNull(row)) {
+                    rescaled[row] = scaled(longs[row], newScale - scale);
+                }
+            }
+            longs = rescaled;
+            int grown = newScale == scale ? 0 : nonNulls * (newScale - scale + (scale == 0 ? 1 : 0));
+            type = LiteralExpression.LiteralType.DECIMAL;
+            scale = newScale;
+            return grown;
+        }
+
+        private int capacity() {
+            return longs != null ? longs.length : ends != null ? ends.length : nulls != null ? nulls.length : 0;
+        }
+
+        private void grow(int needed) {
+            int capacity = capacity();
+            if (needed <= capacity && (nulls == null || needed <= nulls.length)) {
+                return;
+            }
+            int grown = Math.max(Math.max(needed, 16), capacity + (capacity >> 1));
+            if (longs != null) {
+                longs = Arrays.copyOf(longs, grown);
+            }
+            if (ends != null) {
+                ends = Arrays.copyOf(ends, grown);
+            }
+            if (nulls != null) {
+                nulls = Arrays.copyOf(nulls, grown);
+            } else if (longs == null && ends == null) {
+                nulls = new boolean[grown];
+            }
+        }
+
+        private static long scaled(long value, int digits) {
+            try {
+                for (int i = 0; i < digits; i++) {
+                    value = Math.multiplyExact(value, 10);
+                }
+                return value;
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("cannot hold " + value + " scaled by 10^" + digits);
+            }
+        }
+
+        private static BigDecimal decimal(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new IllegalArgumentException("cannot hold " + value);
+            }
+            return BigDecimal.valueOf(value);
+        }
+    }
+
+    // =============== RENDERED LENGTHS ===============
+
+    static int digits(long value) {
+        int length = value < 0 ? 2 : 1;
+        for (long v = value < 0 ? value : -value; v <= -10; v /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    // "-12.50": sign, at least one integer digit, point and scale digits
+    static int decimalLength(long unscaled, int scale) {
+        if (scale == 0) {
+            return digits(unscaled);
+        }
+        int magnitude = digits(unscaled) - (unscaled < 0 ? 1 : 0);
+        return (unscaled < 0 ? 1 : 0) + Math.max(magnitude, scale + 1) + 1;
+    }
+
+    // Years are written with at least four digits, as LocalDate parses them
+    static int yearDigits(long epochDay) {
+        int year = LocalDate.ofEpochDay(epochDay).getYear();
+        return Math.max(4, digits(year));
+    }
+}
+
+// Coalesces single-row INSERTs into multi-row batches of SQLBulkRows,
+// each small enough to render as one statement of at most maxRows rows
+// and maxChars characters. A batch is handed to the sink when it is full
+// or when an INSERT for another table or column list arrives; flush()
+// hands over the last one. A row that alone exceeds maxChars becomes a
+// batch by itself. The sink owns each batch it is given.
+// Not thread-safe.
+final class SQLInsertBatcher {
+    private final int maxRows;
+    private final int maxChars;
+    private final Consumer<SQLBulkRows> sink;
+    // Values of the rows in batch as they were added
+    private final List<Object[]> pending = new ArrayList<>();
+    private SQLBulkRows batch;
+    private int headerLength;
+    private long batches;
+    private long rows;
+
+    SQLInsertBatcher(int maxRows, int maxChars, Consumer<SQLBulkRows> sink) {
+        if (maxRows < 1 || maxChars < 1) {
+            throw new IllegalArgumentException("Batch limits must be positive: " + maxRows + " rows, " + maxChars + " chars");
+        }
+        this.maxRows = maxRows;
+        this.maxChars = maxChars;
+        this.sink = sink;
+    }
+
+    void add(InsertStatement insert) {
+        add(insert, null);
+    }
+
+    void add(BoundQuery bound) {
+        if (!(bound.getStatement() instanceof InsertStatement)) {
+            throw new IllegalArgumentException("Not an INSERT: " + bound.getStatement());
+        }
+        add((InsertStatement) bound.getStatement(), bound);
+    }
+
+    private void add(InsertStatement insert, BoundQuery bound) {
+        if (insert.getValuesClause() == null) {
+            throw new IllegalArgumentException("Only INSERT ... VALUES can be batched");
+        }
+        if (batch != null && !batch.accepts(insert)) {
+            flush();
+        }
+        for (List<Expression> row : insert.getValuesClause().getValuesList()) {
+            if (batch == null) {
+                start(insert);
+            }
+            Object[] values = batch.values(row, bound);
+            batch.addRow(values);
+            pending.add(values);
+            if (pending.size() > 1 && headerLength + batch.getValuesLength() > maxChars) {
+                // The row does not fit: hand over the batch without it and
+                // start the next one with it. The rows kept are added anew,
+                // as the row may have widened a column's type or scale,
+                // which truncating would keep
+                pending.remove(pending.size() - 1);
+                SQLBulkRows kept = new SQLBulkRows(batch.getTableName(), batch.getColumnNames(), batch.getColumnCount());
+                for (Object[] keptValues : pending) {
+                    kept.addRow(keptValues);
+                }
+                batch = kept;
+                flush();
+                start(insert);
+                batch.addRow(values);
+                pending.add(values);
+            }
+            if (batch.getRowCount() >= maxRows || headerLength + batch.getValuesLength() >= maxChars) {
+                flush();
+            }
+        }
+    }
+
+    private void start(InsertStatement insert) {
+        batch = SQLBulkRows.of(insert);
+        headerLength = SQLBulkWriter.insertHeaderLength(batch);
+    }
+
+    void flush() {
+        if (batch != null && batch.getRowCount() > 0) {
+            batches++;
+            rows += batch.getRowCount();
+            sink.accept(batch);
+        }
+        batch = null;
+        pending.clear();
+    }
+
+    long getBatches() { return batches; }
+    long getRows() { return rows; }
+
+    @Override
+    public String toString() {
+        return "SQLInsertBatcher{batches=" + batches + ", rows=" + rows + "}";
+    }
+}
+
+// Streams SQLBulkRows as SQL text, either as INSERT statements of at most
+// maxRows rows and maxChars characters each, or as a PostgreSQL COPY ...
+// FROM stdin block in text format. Rows are rendered straight from the
+// column buffers into a reused block of characters that is passed to the
+// output whenever it fills, so neither the statements nor the values are
+// ever materialized as Strings.
+// Not thread-safe; an instance keeps its buffers and is meant to be reused.
+final class SQLBulkWriter {
+    private static final int BLOCK = 8192;
+    private static final char[] NULL = "NULL".toCharArray();
+    private static final char[] TRUE = "TRUE".toCharArray();
+    private static final char[] FALSE = "FALSE".toCharArray();
+    private static final char[] DATE = "DATE '".toCharArray();
+
+    private static final int DATE_SLOTS = 1024;
+
+    private final int maxRows;
+    private final int maxChars;
+    private final long[] dateKeys = new long[DATE_SLOTS];
+    private final char[] dateChars = new char[DATE_SLOTS * 10];
+    private char[] block = new char[BLOCK * 2];
+    private int size;
+    private Appendable out;
+
+    SQLBulkWriter(int maxRows, int maxChars) {
+        if (maxRows < 1 || maxChars < 1) {
+            throw new IllegalArgumentException("Statement limits must be positive: " + maxRows + " rows, " + maxChars + " chars");
+        }
+        this.maxRows = maxRows;
+        this.maxChars = maxChars;
+        Arrays.fill(dateKeys, Long.MIN_VALUE);
+    }
+
+    // Writes the rows as INSERT statements, each ending in ";\n", and
+    // returns how many were written. A row is rendered before it is
+    // measured; when it does not fit the statement it is in, it moves up
+    // to make room for the end of that statement and the next header.
+    int writeInserts(SQLBulkRows rows, Appendable out) throws IOException {
+        this.out = out;
+        try {
+            char[] header = insertHeader(rows);
+            int statements = 0;
+            int inStatement = 0;
+            long length = 0;
+            for (int row = 0; row < rows.getRowCount(); row++) {
+                int start = size;
+                if (inStatement > 0) {
+                    append(',');
+                    append(' ');
+                }
+                sqlRow(rows, row);
+                int rowLength = size - start - (inStatement > 0 ? 2 : 0);
+                if (inStatement > 0 && (inStatement == maxRows || length + 2 + rowLength > maxChars)) {
+                    ensure(header.length);
+                    System.arraycopy(block, start + 2, block, start + 2 + header.length, rowLength);
+                    block[start] = ';';
+                    block[start + 1] = '\n';
+                    System.arraycopy(header, 0, block, start + 2, header.length);
+                    size = start + 2 + header.length + rowLength;
+                    inStatement = 0;
+                } else if (inStatement == 0) {
+                    ensure(header.length);
+                    System.arraycopy(block, start, block, start + header.length, rowLength);
+                    System.arraycopy(header, 0, block, start, header.length);
+                    size += header.length;
+                }
+                if (inStatement == 0) {
+                    statements++;
+                    length = header.length + rowLength;
+                } else {
+                    length += 2 + rowLength;
+                }
+                inStatement++;
+                if (size >= BLOCK) {
+                    drain();
+                }
+            }
+            if (inStatement > 0) {
+                append(';');
+                append('\n');
+            }
+            drain();
+            return statements;
+        } finally {
+            size = 0;
+            this.out = null;
+        }
+    }
+
+    // Writes the rows as COPY table (columns) FROM stdin; followed by one
+    // tab-separated line per row and the \. terminator. NULL is \N, and
+    // backslash, tab, newline and carriage return in strings are escaped.
+    void writeCopy(SQLBulkRows rows, Appendable out) throws IOException {
+        this.out = out;
+        try {
+            append("COPY ");
+            names(rows);
+            append(" FROM stdin;\n");
+            for (int row = 0; row < rows.getRowCount(); row++) {
+                for (int column = 0; column < rows.getColumnCount(); column++) {
+                    if (column > 0) {
+                        append('\t');
+                    }
+                    copyValue(rows.column(column), row);
+                }
+                append('\n');
+                if (size >= BLOCK) {
+                    drain();
+                }
+            }
+            append("\\.\n");
+            drain();
+        } finally {
+            size = 0;
+            this.out = null;
+        }
+    }
+
+    // Length of "INSERT INTO table (columns) VALUES "
+    static int insertHeaderLength(SQLBulkRows rows) {
+        int length = "INSERT INTO ".length() + SQLWriter.quoteIfNeeded(rows.getTableName()).length() + " VALUES ".length();
+        List<String> names = rows.getColumnNames();
+        if (!names.isEmpty()) {
+            length += 3 + 2 * (names.size() - 1);
+            for (String name : names) {
+                length += SQLWriter.quoteIfNeeded(name).length();
+            }
+        }
+        return length;
+    }
+
+    private char[] insertHeader(SQLBulkRows rows) {
+        int mark = size;
+        append("INSERT INTO ");
+        names(rows);
+        append(" VALUES ");
+        char[] header = Arrays.copyOfRange(block, mark, size);
+        size = mark;
+        return header;
+    }
+
+    // table, or table (column, ...)
+    private void names(SQLBulkRows rows) {
+        append(SQLWriter.quoteIfNeeded(rows.getTableName()));
+        List<String> names = rows.getColumnNames();
+        if (!names.isEmpty()) {
+            append(" (");
+            for (int i = 0; i < names.size(); i++) {
+                if (i > 0) {
+                    append(", ");
+                }
+                append(SQLWriter.quoteIfNeeded(names.get(i)));
+            }
+            append(')');
+        }
+    }
+
+    private void sqlRow(SQLBulkRows rows, int row) {
+        append('(');
+        for (int column = 0; column < rows.getColumnCount(); column++) {
+            if (column > 0) {
+                append(',');
+                append(' ');
+            }
+            SQLBulkRows.Column c = rows.column(column);
+            if (c.isNull(row)) {
+                append(NULL);
+                continue;
+            }
+            switch (c.type) {
+                case INTEGER: decimal(c.longs[row], 0); break;
+                case DECIMAL: decimal(c.longs[row], c.scale); break;
+                case BOOLEAN: append(c.longs[row] != 0 ? TRUE : FALSE); break;
+                case DATE:
+                    append(DATE);
+                    date(c.longs[row]);
+                    append('\'');
+                    break;
+                default: {
+                    int from = c.start(row);
+                    int to = c.ends[row];
+                    ensure(2 * (to - from) + 2);
+                    char[] block = this.block;
+                    int at = size;
+                    block[at++] = '\'';
+                    for (int i = from; i < to; i++) {
+                        char ch = c.chars[i];
+                        block[at++] = ch;
+                        if (ch == '\'') {
+                            block[at++] = '\'';
+                        }
+                    }
+                    block[at++] = '\'';
+                    size = at;
+                    break;
+                }
+            }
+        }
+        append(')');
+    }
+
+    private void copyValue(SQLBulkRows.Column c, int row) {
+        if (c.isNull(row)) {
+            append('\\');
+            append('N');
+            return;
+        }
+        switch (c.type) {
+            case INTEGER: decimal(c.longs[row], 0); break;
+            case DECIMAL: decimal(c.longs[row], c.scale); break;
+            case BOOLEAN: append(c.longs[row] != 0 ? 't' : 'f'); break;
+            case DATE: date(c.longs[row]); break;
+            default: {
+                int from = c.start(row);
+                int to = c.ends[row];
+                ensure(2 * (to - from));
+                char[] block = this.block;
+                int at = size;
+                for (int i = from; i < to; i++) {
+                    char ch = c.chars[i];
+                    char escape = ch == '\\' ? '\\' : ch == '\t' ? 't' : ch == '\n' ? 'n' : ch == '\r' ? 'r' : 0;
+                    if (escape != 0) {
+                        block[at++] = '\\';
+                        ch = escape;
+                    }
+                    block[at++] = ch;
+                }
+                size = at;
+                break;
+            }
+        }
+    }
+
+    // The unscaled value's digits with a point scale places from the
+    // right, at least one digit before it. Digits are produced from the
+    // negative magnitude, so Long.MIN_VALUE needs no special case.
+    private void decimal(long unscaled, int scale) {
+        int digits = SQLBulkRows.digits(unscaled) - (unscaled < 0 ? 1 : 0);
+        int length = (unscaled < 0 ? 1 : 0) + (scale == 0 ? digits : Math.max(digits, scale + 1) + 1);
+        ensure(length);
+        char[] block = this.block;
+        int at = size + length;
+        long v = unscaled < 0 ? unscaled : -unscaled;
+        for (int place = 0; place < scale; place++) {
+            block[--at] = (char) ('0' - v % 10);
+            v /= 10;
+        }
+        if (scale > 0) {
+            block[--at] = '.';
+        }
+        do {
+            block[--at] = (char) ('0' - v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (unscaled < 0) {
+            block[--at] = '-';
+        }
+        size += length;
+    }
+
+    // yyyy-mm-dd, the year padded to four digits. Imports tend to cover
+    // a few years of days, so four-digit years are kept rendered in a
+    // small direct-mapped cache.
+    private void date(long epochDay) {
+        int slot = (int) epochDay & (DATE_SLOTS - 1);
+        if (dateKeys[slot] == epochDay) {
+            ensure(10);
+            System.arraycopy(dateChars, slot * 10, block, size, 10);
+            size += 10;
+            return;
+        }
+        int start = size;
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        int year = date.getYear();
+        for (int pad = SQLBulkRows.digits(year); pad < 4; pad++) {
+            append('0');
+        }
+        decimal(year, 0);
+        ensure(6);
+        char[] block = this.block;
+        int month = date.getMonthValue();
+        int day = date.getDayOfMonth();
+        block[size] = '-';
+        block[size + 1] = (char) ('0' + month / 10);
+        block[size + 2] = (char) ('0' + month % 10);
+        block[size + 3] = '-';
+        block[size + 4] = (char) ('0' + day / 10);
+        block[size + 5] = (char) ('0' + day % 10);
+        size += 6;
+        if (size - start == 10) {
+            dateKeys[slot] = epochDay;
+            System.arraycopy(block, start, dateChars, slot * 10, 10);
+        }
+    }
+
+    // =============== BLOCK ===============
+
+    private void append(char c) {
+        ensure(1);
+        block[size++] = c;
+    }
+
+    private void append(char[] chars) {
+        ensure(chars.length);
+        System.arraycopy(chars, 0, block, size, chars.length);
+        size += chars.length;
+    }
+
+    private void append(String s) {
+        ensure(s.length());
+        s.getChars(0, s.length(), block, size);
+        size += s.length();
+    }
+
+    private void ensure(int more) {
+        if (size + more > block.length) {
+            block = Arrays.copyOf(block, Math.max(size + more, block.length * 2));
+        }
+    }
+
+    // Passes the block to the output, a Writer as a char[] range
+    private void drain() throws IOException {
+        if (size == 0) {
+            return;
+        }
+        if (out instanceof Writer) {
+            ((Writer) out).write(block, 0, size);
+        } else if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(block, 0, size);
+        } else {
+            out.append(java.nio.CharBuffer.wrap(block, 0, size));
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,650 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+class SQLValidationException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+    private final int column;
+
+    SQLValidationException(String message, ASTNode node) {
+        super(message + " at line " + node.line + ", column " + node.column);
+        this.line = node.line;
+        this.column = node.column;
+    }
+
+    int getLine() { return line; }
+    int getColumn() { return column; }
+}
+
+// One column of a CatalogTable. The column object itself is the resolved
+// (table, ordinal, type) triple, so resolving a reference allocates
+// nothing. type is the declared DataType; for a CTE or derived table
+// column it is the type of the column it passes through, or null for a
+// computed one.
+final class CatalogColumn {
+    final CatalogTable table;
+    final int ordinal;
+    final String name;
+    final DataType type;
+
+    CatalogColumn(CatalogTable table, int ordinal, String name, DataType type) {
+        this.table = table;
+        this.ordinal = ordinal;
+        this.name = name;
+        this.type = type;
+    }
+
+    CatalogTable getTable() { return table; }
+    int getOrdinal() { return ordinal; }
+    String getName() { return name; }
+    DataType getType() { return type; }
+
+    @Override
+    public String toString() {
+        return (table.getName() != null ? table.getName() + "." : "") + name + "#" + ordinal;
+    }
+}
+
+// The columns of a catalog table, or of a CTE or derived table while a
+// statement is resolved, with a map from lower-case name to ordinal.
+// Unnamed outputs (computed expressions without an alias) have a null
+// name and cannot be referenced; a name two outputs share maps to
+// AMBIGUOUS.
+final class CatalogTable {
+    static final int AMBIGUOUS = -2;
+
+    private final String name;
+    private final CatalogColumn[] columns;
+    private final Map<String, Integer> ordinals;
+
+    CatalogTable(String name, String[] names, DataType[] types) {
+        this.name = name;
+        this.columns = new CatalogColumn[names.length];
+        this.ordinals = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = new CatalogColumn(this, i, names[i], types[i]);
+            if (names[i] != null && ordinals.putIfAbsent(names[i], i) != null) {
+                ordinals.put(names[i], AMBIGUOUS);
+            }
+        }
+    }
+
+    String getName() { return name; }
+    int getColumnCount() { return columns.length; }
+    CatalogColumn getColumn(int ordinal) { return columns[ordinal]; }
+
+    // Ordinal of a lower-case column name: -1 if absent, AMBIGUOUS if
+    // two outputs share it
+    int ordinalOf(String key) {
+        Integer ordinal = ordinals.get(key);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    @Override
+    public String toString() {
+        return "CatalogTable{name=" + name + ", columns=" + Arrays.toString(columns) + "}";
+    }
+}
+
+// The outcome of resolving one statement against an SQLCatalog: the
+// column each ColumnReference names, keyed by identity, and every unknown
+// table, unknown column and ambiguous reference found, in source order.
+// References to select-list aliases (GROUP BY total, ORDER BY band) are
+// valid but name no catalog column, so getColumn() returns null for them,
+// as it does for * and for references that failed.
+final class ResolvedQuery {
+    private final SQLStatement statement;
+    private final Map<ColumnReference, CatalogColumn> columns;
+    private final List<SQLValidationException> errors;
+
+    ResolvedQuery(SQLStatement statement, Map<ColumnReference, CatalogColumn> columns,
+                  List<SQLValidationException> errors) {
+        this.statement = statement;
+        this.columns = columns;
+        this.errors = errors;
+    }
+
+    SQLStatement getStatement() { return statement; }
+    CatalogColumn getColumn(ColumnReference reference) { return columns.get(reference); }
+    int getResolvedCount() { return columns.size(); }
+    List<SQLValidationException> getErrors() { return errors; }
+    boolean isValid() { return errors.isEmpty(); }
+
+    // Throws the first error, if any
+    ResolvedQuery check() {
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "ResolvedQuery{columns=" + columns.size() + ", errors=" + errors.size() + "}";
+    }
+}
+
+// In-memory schema built from CREATE TABLE statements, against which
+// statements are checked before they run. Names are case-insensitive, as
+// in SQLEngine: every table and column name is stored once in lower case
+// in a name pool shared by all tables, and the pool also maps each
+// spelling seen to its pooled form, so the lexer's interned identifiers
+// hit the per-table ordinal maps by reference without re-lowering.
+// resolve() binds each ColumnReference of a statement to a CatalogColumn
+// in one walk: a SELECT's CTEs and FROM items are entered into a scope
+// first, then every expression of the statement is resolved against that
+// scope and its enclosing ones, which is what makes correlated subqueries
+// work. Errors are collected rather than thrown, so one pass reports
+// them all.
+// Resolution of a PreparedQuery is memoized on it, so a cached query
+// shape is resolved once per catalog generation; define() starts a new
+// generation, and a query keeps only its latest resolution against each
+// catalog. Reads are thread-safe; define() may run concurrently with
+// them.
+class SQLCatalog {
+    // Stands in for a FROM table that does not exist, so that references
+    // to its columns are not reported on top of the table itself
+    private static final CatalogTable UNKNOWN = new CatalogTable(null, new String[0], new DataType[0]);
+
+    private final Map<String, CatalogTable> tables = new ConcurrentHashMap<>();
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+    private volatile Object generation = new Object();
+    // This catalog's key in PreparedQuery memos
+    private final Object memoKey = new Object();
+
+    CatalogTable define(CreateTableStatement statement) {
+        List<ColumnDefinition> definitions = statement.getColumnDefinitions();
+        String[] columnNames = new String[definitions.size()];
+        DataType[] types = new DataType[definitions.size()];
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < columnNames.length; i++) {
+            ColumnDefinition definition = definitions.get(i);
+            columnNames[i] = intern(definition.getColumnName());
+            types[i] = definition.getDataType();
+            if (!seen.add(columnNames[i])) {
+                throw new SQLValidationException("Column " + definition.getColumnName() + " is defined twice",
+                                                 definition);
+            }
+        }
+        String name = intern(statement.getTableName());
+        CatalogTable table = new CatalogTable(name, columnNames, types);
+        if (tables.putIfAbsent(name, table) != null) {
+            throw new SQLValidationException("Table " + statement.getTableName() + " already exists", statement);
+        }
+        generation = new Object();
+        return table;
+    }
+
+    // Defines the CREATE TABLE statements of a script, ignoring the rest
+    void defineAll(List<? extends SQLStatement> statements) {
+        for (SQLStatement statement : statements) {
+            if (statement instanceof CreateTableStatement) {
+                define((CreateTableStatement) statement);
+            }
+        }
+    }
+
+    CatalogTable getTable(String name) {
+        return tables.get(key(name));
+    }
+
+    int getTableCount() { return tables.size(); }
+
+    ResolvedQuery resolve(SQLStatement statement) {
+        return new Resolver().statement(statement);
+    }
+
+    ResolvedQuery resolve(PreparedQuery prepared) {
+        Object current = generation;
+        Resolution resolution = prepared.computeIfStale(memoKey, (Resolution r) -> r.generation != current,
+                                                        statement -> new Resolution(current, resolve(statement)));
+        return resolution.query;
+    }
+
+    // A PreparedQuery's resolution against one generation of the catalog
+    private static final class Resolution {
+        final Object generation;
+        final ResolvedQuery query;
+
+        Resolution(Object generation, ResolvedQuery query) {
+            this.generation = generation;
+            this.query = query;
+        }
+    }
+
+    ResolvedQuery resolve(BoundQuery bound) {
+        return resolve(bound.getPrepared());
+    }
+
+    private String intern(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        String pooled = names.putIfAbsent(lower, lower);
+        return pooled != null ? pooled : lower;
+    }
+
+    // The pooled lower-case form of a name; names no table defines are
+    // lowered on each call rather than pooled, so arbitrary input cannot
+    // grow the pool
+    private String key(String name) {
+        String pooled = names.get(name);
+        if (pooled == null) {
+            String lower = name.toLowerCase(Locale.ROOT);
+            pooled = names.get(lower);
+            if (pooled == null) {
+                return lower;
+            }
+            names.putIfAbsent(name, pooled);
+        }
+        return pooled;
+    }
+
+    @Override
+    public String toString() {
+        return "SQLCatalog{tables=" + tables.size() + "}";
+    }
+
+    // =============== RESOLUTION ===============
+
+    // The tables a SELECT reads, by qualifier (alias, else table name),
+    // the CTEs it defines, and its select list for alias references
+    private static final class Scope {
+        final Scope outer;
+        boolean incomplete; // a FROM table is unknown
+        final List<String> qualifiers = new ArrayList<>(4);
+        final List<CatalogTable> tables = new ArrayList<>(4);
+        Map<String, CatalogTable> ctes;
+        List<SelectItem> selectList;
+
+        Scope(Scope outer) {
+            this.outer = outer;
+        }
+
+        void add(String qualifier, CatalogTable table) {
+            qualifiers.add(qualifier);
+            tables.add(table);
+            incomplete |= table == UNKNOWN;
+        }
+    }
+
+    // One statement's resolution state; a new one per statement
+    private final class Resolver {
+        private final Map<ColumnReference, CatalogColumn> columns = new IdentityHashMap<>();
+        private final List<SQLValidationException> errors = new ArrayList<>();
+        private final SQLTreeWalker walker = new SQLTreeWalker();
+
+        ResolvedQuery statement(SQLStatement statement) {
+            if (statement instanceof SelectStatement) {
+                select((SelectStatement) statement, null);
+            } else if (statement instanceof InsertStatement) {
+                insert((InsertStatement) statement);
+            } else if (statement instanceof UpdateStatement) {
+                UpdateStatement update = (UpdateStatement) statement;
+                Scope scope = target(update.getTableName(), update.getTableAlias(), update);
+                for (SetClause set : update.getSetClauses()) {
+                    CatalogTable table = scope.tables.get(0);
+                    if (table != UNKNOWN && table.ordinalOf(key(set.getColumnName())) < 0) {
+                        error("Unknown column " + set.getColumnName(), set);
+                    }
+                    expression(set.getValue(), scope, false);
+                }
+                if (update.getWhereClause() != null) {
+                    expression(update.getWhereClause().getCondition(), scope, false);
+                }
+            } else if (statement instanceof DeleteStatement) {
+                DeleteStatement delete = (DeleteStatement) statement;
+                Scope scope = target(delete.getTableName(), delete.getTableAlias(), delete);
+                if (delete.getWhereClause() != null) {
+                    expression(delete.getWhereClause().getCondition(), scope, false);
+                }
+            }
+            errors.sort(Comparator.comparingInt(SQLValidationException::getLine)
+                                  .thenComparingInt(SQLValidationException::getColumn));
+            return new ResolvedQuery(statement, columns, errors);
+        }
+
+        // Resolves a SELECT, its CTEs, subqueries and set operations, and
+        // returns the table of its outputs
+        private CatalogTable select(SelectStatement select, Scope outer) {
+            Scope withScope = outer;
+            if (!select.getCteList().isEmpty()) {
+                withScope = new Scope(outer);
+                withScope.ctes = new HashMap<>();
+                for (CommonTableExpression cte : select.getCteList()) {
+                    withScope.ctes.put(cte.getName().toLowerCase(Locale.ROOT), cte(cte, withScope));
+                }
+            }
+            Scope scope = new Scope(withScope);
+            if (select.getFromClause() != null) {
+                from(select.getFromClause().getTableExpression(), scope, withScope);
+            }
+            for (SelectItem item : select.getSelectList()) {
+                expression(item.getExpression(), scope, false);
+            }
+            if (select.getWhereClause() != null) {
+                expression(select.getWhereClause().getCondition(), scope, false);
+            }
+            scope.selectList = select.getSelectList();
+            if (select.getGroupByClause() != null) {
+                for (Expression key : select.getGroupByClause().getGroupingExpressions()) {
+                    expression(key, scope, true);
+                }
+            }
+            if (select.getHavingClause() != null) {
+                expression(select.getHavingClause().getCondition(), scope, true);
+            }
+            for (SetOperation operation : select.getSetOperations()) {
+                select(operation.getQuery(), withScope);
+            }
+            if (select.getOrderByClause() != null) {
+                for (OrderByElement element : select.getOrderByClause().getOrderByElements()) {
+                    expression(element.getExpression(), scope, true);
+                }
+            }
+            if (select.getLimitClause() != null) {
+                expression(select.getLimitClause().getRowCount(), scope, false);
+                expression(select.getLimitClause().getOffset(), scope, false);
+            }
+            return outputs(select, scope);
+        }
+
+        // A recursive CTE is in scope in its own query, with the columns
+        // its column list or its anchor's select list names, untyped
+        private CatalogTable cte(CommonTableExpression cte, Scope withScope) {
+            String name = cte.getName().toLowerCase(Locale.ROOT);
+            List<String> columnList = cte.getColumnList();
+            boolean renamed = columnList != null && !columnList.isEmpty();
+            if (cte.isRecursive()) {
+                String[] declared;
+                if (renamed) {
+                    declared = lower(columnList);
+                } else {
+                    List<SelectItem> items = cte.getQuery().getSelectList();
+                    declared = new String[items.size()];
+                    for (int i = 0; i < declared.length; i++) {
+                        declared[i] = outputName(items.get(i));
+                    }
+                }
+                withScope.ctes.put(name, new CatalogTable(name, declared, new DataType[declared.length]));
+            }
+            CatalogTable output = select(cte.getQuery(), withScope);
+            if (!renamed) {
+                return new CatalogTable(name, outputNames(output), outputTypes(output));
+            }
+            if (columnList.size() != output.getColumnCount()) {
+                error(cte.getName() + " names " + columnList.size() + " columns but its query has "
+                      + output.getColumnCount(), cte);
+            }
+            String[] columnNames = lower(columnList);
+            DataType[] types = new DataType[columnNames.length];
+            for (int i = 0; i < types.length && i < output.getColumnCount(); i++) {
+                types[i] = output.getColumn(i).type;
+            }
+            return new CatalogTable(name, columnNames, types);
+        }
+
+        // Enters the tables of a FROM item into scope. Derived tables see
+        // the enclosing query and its CTEs, not their sibling FROM items.
+        private void from(TableExpression from, Scope scope, Scope withScope) {
+            if (from instanceof TableReference) {
+                TableReference reference = (TableReference) from;
+                CatalogTable table = table(reference.getTableName(), scope);
+                if (table == null) {
+                    error("Unknown table " + reference.getTableName(), reference);
+                    table = UNKNOWN;
+                }
+                enter(reference.getAlias() != null ? reference.getAlias() : reference.getTableName(), table, reference,
+                      scope);
+            } else if (from instanceof JoinExpression) {
+                JoinExpression join = (JoinExpression) from;
+                from(join.getLeftTable(), scope, withScope);
+                from(join.getRightTable(), scope, withScope);
+                expression(join.getJoinCondition(), scope, false);
+            } else if (from instanceof DerivedTable) {
+                DerivedTable derived = (DerivedTable) from;
+                CatalogTable output = select(derived.getQuery(), withScope);
+                String name = derived.getAlias() != null ? derived.getAlias().toLowerCase(Locale.ROOT) : null;
+                enter(derived.getAlias(), new CatalogTable(name, outputNames(output), outputTypes(output)), derived,
+                      scope);
+            }
+        }
+
+        // Adds a FROM table to scope under its alias or name, which no
+        // other table of the scope may have
+        private void enter(String qualifier, CatalogTable table, TableExpression from, Scope scope) {
+            if (qualifier != null) {
+                for (String other : scope.qualifiers) {
+                    if (qualifier.equalsIgnoreCase(other)) {
+                        error("Table name " + qualifier + " is used more than once", from);
+                        break;
+                    }
+                }
+            }
+            scope.add(qualifier, table);
+        }
+
+        private Scope target(String tableName, String alias, SQLStatement statement) {
+            Scope scope = new Scope(null);
+            CatalogTable table = table(tableName, null);
+            if (table == null) {
+                error("Unknown table " + tableName, statement);
+                table = UNKNOWN;
+            }
+            scope.add(alias != null ? alias : tableName, table);
+            return scope;
+        }
+
+        private void insert(InsertStatement insert) {
+            CatalogTable table = table(insert.getTableName(), null);
+            if (table == null) {
+                error("Unknown table " + insert.getTableName(), insert);
+            }
+            int width = insert.getColumnList().isEmpty() && table != null ? table.getColumnCount()
+                                                                          : insert.getColumnList().size();
+            for (String column : insert.getColumnList()) {
+                if (table != null && table.ordinalOf(key(column)) < 0) {
+                    error("Unknown column " + column, insert);
+                }
+            }
+            Scope empty = new Scope(null);
+            if (insert.getValuesClause() != null) {
+                for (List<Expression> row : insert.getValuesClause().getValuesList()) {
+                    if (table != null && row.size() != width && !row.isEmpty()) {
+                        error("INSERT has " + width + " target columns but " + row.size() + " values", row.get(0));
+                    }
+                    for (Expression value : row) {
+                        expression(value, empty, false);
+                    }
+                }
+            }
+            if (insert.getSelectStatement() != null) {
+                CatalogTable output = select(insert.getSelectStatement(), null);
+                if (table != null && output.getColumnCount() != width) {
+                    error("INSERT has " + width + " target columns but its query has " + output.getColumnCount(),
+                          insert.getSelectStatement());
+                }
+            }
+        }
+
+        // A CTE in scope, else a catalog table
+        private CatalogTable table(String name, Scope scope) {
+            String lower = null;
+            for (Scope s = scope; s != null; s = s.outer) {
+                if (s.ctes != null) {
+                    if (lower == null) {
+                        lower = name.toLowerCase(Locale.ROOT);
+                    }
+                    CatalogTable cte = s.ctes.get(lower);
+                    if (cte != null) {
+                        return cte;
+                    }
+                }
+            }
+            return tables.get(key(name));
+        }
+
+        // Resolves the column references of an expression; subqueries are
+        // resolved as SELECTs nested in scope. aliases allows unqualified
+        // names of the select list, as GROUP BY, HAVING and ORDER BY do.
+        private void expression(Expression expression, Scope scope, boolean aliases) {
+            if (expression == null) {
+                return;
+            }
+            walker.walk(expression, node -> {
+                if (node instanceof ColumnReference) {
+                    column((ColumnReference) node, scope, aliases);
+                    return false;
+                }
+                if (node instanceof SubqueryExpression) {
+                    select(((SubqueryExpression) node).getQuery(), scope);
+                    return false;
+                }
+                return true;
+            });
+        }
+
+        // A reference binds to the innermost scope that has its column;
+        // within a scope, an unqualified name must belong to exactly one
+        // table
+        private void column(ColumnReference reference, Scope scope, boolean aliases) {
+            String qualifier = reference.getTableName();
+            String name = reference.getColumnName();
+            if (qualifier != null) {
+                for (Scope s = scope; s != null; s = s.outer) {
+                    for (int t = 0; t < s.tables.size(); t++) {
+                        if (qualifier.equalsIgnoreCase(s.qualifiers.get(t))) {
+                            if (!name.equals("*")) {
+                                bind(reference, s.tables.get(t), s.tables.get(t).ordinalOf(key(name)));
+                            }
+                            return;
+                        }
+                    }
+                }
+                error("Unknown table " + qualifier, reference);
+                return;
+            }
+            if (name.equals("*")) {
+                return;
+            }
+            String key = key(name);
+            boolean incomplete = false;
+            for (Scope s = scope; s != null; s = s.outer) {
+                incomplete |= s.incomplete;
+                CatalogTable owner = null;
+                int found = -1;
+                for (int t = 0; t < s.tables.size(); t++) {
+                    int ordinal = s.tables.get(t).ordinalOf(key);
+                    if (ordinal == -1) {
+                        continue;
+                    }
+                    if (owner != null || ordinal == CatalogTable.AMBIGUOUS) {
+                        error("Column " + name + " is ambiguous", reference);
+                        return;
+                    }
+                    owner = s.tables.get(t);
+                    found = ordinal;
+                }
+                if (owner != null) {
+                    columns.put(reference, owner.getColumn(found));
+                    return;
+                }
+                if (aliases && s == scope && isAlias(name, s.selectList)) {
+                    return;
+                }
+            }
+            if (!incomplete) {
+                error("Unknown column " + name, reference);
+            }
+        }
+
+        private void bind(ColumnReference reference, CatalogTable table, int ordinal) {
+            if (table == UNKNOWN) {
+                return;
+            }
+            if (ordinal >= 0) {
+                columns.put(reference, table.getColumn(ordinal));
+            } else if (ordinal == CatalogTable.AMBIGUOUS) {
+                error("Column " + reference.getTableName() + "." + reference.getColumnName() + " is ambiguous",
+                      reference);
+            } else {
+                error("Unknown column " + reference.getTableName() + "." + reference.getColumnName(), reference);
+            }
+        }
+
+        // The output columns of a SELECT: select items by alias or column
+        // name, * expanded over the FROM tables. For set operations the
+        // first operand names the outputs.
+        private CatalogTable outputs(SelectStatement select, Scope scope) {
+            List<String> outputNames = new ArrayList<>();
+            List<DataType> types = new ArrayList<>();
+            for (SelectItem item : select.getSelectList()) {
+                Expression expression = item.getExpression();
+                if (expression instanceof ColumnReference && ((ColumnReference) expression).getColumnName().equals("*")) {
+                    String qualifier = ((ColumnReference) expression).getTableName();
+                    for (int t = 0; t < scope.tables.size(); t++) {
+                        if (qualifier == null || qualifier.equalsIgnoreCase(scope.qualifiers.get(t))) {
+                            CatalogTable table = scope.tables.get(t);
+                            for (int i = 0; i < table.getColumnCount(); i++) {
+                                outputNames.add(table.getColumn(i).name);
+                                types.add(table.getColumn(i).type);
+                            }
+                        }
+                    }
+                    continue;
+                }
+                outputNames.add(outputName(item));
+                CatalogColumn column = expression instanceof ColumnReference ? columns.get(expression) : null;
+                types.add(column != null ? column.type : null);
+            }
+            return new CatalogTable(null, outputNames.toArray(new String[0]), types.toArray(new DataType[0]));
+        }
+
+        private void error(String message, ASTNode node) {
+            errors.add(new SQLValidationException(message, node));
+        }
+    }
+
+    private static String outputName(SelectItem item) {
+        if (item.getAlias() != null) {
+            return item.getAlias().toLowerCase(Locale.ROOT);
+        }
+        Expression expression = item.getExpression();
+        return expression instanceof ColumnReference ? ((ColumnReference) expression).getColumnName().toLowerCase(Locale.ROOT)
+                                                     : null;
+    }
+
+    private static boolean isAlias(String name, List<SelectItem> selectList) {
+        if (selectList != null) {
+            for (SelectItem item : selectList) {
+                if (name.equalsIgnoreCase(item.getAlias())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String[] lower(List<String> names) {
+        String[] lower = new String[names.size()];
+        for (int i = 0; i < lower.length; i++) {
+            lower[i] = names.get(i).toLowerCase(Locale.ROOT);
+        }
+        return lower;
+    }
+
+    private static String[] outputNames(CatalogTable table) {
+        String[] outputNames = new String[table.getColumnCount()];
+        for (int i = 0; i < outputNames.length; i++) {
+            outputNames[i] = table.getColumn(i).name;
+        }
+        return outputNames;
+    }
+
+    private static DataType[] outputTypes(CatalogTable table) {
+        DataType[] types = new DataType[table.getColumnCount()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = table.getColumn(i).type;
+        }
+        return types;
+    }
+}
@@ -0,0 +1,1292 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Thrown for a statement that parses but cannot be executed: unknown
+// names, type errors, unsupported constructs
+class SQLExecutionException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+    private final int column;
+
+    SQLExecutionException(String message, ASTNode node) {
+        super(message + " at line " + node.line + ", column " + node.column);
+        this.line = node.line;
+        this.column = node.column;
+    }
+
+    int getLine() { return line; }
+    int getColumn() { return column; }
+}
+
+// In-memory SELECT over registered SQLTables. Execution is column- and
+// batch-at-a-time: WHERE narrows a selection of row numbers one conjunct
+// at a time, GROUP BY hashes encoded keys into an open-addressing table
+// and folds each aggregate over whole batches, and only the surviving
+// rows are ever projected. Large GROUP BY inputs are split across a
+// ForkJoinPool, each task grouping into its own table, and the tables
+// merged. ORDER BY sorts primitive key records, with a bounded heap under
+// LIMIT and run files past a row budget (see SQLSorter). Results come
+// back as SQLTables.
+// Supported: WHERE, GROUP BY (by expression, alias or ordinal), HAVING,
+// COUNT/SUM/AVG/MIN/MAX with DISTINCT, SELECT DISTINCT, ORDER BY with
+// NULLs last ascending and first descending, LIMIT/OFFSET, WITH, derived
+// tables, joins of every type (see SQLJoinPlanner), and WITH RECURSIVE
+// whose terms each refer to the entry at most once (see
+// SQLRecursiveUnion). Set operations elsewhere and subquery expressions
+// are rejected with an SQLExecutionException.
+// Registered tables are immutable, so one engine serves any number of
+// threads.
+class SQLEngine {
+    // FROM-less SELECT reads one row with no columns
+    private static final SQLTable NO_TABLE = new SQLTable("dual", 1, Collections.emptyList());
+    // Fewest rows per task when GROUP BY runs in parallel
+    private static final int PARALLEL_GROUP_ROWS = 1 << 16;
+
+    private final Map<String, SQLTable> tables = new ConcurrentHashMap<>();
+    private final ThreadLocal<SQLParser> parsers = ThreadLocal.withInitial(SQLParser::new);
+    private volatile int maxJoinBuildRows = SQLHashJoin.DEFAULT_MAX_BUILD_ROWS;
+    private volatile Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+    private volatile int maxSortRows = SQLSorter.DEFAULT_MAX_RUN_ROWS;
+    private volatile Path sortSpillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+    private volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+    private volatile int maxRecursionIterations = SQLRecursiveUnion.DEFAULT_MAX_ITERATIONS;
+    private volatile long maxRecursionBytes = SQLRecursiveUnion.DEFAULT_MAX_BYTES;
+
+    void register(SQLTable table) {
+        tables.put(key(table.getName()), table);
+    }
+
+    SQLTable getTable(String name) {
+        return tables.get(key(name));
+    }
+
+    // Hash joins whose build side has more rows than this partition both
+    // sides into files under spillDirectory
+    void setJoinSpill(int maxBuildRows, Path spillDirectory) {
+        if (maxBuildRows < 1) {
+            throw new IllegalArgumentException("maxBuildRows must be positive: " + maxBuildRows);
+        }
+        this.maxJoinBuildRows = maxBuildRows;
+        this.spillDirectory = spillDirectory;
+    }
+
+    // ORDER BY without a LIMIT over more rows than this sorts runs of
+    // maxSortRows into files under spillDirectory and merges them
+    void setSortSpill(int maxSortRows, Path spillDirectory) {
+        if (maxSortRows < 1) {
+            throw new IllegalArgumentException("maxSortRows must be positive: " + maxSortRows);
+        }
+        this.maxSortRows = maxSortRows;
+        this.sortSpillDirectory = spillDirectory;
+    }
+
+    // Pool that GROUP BY splits large inputs across, up to one task per
+    // unit of its parallelism; a pool of parallelism 1 keeps grouping on
+    // the calling thread
+    void setPool(ForkJoinPool pool) {
+        this.pool = Objects.requireNonNull(pool);
+    }
+
+    // A recursive WITH fails once it has iterated maxIterations times or
+    // holds more than about maxBytes of derived rows and join state
+    void setRecursionLimits(int maxIterations, long maxBytes) {
+        if (maxIterations < 1) {
+            throw new IllegalArgumentException("maxIterations must be positive: " + maxIterations);
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.maxRecursionIterations = maxIterations;
+        this.maxRecursionBytes = maxBytes;
+    }
+
+    SQLTable execute(String sql) {
+        return execute(parsers.get().parse(sql));
+    }
+
+    SQLTable execute(BoundQuery query) {
+        Object[] parameters = new Object[query.getParameterCount()];
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = query.getParameter(i);
+        }
+        return execute(query.getStatement(), parameters);
+    }
+
+    SQLTable execute(SQLStatement statement, Object... parameters) {
+        if (!(statement instanceof SelectStatement)) {
+            throw new SQLExecutionException("Only SELECT can be executed", statement);
+        }
+        return new Execution(parameters).query((SelectStatement) statement, Collections.emptyMap());
+    }
+
+    static boolean isAggregate(FunctionCall call) {
+        switch (call.getFunctionName().toUpperCase(Locale.ROOT)) {
+            case "COUNT":
+            case "SUM":
+            case "AVG":
+            case "MIN":
+            case "MAX":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isStar(Expression expression) {
+        return expression instanceof ColumnReference && ((ColumnReference) expression).getColumnName().equals("*");
+    }
+
+    // One statement's execution: its parameters and scratch state
+    private final class Execution {
+        private final Object[] parameters;
+        private final SQLWriter writer = SQLWriter.compact();
+        private final SQLTreeWalker walker = new SQLTreeWalker();
+        private final int[] batch = new int[SQLEvaluator.BATCH_SIZE];
+        private SQLHashJoin hashJoin;
+        private SQLJoinCache joinCache; // while a recursive WITH iterates
+
+        Execution(Object[] parameters) {
+            this.parameters = parameters;
+        }
+
+        SQLTable query(SelectStatement select, Map<String, SQLTable> scope) {
+            if (!select.getSetOperations().isEmpty()) {
+                throw new SQLExecutionException("Set operations are not supported", select.getSetOperations().get(0));
+            }
+            return block(select, with(select, scope));
+        }
+
+        // The scope the query's body sees: the outer scope and its WITH list
+        private Map<String, SQLTable> with(SelectStatement select, Map<String, SQLTable> scope) {
+            if (select.getCteList().isEmpty()) {
+                return scope;
+            }
+            scope = new HashMap<>(scope);
+            for (CommonTableExpression cte : select.getCteList()) {
+                // WITH RECURSIVE marks every entry, including those that
+                // never refer to themselves
+                SQLTable result = cte.isRecursive() && references(cte.getQuery(), cte.getName(), true) > 0
+                        ? recursive(cte, scope)
+                        : named(query(cte.getQuery(), scope), cte.getName(), cte.getColumnList(), cte);
+                scope.put(key(cte.getName()), result);
+            }
+            return scope;
+        }
+
+        // A recursive WITH entry: a first term that does not refer to the
+        // entry, then UNION or UNION ALL terms, each of which may refer to
+        // it once; those that do run once per iteration against the rows
+        // the previous iteration added (see SQLRecursiveUnion)
+        private SQLTable recursive(CommonTableExpression cte, Map<String, SQLTable> scope) {
+            SelectStatement query = cte.getQuery();
+            String name = cte.getName();
+            List<SetOperation> operations = query.getSetOperations();
+            if (operations.isEmpty() || references(query, name, false) > 0) {
+                throw new SQLExecutionException("Recursive " + name
+                                                + " must start with a term that does not refer to it", cte);
+            }
+            if (query.getOrderByClause() != null || query.getLimitClause() != null) {
+                throw new SQLExecutionException("ORDER BY and LIMIT are not supported in recursive " + name, cte);
+            }
+            SetOperation.Type type = operations.get(0).getType();
+            List<SelectStatement> terms = new ArrayList<>();
+            List<SelectStatement> anchorTerms = new ArrayList<>();
+            for (SetOperation operation : operations) {
+                if (operation.getType() != SetOperation.Type.UNION && operation.getType() != SetOperation.Type.UNION_ALL) {
+                    throw new SQLExecutionException("Recursive " + name + " must combine its terms with UNION or "
+                                                    + "UNION ALL", operation);
+                }
+                if (operation.getType() != type) {
+                    throw new SQLExecutionException("Recursive " + name + " mixes UNION and UNION ALL", operation);
+                }
+                SelectStatement term = operation.getQuery();
+                int count = references(term, name, true);
+                if (count == 0) {
+                    anchorTerms.add(term);
+                    continue;
+                }
+                if (count > 1) {
+                    throw new SQLExecutionException("A term of recursive " + name + " refers to it more than once",
+                                                    term);
+                }
+                List<Expression> outputs = new ArrayList<>();
+                for (SelectItem item : term.getSelectList()) {
+                    outputs.add(item.getExpression());
+                }
+                if (term.getGroupByClause() != null || term.getHavingClause() != null || containsAggregate(outputs)) {
+                    throw new SQLExecutionException("Aggregates are not supported in a term of recursive " + name,
+                                                    term);
+                }
+                if (term.getOrderByClause() != null || term.getLimitClause() != null) {
+                    throw new SQLExecutionException("ORDER BY and LIMIT are not supported in recursive " + name,
+                                                    term);
+                }
+                terms.add(term);
+            }
+            Map<String, SQLTable> inner = with(query, scope);
+            List<SQLTable> anchors = new ArrayList<>();
+            anchors.add(named(block(query, inner), name, cte.getColumnList(), cte));
+            for (SelectStatement term : anchorTerms) {
+                anchors.add(query(term, inner));
+            }
+            Map<String, SQLTable> recursive = new HashMap<>(inner);
+            String key = key(name);
+            // Every table a term can name, except the entry itself, is
+            // the same in each iteration, so its joins are cached
+            Set<SQLTable> stable = Collections.newSetFromMap(new IdentityHashMap<>());
+            stable.addAll(inner.values());
+            stable.addAll(tables.values());
+            SQLJoinCache outer = joinCache;
+            joinCache = new SQLJoinCache(stable::contains);
+            SQLRecursiveUnion union = new SQLRecursiveUnion(name, type == SetOperation.Type.UNION,
+                                                            maxRecursionIterations, maxRecursionBytes, joinCache, cte);
+            try {
+                return union.evaluate(anchors, delta -> {
+                    recursive.put(key, delta);
+                    List<SQLTable> derived = new ArrayList<>(terms.size());
+                    for (SelectStatement term : terms) {
+                        derived.add(query(term, recursive));
+                    }
+                    return derived;
+                });
+            } finally {
+                joinCache = outer;
+            }
+        }
+
+        // Number of references to the named table in the query, not
+        // counting its set operations' terms unless terms is set
+        private int references(SelectStatement query, String name, boolean terms) {
+            int[] count = new int[1];
+            walker.walk(query, node -> {
+                if (node instanceof TableReference && ((TableReference) node).getTableName().equalsIgnoreCase(name)) {
+                    count[0]++;
+                }
+                return terms || !(node instanceof SetOperation);
+            });
+            return count[0];
+        }
+
+        // One SELECT block, set operations and WITH list aside, in scope
+        private SQLTable block(SelectStatement select, Map<String, SQLTable> scope) {
+            if (select.getFromClause() == null) {
+                return select(select, new SQLEvaluator(NO_TABLE, (String) null, parameters, Collections.emptyMap(), true),
+                              false);
+            }
+            TableExpression from = select.getFromClause().getTableExpression();
+            Map<String, SQLTable> tables = scope;
+            if (from instanceof JoinExpression) {
+                Expression where = select.getWhereClause() == null ? null : select.getWhereClause().getCondition();
+                SQLJoinPlanner.Joined joined = new SQLJoinPlanner(parameters, hashJoin(), joinCache)
+                        .join((JoinExpression) from, where, leaf -> table(leaf, tables));
+                return select(select, new SQLEvaluator(joined.table, joined.qualifiers, parameters),
+                              joined.whereApplied);
+            }
+            String qualifier = from instanceof TableReference
+                    ? (((TableReference) from).getAlias() != null ? ((TableReference) from).getAlias()
+                                                                  : ((TableReference) from).getTableName())
+                    : ((DerivedTable) from).getAlias();
+            return select(select, new SQLEvaluator(table(from, scope), qualifier, parameters, Collections.emptyMap(),
+                                                   true), false);
+        }
+
+        // The rows of a named table or derived table
+        private SQLTable table(TableExpression from, Map<String, SQLTable> scope) {
+            if (from instanceof DerivedTable) {
+                return query(((DerivedTable) from).getQuery(), scope);
+            }
+            TableReference reference = (TableReference) from;
+            SQLTable input = scope.get(key(reference.getTableName()));
+            if (input == null) {
+                input = getTable(reference.getTableName());
+            }
+            if (input == null) {
+                throw new SQLExecutionException("Unknown table " + reference.getTableName(), reference);
+            }
+            return input;
+        }
+
+        private SQLHashJoin hashJoin() {
+            if (hashJoin == null) {
+                hashJoin = new SQLHashJoin(maxJoinBuildRows, spillDirectory);
+            }
+            return hashJoin;
+        }
+
+        private SQLTable named(SQLTable table, String name, List<String> columnNames, ASTNode where) {
+            List<SQLColumn> columns = new ArrayList<>();
+            boolean rename = columnNames != null && !columnNames.isEmpty();
+            if (rename && columnNames.size() != table.getColumnCount()) {
+                throw new SQLExecutionException(name + " names " + columnNames.size() + " columns but its query has "
+                                                + table.getColumnCount(), where);
+            }
+            for (int i = 0; i < table.getColumnCount(); i++) {
+                SQLColumn column = table.getColumn(i);
+                columns.add(rename ? column.rename(columnNames.get(i)) : column);
+            }
+            return new SQLTable(name, table.getRowCount(), columns);
+        }
+
+        // filtered is true when the WHERE clause was already applied to
+        // the rows of base
+        private SQLTable select(SelectStatement select, SQLEvaluator base, boolean filtered) {
+            SQLTable input = base.getInput();
+            List<Expression> outputs = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<String> aliases = new ArrayList<>();
+            for (SelectItem item : select.getSelectList()) {
+                Expression expression = item.getExpression();
+                if (isStar(expression)) {
+                    String table = ((ColumnReference) expression).getTableName();
+                    boolean known = table == null;
+                    for (int i = 0; i < input.getColumnCount(); i++) {
+                        String owner = base.qualifierOf(i);
+                        if (table != null && !table.equalsIgnoreCase(owner)) {
+                            continue;
+                        }
+                        known = true;
+                        String name = input.getColumn(i).getName();
+                        outputs.add(new ColumnReference(owner, name, expression.line, expression.column));
+                        names.add(name);
+                        aliases.add(null);
+                    }
+                    if (!known) {
+                        throw new SQLExecutionException("Unknown table " + table, expression);
+                    }
+                    continue;
+                }
+                outputs.add(expression);
+                aliases.add(item.getAlias());
+                names.add(item.getAlias() != null ? item.getAlias()
+                          : expression instanceof ColumnReference ? ((ColumnReference) expression).getColumnName()
+                          : writer.write(expression, parameters));
+            }
+
+            List<Expression> orderKeys = new ArrayList<>();
+            boolean[] descending = new boolean[0];
+            if (select.getOrderByClause() != null) {
+                List<OrderByElement> elements = select.getOrderByClause().getOrderByElements();
+                descending = new boolean[elements.size()];
+                for (int i = 0; i < elements.size(); i++) {
+                    orderKeys.add(outputFor(elements.get(i).getExpression(), outputs, aliases));
+                    descending[i] = elements.get(i).getDirection() == OrderByElement.SortDirection.DESC;
+                }
+            }
+            Expression where = select.getWhereClause() == null || filtered ? null
+                                                                            : select.getWhereClause().getCondition();
+            Expression having = select.getHavingClause() == null ? null : select.getHavingClause().getCondition();
+            long offset = 0;
+            long limit = Long.MAX_VALUE;
+            if (select.getLimitClause() != null) {
+                limit = count(base, select.getLimitClause().getRowCount());
+                if (select.getLimitClause().getOffset() != null) {
+                    offset = count(base, select.getLimitClause().getOffset());
+                }
+            }
+
+            List<Expression> groupKeys = new ArrayList<>();
+            if (select.getGroupByClause() != null) {
+                for (Expression expression : select.getGroupByClause().getGroupingExpressions()) {
+                    groupKeys.add(outputFor(expression, outputs, aliases));
+                }
+            }
+            boolean aggregates = containsAggregate(outputs) || containsAggregate(orderKeys) || having != null;
+            if (select.isDistinct()) {
+                if (aggregates || !groupKeys.isEmpty()) {
+                    throw new SQLExecutionException("SELECT DISTINCT with GROUP BY or aggregates is not supported",
+                                                    select);
+                }
+                // DISTINCT is grouping by every output
+                groupKeys.addAll(outputs);
+            }
+            boolean grouped = aggregates || !groupKeys.isEmpty();
+
+            // Without sorting or grouping, LIMIT stops the scan early
+            long wanted = grouped || !orderKeys.isEmpty() || limit == Long.MAX_VALUE ? Long.MAX_VALUE
+                                                                                    : Math.min(offset + limit, Integer.MAX_VALUE);
+            int[] rows = scan(base, where, wanted);
+            SQLEvaluator current = base;
+            if (grouped) {
+                List<Expression> post = new ArrayList<>(outputs);
+                post.addAll(orderKeys);
+                if (having != null) {
+                    post.add(having);
+                }
+                current = group(base, rows, groupKeys, post);
+                rows = scan(current, having, Long.MAX_VALUE);
+            }
+
+            // Only the first offset + limit rows in order are ever needed
+            long needed = limit > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + limit;
+            int[] order = sort(current, rows, orderKeys, descending, needed);
+            int from = (int) Math.min(offset, rows.length);
+            int count = (int) Math.min(limit, rows.length - from);
+            int[] result = new int[count];
+            for (int i = 0; i < count; i++) {
+                result[i] = rows[order == null ? from + i : order[from + i]];
+            }
+            List<SQLColumn> columns = new ArrayList<>();
+            for (int i = 0; i < outputs.size(); i++) {
+                columns.add(materialize(current, outputs.get(i), names.get(i), result, count));
+            }
+            return new SQLTable("result", count, columns);
+        }
+
+        // ORDER BY and GROUP BY items may name an output by alias or by
+        // position; other expressions stand for themselves
+        private Expression outputFor(Expression expression, List<Expression> outputs, List<String> aliases) {
+            if (expression instanceof LiteralExpression
+                    && ((LiteralExpression) expression).getType() == LiteralExpression.LiteralType.INTEGER) {
+                long position = ((Number) ((LiteralExpression) expression).getValue()).longValue();
+                if (position < 1 || position > outputs.size()) {
+                    throw new SQLExecutionException("Position " + position + " is not in the select list", expression);
+                }
+                return outputs.get((int) position - 1);
+            }
+            if (expression instanceof ColumnReference && ((ColumnReference) expression).getTableName() == null) {
+                String name = ((ColumnReference) expression).getColumnName();
+                for (int i = 0; i < aliases.size(); i++) {
+                    if (name.equalsIgnoreCase(aliases.get(i))) {
+                        return outputs.get(i);
+                    }
+                }
+            }
+            return expression;
+        }
+
+        private long count(SQLEvaluator evaluator, Expression expression) {
+            if (!SQLEvaluator.isConstant(expression)) {
+                throw new SQLExecutionException("LIMIT and OFFSET must be constants", expression);
+            }
+            SQLEvaluator.Constant constant = evaluator.constant(expression);
+            if (constant.type != SQLType.BIGINT || constant.longValue < 0) {
+                throw new SQLExecutionException("LIMIT and OFFSET must be non-negative integers", expression);
+            }
+            return constant.longValue;
+        }
+
+        private boolean containsAggregate(List<Expression> expressions) {
+            boolean[] found = new boolean[1];
+            for (Expression expression : expressions) {
+                walker.walk(expression, node -> {
+                    if (node instanceof FunctionCall && isAggregate((FunctionCall) node)) {
+                        found[0] = true;
+                        walker.stop();
+                    }
+                    return !(node instanceof SubqueryExpression);
+                });
+            }
+            return found[0];
+        }
+
+        // Numbers of the input rows that pass the predicate, at most limit
+        private int[] scan(SQLEvaluator evaluator, Expression predicate, long limit) {
+            int rowCount = evaluator.getInput().getRowCount();
+            int[] rows = new int[(int) Math.min(rowCount, Math.max(limit, 16))];
+            int size = 0;
+            for (int start = 0; start < rowCount && size < limit; start += SQLEvaluator.BATCH_SIZE) {
+                int length = Math.min(SQLEvaluator.BATCH_SIZE, rowCount - start);
+                for (int i = 0; i < length; i++) {
+                    batch[i] = start + i;
+                }
+                int kept = predicate == null ? length : evaluator.filter(predicate, batch, length);
+                kept = (int) Math.min(kept, limit - size);
+                if (size + kept > rows.length) {
+                    rows = Arrays.copyOf(rows, Math.max(size + kept, rows.length * 2));
+                }
+                System.arraycopy(batch, 0, rows, size, kept);
+                size += kept;
+            }
+            return size == rows.length ? rows : Arrays.copyOf(rows, size);
+        }
+
+        // The expression's values at the given rows, as a column
+        private SQLColumn materialize(SQLEvaluator evaluator, Expression expression, String name, int[] rows, int count) {
+            SQLColumnBuilder builder = new SQLColumnBuilder(name, evaluator.typeOf(expression), count);
+            for (int start = 0; start < count; start += SQLEvaluator.BATCH_SIZE) {
+                int length = Math.min(SQLEvaluator.BATCH_SIZE, count - start);
+                System.arraycopy(rows, start, batch, 0, length);
+                evaluator.select(batch, length);
+                SQLVector vector = evaluator.evaluate(expression);
+                for (int i = 0; i < length; i++) {
+                    builder.append(vector, i);
+                }
+            }
+            return builder.build();
+        }
+
+        // Positions into rows in ORDER BY order, or null without keys
+        private int[] sort(SQLEvaluator evaluator, int[] rows, List<Expression> keys, boolean[] descending,
+                           long needed) {
+            if (keys.isEmpty()) {
+                return null;
+            }
+            SQLColumn[] columns = new SQLColumn[keys.size()];
+            for (int k = 0; k < columns.length; k++) {
+                columns[k] = materialize(evaluator, keys.get(k), "#sort" + k, rows, rows.length);
+            }
+            SQLSortKeys sortKeys = new SQLSortKeys(columns, descending);
+            SQLSorter sorter = new SQLSorter(maxSortRows, sortSpillDirectory);
+            return needed < rows.length ? sorter.top(sortKeys, rows.length, (int) needed)
+                                        : sorter.sort(sortKeys, rows.length);
+        }
+
+        // =============== GROUPING ===============
+
+        // Groups the rows by the keys and computes every aggregate the post
+        // expressions use. Returns an evaluator over the group table, one
+        // row per group, where keys and aggregates are bound to its columns.
+        private SQLEvaluator group(SQLEvaluator base, int[] rows, List<Expression> keys, List<Expression> post) {
+            int keyCount = keys.size();
+            if (keyCount > 63) {
+                throw new SQLExecutionException("At most 63 grouping keys are supported", keys.get(63));
+            }
+            String[] keyTexts = new String[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                base.typeOf(keys.get(i));
+                keyTexts[i] = writer.write(keys.get(i));
+            }
+            Map<Expression, Integer> bindings = new IdentityHashMap<>();
+            List<FunctionCall> calls = new ArrayList<>();
+            Map<String, Integer> callSlots = new HashMap<>();
+            for (Expression expression : post) {
+                walker.walk(expression, node -> {
+                    if (!(node instanceof Expression)) {
+                        return true;
+                    }
+                    int key = keyIndex(base, (Expression) node, keys, keyTexts);
+                    if (key >= 0) {
+                        bindings.put((Expression) node, key);
+                        return false;
+                    }
+                    if (node instanceof FunctionCall && isAggregate((FunctionCall) node)) {
+                        FunctionCall call = (FunctionCall) node;
+                        if (containsAggregate(call.getArguments())) {
+                            throw new SQLExecutionException("Aggregates cannot be nested", call);
+                        }
+                        Integer slot = callSlots.get(writer.write(call));
+                        if (slot == null) {
+                            slot = calls.size();
+                            callSlots.put(writer.write(call), slot);
+                            calls.add(call);
+                        }
+                        bindings.put(call, keyCount + slot);
+                        return false;
+                    }
+                    return !(node instanceof SubqueryExpression);
+                });
+            }
+
+            SQLColumn[] direct = new SQLColumn[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                direct[i] = base.columnOf(keys.get(i));
+            }
+            ForkJoinPool pool = SQLEngine.this.pool;
+            int partitions = Math.min(pool.getParallelism(), rows.length / PARALLEL_GROUP_ROWS);
+            GroupPartition whole;
+            if (partitions <= 1) {
+                whole = new GroupPartition(base, keys, direct, aggregates(base, calls));
+                whole.add(rows, 0, rows.length);
+            } else {
+                // Each task groups a contiguous run of rows into its own
+                // table; merging them in order keeps groups in order of
+                // first appearance, as on one thread
+                GroupPartition[] parts = new GroupPartition[partitions];
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (int p = 0; p < partitions; p++) {
+                    GroupPartition part = new GroupPartition(base.copy(), keys, direct, aggregates(base, calls));
+                    int from = (int) ((long) rows.length * p / partitions);
+                    int to = (int) ((long) rows.length * (p + 1) / partitions);
+                    parts[p] = part;
+                    tasks.add(pool.submit(() -> part.add(rows, from, to)));
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+                whole = parts[0];
+                for (int p = 1; p < partitions; p++) {
+                    whole.merge(parts[p]);
+                }
+            }
+            GroupTable table = whole.table;
+            Aggregate[] aggregates = whole.aggregates;
+            if (keyCount == 0 && table.size == 0) {
+                // Aggregates over no rows still make one row
+                table.findOrAdd(new long[1], -1);
+            }
+
+            int groupCount = table.size;
+            List<SQLColumn> columns = new ArrayList<>();
+            for (int k = 0; k < keyCount; k++) {
+                columns.add(materialize(base, keys.get(k), "#key" + k, table.firstRows, groupCount));
+            }
+            for (int i = 0; i < aggregates.length; i++) {
+                columns.add(aggregates[i].build("#aggregate" + i, groupCount));
+            }
+            SQLTable grouped = new SQLTable("groups", groupCount, columns);
+            return new SQLEvaluator(grouped, null, parameters, bindings, false);
+        }
+
+        private Aggregate[] aggregates(SQLEvaluator base, List<FunctionCall> calls) {
+            Aggregate[] aggregates = new Aggregate[calls.size()];
+            for (int i = 0; i < aggregates.length; i++) {
+                aggregates[i] = aggregate(base, calls.get(i));
+            }
+            return aggregates;
+        }
+
+        // Which grouping key the expression is, or -1. Column references
+        // match by the column they resolve to, so "t.a" is the key "a".
+        private int keyIndex(SQLEvaluator base, Expression expression, List<Expression> keys, String[] keyTexts) {
+            String text = null;
+            for (int k = 0; k < keys.size(); k++) {
+                Expression key = keys.get(k);
+                if (key == expression) {
+                    return k;
+                }
+                if (expression instanceof ColumnReference) {
+                    if (key instanceof ColumnReference && !isStar(expression)
+                            && base.resolve((ColumnReference) key) == base.resolve((ColumnReference) expression)) {
+                        return k;
+                    }
+                    continue;
+                }
+                if (text == null) {
+                    text = writer.write(expression);
+                }
+                if (text.equals(keyTexts[k])) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        private Aggregate aggregate(SQLEvaluator base, FunctionCall call) {
+            String name = call.getFunctionName().toUpperCase(Locale.ROOT);
+            List<Expression> arguments = call.getArguments();
+            if (name.equals("COUNT") && arguments.size() == 1 && isStar(arguments.get(0)) && !call.isDistinct()) {
+                return new CountAggregate(null, false);
+            }
+            if (arguments.size() != 1 || isStar(arguments.get(0))) {
+                throw new SQLExecutionException(name + " takes one argument", call);
+            }
+            Expression argument = arguments.get(0);
+            SQLType type = base.typeOf(argument);
+            switch (name) {
+                case "COUNT":
+                    return new CountAggregate(argument, call.isDistinct());
+                case "SUM":
+                case "AVG":
+                    if (!type.isNumeric() && type != SQLType.NULL) {
+                        throw new SQLExecutionException(name + " needs a number, not " + type, call);
+                    }
+                    return new SumAggregate(call, argument, call.isDistinct(), type, name.equals("AVG"));
+                default:
+                    return new ExtremeAggregate(argument, call.isDistinct(), type, name.equals("MAX"));
+            }
+        }
+    }
+
+    // A non-null value as a hash key word: longs as they are, doubles by
+    // bits (0.0 and -0.0 alike), strings by interned number
+    private static long encode(SQLVector vector, int i, Map<String, Long> interned) {
+        switch (vector.type) {
+            case DOUBLE: {
+                double value = vector.doubles[i];
+                return Double.doubleToLongBits(value == 0 ? 0.0 : value);
+            }
+            case VARCHAR:
+                return intern(vector.strings[i], interned);
+            default:
+                return vector.longs[i];
+        }
+    }
+
+    private static long intern(String value, Map<String, Long> interned) {
+        Long id = interned.get(value);
+        if (id == null) {
+            id = (long) interned.size();
+            interned.put(value, id);
+        }
+        return id;
+    }
+
+    // One run of input rows grouped on one thread: its own evaluator, group
+    // table, aggregate state and string interning. merge() folds another
+    // partition in after both are done.
+    private static final class GroupPartition {
+        private final SQLEvaluator evaluator;
+        private final List<Expression> keys;
+        private final SQLColumn[] direct; // input column of each key, or null
+        private final List<Map<String, Long>> interned;
+        final Aggregate[] aggregates;
+        final GroupTable table;
+        private final long[] words;
+        private final int[] batch = new int[SQLEvaluator.BATCH_SIZE];
+        private final int[] groups = new int[SQLEvaluator.BATCH_SIZE];
+        private final SQLVector[] vectors;
+
+        GroupPartition(SQLEvaluator evaluator, List<Expression> keys, SQLColumn[] direct, Aggregate[] aggregates) {
+            this.evaluator = evaluator;
+            this.keys = keys;
+            this.direct = direct;
+            this.aggregates = aggregates;
+            int keyCount = keys.size();
+            interned = new ArrayList<>(keyCount);
+            for (int k = 0; k < keyCount; k++) {
+                interned.add(new HashMap<>());
+            }
+            table = new GroupTable(keyCount + 1);
+            words = new long[keyCount + 1];
+            vectors = new SQLVector[keyCount];
+        }
+
+        // Groups rows[from..to)
+        void add(int[] rows, int from, int to) {
+            int keyCount = keys.size();
+            for (int start = from; start < to; start += SQLEvaluator.BATCH_SIZE) {
+                int length = Math.min(SQLEvaluator.BATCH_SIZE, to - start);
+                System.arraycopy(rows, start, batch, 0, length);
+                evaluator.select(batch, length);
+                for (int k = 0; k < keyCount; k++) {
+                    vectors[k] = direct[k] instanceof StringColumn ? null : evaluator.evaluate(keys.get(k));
+                }
+                for (int i = 0; i < length; i++) {
+                    long nullMask = 0;
+                    for (int k = 0; k < keyCount; k++) {
+                        SQLVector vector = vectors[k];
+                        long word;
+                        if (vector == null) {
+                            StringColumn column = (StringColumn) direct[k];
+                            boolean isNull = column.isNull(batch[i]);
+                            word = isNull ? 0 : column.codes[batch[i]];
+                            nullMask |= isNull ? 1L << k : 0;
+                        } else if (vector.type == SQLType.NULL || vector.isNull(i)) {
+                            word = 0;
+                            nullMask |= 1L << k;
+                        } else {
+                            word = encode(vector, i, interned.get(k));
+                        }
+                        words[k] = word;
+                    }
+                    words[keyCount] = nullMask;
+                    groups[i] = table.findOrAdd(words, batch[i]);
+                }
+                for (Aggregate aggregate : aggregates) {
+                    aggregate.accumulate(evaluator, groups, length, table.size);
+                }
+            }
+        }
+
+        // Adds other's groups after this one's and folds in its aggregates.
+        // Computed string keys are re-interned, as each partition numbers
+        // its strings separately.
+        void merge(GroupPartition other) {
+            int keyCount = keys.size();
+            int width = keyCount + 1;
+            String[][] strings = new String[keyCount][];
+            for (int k = 0; k < keyCount; k++) {
+                strings[k] = new String[other.interned.get(k).size()];
+                for (Map.Entry<String, Long> entry : other.interned.get(k).entrySet()) {
+                    strings[k][entry.getValue().intValue()] = entry.getKey();
+                }
+            }
+            int count = other.table.size;
+            int[] map = new int[count];
+            for (int g = 0; g < count; g++) {
+                System.arraycopy(other.table.keys, g * width, words, 0, width);
+                for (int k = 0; k < keyCount; k++) {
+                    if (strings[k].length > 0 && (words[keyCount] & 1L << k) == 0) {
+                        words[k] = intern(strings[k][(int) words[k]], interned.get(k));
+                    }
+                }
+                map[g] = table.findOrAdd(words, other.table.firstRows[g]);
+            }
+            for (int i = 0; i < aggregates.length; i++) {
+                aggregates[i].merge(other.aggregates[i], map, count, table.size);
+            }
+        }
+    }
+
+    // Open-addressing hash table from key words to dense group numbers,
+    // remembering the first input row of each group
+    private static final class GroupTable {
+        private final int width;
+        private long[] keys;
+        private int[] slots = new int[64]; // group + 1, 0 when empty
+        int[] firstRows = new int[16];
+        int size;
+
+        GroupTable(int width) {
+            this.width = width;
+            keys = new long[16 * width];
+        }
+
+        int findOrAdd(long[] words, int row) {
+            int mask = slots.length - 1;
+            int slot = hash(words, width) & mask;
+            while (true) {
+                int group = slots[slot] - 1;
+                if (group < 0) {
+                    return add(words, row, slot);
+                }
+                if (matches(group, words)) {
+                    return group;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private boolean matches(int group, long[] words) {
+            int offset = group * width;
+            for (int i = 0; i < width; i++) {
+                if (keys[offset + i] != words[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int add(long[] words, int row, int slot) {
+            int group = size++;
+            if (size * width > keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+                firstRows = Arrays.copyOf(firstRows, firstRows.length * 2);
+            }
+            System.arraycopy(words, 0, keys, group * width, width);
+            firstRows[group] = row;
+            slots[slot] = group + 1;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return group;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            long[] words = new long[width];
+            for (int group = 0; group < size; group++) {
+                System.arraycopy(keys, group * width, words, 0, width);
+                int slot = hash(words, width) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = group + 1;
+            }
+        }
+
+        private static int hash(long[] words, int width) {
+            long h = 0;
+            for (int i = 0; i < width; i++) {
+                h = (h + words[i]) * 0x9E3779B97F4A7C15L;
+            }
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    // The (group, value) pairs a DISTINCT aggregate has seen, values
+    // encoded as grouping keys are. Open addressing over a flat long array,
+    // two words per slot: group + 1 (0 when empty) and the value.
+    private static final class DistinctSet {
+        final Map<String, Long> ids = new HashMap<>();
+        long[] entries = new long[2 * 64];
+        private int size;
+
+        // Whether the pair is new
+        boolean add(int group, long word) {
+            int mask = entries.length / 2 - 1;
+            int slot = hash(group, word) & mask;
+            while (true) {
+                long stored = entries[2 * slot];
+                if (stored == 0) {
+                    entries[2 * slot] = group + 1;
+                    entries[2 * slot + 1] = word;
+                    if (++size * 2 > mask + 1) {
+                        rehash();
+                    }
+                    return true;
+                }
+                if (stored == group + 1 && entries[2 * slot + 1] == word) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        long intern(String value) {
+            return SQLEngine.intern(value, ids);
+        }
+
+        // String of each interned number, or null when no strings were seen
+        String[] strings() {
+            if (ids.isEmpty()) {
+                return null;
+            }
+            String[] strings = new String[ids.size()];
+            for (Map.Entry<String, Long> entry : ids.entrySet()) {
+                strings[entry.getValue().intValue()] = entry.getKey();
+            }
+            return strings;
+        }
+
+        private void rehash() {
+            long[] old = entries;
+            entries = new long[old.length * 2];
+            int mask = entries.length / 2 - 1;
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i] == 0) {
+                    continue;
+                }
+                int slot = hash((int) old[i] - 1, old[i + 1]) & mask;
+                while (entries[2 * slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                entries[2 * slot] = old[i];
+                entries[2 * slot + 1] = old[i + 1];
+            }
+        }
+
+        private static int hash(int group, long word) {
+            long h = (word + group * 0xC2B2AE3D27D4EB4FL) * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    // One aggregate function's running state for every group. accumulate()
+    // folds in a batch, given each row's group; groups are numbered densely,
+    // so state lives in arrays grown to the group count.
+    private abstract static class Aggregate {
+        final Expression argument;
+
+        Aggregate(Expression argument) {
+            this.argument = argument;
+        }
+
+        abstract void accumulate(SQLEvaluator evaluator, int[] groups, int count, int groupCount);
+
+        abstract SQLColumn build(String name, int groupCount);
+
+        // Folds in the same aggregate's state from another partition, whose
+        // group g is this one's groups[g]
+        abstract void merge(Aggregate other, int[] groups, int count, int groupCount);
+
+        static long[] grow(long[] array, int size) {
+            return array.length >= size ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+        }
+
+        static double[] grow(double[] array, int size) {
+            return array.length >= size ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+        }
+    }
+
+    // COUNT and SUM, which DISTINCT changes: each group's values seen so
+    // far are kept, and merging replays the other side's values, so a value
+    // both sides saw counts once
+    private abstract static class DistinctAggregate extends Aggregate {
+        private final DistinctSet seen; // for DISTINCT
+
+        DistinctAggregate(Expression argument, boolean distinct) {
+            super(argument);
+            this.seen = distinct ? new DistinctSet() : null;
+        }
+
+        @Override
+        final void merge(Aggregate other, int[] groups, int count, int groupCount) {
+            ensureCapacity(groupCount);
+            if (seen == null) {
+                mergeState(other, groups, count);
+                return;
+            }
+            DistinctSet theirs = ((DistinctAggregate) other).seen;
+            String[] strings = theirs.strings();
+            long[] entries = theirs.entries;
+            for (int slot = 0; slot < entries.length; slot += 2) {
+                if (entries[slot] == 0) {
+                    continue;
+                }
+                int group = groups[(int) entries[slot] - 1];
+                long word = strings == null ? entries[slot + 1] : seen.intern(strings[(int) entries[slot + 1]]);
+                if (seen.add(group, word)) {
+                    fold(group, word);
+                }
+            }
+        }
+
+        abstract void ensureCapacity(int groupCount);
+
+        // Folds in the other side's state when there is no DISTINCT
+        abstract void mergeState(Aggregate other, int[] groups, int count);
+
+        // Folds one DISTINCT value, encoded as for grouping, into group
+        abstract void fold(int group, long word);
+
+        // Whether entry i counts: non-null, and new to its group under DISTINCT
+        final boolean counts(SQLVector values, int i, int group) {
+            if (values.type == SQLType.NULL || values.isNull(i)) {
+                return false;
+            }
+            return seen == null || seen.add(group, encode(values, i, seen.ids));
+        }
+    }
+
+    // COUNT(*), or COUNT([DISTINCT] x) when there is an argument
+    private static final class CountAggregate extends DistinctAggregate {
+        private long[] counts = new long[16];
+
+        CountAggregate(Expression argument, boolean distinct) {
+            super(argument, distinct);
+        }
+
+        @Override
+        void accumulate(SQLEvaluator evaluator, int[] groups, int count, int groupCount) {
+            counts = grow(counts, groupCount);
+            long[] counts = this.counts;
+            if (argument == null) {
+                for (int i = 0; i < count; i++) {
+                    counts[groups[i]]++;
+                }
+                return;
+            }
+            SQLVector values = evaluator.evaluate(argument);
+            for (int i = 0; i < count; i++) {
+                if (counts(values, i, groups[i])) {
+                    counts[groups[i]]++;
+                }
+            }
+        }
+
+        @Override
+        void ensureCapacity(int groupCount) {
+            counts = grow(counts, groupCount);
+        }
+
+        @Override
+        void mergeState(Aggregate other, int[] groups, int count) {
+            long[] theirs = ((CountAggregate) other).counts;
+            for (int g = 0; g < count; g++) {
+                counts[groups[g]] += theirs[g];
+            }
+        }
+
+        @Override
+        void fold(int group, long word) {
+            counts[group]++;
+        }
+
+        @Override
+        SQLColumn build(String name, int groupCount) {
+            return new LongColumn(name, SQLType.BIGINT, Arrays.copyOf(counts, groupCount), null);
+        }
+    }
+
+    // SUM and AVG. BIGINT sums stay exact in a long, and one that passes
+    // its range is an error; the sum of no values is NULL.
+    private static final class SumAggregate extends DistinctAggregate {
+        private final FunctionCall call;
+        private final boolean exact;
+        private final boolean doubles;
+        private final boolean average;
+        private long[] longSums = new long[16];
+        private double[] doubleSums = new double[16];
+        private long[] counts = new long[16];
+
+        SumAggregate(FunctionCall call, Expression argument, boolean distinct, SQLType type, boolean average) {
+            super(argument, distinct);
+            this.call = call;
+            this.exact = type != SQLType.DOUBLE && !average;
+            this.doubles = type == SQLType.DOUBLE;
+            this.average = average;
+        }
+
+        @Override
+        void accumulate(SQLEvaluator evaluator, int[] groups, int count, int groupCount) {
+            counts = grow(counts, groupCount);
+            SQLVector values = evaluator.evaluate(argument);
+            long[] counts = this.counts;
+            if (exact) {
+                longSums = grow(longSums, groupCount);
+                long[] sums = longSums;
+                for (int i = 0; i < count; i++) {
+                    if (counts(values, i, groups[i])) {
+                        sums[groups[i]] = add(sums[groups[i]], values.longs[i]);
+                        counts[groups[i]]++;
+                    }
+                }
+            } else {
+                doubleSums = grow(doubleSums, groupCount);
+                double[] sums = doubleSums;
+                for (int i = 0; i < count; i++) {
+                    if (counts(values, i, groups[i])) {
+                        sums[groups[i]] += values.doubleAt(i);
+                        counts[groups[i]]++;
+                    }
+                }
+            }
+        }
+
+        @Override
+        void ensureCapacity(int groupCount) {
+            counts = grow(counts, groupCount);
+            longSums = grow(longSums, groupCount);
+            doubleSums = grow(doubleSums, groupCount);
+        }
+
+        @Override
+        void mergeState(Aggregate other, int[] groups, int count) {
+            SumAggregate theirs = (SumAggregate) other;
+            for (int g = 0; g < count; g++) {
+                int group = groups[g];
+                counts[group] += theirs.counts[g];
+                if (exact) {
+                    longSums[group] = add(longSums[group], theirs.longSums[g]);
+                } else {
+                    doubleSums[group] += theirs.doubleSums[g];
+                }
+            }
+        }
+
+        @Override
+        void fold(int group, long word) {
+            if (exact) {
+                longSums[group] = add(longSums[group], word);
+            } else {
+                doubleSums[group] += doubles ? Double.longBitsToDouble(word) : word;
+            }
+            counts[group]++;
+        }
+
+        private long add(long sum, long value) {
+            try {
+                return Math.addExact(sum, value);
+            } catch (ArithmeticException e) {
+                throw new SQLExecutionException("SUM passes the range of BIGINT", call);
+            }
+        }
+
+        @Override
+        SQLColumn build(String name, int groupCount) {
+            boolean[] nulls = null;
+            for (int g = 0; g < groupCount; g++) {
+                if (counts[g] == 0) {
+                    if (nulls == null) {
+                        nulls = new boolean[groupCount];
+                    }
+                    nulls[g] = true;
+                }
+            }
+            if (exact) {
+                return new LongColumn(name, SQLType.BIGINT, Arrays.copyOf(longSums, groupCount), nulls);
+            }
+            double[] values = Arrays.copyOf(doubleSums, groupCount);
+            if (average) {
+                for (int g = 0; g < groupCount; g++) {
+                    values[g] = counts[g] == 0 ? 0 : values[g] / counts[g];
+                }
+            }
+            return new DoubleColumn(name, values, nulls);
+        }
+    }
+
+    // MIN and MAX of any type; DISTINCT changes nothing, so it is ignored
+    private static final class ExtremeAggregate extends Aggregate {
+        private final SQLType type;
+        private final boolean max;
+        private long[] longs = new long[16];
+        private double[] doubles = new double[16];
+        private String[] strings = new String[16];
+        private boolean[] present = new boolean[16];
+
+        ExtremeAggregate(Expression argument, boolean distinct, SQLType type, boolean max) {
+            super(argument);
+            this.type = type;
+            this.max = max;
+        }
+
+        private void ensureCapacity(int groupCount) {
+            if (present.length < groupCount) {
+                int size = Math.max(groupCount, present.length * 2);
+                present = Arrays.copyOf(present, size);
+                longs = Arrays.copyOf(longs, size);
+                doubles = Arrays.copyOf(doubles, size);
+                strings = Arrays.copyOf(strings, size);
+            }
+        }
+
+        @Override
+        void merge(Aggregate other, int[] groups, int count, int groupCount) {
+            ensureCapacity(groupCount);
+            ExtremeAggregate theirs = (ExtremeAggregate) other;
+            for (int g = 0; g < count && g < theirs.present.length; g++) {
+                if (!theirs.present[g]) {
+                    continue;
+                }
+                int group = groups[g];
+                int comparison;
+                switch (type) {
+                    case DOUBLE: comparison = present[group] ? Double.compare(theirs.doubles[g], doubles[group]) : 0; break;
+                    case VARCHAR: comparison = present[group] ? theirs.strings[g].compareTo(strings[group]) : 0; break;
+                    default: comparison = present[group] ? Long.compare(theirs.longs[g], longs[group]) : 0; break;
+                }
+                if (!present[group] || (max ? comparison > 0 : comparison < 0)) {
+                    present[group] = true;
+                    longs[group] = theirs.longs[g];
+                    doubles[group] = theirs.doubles[g];
+                    strings[group] = theirs.strings[g];
+                }
+            }
+        }
+
+        @Override
+        void accumulate(SQLEvaluator evaluator, int[] groups, int count, int groupCount) {
+            ensureCapacity(groupCount);
+            SQLVector values = evaluator.evaluate(argument);
+            for (int i = 0; i < count; i++) {
+                if (values.type == SQLType.NULL || values.isNull(i)) {
+                    continue;
+                }
+                int g = groups[i];
+                int comparison;
+                switch (type) {
+                    case DOUBLE: comparison = present[g] ? Double.compare(values.doubles[i], doubles[g]) : 0; break;
+                    case VARCHAR: comparison = present[g] ? values.strings[i].compareTo(strings[g]) : 0; break;
+                    default: comparison = present[g] ? Long.compare(values.longs[i], longs[g]) : 0; break;
+                }
+                if (!present[g] || (max ? comparison > 0 : comparison < 0)) {
+                    present[g] = true;
+                    switch (type) {
+                        case DOUBLE: doubles[g] = values.doubles[i]; break;
+                        case VARCHAR: strings[g] = values.strings[i]; break;
+                        default: longs[g] = values.longs[i]; break;
+                    }
+                }
+            }
+        }
+
+        @Override
+        SQLColumn build(String name, int groupCount) {
+            SQLColumnBuilder builder = new SQLColumnBuilder(name, type, groupCount);
+            for (int g = 0; g < groupCount; g++) {
+                if (g >= present.length || !present[g]) {
+                    builder.appendNull();
+                } else if (builder.getType() == SQLType.DOUBLE) {
+                    builder.appendDouble(doubles[g]);
+                } else if (builder.getType() == SQLType.VARCHAR) {
+                    builder.appendString(strings[g]);
+                } else {
+                    builder.appendLong(longs[g]);
+                }
+            }
+            return builder.build();
+        }
+    }
+}
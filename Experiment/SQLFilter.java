@@ -0,0 +1,632 @@
+import java.util.*;
+
+// A compiled WHERE, HAVING or join-side predicate. apply() keeps the rows
+// of the selection rows[0..count) for which the predicate is TRUE,
+// compacting them to the front in their order, and returns how many there
+// are. A selection never holds the same row twice.
+interface SQLFilter {
+    int apply(int[] rows, int count);
+}
+
+// Compiles a predicate once per SQLEvaluator into a tree of SQLFilters.
+// Comparisons, LIKE and IN between an input column and constants become
+// kernels that read the column arrays directly and compact the selection
+// in the same loop: ranges on BIGINT, DATE and DOUBLE columns (two range
+// conditions on one column, as BETWEEN parses, merge into one) and
+// per-dictionary-entry truth tables on VARCHAR columns. AND runs its
+// conjuncts one after the other, cheapest kind first; OR runs each
+// disjunct on the rows no earlier one kept. NOT is pushed down to the
+// leaves, where NOT (a < b) is a >= b and so on: a comparison with a
+// NULL side passes neither way round. Anything else (arithmetic, CASE,
+// functions, column against column) is evaluated by the SQLEvaluator
+// into a BOOLEAN vector, and the rows where it is TRUE (or FALSE, under
+// a NOT) are kept.
+final class SQLFilterCompiler {
+    private final SQLEvaluator evaluator;
+
+    SQLFilterCompiler(SQLEvaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    SQLFilter compile(Expression predicate) {
+        evaluator.requireType(predicate, SQLType.BOOLEAN);
+        return compile(predicate, false);
+    }
+
+    // The filter for the predicate, or for NOT predicate if negated
+    private SQLFilter compile(Expression predicate, boolean negated) {
+        if (predicate instanceof BooleanExpression) {
+            return compile(((BooleanExpression) predicate).getCondition(), negated);
+        }
+        if (SQLEvaluator.isConstant(predicate)) {
+            SQLEvaluator.Constant constant = evaluator.constant(predicate);
+            boolean passes = constant.type == SQLType.BOOLEAN && (constant.longValue != 0) != negated;
+            return passes ? All.INSTANCE : None.INSTANCE;
+        }
+        if (predicate instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression) predicate;
+            switch (unary.getOperator()) {
+                case NOT:
+                    return compile(unary.getOperand(), !negated);
+                case IS_NULL:
+                case IS_NOT_NULL: {
+                    SQLColumn column = evaluator.columnOf(unary.getOperand());
+                    if (column == null) {
+                        break;
+                    }
+                    boolean wantNull = (unary.getOperator() == UnaryExpression.Operator.IS_NULL) != negated;
+                    if (column.nulls == null) {
+                        return wantNull ? None.INSTANCE : All.INSTANCE;
+                    }
+                    return new NullTest(column.nulls, wantNull);
+                }
+                default:
+                    break;
+            }
+            return new VectorTest(evaluator, predicate, !negated);
+        }
+        if (predicate instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) predicate;
+            switch (binary.getOperator()) {
+                case AND:
+                case OR: {
+                    List<SQLFilter> filters = new ArrayList<>();
+                    boolean and = binary.getOperator() == BinaryExpression.Operator.AND;
+                    flatten(binary, binary.getOperator(), negated, filters);
+                    return and != negated ? conjunction(filters) : disjunction(filters);
+                }
+                case LIKE:
+                    return like(binary, negated);
+                case IN:
+                    return in(binary, negated);
+                case EQUALS:
+                case NOT_EQUALS:
+                case LESS_THAN:
+                case GREATER_THAN:
+                case LESS_THAN_OR_EQUAL:
+                case GREATER_THAN_OR_EQUAL:
+                    return comparison(binary, negated);
+                default:
+                    break;
+            }
+        }
+        return new VectorTest(evaluator, predicate, !negated);
+    }
+
+    // Compiles the operands of a chain of op into filters, left to right.
+    // A generated chain nests as deep as it is long, so it is walked with
+    // a stack of pending operands rather than by recursion.
+    private void flatten(Expression expression, BinaryExpression.Operator op, boolean negated, List<SQLFilter> filters) {
+        Deque<Expression> pending = new ArrayDeque<>();
+        pending.push(expression);
+        while (!pending.isEmpty()) {
+            Expression next = pending.pop();
+            while (next instanceof BooleanExpression) {
+                next = ((BooleanExpression) next).getCondition();
+            }
+            if (next instanceof BinaryExpression && ((BinaryExpression) next).getOperator() == op) {
+                pending.push(((BinaryExpression) next).getRight());
+                pending.push(((BinaryExpression) next).getLeft());
+            } else {
+                filters.add(compile(next, negated));
+            }
+        }
+    }
+
+    // =============== CONNECTIVES ===============
+
+    private static SQLFilter conjunction(List<SQLFilter> filters) {
+        List<SQLFilter> kept = new ArrayList<>();
+        for (SQLFilter filter : filters) {
+            if (filter == None.INSTANCE) {
+                return None.INSTANCE;
+            }
+            if (filter == All.INSTANCE) {
+                continue;
+            }
+            if (!intersect(kept, filter)) {
+                kept.add(filter);
+            }
+        }
+        if (kept.isEmpty()) {
+            return All.INSTANCE;
+        }
+        // Column kernels first: they are cheap and leave fewer rows for the
+        // ones that evaluate expressions
+        kept.sort(Comparator.comparingInt(SQLFilterCompiler::cost));
+        return kept.size() == 1 ? kept.get(0) : new Conjunction(kept.toArray(new SQLFilter[0]));
+    }
+
+    // Merges filter into a range on the same column already in kept
+    private static boolean intersect(List<SQLFilter> kept, SQLFilter filter) {
+        for (int i = 0; i < kept.size(); i++) {
+            SQLFilter other = kept.get(i);
+            if (filter instanceof LongRange && other instanceof LongRange) {
+                LongRange a = (LongRange) other;
+                LongRange b = (LongRange) filter;
+                if (a.values == b.values && a.inside && b.inside) {
+                    long low = Math.max(a.low, b.low);
+                    long high = Math.min(a.high, b.high);
+                    kept.set(i, low > high ? None.INSTANCE : new LongRange(a.values, a.nulls, low, high, true));
+                    return true;
+                }
+            } else if (filter instanceof DoubleRange && other instanceof DoubleRange) {
+                DoubleRange a = (DoubleRange) other;
+                DoubleRange b = (DoubleRange) filter;
+                if (a.values == b.values && a.inside && b.inside) {
+                    kept.set(i, new DoubleRange(a.values, a.nulls, Math.max(a.low, b.low), Math.min(a.high, b.high), true));
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int cost(SQLFilter filter) {
+        if (filter instanceof VectorTest) {
+            return 2;
+        }
+        return filter instanceof Conjunction || filter instanceof Disjunction ? 1 : 0;
+    }
+
+    private static SQLFilter disjunction(List<SQLFilter> filters) {
+        List<SQLFilter> kept = new ArrayList<>();
+        for (SQLFilter filter : filters) {
+            if (filter == All.INSTANCE) {
+                return All.INSTANCE;
+            }
+            if (filter != None.INSTANCE) {
+                kept.add(filter);
+            }
+        }
+        if (kept.isEmpty()) {
+            return None.INSTANCE;
+        }
+        return kept.size() == 1 ? kept.get(0) : new Disjunction(kept.toArray(new SQLFilter[0]));
+    }
+
+    // =============== LEAVES ===============
+
+    private SQLFilter comparison(BinaryExpression binary, boolean negated) {
+        BinaryExpression.Operator op = negated ? negate(binary.getOperator()) : binary.getOperator();
+        Expression left = binary.getLeft();
+        Expression right = binary.getRight();
+        SQLColumn column = evaluator.columnOf(left);
+        if (column != null && SQLEvaluator.isConstant(right)) {
+            SQLFilter filter = columnConstant(column, op, evaluator.constant(right));
+            if (filter != null) {
+                return filter;
+            }
+        }
+        column = evaluator.columnOf(right);
+        if (column != null && SQLEvaluator.isConstant(left)) {
+            SQLFilter filter = columnConstant(column, SQLEvaluator.flip(op), evaluator.constant(left));
+            if (filter != null) {
+                return filter;
+            }
+        }
+        return new VectorTest(evaluator, binary, !negated);
+    }
+
+    // column op constant as a column kernel, or null if there is none for
+    // the types
+    private static SQLFilter columnConstant(SQLColumn column, BinaryExpression.Operator op,
+                                            SQLEvaluator.Constant constant) {
+        if (constant.type == SQLType.NULL) {
+            return None.INSTANCE;
+        }
+        if (column instanceof StringColumn && constant.type == SQLType.VARCHAR) {
+            StringColumn strings = (StringColumn) column;
+            boolean[] truth = new boolean[strings.dictionary.length];
+            for (int code = 0; code < truth.length; code++) {
+                truth[code] = SQLEvaluator.test(op, strings.dictionary[code].compareTo(constant.stringValue)) != 0;
+            }
+            return new CodeTest(strings, truth);
+        }
+        if (column instanceof LongColumn && constant.type != SQLType.DOUBLE && constant.type != SQLType.VARCHAR) {
+            long[] values = ((LongColumn) column).values;
+            long c = constant.longValue;
+            switch (op) {
+                case EQUALS: return new LongRange(values, column.nulls, c, c, true);
+                case NOT_EQUALS: return new LongRange(values, column.nulls, c, c, false);
+                case LESS_THAN:
+                    return c == Long.MIN_VALUE ? None.INSTANCE : new LongRange(values, column.nulls, Long.MIN_VALUE, c - 1, true);
+                case LESS_THAN_OR_EQUAL: return new LongRange(values, column.nulls, Long.MIN_VALUE, c, true);
+                case GREATER_THAN:
+                    return c == Long.MAX_VALUE ? None.INSTANCE : new LongRange(values, column.nulls, c + 1, Long.MAX_VALUE, true);
+                default: return new LongRange(values, column.nulls, c, Long.MAX_VALUE, true);
+            }
+        }
+        if (column instanceof DoubleColumn && constant.type.isNumeric()) {
+            double[] values = ((DoubleColumn) column).values;
+            double c = constant.type == SQLType.DOUBLE ? constant.doubleValue : constant.longValue;
+            double inf = Double.POSITIVE_INFINITY;
+            switch (op) {
+                case EQUALS: return new DoubleRange(values, column.nulls, c, c, true);
+                case NOT_EQUALS: return new DoubleRange(values, column.nulls, c, c, false);
+                case LESS_THAN:
+                    return c == -inf || c != c ? None.INSTANCE : new DoubleRange(values, column.nulls, -inf, Math.nextDown(c), true);
+                case LESS_THAN_OR_EQUAL: return new DoubleRange(values, column.nulls, -inf, c, true);
+                case GREATER_THAN:
+                    return c == inf || c != c ? None.INSTANCE : new DoubleRange(values, column.nulls, Math.nextUp(c), inf, true);
+                default: return new DoubleRange(values, column.nulls, c, inf, true);
+            }
+        }
+        return null;
+    }
+
+    private SQLFilter like(BinaryExpression binary, boolean negated) {
+        SQLColumn column = evaluator.columnOf(binary.getLeft());
+        if (column instanceof StringColumn) {
+            String pattern = evaluator.constant(binary.getRight()).stringValue;
+            if (pattern == null) {
+                return None.INSTANCE;
+            }
+            StringColumn strings = (StringColumn) column;
+            boolean[] truth = new boolean[strings.dictionary.length];
+            for (int code = 0; code < truth.length; code++) {
+                truth[code] = SQLEvaluator.like(strings.dictionary[code], pattern) != negated;
+            }
+            return new CodeTest(strings, truth);
+        }
+        return new VectorTest(evaluator, binary, !negated);
+    }
+
+    // x IN (constants) on a VARCHAR column as a truth table, on a BIGINT
+    // or DATE column as a sorted set. A NULL in the list makes NOT IN pass
+    // nothing and is otherwise ignored.
+    private SQLFilter in(BinaryExpression binary, boolean negated) {
+        SQLColumn column = evaluator.columnOf(binary.getLeft());
+        List<Expression> items = ((ExpressionList) binary.getRight()).getExpressions();
+        if (column == null || !(column instanceof StringColumn || column instanceof LongColumn)) {
+            return new VectorTest(evaluator, binary, !negated);
+        }
+        SQLType wanted = column instanceof StringColumn ? SQLType.VARCHAR : column.getType();
+        List<SQLEvaluator.Constant> constants = new ArrayList<>();
+        for (Expression item : items) {
+            if (!SQLEvaluator.isConstant(item)) {
+                return new VectorTest(evaluator, binary, !negated);
+            }
+            SQLEvaluator.Constant constant = evaluator.constant(item);
+            if (constant.type == SQLType.NULL) {
+                if (negated) {
+                    return None.INSTANCE;
+                }
+            } else if (constant.type != wanted) {
+                return new VectorTest(evaluator, binary, !negated);
+            } else {
+                constants.add(constant);
+            }
+        }
+        if (column instanceof StringColumn) {
+            StringColumn strings = (StringColumn) column;
+            boolean[] truth = new boolean[strings.dictionary.length];
+            Arrays.fill(truth, negated);
+            for (SQLEvaluator.Constant constant : constants) {
+                int code = strings.find(constant.stringValue);
+                if (code >= 0) {
+                    truth[code] = !negated;
+                }
+            }
+            return new CodeTest(strings, truth);
+        }
+        long[] set = new long[constants.size()];
+        for (int i = 0; i < set.length; i++) {
+            set[i] = constants.get(i).longValue;
+        }
+        Arrays.sort(set);
+        return new LongSet(((LongColumn) column).values, column.nulls, set, !negated);
+    }
+
+    private static BinaryExpression.Operator negate(BinaryExpression.Operator op) {
+        switch (op) {
+            case EQUALS: return BinaryExpression.Operator.NOT_EQUALS;
+            case NOT_EQUALS: return BinaryExpression.Operator.EQUALS;
+            case LESS_THAN: return BinaryExpression.Operator.GREATER_THAN_OR_EQUAL;
+            case GREATER_THAN: return BinaryExpression.Operator.LESS_THAN_OR_EQUAL;
+            case LESS_THAN_OR_EQUAL: return BinaryExpression.Operator.GREATER_THAN;
+            default: return BinaryExpression.Operator.LESS_THAN;
+        }
+    }
+
+    // =============== FILTERS ===============
+    // The column kernels store every row and advance only past the kept
+    // ones, so the loop has no branch on the data.
+
+    private static final class All implements SQLFilter {
+        static final All INSTANCE = new All();
+
+        @Override
+        public int apply(int[] rows, int count) {
+            return count;
+        }
+    }
+
+    private static final class None implements SQLFilter {
+        static final None INSTANCE = new None();
+
+        @Override
+        public int apply(int[] rows, int count) {
+            return 0;
+        }
+    }
+
+    // Non-NULL values in [low, high], or outside it unless inside
+    private static final class LongRange implements SQLFilter {
+        final long[] values;
+        final boolean[] nulls;
+        final long low;
+        final long high;
+        final boolean inside;
+
+        LongRange(long[] values, boolean[] nulls, long low, long high, boolean inside) {
+            this.values = values;
+            this.nulls = nulls;
+            this.low = low;
+            this.high = high;
+            this.inside = inside;
+        }
+
+        @Override
+        public int apply(int[] rows, int count) {
+            long[] values = this.values;
+            boolean[] nulls = this.nulls;
+            long low = this.low;
+            boolean inside = this.inside;
+            // v in [low, high] as one unsigned comparison of v - low
+            long limit = high - low + Long.MIN_VALUE;
+            int kept = 0;
+            if (nulls == null) {
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    rows[kept] = row;
+                    kept += (values[row] - low + Long.MIN_VALUE <= limit) == inside ? 1 : 0;
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    rows[kept] = row;
+                    kept += !nulls[row] && (values[row] - low + Long.MIN_VALUE <= limit) == inside ? 1 : 0;
+                }
+            }
+            return kept;
+        }
+    }
+
+    // Non-NULL values in [low, high], or outside it unless inside. NaN is
+    // in no range.
+    private static final class DoubleRange implements SQLFilter {
+        final double[] values;
+        final boolean[] nulls;
+        final double low;
+        final double high;
+        final boolean inside;
+
+        DoubleRange(double[] values, boolean[] nulls, double low, double high, boolean inside) {
+            this.values = values;
+            this.nulls = nulls;
+            this.low = low;
+            this.high = high;
+            this.inside = inside;
+        }
+
+        @Override
+        public int apply(int[] rows, int count) {
+            double[] values = this.values;
+            boolean[] nulls = this.nulls;
+            double low = this.low;
+            double high = this.high;
+            boolean inside = this.inside;
+            int kept = 0;
+            if (nulls == null) {
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    double value = values[row];
+                    rows[kept] = row;
+                    kept += (value >= low & value <= high) == inside ? 1 : 0;
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    double value = values[row];
+                    rows[kept] = row;
+                    kept += !nulls[row] && (value >= low & value <= high) == inside ? 1 : 0;
+                }
+            }
+            return kept;
+        }
+    }
+
+    // Non-NULL values in a sorted set, or not in it unless inside
+    private static final class LongSet implements SQLFilter {
+        private final long[] values;
+        private final boolean[] nulls;
+        private final long[] set;
+        private final boolean inside;
+
+        LongSet(long[] values, boolean[] nulls, long[] set, boolean inside) {
+            this.values = values;
+            this.nulls = nulls;
+            this.set = set;
+            this.inside = inside;
+        }
+
+        @Override
+        public int apply(int[] rows, int count) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = rows[i];
+                rows[kept] = row;
+                kept += (nulls == null || !nulls[row]) && (Arrays.binarySearch(set, values[row]) >= 0) == inside ? 1 : 0;
+            }
+            return kept;
+        }
+    }
+
+    // Non-NULL strings whose dictionary entry is true
+    private static final class CodeTest implements SQLFilter {
+        private final int[] codes;
+        private final boolean[] nulls;
+        private final boolean[] truth;
+
+        CodeTest(StringColumn column, boolean[] truth) {
+            this.codes = column.codes;
+            this.nulls = column.nulls;
+            this.truth = truth;
+        }
+
+        @Override
+        public int apply(int[] rows, int count) {
+            if (truth.length == 0) {
+                return 0;
+            }
+            int[] codes = this.codes;
+            boolean[] truth = this.truth;
+            int kept = 0;
+            if (nulls == null) {
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    rows[kept] = row;
+                    kept += truth[codes[row]] ? 1 : 0;
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    rows[kept] = row;
+                    kept += !nulls[row] && truth[codes[row]] ? 1 : 0;
+                }
+            }
+            return kept;
+        }
+    }
+
+    private static final class NullTest implements SQLFilter {
+        private final boolean[] nulls;
+        private final boolean wantNull;
+
+        NullTest(boolean[] nulls, boolean wantNull) {
+            this.nulls = nulls;
+            this.wantNull = wantNull;
+        }
+
+        @Override
+        public int apply(int[] rows, int count) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                int row = rows[i];
+                rows[kept] = row;
+                kept += nulls[row] == wantNull ? 1 : 0;
+            }
+            return kept;
+        }
+    }
+
+    // Rows where a BOOLEAN expression evaluates to want (not NULL)
+    private static final class VectorTest implements SQLFilter {
+        private final SQLEvaluator evaluator;
+        private final Expression expression;
+        private final boolean want;
+
+        VectorTest(SQLEvaluator evaluator, Expression expression, boolean want) {
+            this.evaluator = evaluator;
+            this.expression = expression;
+            this.want = want;
+        }
+
+        @Override
+        public int apply(int[] rows, int count) {
+            evaluator.select(rows, count);
+            SQLVector result = evaluator.evaluate(expression);
+            if (result.type == SQLType.NULL) {
+                return 0;
+            }
+            long[] values = result.longs;
+            long wanted = want ? 1 : 0;
+            int kept = 0;
+            if (result.hasNulls) {
+                boolean[] nulls = result.nulls;
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    rows[kept] = row;
+                    kept += !nulls[i] && values[i] == wanted ? 1 : 0;
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    rows[kept] = row;
+                    kept += values[i] == wanted ? 1 : 0;
+                }
+            }
+            return kept;
+        }
+    }
+
+    private static final class Conjunction implements SQLFilter {
+        private final SQLFilter[] filters;
+
+        Conjunction(SQLFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public int apply(int[] rows, int count) {
+            for (int i = 0; i < filters.length && count > 0; i++) {
+                count = filters[i].apply(rows, count);
+            }
+            return count;
+        }
+    }
+
+    // Each disjunct sees only the rows no earlier one kept. Rows are told
+    // apart by value, which works as a selection has no repeats.
+    private static final class Disjunction implements SQLFilter {
+        private final SQLFilter[] filters;
+        private int[] remaining = new int[0];
+        private int[] positions = new int[0];
+        private int[] work = new int[0];
+        private boolean[] kept = new boolean[0];
+
+        Disjunction(SQLFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public int apply(int[] rows, int count) {
+            if (remaining.length < count) {
+                remaining = new int[count];
+                positions = new int[count];
+                work = new int[count];
+                kept = new boolean[count];
+            }
+            System.arraycopy(rows, 0, remaining, 0, count);
+            Arrays.fill(kept, 0, count, false);
+            for (int i = 0; i < count; i++) {
+                positions[i] = i;
+            }
+            int left = count;
+            for (int f = 0; f < filters.length && left > 0; f++) {
+                System.arraycopy(remaining, 0, work, 0, left);
+                int passed = filters[f].apply(work, left);
+                int next = 0;
+                int still = 0;
+                for (int i = 0; i < left; i++) {
+                    if (next < passed && work[next] == remaining[i]) {
+                        kept[positions[i]] = true;
+                        next++;
+                    } else {
+                        remaining[still] = remaining[i];
+                        positions[still++] = positions[i];
+                    }
+                }
+                left = still;
+            }
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                if (kept[i]) {
+                    rows[size++] = rows[i];
+                }
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,1270 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// Join keys of one join input, encoded as width long words per row so
+// rows compare and hash without looking at the values again. Numbers of
+// mixed type are compared as doubles, strings by a number interned across
+// both inputs. Encoded words order like the values they encode, except
+// strings, whose numbers order only by first appearance. Rows with a NULL
+// in any key never match anything.
+final class SQLJoinKeys {
+    final int width;
+    final int rows;
+    final long[] words;
+    final boolean[] nulls; // null when no row has a NULL key
+
+    SQLJoinKeys(int width, int rows, long[] words, boolean[] nulls) {
+        this.width = width;
+        this.rows = rows;
+        this.words = words;
+        this.nulls = nulls;
+    }
+
+    boolean isNull(int row) {
+        return nulls != null && nulls[row];
+    }
+
+    int nonNullRows() {
+        if (nulls == null) {
+            return rows;
+        }
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            count += nulls[row] ? 0 : 1;
+        }
+        return count;
+    }
+
+    // Lexicographic comparison of this row's words with words[offset..]
+    int compare(int row, long[] other, int offset) {
+        int base = row * width;
+        for (int i = 0; i < width; i++) {
+            int comparison = Long.compare(words[base + i], other[offset + i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    boolean matches(int row, long[] other, int offset) {
+        int base = row * width;
+        for (int i = 0; i < width; i++) {
+            if (words[base + i] != other[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long hash(long[] words, int offset, int width) {
+        long h = 0;
+        for (int i = 0; i < width; i++) {
+            h = (h + words[offset + i]) * 0x9E3779B97F4A7C15L;
+        }
+        return h ^ (h >>> 29);
+    }
+
+    // A double as a word: equal values (0.0 and -0.0 too) give equal
+    // words, and words order like the values
+    static long encodeDouble(double value) {
+        long bits = Double.doubleToLongBits(value == 0 ? 0.0 : value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+}
+
+// Matching rows of two join inputs, as parallel arrays of row numbers
+final class SQLJoinPairs {
+    int[] first = new int[64];
+    int[] second = new int[64];
+    int size;
+
+    void add(int a, int b) {
+        if (size == first.length) {
+            first = Arrays.copyOf(first, size * 2);
+            second = Arrays.copyOf(second, size * 2);
+        }
+        first[size] = a;
+        second[size++] = b;
+    }
+
+    // Keeps the pairs at the given positions, in order
+    void retain(int[] positions, int count) {
+        for (int i = 0; i < count; i++) {
+            first[i] = first[positions[i]];
+            second[i] = second[positions[i]];
+        }
+        size = count;
+    }
+}
+
+// Open-addressing table over the keys of a build input. Each slot holds
+// the last build row added with its key, followed by the key words, so a
+// probe usually touches one cache line; the rows sharing a key are
+// chained through next[]. Sized once for the input, so it never rehashes.
+final class SQLJoinHashTable {
+    private final int width;
+    private final int stride; // longs per slot: row + 1 (0 when empty), then the key words
+    private final long[] table;
+    private final int[] next;
+    private final int mask;
+
+    SQLJoinHashTable(SQLJoinKeys keys) {
+        width = keys.width;
+        stride = width + 1;
+        int capacity = Integer.highestOneBit(Math.max(keys.rows, 8) * 2 - 1) << 1;
+        table = new long[capacity * stride];
+        next = new int[keys.rows];
+        mask = capacity - 1;
+        for (int row = 0; row < keys.rows; row++) {
+            if (!keys.isNull(row)) {
+                add(row, keys.words, row * width);
+            }
+        }
+    }
+
+    private void add(int row, long[] words, int offset) {
+        int slot = (int) SQLJoinKeys.hash(words, offset, width) & mask;
+        while (true) {
+            int base = slot * stride;
+            int head = (int) table[base] - 1;
+            if (head < 0) {
+                next[row] = -1;
+                table[base] = row + 1;
+                System.arraycopy(words, offset, table, base + 1, width);
+                return;
+            }
+            if (matches(base, words, offset)) {
+                next[row] = head;
+                table[base] = row + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Last build row whose key is words[offset..], or -1; next(row) gives
+    // the others
+    int find(long[] words, int offset, long hash) {
+        int slot = (int) hash & mask;
+        while (true) {
+            int base = slot * stride;
+            long head = table[base];
+            if (head == 0 || matches(base, words, offset)) {
+                return (int) head - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    int next(int row) {
+        return next[row];
+    }
+
+    private boolean matches(int base, long[] words, int offset) {
+        for (int i = 0; i < width; i++) {
+            if (table[base + 1 + i] != words[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Equi-join on encoded keys. The build input goes into an
+// SQLJoinHashTable and the probe input streams past it; past a few
+// thousand rows both inputs are first partitioned by hash in memory and
+// joined partition by partition, each table small enough to stay in
+// cache. A build input of more than maxBuildRows keys is joined Grace-style: both inputs'
+// keys and row numbers are partitioned by hash into temporary files, and
+// each partition is built and probed on its own, so the table never
+// holds more than about maxBuildRows rows (a partition with a single
+// heavy key can still exceed it). One instance may serve many joins, one
+// at a time.
+final class SQLHashJoin {
+    static final int DEFAULT_MAX_BUILD_ROWS = 1 << 22;
+    private static final int MAX_PARTITIONS = 1024;
+    // Larger build inputs are radix-partitioned in memory first so each
+    // partition's table stays in cache
+    private static final int CACHE_ROWS = 1 << 14;
+
+    private final int maxBuildRows;
+    private final Path spillDirectory;
+    private long spilledBytes;
+    private int spilledPartitions;
+
+    SQLHashJoin() {
+        this(DEFAULT_MAX_BUILD_ROWS, Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+
+    SQLHashJoin(int maxBuildRows, Path spillDirectory) {
+        if (maxBuildRows < 1) {
+            throw new IllegalArgumentException("maxBuildRows must be positive: " + maxBuildRows);
+        }
+        this.maxBuildRows = maxBuildRows;
+        this.spillDirectory = spillDirectory;
+    }
+
+    int getMaxBuildRows() { return maxBuildRows; }
+    long getSpilledBytes() { return spilledBytes; }
+    int getSpilledPartitions() { return spilledPartitions; }
+
+    // Adds (build row, probe row) for every pair of rows with equal keys
+    void join(SQLJoinKeys build, SQLJoinKeys probe, SQLJoinPairs pairs) {
+        int buildRows = build.nonNullRows();
+        if (buildRows == 0) {
+            return;
+        }
+        if (buildRows > maxBuildRows) {
+            int partitions = Math.min(MAX_PARTITIONS, Integer.highestOneBit((buildRows / maxBuildRows) * 2 - 1) << 1);
+            try {
+                spill(build, probe, partitions, pairs);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Hash join spill failed", e);
+            }
+            return;
+        }
+        if (buildRows <= CACHE_ROWS) {
+            probe(new SQLJoinHashTable(build), null, probe, pairs);
+            return;
+        }
+        int partitions = Math.min(MAX_PARTITIONS, Integer.highestOneBit(buildRows / CACHE_ROWS * 2 - 1) << 1);
+        int shift = 64 - Integer.numberOfTrailingZeros(partitions);
+        Partitioned built = partition(build, partitions, shift);
+        Partitioned probed = partition(probe, partitions, shift);
+        for (int p = 0; p < partitions; p++) {
+            int from = built.offsets[p];
+            int count = built.offsets[p + 1] - from;
+            if (count == 0) {
+                continue;
+            }
+            SQLJoinKeys part = new SQLJoinKeys(build.width, count, Arrays.copyOfRange(
+                    built.words, from * build.width, (from + count) * build.width), null);
+            SQLJoinHashTable table = new SQLJoinHashTable(part);
+            long[] words = probed.words;
+            int width = probe.width;
+            for (int i = probed.offsets[p]; i < probed.offsets[p + 1]; i++) {
+                int offset = i * width;
+                for (int match = table.find(words, offset, SQLJoinKeys.hash(words, offset, width)); match >= 0;
+                     match = table.next(match)) {
+                    pairs.add(built.rows[from + match], probed.rows[i]);
+                }
+            }
+        }
+    }
+
+    // Non-NULL rows and their key words grouped by partition, partition p
+    // at positions [offsets[p], offsets[p + 1])
+    private static final class Partitioned {
+        final int[] offsets;
+        final int[] rows;
+        final long[] words;
+
+        Partitioned(int[] offsets, int[] rows, long[] words) {
+            this.offsets = offsets;
+            this.rows = rows;
+            this.words = words;
+        }
+    }
+
+    // Radix partitioning on the hash's top bits: a counting pass, then a
+    // scatter into each partition's range
+    private static Partitioned partition(SQLJoinKeys keys, int partitions, int shift) {
+        int width = keys.width;
+        int[] partOf = new int[keys.rows];
+        int[] offsets = new int[partitions + 1];
+        for (int row = 0; row < keys.rows; row++) {
+            if (keys.isNull(row)) {
+                partOf[row] = -1;
+                continue;
+            }
+            int p = (int) (SQLJoinKeys.hash(keys.words, row * width, width) >>> shift);
+            partOf[row] = p;
+            offsets[p + 1]++;
+        }
+        for (int p = 0; p < partitions; p++) {
+            offsets[p + 1] += offsets[p];
+        }
+        int[] fill = Arrays.copyOf(offsets, partitions);
+        int[] rows = new int[offsets[partitions]];
+        long[] words = new long[rows.length * width];
+        for (int row = 0; row < keys.rows; row++) {
+            int p = partOf[row];
+            if (p < 0) {
+                continue;
+            }
+            int at = fill[p]++;
+            rows[at] = row;
+            System.arraycopy(keys.words, row * width, words, at * width, width);
+        }
+        return new Partitioned(offsets, rows, words);
+    }
+
+    static void probe(SQLJoinHashTable table, int[] buildRows, SQLJoinKeys probe, SQLJoinPairs pairs) {
+        long[] words = probe.words;
+        int width = probe.width;
+        for (int row = 0; row < probe.rows; row++) {
+            if (probe.isNull(row)) {
+                continue;
+            }
+            int offset = row * width;
+            for (int match = table.find(words, offset, SQLJoinKeys.hash(words, offset, width)); match >= 0;
+                 match = table.next(match)) {
+                pairs.add(buildRows == null ? match : buildRows[match], row);
+            }
+        }
+    }
+
+    private void spill(SQLJoinKeys build, SQLJoinKeys probe, int partitions, SQLJoinPairs pairs) throws IOException {
+        int shift = 64 - Integer.numberOfTrailingZeros(partitions);
+        Path[] buildFiles = new Path[partitions];
+        Path[] probeFiles = new Path[partitions];
+        int[] buildCounts = new int[partitions];
+        try {
+            write(build, buildFiles, buildCounts, shift, "build");
+            write(probe, probeFiles, new int[partitions], shift, "probe");
+            spilledPartitions += partitions;
+            int width = build.width;
+            long[] record = new long[width];
+            for (int p = 0; p < partitions; p++) {
+                if (buildCounts[p] == 0) {
+                    continue;
+                }
+                int count = buildCounts[p];
+                int[] rows = new int[count];
+                long[] words = new long[count * width];
+                try (DataInputStream in = open(buildFiles[p])) {
+                    for (int i = 0; i < count; i++) {
+                        rows[i] = in.readInt();
+                        for (int w = 0; w < width; w++) {
+                            words[i * width + w] = in.readLong();
+                        }
+                    }
+                }
+                SQLJoinHashTable table = new SQLJoinHashTable(new SQLJoinKeys(width, count, words, null));
+                try (DataInputStream in = open(probeFiles[p])) {
+                    while (true) {
+                        int row;
+                        try {
+                            row = in.readInt();
+                        } catch (EOFException end) {
+                            break;
+                        }
+                        for (int w = 0; w < width; w++) {
+                            record[w] = in.readLong();
+                        }
+                        for (int match = table.find(record, 0, SQLJoinKeys.hash(record, 0, width)); match >= 0;
+                             match = table.next(match)) {
+                            pairs.add(rows[match], row);
+                        }
+                    }
+                }
+            }
+        } finally {
+            delete(buildFiles);
+            delete(probeFiles);
+        }
+    }
+
+    // Writes each non-NULL row's number and key words to the partition its
+    // hash's top bits pick
+    private void write(SQLJoinKeys keys, Path[] files, int[] counts, int shift, String side) throws IOException {
+        DataOutputStream[] out = new DataOutputStream[files.length];
+        try {
+            for (int p = 0; p < files.length; p++) {
+                files[p] = Files.createTempFile(spillDirectory, "sqljoin-" + side + "-", ".part");
+                out[p] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[p]), 1 << 16));
+            }
+            int width = keys.width;
+            for (int row = 0; row < keys.rows; row++) {
+                if (keys.isNull(row)) {
+                    continue;
+                }
+                int offset = row * width;
+                int p = (int) (SQLJoinKeys.hash(keys.words, offset, width) >>> shift);
+                DataOutputStream stream = out[p];
+                stream.writeInt(row);
+                for (int w = 0; w < width; w++) {
+                    stream.writeLong(keys.words[offset + w]);
+                }
+                counts[p]++;
+                spilledBytes += 4 + 8L * width;
+            }
+        } finally {
+            for (DataOutputStream stream : out) {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+        }
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+    }
+
+    private static void delete(Path[] files) {
+        for (Path file : files) {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // Left to the temp directory's cleanup
+                }
+            }
+        }
+    }
+}
+
+// Equi-join of two inputs whose keys already ascend in row order, as a
+// table read in key order or a derived table with a matching ORDER BY
+// leaves them: one pass over each, no hash table.
+final class SQLMergeJoin {
+    private SQLMergeJoin() {}
+
+    // Whether the non-NULL keys ascend in row order
+    static boolean isSorted(SQLJoinKeys keys) {
+        int previous = -1;
+        for (int row = 0; row < keys.rows; row++) {
+            if (keys.isNull(row)) {
+                continue;
+            }
+            if (previous >= 0 && keys.compare(previous, keys.words, row * keys.width) > 0) {
+                return false;
+            }
+            previous = row;
+        }
+        return true;
+    }
+
+    // Adds (left row, right row) for every pair of rows with equal keys
+    static void join(SQLJoinKeys left, SQLJoinKeys right, SQLJoinPairs pairs) {
+        int l = skipNulls(left, 0);
+        int r = skipNulls(right, 0);
+        while (l < left.rows && r < right.rows) {
+            int comparison = left.compare(l, right.words, r * right.width);
+            if (comparison < 0) {
+                l = skipNulls(left, l + 1);
+            } else if (comparison > 0) {
+                r = skipNulls(right, r + 1);
+            } else {
+                // Pair the run of equal left keys with the run of equal right keys
+                int runEnd = r;
+                while (runEnd < right.rows && (right.isNull(runEnd)
+                        || right.compare(runEnd, right.words, r * right.width) == 0)) {
+                    runEnd++;
+                }
+                int key = l;
+                while (l < left.rows && (left.isNull(l) || left.compare(l, left.words, key * left.width) == 0)) {
+                    if (!left.isNull(l)) {
+                        for (int m = r; m < runEnd; m++) {
+                            if (!right.isNull(m)) {
+                                pairs.add(l, m);
+                            }
+                        }
+                    }
+                    l++;
+                }
+                l = skipNulls(left, l);
+                r = skipNulls(right, runEnd);
+            }
+        }
+    }
+
+    private static int skipNulls(SQLJoinKeys keys, int row) {
+        while (row < keys.rows && keys.isNull(row)) {
+            row++;
+        }
+        return row;
+    }
+}
+
+// Join state kept across the iterations of a recursive WITH for the
+// inputs that do not change between them (see SQLEngine): the rows of
+// such a table that pass its one-table conditions, and hash tables over
+// its join keys. An iteration then reads only its delta: it probes the
+// kept hash table instead of hashing the delta and scanning the table.
+// Entries are keyed by the identity of tables and expressions, which
+// are immutable. Not thread-safe; one per recursive evaluation.
+final class SQLJoinCache {
+    // A table's hash table, with the key types and string numbering the
+    // other side's keys must be encoded with
+    static final class Index {
+        final SQLJoinHashTable table;
+        final SQLType[] types;
+        final List<Map<String, Long>> interned;
+        final long bytes;
+
+        Index(SQLJoinHashTable table, SQLType[] types, List<Map<String, Long>> interned, long bytes) {
+            this.table = table;
+            this.types = types;
+            this.interned = interned;
+            this.bytes = bytes;
+        }
+    }
+
+    // A tuple of objects compared by identity, nested Keys by value: a
+    // table or the Key of its filtered rows, the conditions or keys
+    // applied to it, and constants
+    static final class Key {
+        private final Object[] parts;
+        private final int hash;
+
+        Key(Object... parts) {
+            this.parts = parts;
+            int hash = 1;
+            for (Object part : parts) {
+                hash = 31 * hash + (part instanceof Key ? part.hashCode() : System.identityHashCode(part));
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key) || ((Key) other).hash != hash || ((Key) other).parts.length != parts.length) {
+                return false;
+            }
+            for (int i = 0; i < parts.length; i++) {
+                Object part = parts[i];
+                if (part != ((Key) other).parts[i] && !(part instanceof Key && part.equals(((Key) other).parts[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final Predicate<SQLTable> stable;
+    private final Map<Key, int[]> rows = new HashMap<>();
+    private final Map<Key, Index> indexes = new HashMap<>();
+    private long bytes;
+
+    // stable tells the tables that stay the same across iterations
+    SQLJoinCache(Predicate<SQLTable> stable) {
+        this.stable = stable;
+    }
+
+    boolean isStable(SQLTable table) {
+        return stable.test(table);
+    }
+
+    // Bytes held by kept rows and hash tables
+    long getBytes() { return bytes; }
+
+    int[] rows(Key key) {
+        return rows.get(key);
+    }
+
+    void putRows(Key key, int[] kept) {
+        rows.put(key, kept);
+        bytes += 4L * kept.length;
+    }
+
+    Index index(Key key) {
+        return indexes.get(key);
+    }
+
+    void putIndex(Key key, Index index) {
+        indexes.put(key, index);
+        bytes += index.bytes;
+    }
+}
+
+// Runs the joins of one FROM clause over SQLTables. Runs of INNER and
+// CROSS joins (comma joins included) are reordered: their ON conditions,
+// and WHERE conjuncts when the whole FROM is such a run, are pooled;
+// conditions on one table filter it before any join, and the tables are
+// then joined greedily, each step taking the table whose join with what
+// is joined so far has the smallest estimated cardinality (rows times
+// rows over the key's distinct count). Outer joins run in written order.
+// Each join uses its ON equalities between the two sides as keys: a
+// merge join when both sides already have them in ascending order, a
+// hash join building the smaller side otherwise, and a nested loop when
+// there are no keys; other conditions are checked on the matching pairs.
+// Intermediate results are row numbers into the FROM tables, one array
+// per table; columns are gathered once, at the end, in FROM order.
+// Given an SQLJoinCache, a table it calls stable is filtered and hashed
+// once and the result reused by later plans with the same cache.
+final class SQLJoinPlanner {
+    // The joined rows with the columns of every FROM table, in FROM order,
+    // and the name or alias of each column's table
+    static final class Joined {
+        final SQLTable table;
+        final String[] qualifiers;
+        final boolean whereApplied;
+        final String plan;
+
+        Joined(SQLTable table, String[] qualifiers, boolean whereApplied, String plan) {
+            this.table = table;
+            this.qualifiers = qualifiers;
+            this.whereApplied = whereApplied;
+            this.plan = plan;
+        }
+    }
+
+    private final Object[] parameters;
+    private final SQLHashJoin hashJoin;
+    private final SQLJoinCache cache;
+    private JoinExpression from;
+    private final SQLTreeWalker walker = new SQLTreeWalker();
+    private final List<SQLTable> tables = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<SQLColumn, Double> distinctCounts = new IdentityHashMap<>();
+    private final StringBuilder plan = new StringBuilder();
+    private final int[] batch = new int[SQLEvaluator.BATCH_SIZE];
+
+    SQLJoinPlanner(Object[] parameters, SQLHashJoin hashJoin) {
+        this(parameters, hashJoin, null);
+    }
+
+    // cache may be null
+    SQLJoinPlanner(Object[] parameters, SQLHashJoin hashJoin, SQLJoinCache cache) {
+        this.parameters = parameters;
+        this.hashJoin = hashJoin;
+        this.cache = cache;
+    }
+
+    // Joins the tables of from, which tables turns into SQLTables (it is
+    // given each TableReference and DerivedTable, left to right). where,
+    // which may be null, is applied too when the whole FROM is inner.
+    Joined join(JoinExpression from, Expression where, Function<TableExpression, SQLTable> leaves) {
+        this.from = from;
+        boolean inner = isInner(from);
+        Rel result = plan(from, inner ? where : null, leaves);
+        String[] qualifiers = new String[0];
+        List<SQLColumn> columns = new ArrayList<>();
+        List<String> owners = new ArrayList<>();
+        for (int t = 0; t < tables.size(); t++) {
+            SQLTable table = tables.get(t);
+            for (int c = 0; c < table.getColumnCount(); c++) {
+                columns.add(result.column(t, c));
+                owners.add(names.get(t));
+            }
+        }
+        return new Joined(new SQLTable("join", result.size, columns), owners.toArray(qualifiers), inner && where != null,
+                          plan.toString());
+    }
+
+    private static boolean isInner(TableExpression table) {
+        return table instanceof JoinExpression && (((JoinExpression) table).getJoinType() == JoinExpression.JoinType.INNER
+                || ((JoinExpression) table).getJoinType() == JoinExpression.JoinType.CROSS);
+    }
+
+    // =============== PLANNING ===============
+
+    private Rel plan(TableExpression table, Expression where, Function<TableExpression, SQLTable> leaves) {
+        if (!(table instanceof JoinExpression)) {
+            if (tables.size() == 64) {
+                throw new SQLExecutionException("At most 64 tables can be joined", table);
+            }
+            SQLTable leaf = leaves.apply(table);
+            String name = table instanceof TableReference
+                    ? (((TableReference) table).getAlias() != null ? ((TableReference) table).getAlias()
+                                                                   : ((TableReference) table).getTableName())
+                    : ((DerivedTable) table).getAlias();
+            tables.add(leaf);
+            names.add(name);
+            return new Rel(this, tables.size() - 1);
+        }
+        JoinExpression join = (JoinExpression) table;
+        if (isInner(join)) {
+            List<Rel> items = new ArrayList<>();
+            List<Expression> conditions = new ArrayList<>();
+            collect(join, items, conditions, leaves);
+            if (where != null) {
+                conjuncts(where, conditions);
+            }
+            return joinAll(items, conditions);
+        }
+        Rel left = plan(join.getLeftTable(), null, leaves);
+        Rel right = plan(join.getRightTable(), null, leaves);
+        List<Expression> conditions = new ArrayList<>();
+        conjuncts(join.getJoinCondition(), conditions);
+        return join(left, right, join.getJoinType(), conditions);
+    }
+
+    private void collect(TableExpression table, List<Rel> items, List<Expression> conditions,
+                         Function<TableExpression, SQLTable> leaves) {
+        if (isInner(table)) {
+            JoinExpression join = (JoinExpression) table;
+            collect(join.getLeftTable(), items, conditions, leaves);
+            collect(join.getRightTable(), items, conditions, leaves);
+            conjuncts(join.getJoinCondition(), conditions);
+        } else {
+            items.add(plan(table, null, leaves));
+        }
+    }
+
+    private static void conjuncts(Expression condition, List<Expression> out) {
+        while (condition instanceof BooleanExpression) {
+            condition = ((BooleanExpression) condition).getCondition();
+        }
+        if (condition == null) {
+            return;
+        }
+        if (condition instanceof BinaryExpression
+                && ((BinaryExpression) condition).getOperator() == BinaryExpression.Operator.AND) {
+            conjuncts(((BinaryExpression) condition).getLeft(), out);
+            conjuncts(((BinaryExpression) condition).getRight(), out);
+        } else {
+            out.add(condition);
+        }
+    }
+
+    // Greedy join order over a run of inner joins
+    private Rel joinAll(List<Rel> items, List<Expression> conditions) {
+        List<Expression> pending = new ArrayList<>();
+        List<Expression> constants = new ArrayList<>();
+        for (Expression condition : conditions) {
+            long mask = tablesOf(condition);
+            if (mask == 0) {
+                constants.add(condition);
+                continue;
+            }
+            int owner = -1;
+            for (int i = 0; i < items.size(); i++) {
+                if ((items.get(i).mask & mask) == mask) {
+                    owner = i;
+                }
+            }
+            if (owner >= 0) {
+                items.set(owner, filter(items.get(owner), Collections.singletonList(condition)));
+            } else {
+                pending.add(condition);
+            }
+        }
+        List<Rel> remaining = new ArrayList<>(items);
+        Rel current = remaining.get(0);
+        for (Rel item : remaining) {
+            if (item.size < current.size) {
+                current = item;
+            }
+        }
+        remaining.remove(current);
+        if (!constants.isEmpty()) {
+            current = filter(current, constants);
+        }
+        while (!remaining.isEmpty()) {
+            Rel best = null;
+            double bestEstimate = Double.MAX_VALUE;
+            for (Rel candidate : remaining) {
+                // The last table left needs no estimate
+                double estimate = remaining.size() == 1 ? 0 : estimate(current, candidate, pending);
+                if (estimate < bestEstimate) {
+                    best = candidate;
+                    bestEstimate = estimate;
+                }
+            }
+            remaining.remove(best);
+            List<Expression> applicable = new ArrayList<>();
+            long mask = current.mask | best.mask;
+            for (Iterator<Expression> it = pending.iterator(); it.hasNext(); ) {
+                Expression condition = it.next();
+                if ((tablesOf(condition) & ~mask) == 0) {
+                    applicable.add(condition);
+                    it.remove();
+                }
+            }
+            current = join(current, best, JoinExpression.JoinType.INNER, applicable);
+        }
+        return current;
+    }
+
+    // Estimated rows of joining a and b on the pending conditions that
+    // apply: the cross product over the largest distinct count of a key
+    private double estimate(Rel a, Rel b, List<Expression> conditions) {
+        double rows = (double) a.size * b.size;
+        double divisor = 1;
+        for (Expression condition : conditions) {
+            Expression[] sides = keySides(condition, a, b);
+            if (sides != null) {
+                divisor = Math.max(divisor, Math.max(distinct(a, sides[0]), distinct(b, sides[1])));
+            }
+        }
+        return rows / divisor;
+    }
+
+    // {expression over a, expression over b} for an equality between the
+    // two, or null
+    private Expression[] keySides(Expression condition, Rel a, Rel b) {
+        if (!(condition instanceof BinaryExpression)
+                || ((BinaryExpression) condition).getOperator() != BinaryExpression.Operator.EQUALS) {
+            return null;
+        }
+        Expression left = ((BinaryExpression) condition).getLeft();
+        Expression right = ((BinaryExpression) condition).getRight();
+        long leftMask = tablesOf(left);
+        long rightMask = tablesOf(right);
+        if (leftMask == 0 || rightMask == 0) {
+            return null;
+        }
+        if ((leftMask & ~a.mask) == 0 && (rightMask & ~b.mask) == 0) {
+            return new Expression[] {left, right};
+        }
+        if ((leftMask & ~b.mask) == 0 && (rightMask & ~a.mask) == 0) {
+            return new Expression[] {right, left};
+        }
+        return null;
+    }
+
+    // Distinct values of a key: exact for a dictionary column, sampled for
+    // other columns, and the row count for computed keys
+    private double distinct(Rel rel, Expression key) {
+        if (!(key instanceof ColumnReference)) {
+            return Math.max(1, rel.size);
+        }
+        int[] at = resolve((ColumnReference) key);
+        SQLColumn column = tables.get(at[0]).getColumn(at[1]);
+        Double count = distinctCounts.get(column);
+        if (count == null) {
+            count = sampleDistinct(column);
+            distinctCounts.put(column, count);
+        }
+        return Math.max(1, Math.min(count, rel.size));
+    }
+
+    private static double sampleDistinct(SQLColumn column) {
+        if (column instanceof StringColumn) {
+            return ((StringColumn) column).dictionary.length;
+        }
+        int size = column.size();
+        int samples = Math.min(size, 4096);
+        if (samples == 0) {
+            return 1;
+        }
+        Set<Object> seen = new HashSet<>();
+        long step = Math.max(1, size / samples);
+        for (int i = 0; i < samples; i++) {
+            seen.add(column.getValue((int) (i * step)));
+        }
+        // Nearly all distinct looks like a key; otherwise assume the sample
+        // saw every value
+        return seen.size() * 10 >= samples * 9 ? size : seen.size();
+    }
+
+    // Bit set of the FROM tables an expression reads
+    private long tablesOf(Expression expression) {
+        long[] mask = new long[1];
+        walker.walk(expression, node -> {
+            if (node instanceof ColumnReference && !((ColumnReference) node).getColumnName().equals("*")) {
+                mask[0] |= 1L << resolve((ColumnReference) node)[0];
+            }
+            return !(node instanceof SubqueryExpression);
+        });
+        return mask[0];
+    }
+
+    // {table, column} a reference names among all FROM tables
+    private int[] resolve(ColumnReference reference) {
+        int[] found = null;
+        boolean tableFound = reference.getTableName() == null;
+        for (int t = 0; t < tables.size(); t++) {
+            if (reference.getTableName() != null && !reference.getTableName().equalsIgnoreCase(names.get(t))) {
+                continue;
+            }
+            tableFound = true;
+            int column = tables.get(t).indexOf(reference.getColumnName());
+            if (column >= 0) {
+                if (found != null) {
+                    throw new SQLExecutionException("Column " + reference.getColumnName() + " is ambiguous", reference);
+                }
+                found = new int[] {t, column};
+            }
+        }
+        if (!tableFound) {
+            throw new SQLExecutionException("Unknown table " + reference.getTableName(), reference);
+        }
+        if (found == null) {
+            throw new SQLExecutionException("Unknown column " + (reference.getTableName() == null ? ""
+                    : reference.getTableName() + ".") + reference.getColumnName(), reference);
+        }
+        return found;
+    }
+
+    // =============== EXECUTION ===============
+
+    private Rel join(Rel left, Rel right, JoinExpression.JoinType type, List<Expression> conditions) {
+        List<Expression> leftKeys = new ArrayList<>();
+        List<Expression> rightKeys = new ArrayList<>();
+        List<Expression> residual = new ArrayList<>();
+        for (Expression condition : conditions) {
+            Expression[] sides = keySides(condition, left, right);
+            if (sides != null) {
+                leftKeys.add(sides[0]);
+                rightKeys.add(sides[1]);
+            } else {
+                residual.add(condition);
+            }
+        }
+        SQLJoinPairs pairs = new SQLJoinPairs();
+        String method;
+        if (leftKeys.isEmpty()) {
+            method = "nested loop";
+            if ((long) left.size * right.size > Integer.MAX_VALUE) {
+                throw new SQLExecutionException("Join of " + left.size + " by " + right.size + " rows is too large",
+                                                from);
+            }
+            for (int l = 0; l < left.size; l++) {
+                for (int r = 0; r < right.size; r++) {
+                    pairs.add(l, r);
+                }
+            }
+        } else if (cached(left, leftKeys, right, rightKeys, pairs)) {
+            method = "cached hash join";
+        } else {
+            SQLJoinKeys[] keys = encode(left, leftKeys, right, rightKeys);
+            if (SQLMergeJoin.isSorted(keys[0]) && SQLMergeJoin.isSorted(keys[1])) {
+                method = "merge join";
+                SQLMergeJoin.join(keys[0], keys[1], pairs);
+            } else if (keys[0].rows < keys[1].rows) {
+                method = "hash join (build left)";
+                hashJoin.join(keys[0], keys[1], pairs);
+            } else {
+                method = "hash join (build right)";
+                hashJoin.join(keys[1], keys[0], pairs);
+                int[] swap = pairs.first;
+                pairs.first = pairs.second;
+                pairs.second = swap;
+            }
+        }
+        if (!residual.isEmpty() && pairs.size > 0) {
+            Rel candidates = new Rel(left, right, pairs.first, pairs.second, pairs.size);
+            int[] kept = matching(candidates, residual);
+            pairs.retain(kept, kept.length);
+        }
+        int matched = pairs.size;
+        if (type != JoinExpression.JoinType.INNER && type != JoinExpression.JoinType.CROSS) {
+            boolean[] leftMatched = new boolean[left.size];
+            boolean[] rightMatched = new boolean[right.size];
+            for (int i = 0; i < matched; i++) {
+                leftMatched[pairs.first[i]] = true;
+                rightMatched[pairs.second[i]] = true;
+            }
+            if (type == JoinExpression.JoinType.LEFT || type == JoinExpression.JoinType.FULL) {
+                for (int l = 0; l < left.size; l++) {
+                    if (!leftMatched[l]) {
+                        pairs.add(l, -1);
+                    }
+                }
+            }
+            if (type == JoinExpression.JoinType.RIGHT || type == JoinExpression.JoinType.FULL) {
+                for (int r = 0; r < right.size; r++) {
+                    if (!rightMatched[r]) {
+                        pairs.add(-1, r);
+                    }
+                }
+            }
+        }
+        plan.append(plan.length() == 0 ? "" : "; ").append(type).append(' ').append(method).append(' ')
+            .append(left.describe()).append(" (").append(left.size).append(") x ")
+            .append(right.describe()).append(" (").append(right.size).append(") -> ").append(pairs.size);
+        return new Rel(left, right, pairs.first, pairs.second, pairs.size);
+    }
+
+    // Joins through the cache's hash table of a stable side, building it
+    // on first use, when either side is stable and small enough to hash
+    // without spilling; pairs are (left row, right row). False otherwise.
+    private boolean cached(Rel left, List<Expression> leftKeys, Rel right, List<Expression> rightKeys,
+                           SQLJoinPairs pairs) {
+        if (left.source == null && right.source == null) {
+            return false;
+        }
+        boolean buildLeft = right.source == null || (left.source != null && left.size >= right.size);
+        Rel build = buildLeft ? left : right;
+        Rel probe = buildLeft ? right : left;
+        List<Expression> buildKeys = buildLeft ? leftKeys : rightKeys;
+        List<Expression> probeKeys = buildLeft ? rightKeys : leftKeys;
+        if (build.size > hashJoin.getMaxBuildRows()) {
+            return false;
+        }
+        SQLEvaluator probeEvaluator = evaluator(probe, probeKeys);
+        Object[] parts = new Object[2 + 2 * buildKeys.size()];
+        parts[0] = build.source;
+        parts[1] = buildLeft;
+        for (int k = 0; k < buildKeys.size(); k++) {
+            parts[2 + 2 * k] = buildKeys.get(k);
+            parts[3 + 2 * k] = probeEvaluator.typeOf(probeKeys.get(k));
+        }
+        SQLJoinCache.Key key = new SQLJoinCache.Key(parts);
+        SQLJoinCache.Index index = cache.index(key);
+        if (index == null) {
+            SQLEvaluator buildEvaluator = evaluator(build, buildKeys);
+            SQLType[] types = types(buildEvaluator, buildKeys, probeEvaluator, probeKeys);
+            List<Map<String, Long>> interned = new ArrayList<>();
+            for (int k = 0; k < types.length; k++) {
+                interned.add(new HashMap<>());
+            }
+            SQLJoinKeys keys = keys(build, buildEvaluator, buildKeys, types, interned);
+            long bytes = 8L * keys.words.length + 4L * keys.rows + 16L * (keys.width + 1) * keys.rows;
+            index = new SQLJoinCache.Index(new SQLJoinHashTable(keys), types, interned, bytes);
+            cache.putIndex(key, index);
+        }
+        SQLHashJoin.probe(index.table, null, keys(probe, probeEvaluator, probeKeys, index.types, index.interned),
+                          pairs);
+        if (!buildLeft) {
+            int[] swap = pairs.first;
+            pairs.first = pairs.second;
+            pairs.second = swap;
+        }
+        return true;
+    }
+
+    // Encodes both sides' keys with one string interning table per key,
+    // comparing numbers of different types as doubles
+    private SQLJoinKeys[] encode(Rel left, List<Expression> leftKeys, Rel right, List<Expression> rightKeys) {
+        SQLEvaluator leftEvaluator = evaluator(left, leftKeys);
+        SQLEvaluator rightEvaluator = evaluator(right, rightKeys);
+        SQLType[] types = types(leftEvaluator, leftKeys, rightEvaluator, rightKeys);
+        List<Map<String, Long>> interned = new ArrayList<>();
+        for (int k = 0; k < types.length; k++) {
+            interned.add(new HashMap<>());
+        }
+        return new SQLJoinKeys[] {keys(left, leftEvaluator, leftKeys, types, interned),
+                                  keys(right, rightEvaluator, rightKeys, types, interned)};
+    }
+
+    // The type each pair of keys is compared as
+    private static SQLType[] types(SQLEvaluator leftEvaluator, List<Expression> leftKeys, SQLEvaluator rightEvaluator,
+                                   List<Expression> rightKeys) {
+        SQLType[] types = new SQLType[leftKeys.size()];
+        for (int k = 0; k < types.length; k++) {
+            SQLType a = leftEvaluator.typeOf(leftKeys.get(k));
+            SQLType b = rightEvaluator.typeOf(rightKeys.get(k));
+            if (a == b || a == SQLType.NULL || b == SQLType.NULL) {
+                types[k] = a == SQLType.NULL ? b : a;
+            } else if (a.isNumeric() && b.isNumeric()) {
+                types[k] = SQLType.DOUBLE;
+            } else {
+                throw new SQLExecutionException("Cannot join " + a + " with " + b, leftKeys.get(k));
+            }
+        }
+        return types;
+    }
+
+    private SQLJoinKeys keys(Rel rel, SQLEvaluator evaluator, List<Expression> expressions, SQLType[] types,
+                             List<Map<String, Long>> interned) {
+        int width = expressions.size();
+        long[] words = new long[rel.size * width];
+        boolean[] nulls = null;
+        for (int k = 0; k < width; k++) {
+            Expression expression = expressions.get(k);
+            SQLColumn column = evaluator.columnOf(expression);
+            if (column instanceof StringColumn) {
+                // Intern each dictionary entry once, then map codes
+                StringColumn strings = (StringColumn) column;
+                long[] ids = new long[strings.dictionary.length];
+                for (int code = 0; code < ids.length; code++) {
+                    ids[code] = intern(interned.get(k), strings.dictionary[code]);
+                }
+                for (int row = 0; row < rel.size; row++) {
+                    words[row * width + k] = ids[strings.codes[row]];
+                }
+                if (strings.nulls != null) {
+                    nulls = mark(nulls, strings.nulls, rel.size);
+                }
+                continue;
+            }
+            for (int start = 0; start < rel.size; start += SQLEvaluator.BATCH_SIZE) {
+                int length = Math.min(SQLEvaluator.BATCH_SIZE, rel.size - start);
+                for (int i = 0; i < length; i++) {
+                    batch[i] = start + i;
+                }
+                evaluator.select(batch, length);
+                SQLVector vector = evaluator.evaluate(expression);
+                for (int i = 0; i < length; i++) {
+                    int row = start + i;
+                    if (vector.type == SQLType.NULL || vector.isNull(i)) {
+                        if (nulls == null) {
+                            nulls = new boolean[rel.size];
+                        }
+                        nulls[row] = true;
+                        continue;
+                    }
+                    long word;
+                    if (types[k] == SQLType.DOUBLE) {
+                        word = SQLJoinKeys.encodeDouble(vector.doubleAt(i));
+                    } else if (vector.type == SQLType.VARCHAR) {
+                        word = intern(interned.get(k), vector.strings[i]);
+                    } else {
+                        word = vector.longs[i];
+                    }
+                    words[row * width + k] = word;
+                }
+            }
+        }
+        return new SQLJoinKeys(width, rel.size, words, nulls);
+    }
+
+    private static long intern(Map<String, Long> interned, String value) {
+        Long id = interned.get(value);
+        if (id == null) {
+            id = (long) interned.size();
+            interned.put(value, id);
+        }
+        return id;
+    }
+
+    private static boolean[] mark(boolean[] nulls, boolean[] more, int size) {
+        if (nulls == null) {
+            nulls = new boolean[size];
+        }
+        for (int i = 0; i < size; i++) {
+            nulls[i] |= more[i];
+        }
+        return nulls;
+    }
+
+    private Rel filter(Rel rel, List<Expression> conditions) {
+        SQLJoinCache.Key source = null;
+        int[] kept = null;
+        if (rel.source != null) {
+            Object[] parts = conditions.toArray(new Object[conditions.size() + 1]);
+            parts[conditions.size()] = rel.source;
+            source = new SQLJoinCache.Key(parts);
+            kept = cache.rows(source);
+        }
+        if (kept == null) {
+            kept = matching(rel, conditions);
+            if (source != null) {
+                cache.putRows(source, kept);
+            }
+        }
+        if (kept.length == rel.size) {
+            return rel;
+        }
+        Rel filtered = new Rel(rel, kept, source);
+        plan.append(plan.length() == 0 ? "" : "; ").append("filter ").append(rel.describe()).append(" (")
+            .append(rel.size).append(") -> ").append(filtered.size);
+        return filtered;
+    }
+
+    // Positions of the rows of rel for which every condition is TRUE
+    private int[] matching(Rel rel, List<Expression> conditions) {
+        SQLEvaluator evaluator = evaluator(rel, conditions);
+        int[] kept = new int[Math.min(rel.size, 1024)];
+        int size = 0;
+        for (int start = 0; start < rel.size; start += SQLEvaluator.BATCH_SIZE) {
+            int length = Math.min(SQLEvaluator.BATCH_SIZE, rel.size - start);
+            for (int i = 0; i < length; i++) {
+                batch[i] = start + i;
+            }
+            int count = length;
+            for (Expression condition : conditions) {
+                count = evaluator.filter(condition, batch, count);
+            }
+            if (size + count > kept.length) {
+                kept = Arrays.copyOf(kept, Math.max(size + count, kept.length * 2));
+            }
+            System.arraycopy(batch, 0, kept, size, count);
+            size += count;
+        }
+        return size == kept.length ? kept : Arrays.copyOf(kept, size);
+    }
+
+    // An evaluator over rel's rows with the columns the expressions read
+    private SQLEvaluator evaluator(Rel rel, List<Expression> expressions) {
+        List<int[]> used = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        for (Expression expression : expressions) {
+            walker.walk(expression, node -> {
+                if (node instanceof ColumnReference && !((ColumnReference) node).getColumnName().equals("*")) {
+                    int[] at = resolve((ColumnReference) node);
+                    if (seen.add(((long) at[0] << 32) | at[1])) {
+                        used.add(at);
+                    }
+                }
+                return !(node instanceof SubqueryExpression);
+            });
+        }
+        List<SQLColumn> columns = new ArrayList<>(used.size());
+        String[] qualifiers = new String[used.size()];
+        for (int i = 0; i < used.size(); i++) {
+            columns.add(rel.column(used.get(i)[0], used.get(i)[1]));
+            qualifiers[i] = names.get(used.get(i)[0]);
+        }
+        return new SQLEvaluator(new SQLTable("join", rel.size, columns), qualifiers, parameters);
+    }
+
+    // An intermediate result: for each FROM table it covers, the row of
+    // that table in each of its rows (-1 for the missing side of an outer
+    // join). A single unfiltered table needs no row arrays.
+    private static final class Rel {
+        private final SQLJoinPlanner planner;
+        final long mask;
+        final int size;
+        private final int[][] rows = new int[64][]; // by table number; null if not covered or read in order
+        // Cache key of these rows when they come from a stable table
+        // alone (see SQLJoinCache), or null
+        final Object source;
+
+        Rel(SQLJoinPlanner planner, int table) {
+            this.planner = planner;
+            this.mask = 1L << table;
+            SQLTable source = planner.tables.get(table);
+            this.size = source.getRowCount();
+            this.source = planner.cache != null && planner.cache.isStable(source) ? source : null;
+        }
+
+        // The rows at the given positions
+        Rel(Rel rel, int[] positions, Object source) {
+            this.planner = rel.planner;
+            this.mask = rel.mask;
+            this.size = positions.length;
+            this.source = source;
+            for (int t = 0; t < rows.length; t++) {
+                if ((mask & (1L << t)) != 0) {
+                    rows[t] = rel.rowsOf(t, positions, size);
+                }
+            }
+        }
+
+        // Pairs of positions in left and right, -1 standing for no row
+        Rel(Rel left, Rel right, int[] leftPositions, int[] rightPositions, int size) {
+            this.planner = left.planner;
+            this.mask = left.mask | right.mask;
+            this.size = size;
+            this.source = null;
+            for (int t = 0; t < rows.length; t++) {
+                if ((left.mask & (1L << t)) != 0) {
+                    rows[t] = left.rowsOf(t, leftPositions, size);
+                } else if ((right.mask & (1L << t)) != 0) {
+                    rows[t] = right.rowsOf(t, rightPositions, size);
+                }
+            }
+        }
+
+        // Table t's rows at the given positions
+        private int[] rowsOf(int t, int[] positions, int count) {
+            int[] own = rows[t];
+            int[] result = new int[count];
+            for (int i = 0; i < count; i++) {
+                int position = positions[i];
+                result[i] = position < 0 ? -1 : own == null ? position : own[position];
+            }
+            return result;
+        }
+
+        SQLColumn column(int table, int column) {
+            SQLColumn source = planner.tables.get(table).getColumn(column);
+            return rows[table] == null ? source : source.gather(rows[table], size);
+        }
+
+        String describe() {
+            StringBuilder sb = new StringBuilder();
+            for (int t = 0; t < planner.tables.size(); t++) {
+                if ((mask & (1L << t)) != 0) {
+                    sb.append(sb.length() == 0 ? "" : "+").append(planner.names.get(t));
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,1729 @@
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+// One rewrite of SQLOptimizer. SQLRewriter calls the hooks bottom-up, each
+// with a node whose children are already rewritten; a hook returns the
+// node itself when nothing applies, or a new node. Hooks never modify the
+// node they are given: trees may be shared (SQLQueryCache hands one tree
+// to every thread).
+abstract class SQLRewriteRule {
+    private final String name;
+
+    SQLRewriteRule(String name) {
+        this.name = name;
+    }
+
+    String getName() { return name; }
+
+    // filter is true for a WHERE, HAVING, ON or CASE WHEN condition and
+    // for the AND/OR operands under one: places where NULL and FALSE have
+    // the same effect
+    Expression rewrite(Expression expression, boolean filter) {
+        return expression;
+    }
+
+    TableExpression rewrite(TableExpression table) {
+        return table;
+    }
+
+    SelectStatement rewrite(SelectStatement query) {
+        return query;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
+
+// Copy-on-write, bottom-up traversal that applies one rule to every
+// expression, table expression and query in a tree. Unchanged subtrees
+// are shared with the input, and a query that changes nowhere comes back
+// as the same instance.
+final class SQLRewriter {
+    private final SQLRewriteRule rule;
+    private int rewrites;
+
+    SQLRewriter(SQLRewriteRule rule) {
+        this.rule = rule;
+    }
+
+    // Number of nodes the rule replaced so far
+    int getRewrites() { return rewrites; }
+
+    SelectStatement query(SelectStatement query) {
+        boolean changed = false;
+        List<CommonTableExpression> ctes = new ArrayList<>(query.getCteList().size());
+        for (CommonTableExpression cte : query.getCteList()) {
+            SelectStatement rewritten = query(cte.getQuery());
+            if (rewritten != cte.getQuery()) {
+                cte = new CommonTableExpression(cte.getName(), cte.getColumnList(), rewritten, cte.isRecursive(),
+                                                cte.line, cte.column);
+                changed = true;
+            }
+            ctes.add(cte);
+        }
+        List<SelectItem> items = new ArrayList<>(query.getSelectList().size());
+        for (SelectItem item : query.getSelectList()) {
+            Expression rewritten = expression(item.getExpression(), false);
+            if (rewritten != item.getExpression()) {
+                item = new SelectItem(rewritten, item.getAlias(), item.line, item.column);
+                changed = true;
+            }
+            items.add(item);
+        }
+        FromClause from = query.getFromClause();
+        if (from != null) {
+            TableExpression rewritten = table(from.getTableExpression());
+            if (rewritten != from.getTableExpression()) {
+                from = new FromClause(rewritten, from.line, from.column);
+                changed = true;
+            }
+        }
+        WhereClause where = query.getWhereClause();
+        if (where != null) {
+            Expression rewritten = expression(where.getCondition(), true);
+            if (rewritten != where.getCondition()) {
+                where = new WhereClause(rewritten, where.line, where.column);
+                changed = true;
+            }
+        }
+        GroupByClause groupBy = query.getGroupByClause();
+        if (groupBy != null) {
+            List<Expression> keys = expressions(groupBy.getGroupingExpressions());
+            if (keys != groupBy.getGroupingExpressions()) {
+                groupBy = new GroupByClause(keys, groupBy.line, groupBy.column);
+                changed = true;
+            }
+        }
+        HavingClause having = query.getHavingClause();
+        if (having != null) {
+            Expression rewritten = expression(having.getCondition(), true);
+            if (rewritten != having.getCondition()) {
+                having = new HavingClause(rewritten, having.line, having.column);
+                changed = true;
+            }
+        }
+        OrderByClause orderBy = query.getOrderByClause();
+        if (orderBy != null) {
+            boolean elementsChanged = false;
+            List<OrderByElement> elements = new ArrayList<>(orderBy.getOrderByElements().size());
+            for (OrderByElement element : orderBy.getOrderByElements()) {
+                Expression rewritten = expression(element.getExpression(), false);
+                if (rewritten != element.getExpression()) {
+                    element = new OrderByElement(rewritten, element.getDirection(), element.line, element.column);
+                    elementsChanged = true;
+                }
+                elements.add(element);
+            }
+            if (elementsChanged) {
+                orderBy = new OrderByClause(elements, orderBy.line, orderBy.column);
+                changed = true;
+            }
+        }
+        LimitClause limit = query.getLimitClause();
+        if (limit != null) {
+            Expression rowCount = expression(limit.getRowCount(), false);
+            Expression offset = expression(limit.getOffset(), false);
+            if (rowCount != limit.getRowCount() || offset != limit.getOffset()) {
+                limit = new LimitClause(rowCount, offset, limit.line, limit.column);
+                changed = true;
+            }
+        }
+        List<SetOperation> setOperations = new ArrayList<>(query.getSetOperations().size());
+        for (SetOperation operation : query.getSetOperations()) {
+            SelectStatement rewritten = query(operation.getQuery());
+            if (rewritten != operation.getQuery()) {
+                operation = new SetOperation(operation.getType(), rewritten, operation.line, operation.column);
+                changed = true;
+            }
+            setOperations.add(operation);
+        }
+
+        SelectStatement result = changed
+                ? SQLOptimizer.build(query, ctes, items, from, where, groupBy, having, orderBy, limit, setOperations)
+                : query;
+        SelectStatement rewritten = rule.rewrite(result);
+        if (rewritten != result) {
+            rewrites++;
+        }
+        return rewritten;
+    }
+
+    TableExpression table(TableExpression table) {
+        TableExpression result = table;
+        if (table instanceof JoinExpression) {
+            JoinExpression join = (JoinExpression) table;
+            TableExpression left = table(join.getLeftTable());
+            TableExpression right = table(join.getRightTable());
+            Expression condition = expression(join.getJoinCondition(), true);
+            if (left != join.getLeftTable() || right != join.getRightTable() || condition != join.getJoinCondition()) {
+                result = new JoinExpression(join.getJoinType(), left, right, condition, join.line, join.column);
+            }
+        } else if (table instanceof DerivedTable) {
+            DerivedTable derived = (DerivedTable) table;
+            SelectStatement query = query(derived.getQuery());
+            if (query != derived.getQuery()) {
+                result = new DerivedTable(query, derived.getAlias(), derived.line, derived.column);
+            }
+        }
+        TableExpression rewritten = rule.rewrite(result);
+        if (rewritten != result) {
+            rewrites++;
+        }
+        return rewritten;
+    }
+
+    Expression expression(Expression expression, boolean filter) {
+        if (expression == null) {
+            return null;
+        }
+        if (isLogical(expression)) {
+            return logical((BinaryExpression) expression, filter);
+        }
+        Expression result = expression;
+        int line = expression.line;
+        int column = expression.column;
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) expression;
+            Expression left = expression(binary.getLeft(), false);
+            Expression right = expression(binary.getRight(), false);
+            if (left != binary.getLeft() || right != binary.getRight()) {
+                result = new BinaryExpression(left, binary.getOperator(), right, line, column);
+            }
+        } else if (expression instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression) expression;
+            Expression operand = expression(unary.getOperand(), false);
+            if (operand != unary.getOperand()) {
+                result = new UnaryExpression(unary.getOperator(), operand, line, column);
+            }
+        } else if (expression instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expression;
+            List<Expression> arguments = expressions(call.getArguments());
+            if (arguments != call.getArguments()) {
+                result = new FunctionCall(call.getFunctionName(), arguments, call.isDistinct(), line, column);
+            }
+        } else if (expression instanceof ExpressionList) {
+            List<Expression> items = expressions(((ExpressionList) expression).getExpressions());
+            if (items != ((ExpressionList) expression).getExpressions()) {
+                result = new ExpressionList(items, line, column);
+            }
+        } else if (expression instanceof SubqueryExpression) {
+            SelectStatement query = query(((SubqueryExpression) expression).getQuery());
+            if (query != ((SubqueryExpression) expression).getQuery()) {
+                result = new SubqueryExpression(query, line, column);
+            }
+        } else if (expression instanceof BooleanExpression) {
+            Expression condition = expression(((BooleanExpression) expression).getCondition(), filter);
+            if (condition != ((BooleanExpression) expression).getCondition()) {
+                result = new BooleanExpression(condition, line, column);
+            }
+        } else if (expression instanceof CaseExpression) {
+            result = caseExpression((CaseExpression) expression);
+        }
+        Expression rewritten = rule.rewrite(result, filter);
+        if (rewritten != result) {
+            rewrites++;
+        }
+        return rewritten;
+    }
+
+    private static boolean isLogical(Expression expression) {
+        if (!(expression instanceof BinaryExpression)) {
+            return false;
+        }
+        BinaryExpression.Operator op = ((BinaryExpression) expression).getOperator();
+        return op == BinaryExpression.Operator.AND || op == BinaryExpression.Operator.OR;
+    }
+
+    // A generated chain of conditions nests as deep as it is long on its
+    // left operands, so AND/OR links are rewritten bottom up along that
+    // spine in a loop, each before the link above it as the recursion did.
+    // Their operands share the chain's filter context.
+    private Expression logical(BinaryExpression binary, boolean filter) {
+        List<BinaryExpression> spine = new ArrayList<>();
+        Expression bottom = binary;
+        while (isLogical(bottom)) {
+            spine.add((BinaryExpression) bottom);
+            bottom = ((BinaryExpression) bottom).getLeft();
+        }
+        Expression left = expression(bottom, filter);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            BinaryExpression link = spine.get(i);
+            Expression right = expression(link.getRight(), filter);
+            Expression result = link;
+            if (left != link.getLeft() || right != link.getRight()) {
+                result = new BinaryExpression(left, link.getOperator(), right, link.line, link.column);
+            }
+            left = rule.rewrite(result, filter);
+            if (left != result) {
+                rewrites++;
+            }
+        }
+        return left;
+    }
+
+    private Expression caseExpression(CaseExpression expression) {
+        Expression operand = expression(expression.getCaseOperand(), false);
+        boolean changed = operand != expression.getCaseOperand();
+        List<WhenClause> whens = new ArrayList<>(expression.getWhenClauses().size());
+        for (WhenClause when : expression.getWhenClauses()) {
+            // A searched CASE skips a branch whose condition is FALSE or NULL
+            Expression condition = expression(when.getWhenCondition(), operand == null);
+            Expression then = expression(when.getThenExpression(), false);
+            if (condition != when.getWhenCondition() || then != when.getThenExpression()) {
+                when = new WhenClause(condition, then, when.line, when.column);
+                changed = true;
+            }
+            whens.add(when);
+        }
+        Expression otherwise = expression(expression.getElseExpression(), false);
+        changed |= otherwise != expression.getElseExpression();
+        return changed ? new CaseExpression(operand, whens, otherwise, expression.line, expression.column) : expression;
+    }
+
+    // The same list instance when no element changed
+    private List<Expression> expressions(List<Expression> expressions) {
+        List<Expression> result = null;
+        for (int i = 0; i < expressions.size(); i++) {
+            Expression rewritten = expression(expressions.get(i), false);
+            if (rewritten != expressions.get(i) && result == null) {
+                result = new ArrayList<>(expressions.subList(0, i));
+            }
+            if (result != null) {
+                result.add(rewritten);
+            }
+        }
+        return result == null ? expressions : result;
+    }
+}
+
+// Rough cost of a query in abstract work units: rows read and written
+// plus, for each operator, rows times the number of expression nodes it
+// evaluates per row. Row counts come from per-table estimates (1000 rows
+// when unknown) and fixed selectivities per predicate shape. Only good for
+// comparing two forms of the same query, which is all SQLOptimizer uses
+// it for.
+final class SQLCostModel {
+    static final double DEFAULT_TABLE_ROWS = 1000;
+
+    private final Map<String, Double> tableRows = new ConcurrentHashMap<>();
+
+    void setTableRows(String table, double rows) {
+        tableRows.put(table.toLowerCase(Locale.ROOT), rows);
+    }
+
+    double getTableRows(String table) {
+        return tableRows.getOrDefault(table.toLowerCase(Locale.ROOT), DEFAULT_TABLE_ROWS);
+    }
+
+    double cost(SelectStatement query) {
+        return estimate(query, Collections.emptyMap())[1];
+    }
+
+    double rows(SelectStatement query) {
+        return estimate(query, Collections.emptyMap())[0];
+    }
+
+    // {rows, cost, part of the cost spent before the first row}
+    private double[] estimate(SelectStatement query, Map<String, Double> ctes) {
+        double cost = 0;
+        if (!query.getCteList().isEmpty()) {
+            ctes = new HashMap<>(ctes);
+            for (CommonTableExpression cte : query.getCteList()) {
+                double[] materialized = estimate(cte.getQuery(), ctes);
+                // Computed once and written out
+                cost += materialized[1] + materialized[0];
+                ctes.put(cte.getName().toLowerCase(Locale.ROOT), materialized[0]);
+            }
+        }
+        double[] input = query.getFromClause() == null ? new double[] {1, 0, 0}
+                                                       : table(query.getFromClause().getTableExpression(), ctes);
+        double scanCost = input[1];
+        double rows = input[0];
+        double[] once = new double[1];
+        if (query.getWhereClause() != null) {
+            Expression condition = query.getWhereClause().getCondition();
+            scanCost += rows * expressionCost(condition, ctes, once);
+            rows *= selectivity(condition);
+        }
+
+        boolean aggregates = false;
+        for (SelectItem item : query.getSelectList()) {
+            aggregates |= SQLOptimizer.containsAggregate(item.getExpression());
+        }
+        boolean grouped = aggregates || query.getGroupByClause() != null || query.getHavingClause() != null;
+        double work = scanCost;
+        if (query.getGroupByClause() != null) {
+            for (Expression key : query.getGroupByClause().getGroupingExpressions()) {
+                work += rows * expressionCost(key, ctes, once);
+            }
+        }
+        if (grouped) {
+            // Aggregate arguments run per input row
+            for (SelectItem item : query.getSelectList()) {
+                work += rows * expressionCost(item.getExpression(), ctes, once);
+            }
+            rows = query.getGroupByClause() == null ? 1 : Math.max(1, rows / 10);
+            if (query.getHavingClause() != null) {
+                work += rows * expressionCost(query.getHavingClause().getCondition(), ctes, once);
+                rows *= selectivity(query.getHavingClause().getCondition());
+            }
+        } else {
+            double perRow = 0;
+            for (SelectItem item : query.getSelectList()) {
+                perRow += expressionCost(item.getExpression(), ctes, once);
+            }
+            work += rows * perRow;
+        }
+        if (query.isDistinct()) {
+            work += rows;
+            rows = Math.max(1, rows / 2);
+        }
+        for (SetOperation operation : query.getSetOperations()) {
+            double[] other = estimate(operation.getQuery(), ctes);
+            work += other[1];
+            rows += other[0];
+        }
+        boolean ordered = query.getOrderByClause() != null;
+        if (ordered) {
+            for (OrderByElement element : query.getOrderByClause().getOrderByElements()) {
+                work += rows * expressionCost(element.getExpression(), ctes, once);
+            }
+            // A LIMIT turns the sort into a heap of that many rows
+            double kept = Math.min(rows, limitRows(query.getLimitClause()));
+            work += rows * Math.log(Math.max(2, kept)) / Math.log(2);
+        }
+        boolean streaming = !ordered && !grouped && !query.isDistinct() && query.getSetOperations().isEmpty();
+        // Work done before the first row comes out, which a LIMIT cannot save
+        double blocking = streaming ? input[2] : work;
+        double limit = limitRows(query.getLimitClause());
+        if (limit < rows) {
+            if (streaming) {
+                // The scan stops once enough rows came out
+                work = blocking + (work - blocking) * limit / rows;
+            }
+            rows = limit;
+        }
+        return new double[] {rows, cost + work + once[0], cost + blocking + once[0]};
+    }
+
+    private double[] table(TableExpression table, Map<String, Double> ctes) {
+        if (table instanceof TableReference) {
+            String name = ((TableReference) table).getTableName().toLowerCase(Locale.ROOT);
+            Double cte = ctes.get(name);
+            double rows = cte != null ? cte : getTableRows(name);
+            return new double[] {rows, rows, 0};
+        }
+        if (table instanceof DerivedTable) {
+            return estimate(((DerivedTable) table).getQuery(), ctes);
+        }
+        JoinExpression join = (JoinExpression) table;
+        double[] left = table(join.getLeftTable(), ctes);
+        double[] right = table(join.getRightTable(), ctes);
+        double rows = left[0] * right[0];
+        double cost = left[1] + right[1] + left[0] + right[0];
+        if (join.getJoinCondition() != null) {
+            double[] once = new double[1];
+            rows *= selectivity(join.getJoinCondition());
+            cost += rows * expressionCost(join.getJoinCondition(), ctes, once) + once[0];
+        }
+        if (join.getJoinType() == JoinExpression.JoinType.LEFT || join.getJoinType() == JoinExpression.JoinType.FULL) {
+            rows = Math.max(rows, left[0]);
+        }
+        if (join.getJoinType() == JoinExpression.JoinType.RIGHT || join.getJoinType() == JoinExpression.JoinType.FULL) {
+            rows = Math.max(rows, right[0]);
+        }
+        return new double[] {rows, cost + rows, cost};
+    }
+
+    // Nodes evaluated per row. Uncorrelated subqueries run once; their cost
+    // goes to once[0].
+    private double expressionCost(Expression expression, Map<String, Double> ctes, double[] once) {
+        if (expression == null || expression instanceof LiteralExpression || expression instanceof ParameterExpression) {
+            return 0;
+        }
+        if (expression instanceof ColumnReference) {
+            return 1;
+        }
+        if (expression instanceof SubqueryExpression) {
+            once[0] += estimate(((SubqueryExpression) expression).getQuery(), ctes)[1];
+            return 1;
+        }
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) expression;
+            double own = binary.getOperator() == BinaryExpression.Operator.LIKE ? 4 : 1;
+            return own + expressionCost(binary.getLeft(), ctes, once) + expressionCost(binary.getRight(), ctes, once);
+        }
+        if (expression instanceof UnaryExpression) {
+            return 1 + expressionCost(((UnaryExpression) expression).getOperand(), ctes, once);
+        }
+        if (expression instanceof FunctionCall) {
+            double cost = 2;
+            for (Expression argument : ((FunctionCall) expression).getArguments()) {
+                cost += expressionCost(argument, ctes, once);
+            }
+            return cost;
+        }
+        if (expression instanceof ExpressionList) {
+            double cost = 0;
+            for (Expression item : ((ExpressionList) expression).getExpressions()) {
+                cost += 1 + expressionCost(item, ctes, once);
+            }
+            return cost;
+        }
+        if (expression instanceof BooleanExpression) {
+            return expressionCost(((BooleanExpression) expression).getCondition(), ctes, once);
+        }
+        if (expression instanceof CaseExpression) {
+            CaseExpression caseExpression = (CaseExpression) expression;
+            double cost = 1 + expressionCost(caseExpression.getCaseOperand(), ctes, once)
+                    + expressionCost(caseExpression.getElseExpression(), ctes, once);
+            for (WhenClause when : caseExpression.getWhenClauses()) {
+                cost += expressionCost(when.getWhenCondition(), ctes, once)
+                        + expressionCost(when.getThenExpression(), ctes, once);
+            }
+            return cost;
+        }
+        return 1;
+    }
+
+    // Fraction of rows for which the condition is TRUE
+    static double selectivity(Expression condition) {
+        if (condition instanceof LiteralExpression) {
+            return Boolean.TRUE.equals(((LiteralExpression) condition).getValue()) ? 1 : 0;
+        }
+        if (condition instanceof BooleanExpression) {
+            return selectivity(((BooleanExpression) condition).getCondition());
+        }
+        if (condition instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression) condition;
+            switch (unary.getOperator()) {
+                case NOT: return 1 - selectivity(unary.getOperand());
+                case IS_NULL: return 0.05;
+                case IS_NOT_NULL: return 0.95;
+                default: return 0.5;
+            }
+        }
+        if (!(condition instanceof BinaryExpression)) {
+            return 0.5;
+        }
+        BinaryExpression binary = (BinaryExpression) condition;
+        switch (binary.getOperator()) {
+            case AND: return selectivity(binary.getLeft()) * selectivity(binary.getRight());
+            case OR: {
+                double left = selectivity(binary.getLeft());
+                double right = selectivity(binary.getRight());
+                return left + right - left * right;
+            }
+            case EQUALS: return 0.1;
+            case NOT_EQUALS: return 0.9;
+            case LIKE: return 0.25;
+            case IN:
+                return binary.getRight() instanceof ExpressionList
+                        ? Math.min(1, 0.1 * ((ExpressionList) binary.getRight()).getExpressions().size()) : 0.5;
+            case LESS_THAN:
+            case GREATER_THAN:
+            case LESS_THAN_OR_EQUAL:
+            case GREATER_THAN_OR_EQUAL:
+                return 0.33;
+            default:
+                return 0.5;
+        }
+    }
+
+    private static double limitRows(LimitClause limit) {
+        if (limit == null || !(limit.getRowCount() instanceof LiteralExpression)) {
+            return Double.MAX_VALUE;
+        }
+        Object count = ((LiteralExpression) limit.getRowCount()).getValue();
+        Object offset = limit.getOffset() instanceof LiteralExpression
+                ? ((LiteralExpression) limit.getOffset()).getValue() : null;
+        if (!(count instanceof Number)) {
+            return Double.MAX_VALUE;
+        }
+        return ((Number) count).doubleValue() + (offset instanceof Number ? ((Number) offset).doubleValue() : 0);
+    }
+}
+
+// Rule-based SELECT optimizer: applies its rules as AST-to-AST rewrites
+// until none changes the tree (or MAX_PASSES rounds ran). Each round runs
+// every rule over the whole tree in turn, so one rule's output is the
+// next one's input. The result is a new tree sharing unchanged subtrees
+// with the input, which is never modified.
+// For each rule the optimizer keeps the number of nodes rewritten and the
+// cost saved by those rewrites under its SQLCostModel; report() lists
+// them. An optimizer is thread-safe.
+final class SQLOptimizer {
+    static final int MAX_PASSES = 16;
+
+    private static final ThreadLocal<SQLWriter> WRITERS = ThreadLocal.withInitial(SQLWriter::compact);
+
+    private final List<SQLRewriteRule> rules;
+    private final SQLCostModel costModel;
+    private final Map<String, RuleStats> stats = new LinkedHashMap<>();
+    private final LongAdder optimized = new LongAdder();
+
+    // Per-rule counters
+    static final class RuleStats {
+        final LongAdder rewrites = new LongAdder();
+        final DoubleAdder costSaved = new DoubleAdder();
+
+        long getRewrites() { return rewrites.sum(); }
+
+        // Can be negative: a rule may trade a higher estimate for a simpler tree
+        double getCostSaved() { return costSaved.sum(); }
+    }
+
+    SQLOptimizer() {
+        this(defaultRules(), new SQLCostModel());
+    }
+
+    SQLOptimizer(List<SQLRewriteRule> rules, SQLCostModel costModel) {
+        this.rules = new ArrayList<>(rules);
+        this.costModel = costModel;
+        for (SQLRewriteRule rule : rules) {
+            if (stats.put(rule.getName(), new RuleStats()) != null) {
+                throw new IllegalArgumentException("Duplicate rule " + rule.getName());
+            }
+        }
+    }
+
+    static List<SQLRewriteRule> defaultRules() {
+        return Arrays.asList(new ConstantFoldingRule(), new PredicateSimplificationRule(), new CteInliningRule(),
+                             new ProjectionPruningRule(), new LimitPushdownRule());
+    }
+
+    SQLCostModel getCostModel() { return costModel; }
+
+    RuleStats getStats(String rule) {
+        return stats.get(rule);
+    }
+
+    // SELECTs are optimized; other statements come back unchanged
+    SQLStatement optimize(SQLStatement statement) {
+        return statement instanceof SelectStatement ? optimize((SelectStatement) statement) : statement;
+    }
+
+    SelectStatement optimize(SelectStatement query) {
+        SelectStatement current = query;
+        double cost = Double.NaN; // estimated on the first change
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            boolean changed = false;
+            for (SQLRewriteRule rule : rules) {
+                SQLRewriter rewriter = new SQLRewriter(rule);
+                SelectStatement next = rewriter.query(current);
+                if (next == current) {
+                    continue;
+                }
+                if (Double.isNaN(cost)) {
+                    cost = costModel.cost(current);
+                }
+                double nextCost = costModel.cost(next);
+                RuleStats ruleStats = stats.get(rule.getName());
+                ruleStats.rewrites.add(rewriter.getRewrites());
+                ruleStats.costSaved.add(cost - nextCost);
+                current = next;
+                cost = nextCost;
+                changed = true;
+            }
+            if (!changed) {
+                break;
+            }
+        }
+        optimized.increment();
+        return current;
+    }
+
+    // One line per rule: nodes rewritten and estimated cost saved
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d queries optimized%n", optimized.sum()));
+        for (Map.Entry<String, RuleStats> entry : stats.entrySet()) {
+            sb.append(String.format("  %-28s %10d rewrites %14.0f cost saved%n", entry.getKey(),
+                    entry.getValue().getRewrites(), entry.getValue().getCostSaved()));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "SQLOptimizer{rules=" + rules + "}";
+    }
+
+    // =============== HELPERS FOR RULES ===============
+
+    // A new statement with the given parts and the original's position
+    static SelectStatement build(SelectStatement like, List<CommonTableExpression> ctes, List<SelectItem> items,
+                                 FromClause from, WhereClause where, GroupByClause groupBy, HavingClause having,
+                                 OrderByClause orderBy, LimitClause limit, List<SetOperation> setOperations) {
+        SelectStatement query = new SelectStatement(like.line, like.column);
+        query.setDistinct(like.isDistinct());
+        for (CommonTableExpression cte : ctes) {
+            query.addCTE(cte);
+        }
+        for (SelectItem item : items) {
+            query.addSelectItem(item);
+        }
+        query.setFromClause(from);
+        query.setWhereClause(where);
+        query.setGroupByClause(groupBy);
+        query.setHavingClause(having);
+        query.setOrderByClause(orderBy);
+        query.setLimitClause(limit);
+        for (SetOperation operation : setOperations) {
+            query.addSetOperation(operation);
+        }
+        return query;
+    }
+
+    // A shallow copy whose lists and clauses the caller may replace
+    static SelectStatement copy(SelectStatement query) {
+        return build(query, query.getCteList(), query.getSelectList(), query.getFromClause(), query.getWhereClause(),
+                     query.getGroupByClause(), query.getHavingClause(), query.getOrderByClause(),
+                     query.getLimitClause(), query.getSetOperations());
+    }
+
+    // Canonical text of an expression, for comparing two of them
+    static String text(Expression expression) {
+        return WRITERS.get().write(expression);
+    }
+
+    static boolean isBoolean(Expression expression, boolean value) {
+        return expression instanceof LiteralExpression
+                && ((LiteralExpression) expression).getType() == LiteralExpression.LiteralType.BOOLEAN
+                && Boolean.valueOf(value).equals(((LiteralExpression) expression).getValue());
+    }
+
+    static boolean isNull(Expression expression) {
+        return expression instanceof LiteralExpression
+                && ((LiteralExpression) expression).getType() == LiteralExpression.LiteralType.NULL;
+    }
+
+    static LiteralExpression booleanLiteral(boolean value, ASTNode at) {
+        return new LiteralExpression(LiteralExpression.LiteralType.BOOLEAN, value, at.line, at.column);
+    }
+
+    static LiteralExpression nullLiteral(ASTNode at) {
+        return new LiteralExpression(LiteralExpression.LiteralType.NULL, null, at.line, at.column);
+    }
+
+    static boolean containsAggregate(Expression expression) {
+        if (expression instanceof FunctionCall) {
+            if (SQLEngine.isAggregate((FunctionCall) expression)) {
+                return true;
+            }
+            for (Expression argument : ((FunctionCall) expression).getArguments()) {
+                if (containsAggregate(argument)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (expression instanceof BinaryExpression) {
+            return containsAggregate(((BinaryExpression) expression).getLeft())
+                    || containsAggregate(((BinaryExpression) expression).getRight());
+        }
+        if (expression instanceof UnaryExpression) {
+            return containsAggregate(((UnaryExpression) expression).getOperand());
+        }
+        if (expression instanceof BooleanExpression) {
+            return containsAggregate(((BooleanExpression) expression).getCondition());
+        }
+        if (expression instanceof ExpressionList) {
+            for (Expression item : ((ExpressionList) expression).getExpressions()) {
+                if (containsAggregate(item)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (expression instanceof CaseExpression) {
+            CaseExpression caseExpression = (CaseExpression) expression;
+            if (containsAggregate(caseExpression.getCaseOperand())
+                    || containsAggregate(caseExpression.getElseExpression())) {
+                return true;
+            }
+            for (WhenClause when : caseExpression.getWhenClauses()) {
+                if (containsAggregate(when.getWhenCondition()) || containsAggregate(when.getThenExpression())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final Set<String> VOLATILE_FUNCTIONS = new HashSet<>(Arrays.asList(
+            "RANDOM", "RAND", "UUID", "GEN_RANDOM_UUID", "NEWID", "NEXTVAL", "CLOCK_TIMESTAMP", "SYSDATE"));
+
+    // Whether two evaluations in one row always agree: no volatile
+    // function anywhere inside
+    static boolean isDeterministic(Expression expression) {
+        boolean[] deterministic = {true};
+        SQLTreeWalker walker = new SQLTreeWalker();
+        walker.walk(expression, node -> {
+            if (node instanceof FunctionCall && VOLATILE_FUNCTIONS.contains(
+                    ((FunctionCall) node).getFunctionName().toUpperCase(Locale.ROOT))) {
+                deterministic[0] = false;
+                walker.stop();
+            }
+            return true;
+        });
+        return deterministic[0];
+    }
+
+    // A numeric literal's value, or null
+    static BigDecimal number(Expression expression) {
+        if (!(expression instanceof LiteralExpression)) {
+            return null;
+        }
+        LiteralExpression literal = (LiteralExpression) expression;
+        if (literal.getType() != LiteralExpression.LiteralType.INTEGER
+                && literal.getType() != LiteralExpression.LiteralType.DECIMAL) {
+            return null;
+        }
+        Object value = literal.getValue();
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof Integer || value instanceof Long) {
+            return BigDecimal.valueOf(((Number) value).longValue());
+        }
+        if (value instanceof Double) {
+            return BigDecimal.valueOf((Double) value);
+        }
+        return null;
+    }
+
+    // A DATE literal's value, or null
+    static LocalDate date(Expression expression) {
+        return expression instanceof LiteralExpression
+                && ((LiteralExpression) expression).getType() == LiteralExpression.LiteralType.DATE
+                && ((LiteralExpression) expression).getValue() instanceof LocalDate
+                ? (LocalDate) ((LiteralExpression) expression).getValue() : null;
+    }
+}
+
+// =============== RULES ===============
+
+// Evaluates operators whose operands are all literals: arithmetic on
+// numbers (exact: BIGINT overflow, division by zero and inexact decimal
+// division are left alone), DATE +/- days, comparisons of numbers, dates
+// and booleans, AND/OR/NOT on boolean literals, NULL propagation,
+// IS [NOT] NULL, and searched CASE branches with a literal condition.
+// String comparisons are left to the database, whose collation decides
+// them.
+final class ConstantFoldingRule extends SQLRewriteRule {
+    ConstantFoldingRule() {
+        super("constant-folding");
+    }
+
+    @Override
+    Expression rewrite(Expression expression, boolean filter) {
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) expression;
+            if (binary.getLeft() instanceof LiteralExpression && binary.getRight() instanceof LiteralExpression) {
+                Expression folded = fold(binary, (LiteralExpression) binary.getLeft(),
+                                         (LiteralExpression) binary.getRight());
+                return folded != null ? folded : expression;
+            }
+        } else if (expression instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression) expression;
+            if (unary.getOperand() instanceof LiteralExpression) {
+                Expression folded = fold(unary, (LiteralExpression) unary.getOperand());
+                return folded != null ? folded : expression;
+            }
+        } else if (expression instanceof BooleanExpression
+                && ((BooleanExpression) expression).getCondition() instanceof LiteralExpression) {
+            return ((BooleanExpression) expression).getCondition();
+        } else if (expression instanceof CaseExpression
+                && ((CaseExpression) expression).getCaseOperand() == null) {
+            return searchedCase((CaseExpression) expression);
+        }
+        return expression;
+    }
+
+    // Drops WHEN branches whose condition is FALSE or NULL; a leading TRUE
+    // branch, or no branch left, makes the CASE its THEN or ELSE value
+    private static Expression searchedCase(CaseExpression expression) {
+        List<WhenClause> whens = new ArrayList<>(expression.getWhenClauses().size());
+        for (WhenClause when : expression.getWhenClauses()) {
+            Expression condition = when.getWhenCondition();
+            if (SQLOptimizer.isBoolean(condition, false) || SQLOptimizer.isNull(condition)) {
+                continue;
+            }
+            if (whens.isEmpty() && SQLOptimizer.isBoolean(condition, true)) {
+                return when.getThenExpression();
+            }
+            whens.add(when);
+        }
+        if (whens.size() == expression.getWhenClauses().size()) {
+            return expression;
+        }
+        if (whens.isEmpty()) {
+            Expression otherwise = expression.getElseExpression();
+            return otherwise != null ? otherwise : SQLOptimizer.nullLiteral(expression);
+        }
+        return new CaseExpression(null, whens, expression.getElseExpression(), expression.line, expression.column);
+    }
+
+    private static Expression fold(BinaryExpression binary, LiteralExpression left, LiteralExpression right) {
+        BinaryExpression.Operator op = binary.getOperator();
+        switch (op) {
+            case AND:
+            case OR:
+                return logical(binary, left, right);
+            case LIKE:
+            case IN:
+            case EXISTS:
+                return null;
+            default:
+                break;
+        }
+        if (SQLOptimizer.isNull(left) || SQLOptimizer.isNull(right)) {
+            return SQLOptimizer.nullLiteral(binary);
+        }
+        boolean arithmetic = op == BinaryExpression.Operator.PLUS || op == BinaryExpression.Operator.MINUS
+                || op == BinaryExpression.Operator.MULTIPLY || op == BinaryExpression.Operator.DIVIDE
+                || op == BinaryExpression.Operator.MODULO;
+        BigDecimal a = SQLOptimizer.number(left);
+        BigDecimal b = SQLOptimizer.number(right);
+        if (a != null && b != null) {
+            if (!arithmetic) {
+                return compare(binary, a.compareTo(b));
+            }
+            boolean integers = left.getType() == LiteralExpression.LiteralType.INTEGER
+                    && right.getType() == LiteralExpression.LiteralType.INTEGER;
+            return integers ? integerArithmetic(binary, a.longValueExact(), b.longValueExact())
+                            : decimalArithmetic(binary, a, b);
+        }
+        LocalDate leftDate = SQLOptimizer.date(left);
+        LocalDate rightDate = SQLOptimizer.date(right);
+        if (leftDate != null && rightDate != null) {
+            if (op == BinaryExpression.Operator.MINUS) {
+                return new LiteralExpression(LiteralExpression.LiteralType.INTEGER,
+                        SQLLexer.boxInteger(rightDate.until(leftDate, java.time.temporal.ChronoUnit.DAYS)),
+                        binary.line, binary.column);
+            }
+            return arithmetic ? null : compare(binary, leftDate.compareTo(rightDate));
+        }
+        if (leftDate != null && b != null && right.getType() == LiteralExpression.LiteralType.INTEGER
+                && (op == BinaryExpression.Operator.PLUS || op == BinaryExpression.Operator.MINUS)) {
+            long days = b.longValueExact();
+            return new LiteralExpression(LiteralExpression.LiteralType.DATE,
+                    op == BinaryExpression.Operator.PLUS ? leftDate.plusDays(days) : leftDate.minusDays(days),
+                    binary.line, binary.column);
+        }
+        if (left.getType() == LiteralExpression.LiteralType.BOOLEAN
+                && right.getType() == LiteralExpression.LiteralType.BOOLEAN
+                && (op == BinaryExpression.Operator.EQUALS || op == BinaryExpression.Operator.NOT_EQUALS)) {
+            boolean equal = SQLOptimizer.isBoolean(left, true) == SQLOptimizer.isBoolean(right, true);
+            return SQLOptimizer.booleanLiteral(equal == (op == BinaryExpression.Operator.EQUALS), binary);
+        }
+        return null;
+    }
+
+    private static Expression compare(BinaryExpression binary, int comparison) {
+        boolean result;
+        switch (binary.getOperator()) {
+            case EQUALS: result = comparison == 0; break;
+            case NOT_EQUALS: result = comparison != 0; break;
+            case LESS_THAN: result = comparison < 0; break;
+            case GREATER_THAN: result = comparison > 0; break;
+            case LESS_THAN_OR_EQUAL: result = comparison <= 0; break;
+            case GREATER_THAN_OR_EQUAL: result = comparison >= 0; break;
+            default: return null;
+        }
+        return SQLOptimizer.booleanLiteral(result, binary);
+    }
+
+    private static Expression integerArithmetic(BinaryExpression binary, long a, long b) {
+        long result;
+        try {
+            switch (binary.getOperator()) {
+                case PLUS: result = Math.addExact(a, b); break;
+                case MINUS: result = Math.subtractExact(a, b); break;
+                case MULTIPLY: result = Math.multiplyExact(a, b); break;
+                case DIVIDE:
+                    if (b == 0 || (a == Long.MIN_VALUE && b == -1)) {
+                        return null;
+                    }
+                    result = a / b;
+                    break;
+                default:
+                    if (b == 0) {
+                        return null;
+                    }
+                    result = a % b;
+                    break;
+            }
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        return new LiteralExpression(LiteralExpression.LiteralType.INTEGER, SQLLexer.boxInteger(result),
+                                     binary.line, binary.column);
+    }
+
+    private static Expression decimalArithmetic(BinaryExpression binary, BigDecimal a, BigDecimal b) {
+        BigDecimal result;
+        switch (binary.getOperator()) {
+            case PLUS: result = a.add(b); break;
+            case MINUS: result = a.subtract(b); break;
+            case MULTIPLY: result = a.multiply(b); break;
+            default:
+                if (b.signum() == 0) {
+                    return null;
+                }
+                try {
+                    result = binary.getOperator() == BinaryExpression.Operator.DIVIDE ? a.divide(b) : a.remainder(b);
+                } catch (ArithmeticException e) {
+                    return null; // no exact quotient; the database picks the scale
+                }
+                break;
+        }
+        return new LiteralExpression(LiteralExpression.LiteralType.DECIMAL, result, binary.line, binary.column);
+    }
+
+    // Three-valued AND/OR of two literals
+    private static Expression logical(BinaryExpression binary, LiteralExpression left, LiteralExpression right) {
+        Boolean a = truth(left);
+        Boolean b = truth(right);
+        if ((a == null && !SQLOptimizer.isNull(left)) || (b == null && !SQLOptimizer.isNull(right))) {
+            return null;
+        }
+        boolean and = binary.getOperator() == BinaryExpression.Operator.AND;
+        if (Boolean.valueOf(!and).equals(a) || Boolean.valueOf(!and).equals(b)) {
+            return SQLOptimizer.booleanLiteral(!and, binary);
+        }
+        if (a == null || b == null) {
+            return SQLOptimizer.nullLiteral(binary);
+        }
+        return SQLOptimizer.booleanLiteral(and, binary);
+    }
+
+    private static Boolean truth(LiteralExpression literal) {
+        if (literal.getType() != LiteralExpression.LiteralType.BOOLEAN) {
+            return null;
+        }
+        return SQLOptimizer.isBoolean(literal, true);
+    }
+
+    private static Expression fold(UnaryExpression unary, LiteralExpression operand) {
+        switch (unary.getOperator()) {
+            case IS_NULL:
+                return SQLOptimizer.booleanLiteral(SQLOptimizer.isNull(operand), unary);
+            case IS_NOT_NULL:
+                return SQLOptimizer.booleanLiteral(!SQLOptimizer.isNull(operand), unary);
+            case NOT:
+                if (SQLOptimizer.isNull(operand)) {
+                    return SQLOptimizer.nullLiteral(unary);
+                }
+                Boolean truth = truth(operand);
+                return truth == null ? null : SQLOptimizer.booleanLiteral(!truth, unary);
+            case NEGATE: {
+                if (SQLOptimizer.isNull(operand)) {
+                    return SQLOptimizer.nullLiteral(unary);
+                }
+                BigDecimal number = SQLOptimizer.number(operand);
+                if (number == null) {
+                    return null;
+                }
+                if (operand.getType() == LiteralExpression.LiteralType.INTEGER) {
+                    long value = number.longValueExact();
+                    return value == Long.MIN_VALUE ? null
+                            : new LiteralExpression(LiteralExpression.LiteralType.INTEGER, SQLLexer.boxInteger(-value),
+                                                    unary.line, unary.column);
+                }
+                return new LiteralExpression(LiteralExpression.LiteralType.DECIMAL, number.negate(),
+                                             unary.line, unary.column);
+            }
+            default:
+                return null;
+        }
+    }
+}
+
+// Simplifies AND/OR chains and negations:
+// - TRUE and FALSE operands are absorbed (x AND TRUE is x, x OR TRUE is
+//   TRUE), as are NULL operands in a filter, where NULL acts as FALSE;
+// - repeated operands are dropped (x AND x is x) unless volatile;
+// - in an AND, comparisons of one operand with literals keep only the
+//   tightest bounds (age > 18 AND age > 10 is age > 18; x = 5 AND x > 3 is
+//   x = 5), and in a filter contradictory ones make the whole AND FALSE;
+// - NOT NOT x is x and NOT (a < b) is a >= b;
+// - WHERE TRUE goes away, as does HAVING TRUE after a GROUP BY.
+// Each step holds under three-valued logic wherever it is applied.
+final class PredicateSimplificationRule extends SQLRewriteRule {
+    PredicateSimplificationRule() {
+        super("predicate-simplification");
+    }
+
+    @Override
+    Expression rewrite(Expression expression, boolean filter) {
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression.Operator op = ((BinaryExpression) expression).getOperator();
+            if (op == BinaryExpression.Operator.AND || op == BinaryExpression.Operator.OR) {
+                return chain((BinaryExpression) expression, op == BinaryExpression.Operator.AND, filter);
+            }
+        } else if (expression instanceof UnaryExpression
+                && ((UnaryExpression) expression).getOperator() == UnaryExpression.Operator.NOT) {
+            return not((UnaryExpression) expression);
+        }
+        return expression;
+    }
+
+    @Override
+    SelectStatement rewrite(SelectStatement query) {
+        boolean dropWhere = query.getWhereClause() != null
+                && SQLOptimizer.isBoolean(query.getWhereClause().getCondition(), true);
+        boolean dropHaving = query.getHavingClause() != null && query.getGroupByClause() != null
+                && SQLOptimizer.isBoolean(query.getHavingClause().getCondition(), true);
+        if (!dropWhere && !dropHaving) {
+            return query;
+        }
+        SelectStatement copy = SQLOptimizer.copy(query);
+        if (dropWhere) {
+            copy.setWhereClause(null);
+        }
+        if (dropHaving) {
+            copy.setHavingClause(null);
+        }
+        return copy;
+    }
+
+    private static Expression not(UnaryExpression not) {
+        Expression operand = not.getOperand();
+        while (operand instanceof BooleanExpression) {
+            operand = ((BooleanExpression) operand).getCondition();
+        }
+        if (operand instanceof UnaryExpression
+                && ((UnaryExpression) operand).getOperator() == UnaryExpression.Operator.NOT) {
+            return ((UnaryExpression) operand).getOperand();
+        }
+        if (operand instanceof BinaryExpression) {
+            BinaryExpression comparison = (BinaryExpression) operand;
+            BinaryExpression.Operator inverse = inverse(comparison.getOperator());
+            if (inverse != null) {
+                return new BinaryExpression(comparison.getLeft(), inverse, comparison.getRight(),
+                                            not.line, not.column);
+            }
+        }
+        return not;
+    }
+
+    private static BinaryExpression.Operator inverse(BinaryExpression.Operator op) {
+        switch (op) {
+            case EQUALS: return BinaryExpression.Operator.NOT_EQUALS;
+            case NOT_EQUALS: return BinaryExpression.Operator.EQUALS;
+            case LESS_THAN: return BinaryExpression.Operator.GREATER_THAN_OR_EQUAL;
+            case GREATER_THAN: return BinaryExpression.Operator.LESS_THAN_OR_EQUAL;
+            case LESS_THAN_OR_EQUAL: return BinaryExpression.Operator.GREATER_THAN;
+            case GREATER_THAN_OR_EQUAL: return BinaryExpression.Operator.LESS_THAN;
+            default: return null;
+        }
+    }
+
+    private static Expression chain(BinaryExpression root, boolean and, boolean filter) {
+        BinaryExpression.Operator op = root.getOperator();
+        List<Expression> terms = new ArrayList<>();
+        flatten(root, op, terms);
+        List<Expression> kept = new ArrayList<>(terms.size());
+        Set<String> seen = new HashSet<>();
+        for (Expression term : terms) {
+            if (SQLOptimizer.isBoolean(term, !and)) {
+                // FALSE decides an AND, TRUE an OR
+                return SQLOptimizer.booleanLiteral(!and, root);
+            }
+            if (SQLOptimizer.isBoolean(term, and) || (filter && SQLOptimizer.isNull(term) && !and)) {
+                continue;
+            }
+            if (filter && SQLOptimizer.isNull(term)) {
+                return SQLOptimizer.booleanLiteral(false, root);
+            }
+            if (SQLOptimizer.isDeterministic(term) && !seen.add(SQLOptimizer.text(term))) {
+                continue;
+            }
+            kept.add(term);
+        }
+        if (and && kept.size() > 1) {
+            kept = tightenBounds(kept, filter);
+            if (kept == null) {
+                return SQLOptimizer.booleanLiteral(false, root);
+            }
+        }
+        if (kept.isEmpty()) {
+            return SQLOptimizer.booleanLiteral(and, root);
+        }
+        if (kept.equals(terms)) {
+            return root;
+        }
+        Expression result = kept.get(0);
+        for (int i = 1; i < kept.size(); i++) {
+            result = new BinaryExpression(result, op, kept.get(i), root.line, root.column);
+        }
+        return result;
+    }
+
+    // Parentheses around an operand of the same operator are dropped too
+    private static void flatten(Expression expression, BinaryExpression.Operator op, List<Expression> terms) {
+        Expression inner = expression;
+        while (inner instanceof BooleanExpression) {
+            inner = ((BooleanExpression) inner).getCondition();
+        }
+        if (inner != expression && inner instanceof BinaryExpression
+                && ((BinaryExpression) inner).getOperator() == op) {
+            expression = inner;
+        }
+        if (expression instanceof BinaryExpression && ((BinaryExpression) expression).getOperator() == op) {
+            flatten(((BinaryExpression) expression).getLeft(), op, terms);
+            flatten(((BinaryExpression) expression).getRight(), op, terms);
+        } else {
+            terms.add(expression);
+        }
+    }
+
+    // A comparison of a non-literal operand with a number or date literal,
+    // literal on the right
+    private static final class Bound {
+        final Expression term;
+        final String operand;
+        final BinaryExpression.Operator op;
+        final Comparable<Object> value;
+
+        @SuppressWarnings("unchecked")
+        Bound(Expression term, String operand, BinaryExpression.Operator op, Object value) {
+            this.term = term;
+            this.operand = operand;
+            this.op = op;
+            this.value = (Comparable<Object>) value;
+        }
+
+        boolean isLower() {
+            return op == BinaryExpression.Operator.GREATER_THAN || op == BinaryExpression.Operator.GREATER_THAN_OR_EQUAL;
+        }
+
+        boolean isStrict() {
+            return op == BinaryExpression.Operator.GREATER_THAN || op == BinaryExpression.Operator.LESS_THAN;
+        }
+
+        // Whether v satisfies this bound
+        boolean admits(Comparable<Object> v) {
+            int comparison = v.compareTo(value);
+            switch (op) {
+                case EQUALS: return comparison == 0;
+                case GREATER_THAN: return comparison > 0;
+                case GREATER_THAN_OR_EQUAL: return comparison >= 0;
+                case LESS_THAN: return comparison < 0;
+                default: return comparison <= 0;
+            }
+        }
+
+        // Whether every value this bound admits, other admits too
+        boolean implies(Bound other) {
+            if (op == BinaryExpression.Operator.EQUALS) {
+                return other.admits(value);
+            }
+            if (isLower() != other.isLower() || other.op == BinaryExpression.Operator.EQUALS) {
+                return false;
+            }
+            int comparison = value.compareTo(other.value);
+            if (comparison == 0) {
+                return isStrict() || !other.isStrict();
+            }
+            return isLower() ? comparison > 0 : comparison < 0;
+        }
+    }
+
+    // Keeps the tightest bounds per operand, in the original order; null
+    // when in a filter the bounds admit no value
+    private static List<Expression> tightenBounds(List<Expression> terms, boolean filter) {
+        Map<String, List<Bound>> byOperand = new HashMap<>();
+        for (Expression term : terms) {
+            Bound bound = bound(term);
+            if (bound != null) {
+                byOperand.computeIfAbsent(bound.operand, k -> new ArrayList<>()).add(bound);
+            }
+        }
+        Set<Expression> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<Bound> bounds : byOperand.values()) {
+            if (bounds.size() < 2 || !sameKind(bounds)) {
+                continue;
+            }
+            for (Bound bound : bounds) {
+                for (Bound other : bounds) {
+                    if (bound != other && !dropped.contains(other.term) && !dropped.contains(bound.term)
+                            && other.implies(bound)) {
+                        dropped.add(bound.term);
+                    }
+                }
+            }
+            if (filter && contradicts(bounds)) {
+                return null;
+            }
+        }
+        if (dropped.isEmpty()) {
+            return terms;
+        }
+        List<Expression> kept = new ArrayList<>(terms.size());
+        for (Expression term : terms) {
+            if (!dropped.contains(term)) {
+                kept.add(term);
+            }
+        }
+        return kept;
+    }
+
+    // No value satisfies them all: two bounds exclude each other
+    private static boolean contradicts(List<Bound> bounds) {
+        for (Bound a : bounds) {
+            for (Bound b : bounds) {
+                if (a == b) {
+                    continue;
+                }
+                if (a.op == BinaryExpression.Operator.EQUALS && !b.admits(a.value)) {
+                    return true;
+                }
+                if (a.isLower() && !b.isLower() && b.op != BinaryExpression.Operator.EQUALS
+                        && a.op != BinaryExpression.Operator.EQUALS) {
+                    int comparison = a.value.compareTo(b.value);
+                    if (comparison > 0 || (comparison == 0 && (a.isStrict() || b.isStrict()))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameKind(List<Bound> bounds) {
+        Class<?> kind = bounds.get(0).value.getClass();
+        for (Bound bound : bounds) {
+            if (bound.value.getClass() != kind) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Bound bound(Expression term) {
+        if (!(term instanceof BinaryExpression)) {
+            return null;
+        }
+        BinaryExpression comparison = (BinaryExpression) term;
+        BinaryExpression.Operator op = comparison.getOperator();
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case GREATER_THAN:
+            case LESS_THAN_OR_EQUAL:
+            case GREATER_THAN_OR_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        Expression operand = comparison.getLeft();
+        Object value = literalValue(comparison.getRight());
+        if (value == null) {
+            operand = comparison.getRight();
+            value = literalValue(comparison.getLeft());
+            op = flip(op);
+        }
+        if (value == null || operand instanceof LiteralExpression || !SQLOptimizer.isDeterministic(operand)) {
+            return null;
+        }
+        return new Bound(term, SQLOptimizer.text(operand), op, value);
+    }
+
+    private static Object literalValue(Expression expression) {
+        Object number = SQLOptimizer.number(expression);
+        return number != null ? number : SQLOptimizer.date(expression);
+    }
+
+    private static BinaryExpression.Operator flip(BinaryExpression.Operator op) {
+        switch (op) {
+            case LESS_THAN: return BinaryExpression.Operator.GREATER_THAN;
+            case GREATER_THAN: return BinaryExpression.Operator.LESS_THAN;
+            case LESS_THAN_OR_EQUAL: return BinaryExpression.Operator.GREATER_THAN_OR_EQUAL;
+            case GREATER_THAN_OR_EQUAL: return BinaryExpression.Operator.LESS_THAN_OR_EQUAL;
+            default: return op;
+        }
+    }
+}
+
+// Removes WITH entries nothing references and inlines those referenced
+// exactly once as a derived table at the reference, so the database need
+// not materialize them. An entry is visible to the main query and to the
+// entries declared after it; in earlier entries its name still means
+// the base table, so references there are neither counted nor replaced.
+// An entry is not inlined when an earlier entry uses its name, nor when
+// its body names a later entry, which would capture that reference once
+// the body moved.
+// Recursive entries are left alone, as is any statement with a nested
+// WITH, where a name could be shadowed.
+final class CteInliningRule extends SQLRewriteRule {
+    CteInliningRule() {
+        super("cte-inlining");
+    }
+
+    @Override
+    SelectStatement rewrite(SelectStatement query) {
+        if (query.getCteList().isEmpty() || hasNestedWith(query)) {
+            return query;
+        }
+        SelectStatement current = query;
+        int i = 0;
+        while (i < current.getCteList().size()) {
+            List<CommonTableExpression> ctes = current.getCteList();
+            CommonTableExpression cte = ctes.get(i);
+            if (cte.isRecursive()) {
+                return current;
+            }
+            String name = cte.getName();
+            boolean pinned = false;
+            for (int j = 0; j < ctes.size(); j++) {
+                pinned |= j < i && (ctes.get(j).getName().equalsIgnoreCase(name)
+                                    || countReferences(ctes.get(j).getQuery(), name) > 0);
+                pinned |= j > i && countReferences(cte.getQuery(), ctes.get(j).getName()) > 0;
+            }
+            SelectStatement main = SQLOptimizer.copy(current);
+            main.getCteList().clear();
+            int references = countReferences(main, name);
+            for (int j = i + 1; j < ctes.size(); j++) {
+                references += countReferences(ctes.get(j).getQuery(), name);
+            }
+            SelectStatement body = references == 1 ? withColumnNames(cte) : null;
+            if (references > 1 || (references == 1 && (pinned || body == null))) {
+                i++;
+                continue;
+            }
+            SQLRewriter inline = references == 0 ? null : new SQLRewriter(new Inline(name, body));
+            List<CommonTableExpression> kept = new ArrayList<>(ctes.subList(0, i));
+            for (CommonTableExpression later : ctes.subList(i + 1, ctes.size())) {
+                kept.add(inline == null ? later : new CommonTableExpression(later.getName(), later.getColumnList(),
+                        inline.query(later.getQuery()), later.isRecursive(), later.line, later.column));
+            }
+            current = inline == null ? main : inline.query(main);
+            current = SQLOptimizer.copy(current);
+            current.getCteList().addAll(kept);
+        }
+        return current;
+    }
+
+    private static boolean hasNestedWith(SelectStatement query) {
+        boolean[] found = {false};
+        SQLTreeWalker walker = new SQLTreeWalker();
+        walker.walk(query, node -> {
+            if (node != query && node instanceof SelectStatement && !((SelectStatement) node).getCteList().isEmpty()) {
+                found[0] = true;
+                walker.stop();
+            }
+            return true;
+        });
+        return found[0];
+    }
+
+    private static int countReferences(SelectStatement query, String name) {
+        int[] count = {0};
+        new SQLTreeWalker().walk(query, node -> {
+            if (node instanceof TableReference && ((TableReference) node).getTableName().equalsIgnoreCase(name)) {
+                count[0]++;
+            }
+            return true;
+        });
+        return count[0];
+    }
+
+    // The CTE's query with its column list applied as select aliases, or
+    // null if that cannot be done by renaming items: among other cases
+    // when its GROUP BY, HAVING or ORDER BY names an alias being replaced
+    // or one of the new names, which would then resolve differently
+    private static SelectStatement withColumnNames(CommonTableExpression cte) {
+        SelectStatement body = cte.getQuery();
+        List<String> names = cte.getColumnList();
+        if (names == null || names.isEmpty()) {
+            return body;
+        }
+        if (!body.getSetOperations().isEmpty() || body.getSelectList().size() != names.size()) {
+            return null;
+        }
+        Set<String> renamed = new HashSet<>();
+        for (int i = 0; i < names.size(); i++) {
+            renamed.add(names.get(i).toLowerCase(Locale.ROOT));
+            String alias = body.getSelectList().get(i).getAlias();
+            if (alias != null) {
+                renamed.add(alias.toLowerCase(Locale.ROOT));
+            }
+        }
+        for (ASTNode clause : new ASTNode[] {body.getGroupByClause(), body.getHavingClause(), body.getOrderByClause()}) {
+            if (clause != null && namesAny(clause, renamed)) {
+                return null;
+            }
+        }
+        SelectStatement result = SQLOptimizer.copy(body);
+        result.getSelectList().clear();
+        for (int i = 0; i < names.size(); i++) {
+            SelectItem item = body.getSelectList().get(i);
+            if (item.getExpression() instanceof ColumnReference
+                    && ((ColumnReference) item.getExpression()).getColumnName().equals("*")) {
+                return null;
+            }
+            result.addSelectItem(new SelectItem(item.getExpression(), names.get(i), item.line, item.column));
+        }
+        return result;
+    }
+
+    // Whether the clause has an unqualified column reference to one of
+    // the lower-case names
+    private static boolean namesAny(ASTNode clause, Set<String> names) {
+        boolean[] found = {false};
+        SQLTreeWalker walker = new SQLTreeWalker();
+        walker.walk(clause, node -> {
+            if (node instanceof ColumnReference && ((ColumnReference) node).getTableName() == null
+                    && names.contains(((ColumnReference) node).getColumnName().toLowerCase(Locale.ROOT))) {
+                found[0] = true;
+                walker.stop();
+            }
+            return true;
+        });
+        return found[0];
+    }
+
+    // Replaces references to one name with a derived table
+    private static final class Inline extends SQLRewriteRule {
+        private final String name;
+        private final SelectStatement body;
+
+        Inline(String name, SelectStatement body) {
+            super("inline " + name);
+            this.name = name;
+            this.body = body;
+        }
+
+        @Override
+        TableExpression rewrite(TableExpression table) {
+            if (table instanceof TableReference && ((TableReference) table).getTableName().equalsIgnoreCase(name)) {
+                TableReference reference = (TableReference) table;
+                String alias = reference.getAlias() != null ? reference.getAlias() : reference.getTableName();
+                return new DerivedTable(body, alias, reference.line, reference.column);
+            }
+            return table;
+        }
+    }
+}
+
+// Drops the select items of a derived table in FROM that the enclosing
+// query never names. Any reference by a matching unqualified or
+// alias-qualified name keeps an item, so references that belong to a
+// joined table only make the rule keep more. Derived tables read through
+// *, with DISTINCT or set operations, or whose aggregates would change
+// meaning without the item, are left alone.
+final class ProjectionPruningRule extends SQLRewriteRule {
+    ProjectionPruningRule() {
+        super("projection-pruning");
+    }
+
+    @Override
+    SelectStatement rewrite(SelectStatement query) {
+        if (query.getFromClause() == null) {
+            return query;
+        }
+        for (SelectItem item : query.getSelectList()) {
+            if (isStar(item.getExpression())) {
+                return query;
+            }
+        }
+        TableExpression from = query.getFromClause().getTableExpression();
+        TableExpression pruned = prune(from, query);
+        if (pruned == from) {
+            return query;
+        }
+        SelectStatement copy = SQLOptimizer.copy(query);
+        copy.setFromClause(new FromClause(pruned, query.getFromClause().line, query.getFromClause().column));
+        return copy;
+    }
+
+    private TableExpression prune(TableExpression table, SelectStatement outer) {
+        if (table instanceof JoinExpression) {
+            JoinExpression join = (JoinExpression) table;
+            TableExpression left = prune(join.getLeftTable(), outer);
+            TableExpression right = prune(join.getRightTable(), outer);
+            return left == join.getLeftTable() && right == join.getRightTable() ? table
+                    : new JoinExpression(join.getJoinType(), left, right, join.getJoinCondition(), join.line, join.column);
+        }
+        if (!(table instanceof DerivedTable)) {
+            return table;
+        }
+        DerivedTable derived = (DerivedTable) table;
+        SelectStatement inner = derived.getQuery();
+        if (inner.isDistinct() || !inner.getSetOperations().isEmpty() || inner.getSelectList().size() < 2) {
+            return table;
+        }
+        boolean aggregates = false;
+        for (SelectItem item : inner.getSelectList()) {
+            if (isStar(item.getExpression())) {
+                return table;
+            }
+            aggregates |= SQLOptimizer.containsAggregate(item.getExpression());
+        }
+        if (aggregates && inner.getGroupByClause() == null) {
+            return table;
+        }
+        Set<String> used = new HashSet<>();
+        if (!collectNames(outer, inner, derived.getAlias(), used) || !collectOwnNames(inner, used)) {
+            return table;
+        }
+        List<SelectItem> kept = new ArrayList<>();
+        for (SelectItem item : inner.getSelectList()) {
+            String name = outputName(item);
+            if (name != null && used.contains(name.toLowerCase(Locale.ROOT))) {
+                kept.add(item);
+            }
+        }
+        if (kept.isEmpty()) {
+            kept.add(inner.getSelectList().get(0));
+        }
+        if (kept.size() == inner.getSelectList().size()) {
+            return table;
+        }
+        SelectStatement narrowed = SQLOptimizer.copy(inner);
+        narrowed.getSelectList().clear();
+        for (SelectItem item : kept) {
+            narrowed.addSelectItem(item);
+        }
+        return new DerivedTable(narrowed, derived.getAlias(), derived.line, derived.column);
+    }
+
+    // Names of columns the outer query may read from the derived table,
+    // lower-cased; false if it reads them all through alias.*
+    private static boolean collectNames(SelectStatement outer, SelectStatement inner, String alias, Set<String> used) {
+        boolean[] star = {false};
+        new SQLTreeWalker().walk(outer, node -> {
+            if (node == inner) {
+                return false;
+            }
+            if (node instanceof ColumnReference) {
+                ColumnReference reference = (ColumnReference) node;
+                String table = reference.getTableName();
+                if (table == null || table.equalsIgnoreCase(alias)) {
+                    if (reference.getColumnName().equals("*")) {
+                        star[0] |= table != null;
+                    } else {
+                        used.add(reference.getColumnName().toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            return true;
+        });
+        return !star[0];
+    }
+
+    // Aliases the inner query itself uses in GROUP BY, HAVING and ORDER
+    // BY; false if those use select-list positions
+    private static boolean collectOwnNames(SelectStatement inner, Set<String> used) {
+        List<Expression> expressions = new ArrayList<>();
+        if (inner.getGroupByClause() != null) {
+            expressions.addAll(inner.getGroupByClause().getGroupingExpressions());
+        }
+        if (inner.getHavingClause() != null) {
+            expressions.add(inner.getHavingClause().getCondition());
+        }
+        if (inner.getOrderByClause() != null) {
+            for (OrderByElement element : inner.getOrderByClause().getOrderByElements()) {
+                if (element.getExpression() instanceof LiteralExpression) {
+                    return false;
+                }
+                expressions.add(element.getExpression());
+            }
+        }
+        for (Expression expression : expressions) {
+            if (expression instanceof LiteralExpression) {
+                return false;
+            }
+            new SQLTreeWalker().walk(expression, node -> {
+                if (node instanceof ColumnReference && ((ColumnReference) node).getTableName() == null) {
+                    used.add(((ColumnReference) node).getColumnName().toLowerCase(Locale.ROOT));
+                }
+                return !(node instanceof SubqueryExpression);
+            });
+        }
+        return true;
+    }
+
+    private static String outputName(SelectItem item) {
+        if (item.getAlias() != null) {
+            return item.getAlias();
+        }
+        return item.getExpression() instanceof ColumnReference
+                ? ((ColumnReference) item.getExpression()).getColumnName() : null;
+    }
+
+    private static boolean isStar(Expression expression) {
+        return expression instanceof ColumnReference && ((ColumnReference) expression).getColumnName().equals("*");
+    }
+}
+
+// Moves a literal LIMIT into a derived table the query only projects
+// from: SELECT a FROM (SELECT ...) d LIMIT 10 OFFSET 5 gives the inner
+// query LIMIT 15 (or keeps a smaller limit it already has), so it can stop
+// early. The outer query must have no WHERE, grouping, aggregates,
+// DISTINCT, ORDER BY or set operation, so it passes rows through one for
+// one and any 15 rows of the inner query make a correct result.
+final class LimitPushdownRule extends SQLRewriteRule {
+    LimitPushdownRule() {
+        super("limit-pushdown");
+    }
+
+    @Override
+    SelectStatement rewrite(SelectStatement query) {
+        LimitClause limit = query.getLimitClause();
+        if (limit == null || query.getFromClause() == null
+                || !(query.getFromClause().getTableExpression() instanceof DerivedTable)
+                || query.getWhereClause() != null || query.getGroupByClause() != null
+                || query.getHavingClause() != null || query.isDistinct() || query.getOrderByClause() != null
+                || !query.getSetOperations().isEmpty()) {
+            return query;
+        }
+        for (SelectItem item : query.getSelectList()) {
+            if (SQLOptimizer.containsAggregate(item.getExpression())) {
+                return query;
+            }
+        }
+        Long rows = integer(limit.getRowCount());
+        Long offset = limit.getOffset() == null ? Long.valueOf(0) : integer(limit.getOffset());
+        if (rows == null || offset == null || rows + offset < 0) {
+            return query;
+        }
+        long wanted = rows + offset;
+        DerivedTable derived = (DerivedTable) query.getFromClause().getTableExpression();
+        SelectStatement inner = derived.getQuery();
+        LimitClause innerLimit = inner.getLimitClause();
+        if (innerLimit != null) {
+            Long innerRows = integer(innerLimit.getRowCount());
+            if (innerRows == null || innerRows <= wanted) {
+                return query;
+            }
+        }
+        SelectStatement limited = SQLOptimizer.copy(inner);
+        ASTNode at = innerLimit != null ? innerLimit : limit;
+        limited.setLimitClause(new LimitClause(
+                new LiteralExpression(LiteralExpression.LiteralType.INTEGER, SQLLexer.boxInteger(wanted),
+                                      at.line, at.column),
+                innerLimit != null ? innerLimit.getOffset() : null, at.line, at.column));
+        SelectStatement copy = SQLOptimizer.copy(query);
+        copy.setFromClause(new FromClause(new DerivedTable(limited, derived.getAlias(), derived.line, derived.column),
+                                          query.getFromClause().line, query.getFromClause().column));
+        return copy;
+    }
+
+    private static Long integer(Expression expression) {
+        BigDecimal number = SQLOptimizer.number(expression);
+        if (number == null || ((LiteralExpression) expression).getType() != LiteralExpression.LiteralType.INTEGER) {
+            return null;
+        }
+        return number.longValue();
+    }
+}
@@ -0,0 +1,1455 @@
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+// Token kinds produced by SQLLexer. Words with keyword=true are reserved;
+// DATE, KEY, OFFSET, RECURSIVE and the data type names are matched by
+// context instead, so they stay usable as column names.
+enum SQLTokenType {
+    IDENTIFIER, INTEGER, DECIMAL, STRING,
+    COMMA, DOT, LPAREN, RPAREN, SEMICOLON, STAR, PLUS, MINUS, SLASH, PERCENT,
+    EQ, NE, LT, LE, GT, GE,
+    SELECT(true), DISTINCT(true), ALL(true), FROM(true), WHERE(true), GROUP(true), BY(true), HAVING(true),
+    ORDER(true), ASC(true), DESC(true), LIMIT(true), WITH(true), AS(true),
+    JOIN(true), INNER(true), LEFT(true), RIGHT(true), FULL(true), OUTER(true), CROSS(true), ON(true),
+    UNION(true), INTERSECT(true), EXCEPT(true),
+    AND(true), OR(true), NOT(true), LIKE(true), IN(true), EXISTS(true), BETWEEN(true), IS(true),
+    NULL(true), TRUE(true), FALSE(true), CASE(true), WHEN(true), THEN(true), ELSE(true), END(true),
+    INSERT(true), INTO(true), VALUES(true), UPDATE(true), SET(true), DELETE(true),
+    CREATE(true), TABLE(true), PRIMARY(true), CONSTRAINT(true),
+    EOF;
+
+    final boolean keyword;
+
+    SQLTokenType() {
+        this(false);
+    }
+
+    SQLTokenType(boolean keyword) {
+        this.keyword = keyword;
+    }
+}
+
+// Syntax error with the 1-based line and column it was found at
+class SQLParseException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+    private final int column;
+
+    SQLParseException(String message, int line, int column) {
+        super(message + " at line " + line + ", column " + column);
+        this.line = line;
+        this.column = column;
+    }
+
+    int getLine() { return line; }
+    int getColumn() { return column; }
+}
+
+// Streaming SQL tokenizer: next() advances to the following token and the
+// current token is read from fields, so scanning allocates nothing except
+// the values the AST keeps. Keywords are recognised case-insensitively from
+// a hash computed while scanning, and identifiers are interned by character
+// range, so a name repeated across a script becomes one String.
+// Not thread-safe; reset() makes it reusable for the next input.
+final class SQLLexer {
+    private static final int KEYWORD_SLOTS = 256;
+    private static final String[] KEYWORD_NAMES = new String[KEYWORD_SLOTS];
+    private static final SQLTokenType[] KEYWORD_TYPES = new SQLTokenType[KEYWORD_SLOTS];
+
+    static {
+        for (SQLTokenType type : SQLTokenType.values()) {
+            if (type.keyword) {
+                String name = type.name().toLowerCase(Locale.ROOT);
+                int slot = mix(name.hashCode()) & (KEYWORD_SLOTS - 1);
+                while (KEYWORD_NAMES[slot] != null) {
+                    slot = (slot + 1) & (KEYWORD_SLOTS - 1);
+                }
+                KEYWORD_NAMES[slot] = name;
+                KEYWORD_TYPES[slot] = type;
+            }
+        }
+    }
+
+    private final SymbolTable symbols = new SymbolTable();
+    private char[] buffer = new char[0]; // reused copy of CharSequence input
+    private char[] chars;
+    private int offset;
+    private int length;
+    private int pos;
+    private int line;
+    private int lineStart;
+
+    // The current token
+    SQLTokenType type;
+    int start;
+    int end;
+    int tokenLine;
+    int tokenColumn;
+    long integerValue;        // INTEGER
+    BigDecimal decimalValue;  // DECIMAL
+    String stringValue;       // STRING, and quoted identifiers with escapes
+    private int nameStart;    // IDENTIFIER: name without quotes
+    private int nameEnd;
+    private int nameHash;
+
+    // Copies the text into a buffer kept across calls: scanning a char[] is
+    // several times faster than going through CharSequence.charAt
+    void reset(CharSequence sql) {
+        int count = sql.length();
+        if (buffer.length < count) {
+            buffer = new char[Math.max(count, buffer.length * 2)];
+        }
+        if (sql instanceof String) {
+            ((String) sql).getChars(0, count, buffer, 0);
+        } else if (sql instanceof StringBuilder) {
+            ((StringBuilder) sql).getChars(0, count, buffer, 0);
+        } else {
+            for (int i = 0; i < count; i++) {
+                buffer[i] = sql.charAt(i);
+            }
+        }
+        reset(buffer, 0, count);
+    }
+
+    // Scans the array in place; it must not change until parsing is done
+    void reset(char[] sql, int offset, int count) {
+        this.chars = sql;
+        this.offset = offset;
+        this.length = count;
+        this.pos = 0;
+        this.line = 1;
+        this.lineStart = 0;
+        this.type = null;
+    }
+
+    void next() {
+        skipWhitespaceAndComments();
+        start = pos;
+        tokenLine = line;
+        tokenColumn = pos - lineStart + 1;
+        stringValue = null;
+        if (pos >= length) {
+            type = SQLTokenType.EOF;
+            end = pos;
+            return;
+        }
+        char c = chars[offset + pos];
+        if (isIdentifierStart(c)) {
+            scanWord();
+        } else if (isDigit(c) || (c == '.' && pos + 1 < length && isDigit(chars[offset + pos + 1]))) {
+            scanNumber();
+        } else if (c == '\'') {
+            scanString();
+        } else if (c == '"' || c == '`') {
+            scanQuotedIdentifier(c);
+        } else {
+            scanSymbol(c);
+        }
+        end = pos;
+    }
+
+    // The current IDENTIFIER's name, interned
+    String identifier() {
+        if (stringValue != null) {
+            return stringValue;
+        }
+        return symbols.intern(this, nameStart, nameEnd, nameHash);
+    }
+
+    // True if the current token is an unquoted identifier spelling word
+    // (given in lower case) in any case
+    boolean isWord(String word) {
+        return type == SQLTokenType.IDENTIFIER && chars[offset + start] != '"' && chars[offset + start] != '`'
+                && matchesIgnoreCase(word, start, end);
+    }
+
+    // Value of the current INTEGER (Integer when it fits, else Long),
+    // DECIMAL (BigDecimal) or STRING token; a STRING after the word DATE
+    // is parsed as a LocalDate
+    Object literalValue(boolean date) {
+        switch (type) {
+            case INTEGER: return boxInteger(integerValue);
+            case DECIMAL: return decimalValue;
+            case STRING:
+                if (!date) {
+                    return stringValue;
+                }
+                try {
+                    return LocalDate.parse(stringValue);
+                } catch (DateTimeParseException e) {
+                    throw error("Expected a date as 'yyyy-mm-dd' but found " + describe());
+                }
+            default: throw new IllegalStateException("Not a literal: " + type);
+        }
+    }
+
+    static Object boxInteger(long value) {
+        return value == (int) value ? (Object) (int) value : (Object) value;
+    }
+
+    // The current token for error messages
+    String describe() {
+        return type == SQLTokenType.EOF ? "end of input" : "'" + slice(start, end) + "'";
+    }
+
+    String slice(int from, int to) {
+        return new String(chars, offset + from, to - from);
+    }
+
+    char charAt(int index) {
+        return chars[offset + index];
+    }
+
+    private SQLParseException error(String message) {
+        return new SQLParseException(message, tokenLine, tokenColumn);
+    }
+
+    private void skipWhitespaceAndComments() {
+        while (pos < length) {
+            char c = chars[offset + pos];
+            if (c == '\n') {
+                line++;
+                lineStart = ++pos;
+            } else if (c == ' ' || c == '\t' || c == '\r' || c == '\f') {
+                pos++;
+            } else if (c == '-' && pos + 1 < length && chars[offset + pos + 1] == '-') {
+                while (pos < length && chars[offset + pos] != '\n') {
+                    pos++;
+                }
+            } else if (c == '/' && pos + 1 < length && chars[offset + pos + 1] == '*') {
+                int commentLine = line;
+                int commentColumn = pos - lineStart + 1;
+                pos += 2;
+                while (true) {
+                    if (pos + 1 >= length) {
+                        throw new SQLParseException("Unterminated comment", commentLine, commentColumn);
+                    }
+                    char d = chars[offset + pos];
+                    if (d == '*' && chars[offset + pos + 1] == '/') {
+                        pos += 2;
+                        break;
+                    }
+                    if (d == '\n') {
+                        line++;
+                        lineStart = pos + 1;
+                    }
+                    pos++;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void scanWord() {
+        int hash = 0;
+        int lowerHash = 0;
+        while (pos < length) {
+            char c = chars[offset + pos];
+            if (!isIdentifierPart(c)) {
+                break;
+            }
+            hash = 31 * hash + c;
+            lowerHash = 31 * lowerHash + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+            pos++;
+        }
+        int slot = mix(lowerHash) & (KEYWORD_SLOTS - 1);
+        String keyword;
+        while ((keyword = KEYWORD_NAMES[slot]) != null) {
+            if (matchesIgnoreCase(keyword, start, pos)) {
+                type = KEYWORD_TYPES[slot];
+                return;
+            }
+            slot = (slot + 1) & (KEYWORD_SLOTS - 1);
+        }
+        type = SQLTokenType.IDENTIFIER;
+        nameStart = start;
+        nameEnd = pos;
+        nameHash = hash;
+    }
+
+    private void scanQuotedIdentifier(char quote) {
+        int hash = 0;
+        boolean escaped = false;
+        pos++;
+        while (true) {
+            if (pos >= length) {
+                throw error("Unterminated quoted identifier");
+            }
+            char c = chars[offset + pos];
+            if (c == quote) {
+                if (pos + 1 < length && chars[offset + pos + 1] == quote) {
+                    escaped = true;
+                    pos += 2;
+                    continue;
+                }
+                break;
+            }
+            if (c == '\n') {
+                throw error("Unterminated quoted identifier");
+            }
+            hash = 31 * hash + c;
+            pos++;
+        }
+        pos++;
+        type = SQLTokenType.IDENTIFIER;
+        nameStart = start + 1;
+        nameEnd = pos - 1;
+        nameHash = hash;
+        if (escaped) {
+            stringValue = unescape(nameStart, nameEnd, quote);
+        }
+        if (nameStart == nameEnd) {
+            throw error("Empty quoted identifier");
+        }
+    }
+
+    private void scanString() {
+        boolean escaped = false;
+        pos++;
+        while (true) {
+            if (pos >= length) {
+                throw error("Unterminated string");
+            }
+            char c = chars[offset + pos];
+            if (c == '\'') {
+                if (pos + 1 < length && chars[offset + pos + 1] == '\'') {
+                    escaped = true;
+                    pos += 2;
+                    continue;
+                }
+                break;
+            }
+            if (c == '\n') {
+                line++;
+                lineStart = pos + 1;
+            }
+            pos++;
+        }
+        pos++;
+        type = SQLTokenType.STRING;
+        stringValue = escaped ? unescape(start + 1, pos - 1, '\'') : slice(start + 1, pos - 1);
+    }
+
+    private String unescape(int from, int to, char quote) {
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            char c = chars[offset + i];
+            sb.append(c);
+            if (c == quote) {
+                i++; // skip the second quote of the pair
+            }
+        }
+        return sb.toString();
+    }
+
+    // Integers that fit in a long stay primitive; decimals without an
+    // exponent are built from their unscaled digits; anything else goes
+    // through BigDecimal's own parser
+    private void scanNumber() {
+        long unscaled = 0;
+        int scale = 0;
+        boolean overflow = false;
+        boolean fraction = false;
+        boolean exponent = false;
+        while (pos < length) {
+            char c = chars[offset + pos];
+            if (isDigit(c)) {
+                if (unscaled > (Long.MAX_VALUE - (c - '0')) / 10) {
+                    overflow = true;
+                } else {
+                    unscaled = unscaled * 10 + (c - '0');
+                }
+                if (fraction) {
+                    scale++;
+                }
+                pos++;
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+                pos++;
+            } else if ((c == 'e' || c == 'E') && pos + 1 < length
+                    && (isDigit(chars[offset + pos + 1])
+                        || ((chars[offset + pos + 1] == '+' || chars[offset + pos + 1] == '-')
+                            && pos + 2 < length && isDigit(chars[offset + pos + 2])))) {
+                exponent = true;
+                pos += 2;
+                while (pos < length && isDigit(chars[offset + pos])) {
+                    pos++;
+                }
+                break;
+            } else {
+                break;
+            }
+        }
+        if (pos < length && isIdentifierStart(chars[offset + pos])) {
+            throw error("Malformed number");
+        }
+        if (!fraction && !exponent && !overflow) {
+            type = SQLTokenType.INTEGER;
+            integerValue = unscaled;
+        } else {
+            type = SQLTokenType.DECIMAL;
+            decimalValue = overflow || exponent ? new BigDecimal(slice(start, pos)) : BigDecimal.valueOf(unscaled, scale);
+        }
+    }
+
+    private void scanSymbol(char c) {
+        char next = pos + 1 < length ? chars[offset + pos + 1] : 0;
+        pos++;
+        switch (c) {
+            case ',': type = SQLTokenType.COMMA; return;
+            case '.': type = SQLTokenType.DOT; return;
+            case '(': type = SQLTokenType.LPAREN; return;
+            case ')': type = SQLTokenType.RPAREN; return;
+            case ';': type = SQLTokenType.SEMICOLON; return;
+            case '*': type = SQLTokenType.STAR; return;
+            case '+': type = SQLTokenType.PLUS; return;
+            case '-': type = SQLTokenType.MINUS; return;
+            case '/': type = SQLTokenType.SLASH; return;
+            case '%': type = SQLTokenType.PERCENT; return;
+            case '=':
+                if (next == '=') pos++;
+                type = SQLTokenType.EQ;
+                return;
+            case '!':
+                if (next == '=') {
+                    pos++;
+                    type = SQLTokenType.NE;
+                    return;
+                }
+                break;
+            case '<':
+                if (next == '=') {
+                    pos++;
+                    type = SQLTokenType.LE;
+                } else if (next == '>') {
+                    pos++;
+                    type = SQLTokenType.NE;
+                } else {
+                    type = SQLTokenType.LT;
+                }
+                return;
+            case '>':
+                if (next == '=') {
+                    pos++;
+                    type = SQLTokenType.GE;
+                } else {
+                    type = SQLTokenType.GT;
+                }
+                return;
+            default:
+                break;
+        }
+        throw error("Unexpected character '" + c + "'");
+    }
+
+    private boolean matchesIgnoreCase(String lower, int from, int to) {
+        if (to - from != lower.length()) {
+            return false;
+        }
+        for (int i = 0; i < lower.length(); i++) {
+            char c = chars[offset + from + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != lower.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+                || (c > 127 && Character.isLetter(c));
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || isDigit(c) || c == '$';
+    }
+
+    // Open-addressing intern table keyed by character range. It is cleared
+    // when it fills up rather than grown, so a long-lived lexer fed ever new
+    // names stays bounded.
+    private static final class SymbolTable {
+        private static final int CAPACITY = 4096;
+
+        private final String[] names = new String[CAPACITY];
+        private final int[] hashes = new int[CAPACITY];
+        private int size;
+
+        String intern(SQLLexer lexer, int from, int to, int hash) {
+            int slot = mix(hash) & (CAPACITY - 1);
+            String name;
+            while ((name = names[slot]) != null) {
+                if (hashes[slot] == hash && matches(name, lexer, from, to)) {
+                    return name;
+                }
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            name = lexer.slice(from, to);
+            if (size >= CAPACITY / 2) {
+                Arrays.fill(names, null);
+                size = 0;
+                slot = mix(hash) & (CAPACITY - 1);
+            }
+            names[slot] = name;
+            hashes[slot] = hash;
+            size++;
+            return name;
+        }
+
+        private static boolean matches(String name, SQLLexer lexer, int from, int to) {
+            if (name.length() != to - from) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != lexer.charAt(from + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
+
+// Recursive-descent parser from SQL text to the SQLASTDemo node hierarchy,
+// with each node's line and column taken from its first token.
+// Supports SELECT (WITH [RECURSIVE], DISTINCT, joins, derived tables,
+// WHERE, GROUP BY, HAVING, UNION/INTERSECT/EXCEPT, ORDER BY, LIMIT/OFFSET),
+// INSERT ... VALUES/SELECT, UPDATE, DELETE and CREATE TABLE.
+// Expression precedence, loosest first: OR, AND, NOT, comparison (=, <>,
+// <, <=, >, >=, [NOT] LIKE/IN/BETWEEN, IS [NOT] NULL), + -, * / %, unary
+// minus. BETWEEN becomes "x >= low AND x <= high".
+// Expressions, queries and table expressions nest at most MAX_DEPTH deep:
+// each level costs stack frames here and in every recursive walk of the
+// tree afterwards, so deeper input is a parse error rather than a
+// StackOverflowError.
+// Not thread-safe; reuse one parser per thread.
+class SQLParser {
+    static final int MAX_DEPTH = 256;
+
+    private final SQLLexer lexer = new SQLLexer();
+    private List<Object> lifted; // non-null while parsing parameterized
+    private int depth;           // nested expressions, queries and table expressions open
+
+    // Parses exactly one statement, optionally followed by a semicolon
+    SQLStatement parse(CharSequence sql) {
+        lexer.reset(sql);
+        return parseSingle();
+    }
+
+    // Like parse, but every number, string and date literal in an
+    // expression becomes a ParameterExpression and its value is appended to
+    // parameters. Values are those SQLLexer.literalValue gives, and a minus
+    // sign is not folded into a lifted number, so the parameters line up
+    // with the literal tokens of the text.
+    SQLStatement parseParameterized(CharSequence sql, List<Object> parameters) {
+        lexer.reset(sql);
+        lifted = parameters;
+        try {
+            return parseSingle();
+        } finally {
+            lifted = null;
+        }
+    }
+
+    SQLStatement parse(char[] sql, int offset, int length) {
+        lexer.reset(sql, offset, length);
+        return parseSingle();
+    }
+
+    // Parses a semicolon-separated script
+    List<SQLStatement> parseScript(CharSequence sql) {
+        lexer.reset(sql);
+        lexer.next();
+        List<SQLStatement> statements = new ArrayList<>();
+        while (true) {
+            while (accept(SQLTokenType.SEMICOLON)) {
+                // empty statement
+            }
+            if (lexer.type == SQLTokenType.EOF) {
+                return statements;
+            }
+            statements.add(parseStatement());
+            if (lexer.type != SQLTokenType.EOF) {
+                expect(SQLTokenType.SEMICOLON);
+            }
+        }
+    }
+
+    private SQLStatement parseSingle() {
+        lexer.next();
+        SQLStatement statement = parseStatement();
+        accept(SQLTokenType.SEMICOLON);
+        if (lexer.type != SQLTokenType.EOF) {
+            throw error("end of statement");
+        }
+        return statement;
+    }
+
+    private SQLStatement parseStatement() {
+        switch (lexer.type) {
+            case SELECT:
+            case WITH:
+            case LPAREN:
+                return parseQuery();
+            case INSERT: return parseInsert();
+            case UPDATE: return parseUpdate();
+            case DELETE: return parseDelete();
+            case CREATE: return parseCreateTable();
+            default: throw error("statement");
+        }
+    }
+
+    // =============== QUERIES ===============
+
+    private SelectStatement parseQuery() {
+        descend();
+        try {
+            return parseQueryExpression();
+        } finally {
+            depth--;
+        }
+    }
+
+    private SelectStatement parseQueryExpression() {
+        List<CommonTableExpression> ctes = null;
+        if (accept(SQLTokenType.WITH)) {
+            ctes = new ArrayList<>();
+            boolean recursive = acceptWord("recursive");
+            do {
+                ctes.add(parseCommonTableExpression(recursive));
+            } while (accept(SQLTokenType.COMMA));
+        }
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        boolean parenthesized = lexer.type == SQLTokenType.LPAREN;
+        SelectStatement query = parseQueryTerm();
+        if (parenthesized && !isSelectBlock(query)
+                && (followsQuery(lexer.type) || (ctes != null && !query.getCteList().isEmpty()))) {
+            // What follows applies to the parenthesised query's result, not
+            // to its last block: keep it whole as a derived table
+            SelectStatement whole = new SelectStatement(line, column);
+            whole.addSelectItem(new SelectItem(new ColumnReference("*", line, column), null, line, column));
+            whole.setFromClause(new FromClause(new DerivedTable(query, null, line, column), line, column));
+            query = whole;
+        }
+        while (true) {
+            line = lexer.tokenLine;
+            column = lexer.tokenColumn;
+            SetOperation.Type type;
+            if (accept(SQLTokenType.UNION)) {
+                type = accept(SQLTokenType.ALL) ? SetOperation.Type.UNION_ALL : SetOperation.Type.UNION;
+                accept(SQLTokenType.DISTINCT);
+            } else if (accept(SQLTokenType.INTERSECT)) {
+                type = SetOperation.Type.INTERSECT;
+            } else if (accept(SQLTokenType.EXCEPT)) {
+                type = SetOperation.Type.EXCEPT;
+            } else {
+                break;
+            }
+            query.addSetOperation(new SetOperation(type, parseQueryTerm(), line, column));
+        }
+        if (lexer.type == SQLTokenType.ORDER) {
+            if (query.getOrderByClause() != null) {
+                throw error("a single ORDER BY");
+            }
+            query.setOrderByClause(parseOrderBy());
+        }
+        if (lexer.type == SQLTokenType.LIMIT) {
+            if (query.getLimitClause() != null) {
+                throw error("a single LIMIT");
+            }
+            query.setLimitClause(parseLimit());
+        }
+        if (ctes != null) {
+            for (CommonTableExpression cte : ctes) {
+                query.addCTE(cte);
+            }
+        }
+        return query;
+    }
+
+    // Whether the query is a single SELECT block, to which set operations,
+    // ORDER BY and LIMIT can be added without changing what it means
+    private static boolean isSelectBlock(SelectStatement query) {
+        return query.getCteList().isEmpty() && query.getSetOperations().isEmpty()
+                && query.getOrderByClause() == null && query.getLimitClause() == null;
+    }
+
+    private static boolean followsQuery(SQLTokenType type) {
+        return type == SQLTokenType.UNION || type == SQLTokenType.INTERSECT || type == SQLTokenType.EXCEPT
+                || type == SQLTokenType.ORDER || type == SQLTokenType.LIMIT;
+    }
+
+    private CommonTableExpression parseCommonTableExpression(boolean recursive) {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        String name = expectIdentifier();
+        List<String> columns = new ArrayList<>();
+        if (accept(SQLTokenType.LPAREN)) {
+            do {
+                columns.add(expectIdentifier());
+            } while (accept(SQLTokenType.COMMA));
+            expect(SQLTokenType.RPAREN);
+        }
+        expect(SQLTokenType.AS);
+        expect(SQLTokenType.LPAREN);
+        SelectStatement query = parseQuery();
+        expect(SQLTokenType.RPAREN);
+        return new CommonTableExpression(name, columns, query, recursive, line, column);
+    }
+
+    // A SELECT block, or a parenthesised query
+    private SelectStatement parseQueryTerm() {
+        if (accept(SQLTokenType.LPAREN)) {
+            SelectStatement query = parseQuery();
+            expect(SQLTokenType.RPAREN);
+            return query;
+        }
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.SELECT);
+        SelectStatement select = new SelectStatement(line, column);
+        if (accept(SQLTokenType.DISTINCT)) {
+            select.setDistinct(true);
+        } else {
+            accept(SQLTokenType.ALL);
+        }
+        do {
+            select.addSelectItem(parseSelectItem());
+        } while (accept(SQLTokenType.COMMA));
+
+        if (lexer.type == SQLTokenType.FROM) {
+            line = lexer.tokenLine;
+            column = lexer.tokenColumn;
+            lexer.next();
+            select.setFromClause(new FromClause(parseTableExpression(), line, column));
+        }
+        if (lexer.type == SQLTokenType.WHERE) {
+            select.setWhereClause(parseWhere());
+        }
+        if (lexer.type == SQLTokenType.GROUP) {
+            line = lexer.tokenLine;
+            column = lexer.tokenColumn;
+            lexer.next();
+            expect(SQLTokenType.BY);
+            List<Expression> grouping = new ArrayList<>();
+            do {
+                int lifting = lifted == null ? 0 : lifted.size();
+                grouping.add(position(parseExpression(), lifting));
+            } while (accept(SQLTokenType.COMMA));
+            select.setGroupByClause(new GroupByClause(grouping, line, column));
+        }
+        if (lexer.type == SQLTokenType.HAVING) {
+            line = lexer.tokenLine;
+            column = lexer.tokenColumn;
+            lexer.next();
+            select.setHavingClause(new HavingClause(parseExpression(), line, column));
+        }
+        return select;
+    }
+
+    private SelectItem parseSelectItem() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        Expression expression;
+        if (accept(SQLTokenType.STAR)) {
+            expression = new ColumnReference("*", line, column);
+        } else {
+            expression = parseExpression();
+        }
+        return new SelectItem(expression, parseAlias(), line, column);
+    }
+
+    private WhereClause parseWhere() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.WHERE);
+        return new WhereClause(parseExpression(), line, column);
+    }
+
+    private OrderByClause parseOrderBy() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.ORDER);
+        expect(SQLTokenType.BY);
+        List<OrderByElement> elements = new ArrayList<>();
+        do {
+            int elementLine = lexer.tokenLine;
+            int elementColumn = lexer.tokenColumn;
+            int lifting = lifted == null ? 0 : lifted.size();
+            Expression expression = position(parseExpression(), lifting);
+            OrderByElement.SortDirection direction = OrderByElement.SortDirection.ASC;
+            if (accept(SQLTokenType.DESC)) {
+                direction = OrderByElement.SortDirection.DESC;
+            } else {
+                accept(SQLTokenType.ASC);
+            }
+            elements.add(new OrderByElement(expression, direction, elementLine, elementColumn));
+        } while (accept(SQLTokenType.COMMA));
+        return new OrderByClause(elements, line, column);
+    }
+
+    // LIMIT count [OFFSET skip], or MySQL's LIMIT skip, count
+    private LimitClause parseLimit() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.LIMIT);
+        Expression rowCount = parseExpression();
+        Expression offset = null;
+        if (accept(SQLTokenType.COMMA)) {
+            offset = rowCount;
+            rowCount = parseExpression();
+        } else if (acceptWord("offset")) {
+            offset = parseExpression();
+        }
+        return new LimitClause(rowCount, offset, line, column);
+    }
+
+    // =============== TABLE EXPRESSIONS ===============
+
+    private TableExpression parseTableExpression() {
+        descend();
+        try {
+            return parseJoins();
+        } finally {
+            depth--;
+        }
+    }
+
+    private TableExpression parseJoins() {
+        TableExpression left = parseTablePrimary();
+        while (true) {
+            int line = lexer.tokenLine;
+            int column = lexer.tokenColumn;
+            JoinExpression.JoinType joinType;
+            switch (lexer.type) {
+                case COMMA:
+                    lexer.next();
+                    left = new JoinExpression(JoinExpression.JoinType.CROSS, left, parseTablePrimary(), null,
+                                              line, column);
+                    continue;
+                case CROSS:
+                    lexer.next();
+                    expect(SQLTokenType.JOIN);
+                    left = new JoinExpression(JoinExpression.JoinType.CROSS, left, parseTablePrimary(), null,
+                                              line, column);
+                    continue;
+                case JOIN: joinType = JoinExpression.JoinType.INNER; break;
+                case INNER: joinType = JoinExpression.JoinType.INNER; lexer.next(); break;
+                case LEFT: joinType = JoinExpression.JoinType.LEFT; lexer.next(); accept(SQLTokenType.OUTER); break;
+                case RIGHT: joinType = JoinExpression.JoinType.RIGHT; lexer.next(); accept(SQLTokenType.OUTER); break;
+                case FULL: joinType = JoinExpression.JoinType.FULL; lexer.next(); accept(SQLTokenType.OUTER); break;
+                default: return left;
+            }
+            expect(SQLTokenType.JOIN);
+            TableExpression right = parseTablePrimary();
+            expect(SQLTokenType.ON);
+            left = new JoinExpression(joinType, left, right, parseExpression(), line, column);
+        }
+    }
+
+    private TableExpression parseTablePrimary() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        if (accept(SQLTokenType.LPAREN)) {
+            if (lexer.type == SQLTokenType.SELECT || lexer.type == SQLTokenType.WITH) {
+                SelectStatement query = parseQuery();
+                expect(SQLTokenType.RPAREN);
+                return new DerivedTable(query, parseAlias(), line, column);
+            }
+            TableExpression nested = parseTableExpression();
+            expect(SQLTokenType.RPAREN);
+            return nested;
+        }
+        String name = expectIdentifier();
+        if (accept(SQLTokenType.DOT)) {
+            name = name + "." + expectIdentifier();
+        }
+        return new TableReference(name, parseAlias(), line, column);
+    }
+
+    private String parseAlias() {
+        if (accept(SQLTokenType.AS)) {
+            return expectIdentifier();
+        }
+        if (lexer.type == SQLTokenType.IDENTIFIER && !lexer.isWord("offset")) {
+            return expectIdentifier();
+        }
+        return null;
+    }
+
+    // =============== EXPRESSIONS ===============
+
+    Expression parseExpression() {
+        descend();
+        try {
+            return parseOr();
+        } finally {
+            depth--;
+        }
+    }
+
+    private Expression parseOr() {
+        Expression left = parseAnd();
+        while (accept(SQLTokenType.OR)) {
+            left = new BinaryExpression(left, BinaryExpression.Operator.OR, parseAnd(), left.line, left.column);
+        }
+        return left;
+    }
+
+    private Expression parseAnd() {
+        Expression left = parseNot();
+        while (accept(SQLTokenType.AND)) {
+            left = new BinaryExpression(left, BinaryExpression.Operator.AND, parseNot(), left.line, left.column);
+        }
+        return left;
+    }
+
+    private Expression parseNot() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        if (accept(SQLTokenType.NOT)) {
+            descend();
+            try {
+                return new UnaryExpression(UnaryExpression.Operator.NOT, parseNot(), line, column);
+            } finally {
+                depth--;
+            }
+        }
+        return parseComparison();
+    }
+
+    private Expression parseComparison() {
+        Expression left = parseAdditive();
+        BinaryExpression.Operator op;
+        switch (lexer.type) {
+            case EQ: op = BinaryExpression.Operator.EQUALS; break;
+            case NE: op = BinaryExpression.Operator.NOT_EQUALS; break;
+            case LT: op = BinaryExpression.Operator.LESS_THAN; break;
+            case LE: op = BinaryExpression.Operator.LESS_THAN_OR_EQUAL; break;
+            case GT: op = BinaryExpression.Operator.GREATER_THAN; break;
+            case GE: op = BinaryExpression.Operator.GREATER_THAN_OR_EQUAL; break;
+            case IS: {
+                lexer.next();
+                boolean not = accept(SQLTokenType.NOT);
+                expect(SQLTokenType.NULL);
+                return new UnaryExpression(not ? UnaryExpression.Operator.IS_NOT_NULL : UnaryExpression.Operator.IS_NULL,
+                                           left, left.line, left.column);
+            }
+            case NOT:
+            case LIKE:
+            case IN:
+            case BETWEEN:
+                return parsePredicate(left);
+            default:
+                return left;
+        }
+        lexer.next();
+        return new BinaryExpression(left, op, parseAdditive(), left.line, left.column);
+    }
+
+    // [NOT] LIKE / IN / BETWEEN after the left operand
+    private Expression parsePredicate(Expression left) {
+        int notLine = lexer.tokenLine;
+        int notColumn = lexer.tokenColumn;
+        boolean not = accept(SQLTokenType.NOT);
+        Expression predicate;
+        if (accept(SQLTokenType.LIKE)) {
+            predicate = new BinaryExpression(left, BinaryExpression.Operator.LIKE, parseAdditive(), left.line, left.column);
+        } else if (lexer.type == SQLTokenType.IN) {
+            lexer.next();
+            int line = lexer.tokenLine;
+            int column = lexer.tokenColumn;
+            expect(SQLTokenType.LPAREN);
+            Expression right;
+            if (lexer.type == SQLTokenType.SELECT || lexer.type == SQLTokenType.WITH) {
+                right = new SubqueryExpression(parseQuery(), line, column);
+            } else {
+                List<Expression> values = new ArrayList<>();
+                do {
+                    values.add(parseExpression());
+                } while (accept(SQLTokenType.COMMA));
+                right = new ExpressionList(values, line, column);
+            }
+            expect(SQLTokenType.RPAREN);
+            predicate = new BinaryExpression(left, BinaryExpression.Operator.IN, right, left.line, left.column);
+        } else if (accept(SQLTokenType.BETWEEN)) {
+            Expression low = parseAdditive();
+            expect(SQLTokenType.AND);
+            Expression high = parseAdditive();
+            predicate = new BinaryExpression(
+                    new BinaryExpression(left, BinaryExpression.Operator.GREATER_THAN_OR_EQUAL, low, left.line, left.column),
+                    BinaryExpression.Operator.AND,
+                    new BinaryExpression(left, BinaryExpression.Operator.LESS_THAN_OR_EQUAL, high, left.line, left.column),
+                    left.line, left.column);
+        } else {
+            throw error("LIKE, IN or BETWEEN");
+        }
+        return not ? new UnaryExpression(UnaryExpression.Operator.NOT, predicate, notLine, notColumn) : predicate;
+    }
+
+    private Expression parseAdditive() {
+        Expression left = parseMultiplicative();
+        while (true) {
+            BinaryExpression.Operator op;
+            switch (lexer.type) {
+                case PLUS: op = BinaryExpression.Operator.PLUS; break;
+                case MINUS: op = BinaryExpression.Operator.MINUS; break;
+                default: return left;
+            }
+            lexer.next();
+            left = new BinaryExpression(left, op, parseMultiplicative(), left.line, left.column);
+        }
+    }
+
+    private Expression parseMultiplicative() {
+        Expression left = parseUnary();
+        while (true) {
+            BinaryExpression.Operator op;
+            switch (lexer.type) {
+                case STAR: op = BinaryExpression.Operator.MULTIPLY; break;
+                case SLASH: op = BinaryExpression.Operator.DIVIDE; break;
+                case PERCENT: op = BinaryExpression.Operator.MODULO; break;
+                default: return left;
+            }
+            lexer.next();
+            left = new BinaryExpression(left, op, parseUnary(), left.line, left.column);
+        }
+    }
+
+    // A minus sign directly before a number is folded into the literal
+    private Expression parseUnary() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        if (accept(SQLTokenType.MINUS)) {
+            if (lifted != null) {
+                return new UnaryExpression(UnaryExpression.Operator.NEGATE, parseSigned(), line, column);
+            }
+            if (lexer.type == SQLTokenType.INTEGER) {
+                long value = -lexer.integerValue;
+                lexer.next();
+                return integerLiteral(value, line, column);
+            }
+            if (lexer.type == SQLTokenType.DECIMAL) {
+                BigDecimal value = lexer.decimalValue.negate();
+                lexer.next();
+                return new LiteralExpression(LiteralExpression.LiteralType.DECIMAL, value, line, column);
+            }
+            return new UnaryExpression(UnaryExpression.Operator.NEGATE, parseSigned(), line, column);
+        }
+        if (accept(SQLTokenType.PLUS)) {
+            return parseSigned();
+        }
+        return parsePrimary();
+    }
+
+    // The operand of a sign, one level deeper
+    private Expression parseSigned() {
+        descend();
+        try {
+            return parseUnary();
+        } finally {
+            depth--;
+        }
+    }
+
+    private Expression parsePrimary() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        switch (lexer.type) {
+            case INTEGER:
+            case DECIMAL:
+            case STRING: {
+                LiteralExpression.LiteralType type = lexer.type == SQLTokenType.INTEGER
+                        ? LiteralExpression.LiteralType.INTEGER
+                        : lexer.type == SQLTokenType.DECIMAL ? LiteralExpression.LiteralType.DECIMAL
+                                                             : LiteralExpression.LiteralType.STRING;
+                Object value = lexer.literalValue(false);
+                lexer.next();
+                return literal(type, value, line, column);
+            }
+            case TRUE:
+            case FALSE: {
+                Boolean value = lexer.type == SQLTokenType.TRUE;
+                lexer.next();
+                return new LiteralExpression(LiteralExpression.LiteralType.BOOLEAN, value, line, column);
+            }
+            case NULL:
+                lexer.next();
+                return new LiteralExpression(LiteralExpression.LiteralType.NULL, null, line, column);
+            case LPAREN: {
+                lexer.next();
+                Expression expression;
+                if (lexer.type == SQLTokenType.SELECT || lexer.type == SQLTokenType.WITH) {
+                    expression = new SubqueryExpression(parseQuery(), line, column);
+                } else {
+                    expression = parseExpression();
+                }
+                expect(SQLTokenType.RPAREN);
+                return expression;
+            }
+            case EXISTS: {
+                lexer.next();
+                int queryLine = lexer.tokenLine;
+                int queryColumn = lexer.tokenColumn;
+                expect(SQLTokenType.LPAREN);
+                SelectStatement query = parseQuery();
+                expect(SQLTokenType.RPAREN);
+                return new UnaryExpression(UnaryExpression.Operator.EXISTS,
+                        new SubqueryExpression(query, queryLine, queryColumn), line, column);
+            }
+            case CASE:
+                return parseCase();
+            case IDENTIFIER:
+                return parseNameExpression();
+            default:
+                throw error("expression");
+        }
+    }
+
+    // Column reference, qualified column, table.*, function call or DATE '...'
+    private Expression parseNameExpression() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        boolean dateKeyword = lexer.isWord("date");
+        String name = lexer.identifier();
+        lexer.next();
+        if (dateKeyword && lexer.type == SQLTokenType.STRING) {
+            Object date = lexer.literalValue(true);
+            lexer.next();
+            return literal(LiteralExpression.LiteralType.DATE, date, line, column);
+        }
+        if (accept(SQLTokenType.LPAREN)) {
+            boolean distinct = accept(SQLTokenType.DISTINCT);
+            List<Expression> arguments = new ArrayList<>();
+            if (lexer.type != SQLTokenType.RPAREN) {
+                do {
+                    if (lexer.type == SQLTokenType.STAR) {
+                        arguments.add(new ColumnReference("*", lexer.tokenLine, lexer.tokenColumn));
+                        lexer.next();
+                    } else {
+                        arguments.add(parseExpression());
+                    }
+                } while (accept(SQLTokenType.COMMA));
+            }
+            expect(SQLTokenType.RPAREN);
+            return new FunctionCall(name, arguments, distinct, line, column);
+        }
+        if (accept(SQLTokenType.DOT)) {
+            if (accept(SQLTokenType.STAR)) {
+                return new ColumnReference(name, "*", line, column);
+            }
+            return new ColumnReference(name, expectIdentifier(), line, column);
+        }
+        return new ColumnReference(name, line, column);
+    }
+
+    private Expression parseCase() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.CASE);
+        Expression operand = lexer.type == SQLTokenType.WHEN ? null : parseExpression();
+        List<WhenClause> whens = new ArrayList<>();
+        do {
+            int whenLine = lexer.tokenLine;
+            int whenColumn = lexer.tokenColumn;
+            expect(SQLTokenType.WHEN);
+            Expression condition = parseExpression();
+            expect(SQLTokenType.THEN);
+            whens.add(new WhenClause(condition, parseExpression(), whenLine, whenColumn));
+        } while (lexer.type == SQLTokenType.WHEN);
+        Expression otherwise = accept(SQLTokenType.ELSE) ? parseExpression() : null;
+        expect(SQLTokenType.END);
+        return new CaseExpression(operand, whens, otherwise, line, column);
+    }
+
+    private Expression literal(LiteralExpression.LiteralType type, Object value, int line, int column) {
+        if (lifted != null) {
+            lifted.add(value);
+            return new ParameterExpression(lifted.size() - 1, type, line, column);
+        }
+        return new LiteralExpression(type, value, line, column);
+    }
+
+    // An ORDER BY or GROUP BY element that is a whole integer names a
+    // select list position, which is structure rather than a value, so it
+    // is not lifted; lifting started at index lifting
+    private Expression position(Expression expression, int lifting) {
+        if (lifted == null || lifted.size() != lifting + 1) {
+            return expression;
+        }
+        boolean negated = expression instanceof UnaryExpression
+                && ((UnaryExpression) expression).getOperator() == UnaryExpression.Operator.NEGATE;
+        Expression operand = negated ? ((UnaryExpression) expression).getOperand() : expression;
+        if (!(operand instanceof ParameterExpression)
+                || ((ParameterExpression) operand).getType() != LiteralExpression.LiteralType.INTEGER) {
+            return expression;
+        }
+        long value = ((Number) lifted.remove(lifting)).longValue();
+        return integerLiteral(negated ? -value : value, expression.line, expression.column);
+    }
+
+    private static LiteralExpression integerLiteral(long value, int line, int column) {
+        return new LiteralExpression(LiteralExpression.LiteralType.INTEGER, SQLLexer.boxInteger(value), line, column);
+    }
+
+    // =============== DML / DDL ===============
+
+    private InsertStatement parseInsert() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.INSERT);
+        expect(SQLTokenType.INTO);
+        InsertStatement insert = new InsertStatement(expectIdentifier(), line, column);
+        if (accept(SQLTokenType.LPAREN)) {
+            do {
+                insert.getColumnList().add(expectIdentifier());
+            } while (accept(SQLTokenType.COMMA));
+            expect(SQLTokenType.RPAREN);
+        }
+        if (lexer.type == SQLTokenType.VALUES) {
+            ValuesClause values = new ValuesClause(lexer.tokenLine, lexer.tokenColumn);
+            lexer.next();
+            do {
+                expect(SQLTokenType.LPAREN);
+                List<Expression> row = new ArrayList<>();
+                do {
+                    row.add(parseExpression());
+                } while (accept(SQLTokenType.COMMA));
+                expect(SQLTokenType.RPAREN);
+                values.addValues(row);
+            } while (accept(SQLTokenType.COMMA));
+            insert.setValuesClause(values);
+        } else if (lexer.type == SQLTokenType.SELECT || lexer.type == SQLTokenType.WITH
+                || lexer.type == SQLTokenType.LPAREN) {
+            insert.setSelectStatement(parseQuery());
+        } else {
+            throw error("VALUES or SELECT");
+        }
+        return insert;
+    }
+
+    private UpdateStatement parseUpdate() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.UPDATE);
+        UpdateStatement update = new UpdateStatement(expectIdentifier(), line, column);
+        update.setTableAlias(parseAlias());
+        expect(SQLTokenType.SET);
+        do {
+            int setLine = lexer.tokenLine;
+            int setColumn = lexer.tokenColumn;
+            String name = expectIdentifier();
+            expect(SQLTokenType.EQ);
+            update.addSetClause(new SetClause(name, parseExpression(), setLine, setColumn));
+        } while (accept(SQLTokenType.COMMA));
+        if (lexer.type == SQLTokenType.WHERE) {
+            update.setWhereClause(parseWhere());
+        }
+        return update;
+    }
+
+    private DeleteStatement parseDelete() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.DELETE);
+        expect(SQLTokenType.FROM);
+        DeleteStatement delete = new DeleteStatement(expectIdentifier(), line, column);
+        delete.setTableAlias(parseAlias());
+        if (lexer.type == SQLTokenType.WHERE) {
+            delete.setWhereClause(parseWhere());
+        }
+        return delete;
+    }
+
+    private CreateTableStatement parseCreateTable() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        expect(SQLTokenType.CREATE);
+        expect(SQLTokenType.TABLE);
+        CreateTableStatement create = new CreateTableStatement(expectIdentifier(), line, column);
+        expect(SQLTokenType.LPAREN);
+        do {
+            int elementLine = lexer.tokenLine;
+            int elementColumn = lexer.tokenColumn;
+            String constraintName = accept(SQLTokenType.CONSTRAINT) ? expectIdentifier() : null;
+            if (lexer.type == SQLTokenType.PRIMARY) {
+                lexer.next();
+                expectWord("key");
+                expect(SQLTokenType.LPAREN);
+                List<String> columns = new ArrayList<>();
+                do {
+                    columns.add(expectIdentifier());
+                } while (accept(SQLTokenType.COMMA));
+                expect(SQLTokenType.RPAREN);
+                create.addTableConstraint(new PrimaryKeyTableConstraint(constraintName, columns,
+                                                                        elementLine, elementColumn));
+            } else if (constraintName != null) {
+                throw error("PRIMARY KEY");
+            } else {
+                create.addColumnDefinition(parseColumnDefinition());
+            }
+        } while (accept(SQLTokenType.COMMA));
+        expect(SQLTokenType.RPAREN);
+        return create;
+    }
+
+    private ColumnDefinition parseColumnDefinition() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        String name = expectIdentifier();
+        ColumnDefinition definition = new ColumnDefinition(name, parseDataType(), line, column);
+        while (true) {
+            int constraintLine = lexer.tokenLine;
+            int constraintColumn = lexer.tokenColumn;
+            String constraintName = accept(SQLTokenType.CONSTRAINT) ? expectIdentifier() : null;
+            if (accept(SQLTokenType.NOT)) {
+                expect(SQLTokenType.NULL);
+                definition.addConstraint(new NotNullConstraint(constraintName, constraintLine, constraintColumn));
+            } else if (accept(SQLTokenType.PRIMARY)) {
+                expectWord("key");
+                definition.addConstraint(new PrimaryKeyConstraint(constraintName, constraintLine, constraintColumn));
+            } else if (constraintName != null) {
+                throw error("NOT NULL or PRIMARY KEY");
+            } else if (!accept(SQLTokenType.NULL)) {
+                return definition;
+            }
+        }
+    }
+
+    private DataType parseDataType() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        if (lexer.type != SQLTokenType.IDENTIFIER) {
+            throw error("data type");
+        }
+        String name = lexer.identifier().toUpperCase(Locale.ROOT);
+        lexer.next();
+        switch (name) {
+            case "INT":
+            case "INTEGER": return new NumericType(NumericType.NumType.INTEGER, null, null, line, column);
+            case "BIGINT": return new NumericType(NumericType.NumType.BIGINT, null, null, line, column);
+            case "SMALLINT": return new NumericType(NumericType.NumType.SMALLINT, null, null, line, column);
+            case "REAL": return new NumericType(NumericType.NumType.REAL, null, null, line, column);
+            case "DOUBLE":
+                acceptWord("precision");
+                return new NumericType(NumericType.NumType.DOUBLE, null, null, line, column);
+            case "FLOAT":
+            case "DECIMAL":
+            case "NUMERIC": {
+                Integer precision = null;
+                Integer scale = null;
+                if (accept(SQLTokenType.LPAREN)) {
+                    precision = expectSize();
+                    if (!name.equals("FLOAT") && accept(SQLTokenType.COMMA)) {
+                        scale = expectSize();
+                    }
+                    expect(SQLTokenType.RPAREN);
+                }
+                return new NumericType(NumericType.NumType.valueOf(name), precision, scale, line, column);
+            }
+            case "CHAR":
+            case "CHARACTER":
+            case "VARCHAR": {
+                Integer size = null;
+                if (accept(SQLTokenType.LPAREN)) {
+                    size = expectSize();
+                    expect(SQLTokenType.RPAREN);
+                }
+                CharacterType.CharType type = name.equals("VARCHAR") ? CharacterType.CharType.VARCHAR
+                                                                     : CharacterType.CharType.CHAR;
+                return new CharacterType(type, size, line, column);
+            }
+            case "TEXT": return new CharacterType(CharacterType.CharType.TEXT, null, line, column);
+            default:
+                throw new SQLParseException("Unsupported data type '" + name + "'", line, column);
+        }
+    }
+
+    private int expectSize() {
+        if (lexer.type != SQLTokenType.INTEGER || lexer.integerValue > Integer.MAX_VALUE) {
+            throw error("size");
+        }
+        int size = (int) lexer.integerValue;
+        lexer.next();
+        return size;
+    }
+
+    // =============== TOKEN HELPERS ===============
+
+    private boolean accept(SQLTokenType type) {
+        if (lexer.type == type) {
+            lexer.next();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(SQLTokenType type) {
+        if (!accept(type)) {
+            throw error(type.keyword ? type.name() : describe(type));
+        }
+    }
+
+    private boolean acceptWord(String word) {
+        if (lexer.isWord(word)) {
+            lexer.next();
+            return true;
+        }
+        return false;
+    }
+
+    private void expectWord(String word) {
+        if (!acceptWord(word)) {
+            throw error(word.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private String expectIdentifier() {
+        if (lexer.type != SQLTokenType.IDENTIFIER) {
+            throw error("identifier");
+        }
+        String name = lexer.identifier();
+        lexer.next();
+        return name;
+    }
+
+    private void descend() {
+        if (depth == MAX_DEPTH) {
+            throw new SQLParseException("Expression nested too deeply", lexer.tokenLine, lexer.tokenColumn);
+        }
+        depth++;
+    }
+
+    private SQLParseException error(String expected) {
+        return new SQLParseException("Expected " + expected + " but found " + lexer.describe(),
+                                     lexer.tokenLine, lexer.tokenColumn);
+    }
+
+    private static String describe(SQLTokenType type) {
+        switch (type) {
+            case COMMA: return "','";
+            case DOT: return "'.'";
+            case LPAREN: return "'('";
+            case RPAREN: return "')'";
+            case SEMICOLON: return "';'";
+            case EQ: return "'='";
+            default: return type.name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// The literal-free shape of a query, found by lexing alone: the token
+// types, with identifiers by name, and the values of the literal tokens in
+// source order. Two queries of the same shape differ only in literals, so
+// they parse to the same tree up to those values. The fingerprint is a
+// 64-bit hash of the shape; the token and name arrays make it verifiable.
+// Whitespace, comments and keyword case do not affect the shape.
+// A scanner instance is reused by one thread at a time.
+final class QueryShape {
+    private final SQLLexer lexer = new SQLLexer();
+    private int[] tokens = new int[64];
+    private String[] names = new String[16];
+    private final List<Object> parameters = new ArrayList<>();
+    private int tokenCount;
+    private int nameCount;
+    private long fingerprint;
+
+    void scan(CharSequence sql) {
+        lexer.reset(sql);
+        tokenCount = 0;
+        nameCount = 0;
+        parameters.clear();
+        long h = 0;
+        boolean afterDate = false;
+        for (lexer.next(); lexer.type != SQLTokenType.EOF; lexer.next()) {
+            SQLTokenType type = lexer.type;
+            int code = type.ordinal();
+            switch (type) {
+                case IDENTIFIER: {
+                    String name = lexer.identifier();
+                    if (nameCount == names.length) {
+                        names = Arrays.copyOf(names, nameCount * 2);
+                    }
+                    names[nameCount++] = name;
+                    code = 31 * code + name.hashCode();
+                    break;
+                }
+                case INTEGER:
+                case DECIMAL:
+                case STRING:
+                    parameters.add(lexer.literalValue(afterDate && type == SQLTokenType.STRING));
+                    break;
+                default:
+                    break;
+            }
+            afterDate = lexer.isWord("date");
+            if (tokenCount == tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokenCount * 2);
+            }
+            tokens[tokenCount++] = type.ordinal();
+            h = (h + code) * 0x9E3779B97F4A7C15L;
+        }
+        fingerprint = h ^ (h >>> 29);
+    }
+
+    long getFingerprint() { return fingerprint; }
+    List<Object> getParameters() { return parameters; }
+
+    boolean matches(PreparedQuery prepared) {
+        if (prepared.tokens.length != tokenCount || prepared.names.length != nameCount) {
+            return false;
+        }
+        for (int i = 0; i < tokenCount; i++) {
+            if (prepared.tokens[i] != tokens[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < nameCount; i++) {
+            if (!prepared.names[i].equals(names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int[] copyTokens() { return Arrays.copyOf(tokens, tokenCount); }
+    String[] copyNames() { return Arrays.copyOf(names, nameCount); }
+}
+
+// A parsed query shape: the statement with its literals replaced by
+// ParameterExpressions, plus the analysis done on it once. The tree is
+// shared by every thread that hits the cache and must not be modified.
+// Further per-shape results (printed text, validation, plans) can be
+// memoized on it with computeIfAbsent.
+final class PreparedQuery {
+    final int[] tokens;
+    final String[] names;
+    private final long fingerprint;
+    private final SQLStatement statement;
+    private final LiteralExpression.LiteralType[] parameterTypes;
+    private final Map<String, Integer> nodeCounts;
+    private final Map<Object, Object> memo = new ConcurrentHashMap<>();
+
+    PreparedQuery(QueryShape shape, SQLStatement statement, LiteralExpression.LiteralType[] parameterTypes,
+                  Map<String, Integer> nodeCounts) {
+        this.tokens = shape.copyTokens();
+        this.names = shape.copyNames();
+        this.fingerprint = shape.getFingerprint();
+        this.statement = statement;
+        this.parameterTypes = parameterTypes;
+        this.nodeCounts = nodeCounts;
+    }
+
+    long getFingerprint() { return fingerprint; }
+    SQLStatement getStatement() { return statement; }
+    int getParameterCount() { return parameterTypes.length; }
+    LiteralExpression.LiteralType getParameterType(int index) { return parameterTypes[index]; }
+
+    // SQLASTAnalyzer's node counts for the statement
+    Map<String, Integer> getNodeCounts() { return nodeCounts; }
+
+    @SuppressWarnings("unchecked")
+    <T> T computeIfAbsent(Object key, Function<SQLStatement, T> compute) {
+        return (T) memo.computeIfAbsent(key, k -> compute.apply(statement));
+    }
+
+    // As computeIfAbsent, but a value that has gone stale is replaced
+    @SuppressWarnings("unchecked")
+    <T> T computeIfStale(Object key, Predicate<T> stale, Function<SQLStatement, T> compute) {
+        T value = (T) memo.get(key);
+        if (value != null && !stale.test(value)) {
+            return value;
+        }
+        return (T) memo.compute(key, (k, v) -> v == null || stale.test((T) v) ? compute.apply(statement) : v);
+    }
+
+    @Override
+    public String toString() {
+        return "PreparedQuery{fingerprint=" + Long.toHexString(fingerprint) + ", parameters="
+                + parameterTypes.length + ", statement=" + statement + "}";
+    }
+}
+
+// A prepared query shape together with one request's literal values
+final class BoundQuery {
+    private final PreparedQuery prepared;
+    private final Object[] parameters;
+
+    BoundQuery(PreparedQuery prepared, Object[] parameters) {
+        this.prepared = prepared;
+        this.parameters = parameters;
+    }
+
+    PreparedQuery getPrepared() { return prepared; }
+    SQLStatement getStatement() { return prepared.getStatement(); }
+    int getParameterCount() { return parameters.length; }
+    Object getParameter(int index) { return parameters[index]; }
+
+    @Override
+    public String toString() {
+        return "BoundQuery{parameters=" + Arrays.toString(parameters) + ", prepared=" + prepared + "}";
+    }
+}
+
+// Bounded, thread-safe cache of prepared query shapes, keyed by shape
+// fingerprint. A hit costs one lexing pass to extract the literals; it
+// skips parsing and analysis entirely. Entries are checked token by token
+// against the query, so a fingerprint collision is treated as a miss
+// rather than returning the wrong tree.
+// Segments work as in RuleCache: lock-striped access-ordered
+// LinkedHashMaps, each holding its share of the capacity. Parsing happens
+// outside the segment lock.
+class SQLQueryCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final ThreadLocal<QueryShape> shapes = ThreadLocal.withInitial(QueryShape::new);
+    private final ThreadLocal<SQLParser> parsers = ThreadLocal.withInitial(SQLParser::new);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    SQLQueryCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int segmentCount = Math.min(SEGMENTS, capacity);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0), evictions);
+        }
+    }
+
+    BoundQuery prepare(CharSequence sql) {
+        QueryShape shape = shapes.get();
+        shape.scan(sql);
+        Object[] parameters = shape.getParameters().toArray();
+        Long key = shape.getFingerprint();
+        Segment segment = segmentFor(shape.getFingerprint());
+        PreparedQuery cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+        }
+        if (cached != null && shape.matches(cached)) {
+            hits.increment();
+            return new BoundQuery(cached, parameters);
+        }
+        misses.increment();
+
+        List<Object> lifted = new ArrayList<>();
+        SQLStatement statement = parsers.get().parseParameterized(sql, lifted);
+        PreparedQuery prepared = new PreparedQuery(shape, statement, parameterTypes(lifted), analyze(statement));
+        if (!lifted.equals(shape.getParameters())) {
+            // Some literals are part of the statement's structure rather
+            // than values (type sizes in CREATE TABLE, ORDER BY and GROUP
+            // BY positions), so the shape does not determine the tree:
+            // serve it uncached
+            return new BoundQuery(prepared, lifted.toArray());
+        }
+        if (cached == null) {
+            synchronized (segment) {
+                PreparedQuery raced = segment.putIfAbsent(key, prepared);
+                if (raced != null && shape.matches(raced)) {
+                    prepared = raced;
+                }
+            }
+        }
+        return new BoundQuery(prepared, parameters);
+    }
+
+    long getHits() { return hits.sum(); }
+    long getMisses() { return misses.sum(); }
+    long getEvictions() { return evictions.sum(); }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private static Map<String, Integer> analyze(SQLStatement statement) {
+        SQLASTAnalyzer analyzer = new SQLASTAnalyzer();
+        statement.accept(analyzer);
+        return Collections.unmodifiableMap(analyzer.getNodeCounts());
+    }
+
+    // Lifted values are typed by class, as SQLLexer.literalValue produces them
+    private static LiteralExpression.LiteralType[] parameterTypes(List<Object> values) {
+        LiteralExpression.LiteralType[] types = new LiteralExpression.LiteralType[values.size()];
+        for (int i = 0; i < types.length; i++) {
+            Object value = values.get(i);
+            if (value instanceof String) {
+                types[i] = LiteralExpression.LiteralType.STRING;
+            } else if (value instanceof java.math.BigDecimal) {
+                types[i] = LiteralExpression.LiteralType.DECIMAL;
+            } else if (value instanceof java.time.LocalDate) {
+                types[i] = LiteralExpression.LiteralType.DATE;
+            } else {
+                types[i] = LiteralExpression.LiteralType.INTEGER;
+            }
+        }
+        return types;
+    }
+
+    private Segment segmentFor(long fingerprint) {
+        int h = (int) (fingerprint ^ (fingerprint >>> 32));
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public String toString() {
+        return "SQLQueryCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + "}";
+    }
+
+    // Static, so a segment holds no reference to its cache; evictions is
+    // the cache's counter
+    private static final class Segment extends LinkedHashMap<Long, PreparedQuery> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, PreparedQuery> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
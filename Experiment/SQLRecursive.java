@@ -0,0 +1,351 @@
+import java.util.*;
+import java.util.function.Function;
+
+// Rows a recursive UNION has derived so far, for dropping repeats. Each
+// row is kept as stride long words: one per column, encoded as join keys
+// are (doubles by SQLJoinKeys.encodeDouble, strings by a number interned
+// here), then one word of NULL flags per 64 columns, so that NULL equals
+// NULL and differs from every value, as UNION requires. Open addressing
+// over row numbers, each slot's hash kept alongside. Not thread-safe.
+final class SQLRowSet {
+    // Rows encoded per pass over the columns
+    private static final int BATCH_ROWS = 1024;
+
+    private final int width;
+    private final int stride;
+    private final Map<String, Long> interned = new HashMap<>();
+    private final long[] buffer;
+    private long[] words;
+    private int[] slots = new int[64]; // row + 1, 0 when empty
+    private int[] hashes = new int[64];
+    private int size;
+
+    SQLRowSet(int width) {
+        this.width = width;
+        this.stride = width + (width + 63) / 64;
+        this.buffer = new long[BATCH_ROWS * stride];
+        this.words = new long[16 * stride];
+    }
+
+    int size() { return size; }
+
+    // Bytes held by the rows, the slots and the interned strings' entries
+    long getBytes() {
+        return 8L * words.length + 8L * slots.length + 64L * interned.size();
+    }
+
+    // Adds the table's rows, read as the given column types, and returns
+    // the numbers of those not seen before in fresh, their count first
+    int add(SQLTable table, SQLType[] types, int[] fresh) {
+        int count = 0;
+        int rowCount = table.getRowCount();
+        // Per string column, the number of each dictionary entry, -1 until
+        // interned
+        long[][] ids = new long[width][];
+        for (int k = 0; k < width; k++) {
+            if (table.getColumn(k) instanceof StringColumn) {
+                ids[k] = new long[((StringColumn) table.getColumn(k)).dictionary.length];
+                Arrays.fill(ids[k], -1);
+            }
+        }
+        for (int from = 0; from < rowCount; from += BATCH_ROWS) {
+            int length = Math.min(BATCH_ROWS, rowCount - from);
+            Arrays.fill(buffer, 0, length * stride, 0);
+            for (int k = 0; k < width; k++) {
+                encode(table.getColumn(k), types[k], ids[k], k, from, length);
+            }
+            for (int i = 0; i < length; i++) {
+                if (insert(i * stride)) {
+                    fresh[count++] = from + i;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void encode(SQLColumn column, SQLType type, long[] ids, int k, int from, int length) {
+        long[] buffer = this.buffer;
+        int flags = width + k / 64;
+        long bit = 1L << k;
+        if (column instanceof StringColumn) {
+            StringColumn strings = (StringColumn) column;
+            for (int i = 0; i < length; i++) {
+                int row = from + i;
+                if (column.isNull(row)) {
+                    buffer[i * stride + flags] |= bit;
+                    continue;
+                }
+                int code = strings.codes[row];
+                if (ids[code] < 0) {
+                    ids[code] = intern(strings.dictionary[code]);
+                }
+                buffer[i * stride + k] = ids[code];
+            }
+        } else if (column instanceof DoubleColumn) {
+            double[] values = ((DoubleColumn) column).values;
+            for (int i = 0; i < length; i++) {
+                int row = from + i;
+                if (column.isNull(row)) {
+                    buffer[i * stride + flags] |= bit;
+                } else {
+                    buffer[i * stride + k] = SQLJoinKeys.encodeDouble(values[row]);
+                }
+            }
+        } else {
+            long[] values = ((LongColumn) column).values;
+            boolean widen = type == SQLType.DOUBLE;
+            for (int i = 0; i < length; i++) {
+                int row = from + i;
+                if (column.isNull(row)) {
+                    buffer[i * stride + flags] |= bit;
+                } else {
+                    buffer[i * stride + k] = widen ? SQLJoinKeys.encodeDouble(values[row]) : values[row];
+                }
+            }
+        }
+    }
+
+    // Whether the row at buffer[offset..offset + stride) is new; stores it
+    // if so
+    private boolean insert(int offset) {
+        int hash = (int) SQLJoinKeys.hash(buffer, offset, stride);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        for (int stored; (stored = slots[slot]) != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && Arrays.equals(words, (stored - 1) * stride, stored * stride,
+                                                      buffer, offset, offset + stride)) {
+                return false;
+            }
+        }
+        if ((size + 1) * stride > words.length) {
+            words = Arrays.copyOf(words, Math.max((size + 1) * stride, words.length * 2));
+        }
+        System.arraycopy(buffer, offset, words, size * stride, stride);
+        slots[slot] = ++size;
+        hashes[slot] = hash;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    private long intern(String value) {
+        Long id = interned.get(value);
+        if (id == null) {
+            id = (long) interned.size();
+            interned.put(value, id);
+        }
+        return id;
+    }
+
+    private void rehash() {
+        int[] oldSlots = slots;
+        int[] oldHashes = hashes;
+        slots = new int[oldSlots.length * 2];
+        hashes = new int[slots.length];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == 0) {
+                continue;
+            }
+            int slot = oldHashes[i] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = oldSlots[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+}
+
+// Fixpoint of a recursive WITH, evaluated semi-naively: the rows of the
+// non-recursive terms form the first delta, and each iteration runs the
+// recursive terms against the previous delta alone rather than against
+// everything derived so far, so a round costs in proportion to what the
+// last round found. Under UNION rows derived before are dropped from the
+// next delta (see SQLRowSet), and the iteration ends with the first
+// round that derives nothing new, cycles in the data included; under
+// UNION ALL every row is kept and the recursion must end by itself.
+// Rows of every term take the first term's column names and types,
+// BIGINT widening to DOUBLE. Iterations and the bytes held by derived
+// rows, the row set and the terms' SQLJoinCache are capped; passing
+// either cap throws an SQLExecutionException. Not thread-safe; one per
+// evaluation.
+final class SQLRecursiveUnion {
+    static final int DEFAULT_MAX_ITERATIONS = 100_000;
+    static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private final String name;
+    private final boolean distinct;
+    private final int maxIterations;
+    private final long maxBytes;
+    private final ASTNode where;
+    private final SQLJoinCache joins;
+    private String[] names;
+    private SQLType[] types;
+    private SQLRowSet seen;
+    private int[] fresh = new int[0];
+    private int iterations;
+    private long derivedBytes;
+
+    // joins, which may be null, is the cache the recursive terms join with
+    SQLRecursiveUnion(String name, boolean distinct, int maxIterations, long maxBytes, SQLJoinCache joins,
+                      ASTNode where) {
+        this.name = name;
+        this.distinct = distinct;
+        this.maxIterations = maxIterations;
+        this.maxBytes = maxBytes;
+        this.joins = joins;
+        this.where = where;
+    }
+
+    int getIterations() { return iterations; }
+
+    // Bytes held by derived rows, the row set and the join cache
+    long getBytes() {
+        return derivedBytes + (seen == null ? 0 : seen.getBytes()) + (joins == null ? 0 : joins.getBytes());
+    }
+
+    // anchors are the rows of the non-recursive terms, the first naming
+    // and typing the columns; step gives the rows of the recursive terms
+    // over a delta
+    SQLTable evaluate(List<SQLTable> anchors, Function<SQLTable, List<SQLTable>> step) {
+        SQLTable first = anchors.get(0);
+        int width = first.getColumnCount();
+        names = new String[width];
+        types = new SQLType[width];
+        long rowBytes = 0;
+        for (int k = 0; k < width; k++) {
+            names[k] = first.getColumn(k).getName();
+            types[k] = first.getColumn(k).getType();
+            rowBytes += 9;
+        }
+        seen = distinct ? new SQLRowSet(width) : null;
+        List<SQLTable> deltas = new ArrayList<>();
+        SQLTable delta = merge(anchors);
+        while (delta.getRowCount() > 0) {
+            deltas.add(delta);
+            derivedBytes += delta.getRowCount() * rowBytes;
+            if (getBytes() > maxBytes) {
+                throw new SQLExecutionException("Recursive " + name + " passed " + maxBytes + " bytes after "
+                                                + iterations + " iterations", where);
+            }
+            if (iterations == maxIterations) {
+                throw new SQLExecutionException("Recursive " + name + " did not finish within " + maxIterations
+                                                + " iterations", where);
+            }
+            iterations++;
+            delta = merge(step.apply(delta));
+        }
+        return concat(deltas);
+    }
+
+    // The rows of the tables not derived before, in the union's columns
+    private SQLTable merge(List<SQLTable> tables) {
+        List<SQLTable> parts = new ArrayList<>(tables.size());
+        for (SQLTable table : tables) {
+            if (table.getColumnCount() != names.length) {
+                throw new SQLExecutionException("Recursive " + name + " has " + names.length
+                                                + " columns in its first term but " + table.getColumnCount()
+                                                + " in another", where);
+            }
+            int[] rows = null;
+            int count = table.getRowCount();
+            if (seen != null) {
+                if (fresh.length < count) {
+                    fresh = new int[Math.max(count, fresh.length * 2)];
+                }
+                checkTypes(table);
+                count = seen.add(table, types, fresh);
+                if (count < table.getRowCount()) {
+                    rows = fresh;
+                }
+            }
+            if (count > 0) {
+                parts.add(convert(table, rows, count));
+            }
+        }
+        return parts.size() == 1 ? parts.get(0) : concat(parts);
+    }
+
+    private void checkTypes(SQLTable table) {
+        for (int k = 0; k < names.length; k++) {
+            SQLColumn column = table.getColumn(k);
+            SQLType type = column.getType();
+            if (type != types[k] && !(type == SQLType.BIGINT && types[k] == SQLType.DOUBLE) && !allNull(column)) {
+                throw new SQLExecutionException("Recursive " + name + " column " + names[k] + " is " + types[k]
+                                                + " in its first term but " + type + " in another", where);
+            }
+        }
+    }
+
+    // Rows of the table, or the first count of rows when not null, with
+    // the union's column names and types
+    private SQLTable convert(SQLTable table, int[] rows, int count) {
+        if (seen == null) {
+            checkTypes(table);
+        }
+        List<SQLColumn> columns = new ArrayList<>(names.length);
+        for (int k = 0; k < names.length; k++) {
+            SQLColumn column = table.getColumn(k);
+            if (rows != null) {
+                column = column.gather(rows, count);
+            }
+            if (column.getType() != types[k]) {
+                column = column.getType() == SQLType.BIGINT && types[k] == SQLType.DOUBLE ? widen(column)
+                                                                                         : nulls(types[k], count);
+            }
+            columns.add(column.getName().equals(names[k]) ? column : column.rename(names[k]));
+        }
+        return new SQLTable(name, count, columns);
+    }
+
+    private SQLColumn widen(SQLColumn column) {
+        long[] values = ((LongColumn) column).values;
+        double[] doubles = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            doubles[i] = values[i];
+        }
+        return new DoubleColumn(column.getName(), doubles, column.nulls);
+    }
+
+    private static SQLColumn nulls(SQLType type, int count) {
+        SQLColumnBuilder builder = new SQLColumnBuilder("", type, count);
+        for (int i = 0; i < count; i++) {
+            builder.appendNull();
+        }
+        return builder.build();
+    }
+
+    private static boolean allNull(SQLColumn column) {
+        if (column.nulls == null) {
+            return column.size() == 0;
+        }
+        for (int row = 0; row < column.size(); row++) {
+            if (!column.nulls[row]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Tables of the union's columns, one after another
+    private SQLTable concat(List<SQLTable> tables) {
+        if (tables.size() == 1) {
+            return tables.get(0);
+        }
+        int rowCount = 0;
+        for (SQLTable table : tables) {
+            rowCount += table.getRowCount();
+        }
+        List<SQLColumn> columns = new ArrayList<>(names.length);
+        for (int k = 0; k < names.length; k++) {
+            SQLColumnBuilder builder = new SQLColumnBuilder(names[k], types[k], rowCount);
+            for (SQLTable table : tables) {
+                builder.append(table.getColumn(k), 0, table.getRowCount());
+            }
+            columns.add(builder.build());
+        }
+        return new SQLTable(name, rowCount, columns);
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// ORDER BY keys of a run of rows, encoded on demand as records of long
+// words: per key a NULL word when its column has NULLs, then the value
+// word, then finally the row's position. Words are chosen so that signed
+// lexicographic comparison of records gives the ORDER BY order: NULLs
+// last ascending and first descending, descending keys bit-flipped,
+// doubles by their sortable bits and strings by dictionary code, which
+// orders like the strings. The position makes every record distinct and
+// any sort of records stable.
+final class SQLSortKeys {
+    private final SQLColumn[] columns;
+    private final boolean[] descending;
+    final int stride;
+
+    SQLSortKeys(SQLColumn[] columns, boolean[] descending) {
+        this.columns = columns;
+        this.descending = descending;
+        int stride = 1;
+        for (SQLColumn column : columns) {
+            stride += column.nulls != null ? 2 : 1;
+        }
+        this.stride = stride;
+    }
+
+    // Writes the record of row position into records[offset..offset + stride)
+    void encode(int position, long[] records, int offset) {
+        for (int k = 0; k < columns.length; k++) {
+            SQLColumn column = columns[k];
+            boolean isNull = column.isNull(position);
+            if (column.nulls != null) {
+                records[offset++] = isNull == descending[k] ? 0 : 1;
+            }
+            long word;
+            if (isNull) {
+                word = 0;
+            } else if (column instanceof LongColumn) {
+                word = ((LongColumn) column).values[position];
+            } else if (column instanceof DoubleColumn) {
+                long bits = Double.doubleToLongBits(((DoubleColumn) column).values[position]);
+                word = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+            } else {
+                word = ((StringColumn) column).codes[position];
+            }
+            records[offset++] = descending[k] && !isNull ? ~word : word;
+        }
+        records[offset] = position;
+    }
+
+    static int compare(long[] a, int aOffset, long[] b, int bOffset, int stride) {
+        for (int i = 0; i < stride; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return a[aOffset + i] < b[bOffset + i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
+
+// Orders row positions by SQLSortKeys. top() keeps the first limit
+// records in a bounded max-heap, so ORDER BY ... LIMIT k costs
+// O(n log k) time and O(k) space. sort() merge-sorts all records in
+// memory, or, past maxRunRows, sorts runs of maxRunRows records into
+// memory-mapped temp files under spillDirectory and merges those. Only
+// the key records spill; the rows themselves stay in their SQLTable.
+// A sorter keeps spill counters, so it belongs to one thread.
+final class SQLSorter {
+    static final int DEFAULT_MAX_RUN_ROWS = 1 << 22;
+
+    private final int maxRunRows;
+    private final Path spillDirectory;
+    private int spilledRuns;
+    private long spilledBytes;
+
+    SQLSorter(int maxRunRows, Path spillDirectory) {
+        this.maxRunRows = maxRunRows;
+        this.spillDirectory = spillDirectory;
+    }
+
+    int getSpilledRuns() { return spilledRuns; }
+    long getSpilledBytes() { return spilledBytes; }
+
+    // The positions of the first limit rows of rows [0, count) in key order
+    int[] top(SQLSortKeys keys, int count, int limit) {
+        int stride = keys.stride;
+        limit = Math.min(limit, count);
+        long[] heap = new long[limit * stride];
+        long[] record = new long[stride];
+        int size = 0;
+        for (int position = 0; position < count; position++) {
+            if (size < limit) {
+                keys.encode(position, heap, size * stride);
+                siftUp(heap, size++, stride, record);
+                continue;
+            }
+            keys.encode(position, record, 0);
+            if (limit > 0 && SQLSortKeys.compare(record, 0, heap, 0, stride) < 0) {
+                System.arraycopy(record, 0, heap, 0, stride);
+                siftDown(heap, 0, size, stride, record);
+            }
+        }
+        mergeSort(heap, new long[heap.length], 0, size, stride);
+        return positions(heap, size, stride);
+    }
+
+    // The positions of rows [0, count) in key order
+    int[] sort(SQLSortKeys keys, int count) {
+        int stride = keys.stride;
+        int runRows = Math.max(1, Math.min(maxRunRows, Integer.MAX_VALUE / 8 / stride));
+        if (count <= runRows) {
+            long[] records = new long[count * stride];
+            for (int position = 0; position < count; position++) {
+                keys.encode(position, records, position * stride);
+            }
+            mergeSort(records, new long[records.length], 0, count, stride);
+            return positions(records, count, stride);
+        }
+        try {
+            return external(keys, count, runRows);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Sort spill failed", e);
+        }
+    }
+
+    private int[] external(SQLSortKeys keys, int count, int runRows) throws IOException {
+        int stride = keys.stride;
+        int runs = (count + runRows - 1) / runRows;
+        Path[] files = new Path[runs];
+        LongBuffer[] buffers = new LongBuffer[runs];
+        try {
+            long[] records = new long[runRows * stride];
+            long[] aux = new long[records.length];
+            for (int run = 0; run < runs; run++) {
+                int from = run * runRows;
+                int size = Math.min(runRows, count - from);
+                for (int i = 0; i < size; i++) {
+                    keys.encode(from + i, records, i * stride);
+                }
+                mergeSort(records, aux, 0, size, stride);
+                files[run] = Files.createTempFile(spillDirectory, "sqlsort-", ".run");
+                long bytes = 8L * size * stride;
+                try (FileChannel channel = FileChannel.open(files[run], StandardOpenOption.READ,
+                                                            StandardOpenOption.WRITE)) {
+                    buffers[run] = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).asLongBuffer();
+                }
+                buffers[run].put(records, 0, size * stride);
+                buffers[run].flip();
+                spilledRuns++;
+                spilledBytes += bytes;
+            }
+            return merge(buffers, count, stride);
+        } finally {
+            for (Path file : files) {
+                if (file != null) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException ignored) {
+                        // Left to the temp directory's cleanup
+                    }
+                }
+            }
+        }
+    }
+
+    // k-way merge of sorted runs: a min-heap of run numbers ordered by
+    // each run's current record, copied into heads
+    private static int[] merge(LongBuffer[] runs, int count, int stride) {
+        int[] order = new int[count];
+        long[] heads = new long[runs.length * stride];
+        int[] heap = new int[runs.length];
+        int size = 0;
+        for (int run = 0; run < runs.length; run++) {
+            runs[run].get(heads, run * stride, stride);
+            heap[size] = run;
+            for (int child = size++; child > 0; ) {
+                int parent = (child - 1) / 2;
+                if (compareRuns(heads, heap[child], heap[parent], stride) >= 0) {
+                    break;
+                }
+                swap(heap, child, parent);
+                child = parent;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int run = heap[0];
+            order[i] = (int) heads[run * stride + stride - 1];
+            if (runs[run].hasRemaining()) {
+                runs[run].get(heads, run * stride, stride);
+            } else {
+                heap[0] = heap[--size];
+            }
+            for (int parent = 0; ; ) {
+                int child = 2 * parent + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && compareRuns(heads, heap[child + 1], heap[child], stride) < 0) {
+                    child++;
+                }
+                if (compareRuns(heads, heap[parent], heap[child], stride) <= 0) {
+                    break;
+                }
+                swap(heap, parent, child);
+                parent = child;
+            }
+        }
+        return order;
+    }
+
+    private static int compareRuns(long[] heads, int a, int b, int stride) {
+        return SQLSortKeys.compare(heads, a * stride, heads, b * stride, stride);
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int swap = array[i];
+        array[i] = array[j];
+        array[j] = swap;
+    }
+
+    // =============== RECORD ARRAYS ===============
+
+    private static int[] positions(long[] records, int count, int stride) {
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = (int) records[i * stride + stride - 1];
+        }
+        return positions;
+    }
+
+    // Max-heap of records: the root is the greatest of the kept records.
+    // record is scratch space of stride words.
+    private static void siftUp(long[] heap, int index, int stride, long[] record) {
+        System.arraycopy(heap, index * stride, record, 0, stride);
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (SQLSortKeys.compare(heap, parent * stride, record, 0, stride) >= 0) {
+                break;
+            }
+            System.arraycopy(heap, parent * stride, heap, index * stride, stride);
+            index = parent;
+        }
+        System.arraycopy(record, 0, heap, index * stride, stride);
+    }
+
+    private static void siftDown(long[] heap, int index, int size, int stride, long[] record) {
+        System.arraycopy(heap, index * stride, record, 0, stride);
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && SQLSortKeys.compare(heap, (child + 1) * stride, heap, child * stride, stride) > 0) {
+                child++;
+            }
+            if (SQLSortKeys.compare(heap, child * stride, record, 0, stride) <= 0) {
+                break;
+            }
+            System.arraycopy(heap, child * stride, heap, index * stride, stride);
+            index = child;
+        }
+        System.arraycopy(record, 0, heap, index * stride, stride);
+    }
+
+    // Merge sort of records [from, to), each stride words. Small ranges
+    // are insertion-sorted, holding the record being placed in aux, which
+    // that range does not otherwise use yet.
+    private static void mergeSort(long[] records, long[] aux, int from, int to, int stride) {
+        if (to - from <= 16) {
+            int scratch = from * stride;
+            for (int i = from + 1; i < to; i++) {
+                System.arraycopy(records, i * stride, aux, scratch, stride);
+                int j = i - 1;
+                while (j >= from && SQLSortKeys.compare(records, j * stride, aux, scratch, stride) > 0) {
+                    System.arraycopy(records, j * stride, records, (j + 1) * stride, stride);
+                    j--;
+                }
+                System.arraycopy(aux, scratch, records, (j + 1) * stride, stride);
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(records, aux, from, middle, stride);
+        mergeSort(records, aux, middle, to, stride);
+        if (SQLSortKeys.compare(records, (middle - 1) * stride, records, middle * stride, stride) <= 0) {
+            return;
+        }
+        System.arraycopy(records, from * stride, aux, from * stride, (to - from) * stride);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            int source;
+            if (right == to || (left < middle
+                    && SQLSortKeys.compare(aux, left * stride, aux, right * stride, stride) <= 0)) {
+                source = left++;
+            } else {
+                source = right++;
+            }
+            System.arraycopy(aux, source * stride, records, i * stride, stride);
+        }
+    }
+}
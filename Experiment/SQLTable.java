@@ -0,0 +1,421 @@
+import java.time.LocalDate;
+import java.util.*;
+
+// Value types of the in-memory engine. DATE values are days since
+// 1970-01-01 and BOOLEAN values are 0 or 1, both held in longs. NULL is
+// the type of a bare NULL literal, which converts to any other type.
+enum SQLType {
+    BIGINT, DOUBLE, VARCHAR, DATE, BOOLEAN, NULL;
+
+    boolean isNumeric() {
+        return this == BIGINT || this == DOUBLE;
+    }
+}
+
+// One column of an SQLTable: primitive values indexed by row, with an
+// optional null flag per row (null when the column has no NULLs)
+abstract class SQLColumn {
+    private final String name;
+    private final SQLType type;
+    final boolean[] nulls;
+
+    SQLColumn(String name, SQLType type, boolean[] nulls) {
+        this.name = name;
+        this.type = type;
+        this.nulls = nulls;
+    }
+
+    String getName() { return name; }
+    SQLType getType() { return type; }
+
+    abstract int size();
+
+    boolean isNull(int row) {
+        return nulls != null && nulls[row];
+    }
+
+    // Boxed value for display and tests: Long, Double, String, LocalDate,
+    // Boolean or null
+    abstract Object getValue(int row);
+
+    // Same values under another name
+    abstract SQLColumn rename(String name);
+
+    // The values at rows[0..count) as a new column; row -1 gives NULL, as
+    // for the missing side of an outer join
+    abstract SQLColumn gather(int[] rows, int count);
+
+    final boolean[] gatherNulls(int[] rows, int count) {
+        boolean[] gathered = null;
+        for (int i = 0; i < count; i++) {
+            if (rows[i] < 0 || isNull(rows[i])) {
+                if (gathered == null) {
+                    gathered = new boolean[count];
+                }
+                gathered[i] = true;
+            }
+        }
+        return gathered;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + type;
+    }
+}
+
+// BIGINT, DATE or BOOLEAN column
+final class LongColumn extends SQLColumn {
+    final long[] values;
+
+    LongColumn(String name, SQLType type, long[] values, boolean[] nulls) {
+        super(name, type, nulls);
+        if (type != SQLType.BIGINT && type != SQLType.DATE && type != SQLType.BOOLEAN) {
+            throw new IllegalArgumentException("Not a long-valued type: " + type);
+        }
+        this.values = values;
+    }
+
+    @Override
+    int size() { return values.length; }
+
+    @Override
+    Object getValue(int row) {
+        if (isNull(row)) {
+            return null;
+        }
+        switch (getType()) {
+            case DATE: return LocalDate.ofEpochDay(values[row]);
+            case BOOLEAN: return values[row] != 0;
+            default: return values[row];
+        }
+    }
+
+    @Override
+    SQLColumn rename(String name) {
+        return new LongColumn(name, getType(), values, nulls);
+    }
+
+    @Override
+    SQLColumn gather(int[] rows, int count) {
+        long[] gathered = new long[count];
+        for (int i = 0; i < count; i++) {
+            int row = rows[i];
+            gathered[i] = row < 0 ? 0 : values[row];
+        }
+        return new LongColumn(getName(), getType(), gathered, gatherNulls(rows, count));
+    }
+}
+
+final class DoubleColumn extends SQLColumn {
+    final double[] values;
+
+    DoubleColumn(String name, double[] values, boolean[] nulls) {
+        super(name, SQLType.DOUBLE, nulls);
+        this.values = values;
+    }
+
+    @Override
+    int size() { return values.length; }
+
+    @Override
+    Object getValue(int row) {
+        return isNull(row) ? null : values[row];
+    }
+
+    @Override
+    SQLColumn rename(String name) {
+        return new DoubleColumn(name, values, nulls);
+    }
+
+    @Override
+    SQLColumn gather(int[] rows, int count) {
+        double[] gathered = new double[count];
+        for (int i = 0; i < count; i++) {
+            int row = rows[i];
+            gathered[i] = row < 0 ? 0 : values[row];
+        }
+        return new DoubleColumn(getName(), gathered, gatherNulls(rows, count));
+    }
+}
+
+// Dictionary-encoded VARCHAR column: each row holds a code into a sorted,
+// duplicate-free dictionary, so equal strings have equal codes and codes
+// order like the strings. Predicates on the column can be worked out once
+// per dictionary entry rather than once per row.
+final class StringColumn extends SQLColumn {
+    final int[] codes;
+    final String[] dictionary;
+
+    private StringColumn(String name, int[] codes, String[] dictionary, boolean[] nulls) {
+        super(name, SQLType.VARCHAR, nulls);
+        this.codes = codes;
+        this.dictionary = dictionary;
+    }
+
+    // Encodes the first count values; null entries become NULLs
+    static StringColumn encode(String name, String[] values, int count) {
+        Map<String, Integer> distinct = new HashMap<>();
+        boolean[] nulls = null;
+        for (int row = 0; row < count; row++) {
+            if (values[row] == null) {
+                if (nulls == null) {
+                    nulls = new boolean[count];
+                }
+                nulls[row] = true;
+            } else {
+                distinct.putIfAbsent(values[row], 0);
+            }
+        }
+        String[] dictionary = distinct.keySet().toArray(new String[0]);
+        Arrays.sort(dictionary);
+        for (int code = 0; code < dictionary.length; code++) {
+            distinct.put(dictionary[code], code);
+        }
+        int[] codes = new int[count];
+        for (int row = 0; row < count; row++) {
+            if (values[row] != null) {
+                codes[row] = distinct.get(values[row]);
+            }
+        }
+        return new StringColumn(name, codes, dictionary, nulls);
+    }
+
+    // Code of the value, or -(insertion point) - 1 if it is not present
+    int find(String value) {
+        return Arrays.binarySearch(dictionary, value);
+    }
+
+    @Override
+    int size() { return codes.length; }
+
+    @Override
+    Object getValue(int row) {
+        return isNull(row) ? null : dictionary[codes[row]];
+    }
+
+    @Override
+    SQLColumn rename(String name) {
+        return new StringColumn(name, codes, dictionary, nulls);
+    }
+
+    // Shares the dictionary; codes stay valid
+    @Override
+    SQLColumn gather(int[] rows, int count) {
+        int[] gathered = new int[count];
+        for (int i = 0; i < count; i++) {
+            int row = rows[i];
+            gathered[i] = row < 0 ? 0 : codes[row];
+        }
+        return new StringColumn(getName(), gathered, dictionary, gatherNulls(rows, count));
+    }
+}
+
+// Accumulates the values of one column, growing as needed; build() makes
+// the column, dictionary-encoding strings
+final class SQLColumnBuilder {
+    private final String name;
+    private final SQLType type;
+    private long[] longs;
+    private double[] doubles;
+    private String[] strings;
+    private boolean[] nulls;
+    private int size;
+
+    SQLColumnBuilder(String name, SQLType type, int capacity) {
+        this.name = name;
+        // A column of bare NULLs has no type of its own
+        this.type = type == SQLType.NULL ? SQLType.VARCHAR : type;
+        capacity = Math.max(capacity, 16);
+        switch (this.type) {
+            case DOUBLE: doubles = new double[capacity]; break;
+            case VARCHAR: strings = new String[capacity]; break;
+            default: longs = new long[capacity]; break;
+        }
+    }
+
+    SQLType getType() { return type; }
+    int size() { return size; }
+
+    // Appends entry i of the vector, converting BIGINT to DOUBLE if needed
+    void append(SQLVector vector, int i) {
+        ensureCapacity(size + 1);
+        if (vector.type == SQLType.NULL || vector.isNull(i)) {
+            appendNull();
+            return;
+        }
+        switch (type) {
+            case DOUBLE: doubles[size] = vector.doubleAt(i); break;
+            case VARCHAR: strings[size] = vector.strings[i]; break;
+            default: longs[size] = vector.longs[i]; break;
+        }
+        size++;
+    }
+
+    // Appends rows [from, to) of a column of this type
+    void append(SQLColumn column, int from, int to) {
+        ensureCapacity(size + to - from);
+        for (int row = from; row < to; row++) {
+            if (column.isNull(row)) {
+                appendNull();
+                continue;
+            }
+            switch (type) {
+                case DOUBLE: doubles[size] = ((DoubleColumn) column).values[row]; break;
+                case VARCHAR: strings[size] = ((StringColumn) column).dictionary[((StringColumn) column).codes[row]]; break;
+                default: longs[size] = ((LongColumn) column).values[row]; break;
+            }
+            size++;
+        }
+    }
+
+    void appendLong(long value) {
+        ensureCapacity(size + 1);
+        longs[size++] = value;
+    }
+
+    void appendDouble(double value) {
+        ensureCapacity(size + 1);
+        doubles[size++] = value;
+    }
+
+    void appendString(String value) {
+        ensureCapacity(size + 1);
+        if (value == null) {
+            appendNull();
+        } else {
+            strings[size++] = value;
+        }
+    }
+
+    void appendNull() {
+        ensureCapacity(size + 1);
+        if (nulls == null) {
+            nulls = new boolean[capacity()];
+        }
+        nulls[size++] = true;
+    }
+
+    SQLColumn build() {
+        boolean[] nulls = this.nulls == null ? null : Arrays.copyOf(this.nulls, size);
+        switch (type) {
+            case DOUBLE: return new DoubleColumn(name, Arrays.copyOf(doubles, size), nulls);
+            case VARCHAR: return StringColumn.encode(name, strings, size);
+            default: return new LongColumn(name, type, Arrays.copyOf(longs, size), nulls);
+        }
+    }
+
+    private int capacity() {
+        return type == SQLType.DOUBLE ? doubles.length : type == SQLType.VARCHAR ? strings.length : longs.length;
+    }
+
+    private void ensureCapacity(int needed) {
+        int capacity = capacity();
+        if (needed <= capacity) {
+            return;
+        }
+        int grown = Math.max(needed, capacity + (capacity >> 1));
+        switch (type) {
+            case DOUBLE: doubles = Arrays.copyOf(doubles, grown); break;
+            case VARCHAR: strings = Arrays.copyOf(strings, grown); break;
+            default: longs = Arrays.copyOf(longs, grown); break;
+        }
+        if (nulls != null) {
+            nulls = Arrays.copyOf(nulls, grown);
+        }
+    }
+}
+
+// Immutable in-memory table stored by column. Column names are matched
+// case-insensitively, as unquoted SQL names are.
+final class SQLTable {
+    private final String name;
+    private final int rowCount;
+    private final SQLColumn[] columns;
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+
+    SQLTable(String name, int rowCount, List<SQLColumn> columns) {
+        this.name = name;
+        this.rowCount = rowCount;
+        this.columns = columns.toArray(new SQLColumn[0]);
+        for (int i = 0; i < this.columns.length; i++) {
+            SQLColumn column = this.columns[i];
+            if (column.size() != rowCount) {
+                throw new IllegalArgumentException("Column " + column.getName() + " has " + column.size()
+                                                   + " rows, table " + name + " has " + rowCount);
+            }
+            columnIndex.putIfAbsent(column.getName().toLowerCase(Locale.ROOT), i);
+        }
+    }
+
+    String getName() { return name; }
+    int getRowCount() { return rowCount; }
+    int getColumnCount() { return columns.length; }
+    SQLColumn getColumn(int index) { return columns[index]; }
+
+    // Index of the first column of that name, or -1
+    int indexOf(String columnName) {
+        Integer index = columnIndex.get(columnName.toLowerCase(Locale.ROOT));
+        return index == null ? -1 : index;
+    }
+
+    Object getValue(int row, int column) {
+        return columns[column].getValue(row);
+    }
+
+    // The rows as an aligned text table, at most maxRows of them
+    String format(int maxRows) {
+        int shown = Math.min(rowCount, maxRows);
+        String[][] cells = new String[shown + 1][columns.length];
+        int[] widths = new int[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            cells[0][c] = columns[c].getName();
+            for (int row = 0; row < shown; row++) {
+                cells[row + 1][c] = String.valueOf(columns[c].getValue(row));
+            }
+            for (String[] line : cells) {
+                widths[c] = Math.max(widths[c], line[c].length());
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row <= shown; row++) {
+            for (int c = 0; c < columns.length; c++) {
+                String cell = cells[row][c];
+                boolean right = row > 0 && columns[c].getType().isNumeric();
+                sb.append(c == 0 ? "" : " | ");
+                if (right) {
+                    pad(sb, widths[c] - cell.length());
+                }
+                sb.append(cell);
+                if (!right && c < columns.length - 1) {
+                    pad(sb, widths[c] - cell.length());
+                }
+            }
+            sb.append('\n');
+            if (row == 0) {
+                for (int c = 0; c < columns.length; c++) {
+                    sb.append(c == 0 ? "" : "-+-");
+                    for (int i = 0; i < widths[c]; i++) {
+                        sb.append('-');
+                    }
+                }
+                sb.append('\n');
+            }
+        }
+        if (shown < rowCount) {
+            sb.append("(").append(rowCount - shown).append(" more rows)\n");
+        }
+        return sb.toString();
+    }
+
+    private static void pad(StringBuilder sb, int spaces) {
+        for (int i = 0; i < spaces; i++) {
+            sb.append(' ');
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SQLTable{name=" + name + ", rows=" + rowCount + ", columns=" + Arrays.toString(columns) + "}";
+    }
+}
@@ -0,0 +1,328 @@
+import java.util.*;
+
+// Hooks called by SQLTreeWalker around each node
+interface SQLTreeListener {
+    // Called before the node's children; returning false skips them
+    boolean enter(ASTNode node);
+
+    // Called after the node's children, or right after enter() if they were
+    // skipped
+    default void leave(ASTNode node) {}
+}
+
+// Depth-first, source-order traversal of any AST with an explicit stack in
+// place of recursion, so a generated expression nested tens of thousands
+// deep (a long OR chain parses left-deep) costs heap, not thread stack.
+// Children are found through ASTVisitor, so every node type is covered.
+// A listener can prune a subtree from enter() or end the walk with stop().
+// walk() may be called again from inside a hook; the nested walk uses the
+// same stack above the outer one. Not thread-safe; reuse one per thread.
+final class SQLTreeWalker {
+    private final Children children = new Children();
+    private ASTNode[] stack = new ASTNode[64];
+    private boolean[] leaving = new boolean[64]; // entry is the node's leave() frame
+    private int size;
+    private int depth;
+    private boolean stopped;
+
+    void walk(ASTNode root, SQLTreeListener listener) {
+        int base = size;
+        int outerDepth = depth;
+        boolean outerStopped = stopped;
+        depth = 0;
+        stopped = false;
+        try {
+            push(root, false);
+            while (size > base && !stopped) {
+                ASTNode node = stack[--size];
+                if (leaving[size]) {
+                    depth--;
+                    listener.leave(node);
+                    continue;
+                }
+                push(node, true);
+                boolean descend = listener.enter(node);
+                depth++;
+                if (descend) {
+                    node.accept(children);
+                }
+            }
+        } finally {
+            Arrays.fill(stack, base, size, null);
+            size = base;
+            depth = outerDepth;
+            stopped = outerStopped;
+        }
+    }
+
+    // Number of ancestors of the node passed to the current hook
+    int getDepth() {
+        return depth;
+    }
+
+    // Ends the current walk once the running hook returns; no further
+    // enter() or leave() calls are made
+    void stop() {
+        stopped = true;
+    }
+
+    private void push(ASTNode node, boolean leave) {
+        if (node == null) {
+            return;
+        }
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+            leaving = Arrays.copyOf(leaving, size * 2);
+        }
+        stack[size] = node;
+        leaving[size++] = leave;
+    }
+
+    // Stack pops in reverse, so lists and siblings are pushed last first
+    private void pushAll(List<? extends ASTNode> nodes) {
+        if (nodes == null) {
+            return;
+        }
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            push(nodes.get(i), false);
+        }
+    }
+
+    // Pushes a node's children, last to first
+    private final class Children implements ASTVisitor<Void> {
+        @Override
+        public Void visit(SelectStatement node) {
+            push(node.getLimitClause(), false);
+            push(node.getOrderByClause(), false);
+            pushAll(node.getSetOperations());
+            push(node.getHavingClause(), false);
+            push(node.getGroupByClause(), false);
+            push(node.getWhereClause(), false);
+            push(node.getFromClause(), false);
+            pushAll(node.getSelectList());
+            pushAll(node.getCteList());
+            return null;
+        }
+
+        @Override
+        public Void visit(InsertStatement node) {
+            push(node.getSelectStatement(), false);
+            push(node.getValuesClause(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(UpdateStatement node) {
+            push(node.getWhereClause(), false);
+            pushAll(node.getSetClauses());
+            return null;
+        }
+
+        @Override
+        public Void visit(DeleteStatement node) {
+            push(node.getWhereClause(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(CreateTableStatement node) {
+            pushAll(node.getTableConstraints());
+            pushAll(node.getColumnDefinitions());
+            return null;
+        }
+
+        @Override
+        public Void visit(CommonTableExpression node) {
+            push(node.getQuery(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(SetOperation node) {
+            push(node.getQuery(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(SelectItem node) {
+            push(node.getExpression(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(FromClause node) {
+            push(node.getTableExpression(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(WhereClause node) {
+            push(node.getCondition(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(GroupByClause node) {
+            pushAll(node.getGroupingExpressions());
+            return null;
+        }
+
+        @Override
+        public Void visit(HavingClause node) {
+            push(node.getCondition(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(OrderByClause node) {
+            pushAll(node.getOrderByElements());
+            return null;
+        }
+
+        @Override
+        public Void visit(OrderByElement node) {
+            push(node.getExpression(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(LimitClause node) {
+            push(node.getOffset(), false);
+            push(node.getRowCount(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(TableReference node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(JoinExpression node) {
+            push(node.getJoinCondition(), false);
+            push(node.getRightTable(), false);
+            push(node.getLeftTable(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(DerivedTable node) {
+            push(node.getQuery(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(ColumnReference node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(LiteralExpression node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(ParameterExpression node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(FunctionCall node) {
+            pushAll(node.getArguments());
+            return null;
+        }
+
+        @Override
+        public Void visit(BinaryExpression node) {
+            push(node.getRight(), false);
+            push(node.getLeft(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(UnaryExpression node) {
+            push(node.getOperand(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(ExpressionList node) {
+            pushAll(node.getExpressions());
+            return null;
+        }
+
+        @Override
+        public Void visit(SubqueryExpression node) {
+            push(node.getQuery(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(BooleanExpression node) {
+            push(node.getCondition(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(CaseExpression node) {
+            push(node.getElseExpression(), false);
+            pushAll(node.getWhenClauses());
+            push(node.getCaseOperand(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(WhenClause node) {
+            push(node.getThenExpression(), false);
+            push(node.getWhenCondition(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(ValuesClause node) {
+            List<List<Expression>> rows = node.getValuesList();
+            for (int i = rows.size() - 1; i >= 0; i--) {
+                pushAll(rows.get(i));
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(SetClause node) {
+            push(node.getValue(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(ColumnDefinition node) {
+            pushAll(node.getConstraints());
+            push(node.getDataType(), false);
+            return null;
+        }
+
+        @Override
+        public Void visit(CharacterType node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(NumericType node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(NotNullConstraint node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(PrimaryKeyConstraint node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(PrimaryKeyTableConstraint node) {
+            return null;
+        }
+    }
+}
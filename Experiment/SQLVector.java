@@ -0,0 +1,1218 @@
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+// The values of one expression for one batch: entry i belongs to the i-th
+// row of the batch's selection. Only the array for the vector's type is
+// used. nulls is meaningful only when hasNulls is set, so a vector without
+// NULLs never touches it.
+final class SQLVector {
+    SQLType type;
+    int count;
+    long[] longs;
+    double[] doubles;
+    String[] strings;
+    boolean[] nulls;
+    boolean hasNulls;
+
+    void reset(SQLType type, int count) {
+        this.type = type;
+        this.count = count;
+        hasNulls = false;
+        switch (type) {
+            case DOUBLE:
+                if (doubles == null || doubles.length < count) doubles = new double[Math.max(count, SQLEvaluator.BATCH_SIZE)];
+                break;
+            case VARCHAR:
+                if (strings == null || strings.length < count) strings = new String[Math.max(count, SQLEvaluator.BATCH_SIZE)];
+                break;
+            case NULL:
+                setAllNull();
+                break;
+            default:
+                if (longs == null || longs.length < count) longs = new long[Math.max(count, SQLEvaluator.BATCH_SIZE)];
+                break;
+        }
+    }
+
+    boolean isNull(int i) {
+        return hasNulls && nulls[i];
+    }
+
+    // Makes nulls meaningful, all entries non-null to start with
+    void clearNulls() {
+        if (nulls == null || nulls.length < count) {
+            nulls = new boolean[Math.max(count, SQLEvaluator.BATCH_SIZE)];
+        } else {
+            Arrays.fill(nulls, 0, count, false);
+        }
+        hasNulls = true;
+    }
+
+    void setNull(int i) {
+        if (!hasNulls) {
+            clearNulls();
+        }
+        nulls[i] = true;
+    }
+
+    void setAllNull() {
+        clearNulls();
+        Arrays.fill(nulls, 0, count, true);
+    }
+
+    // Numeric value as a double, for BIGINT and DOUBLE vectors
+    double doubleAt(int i) {
+        return type == SQLType.DOUBLE ? doubles[i] : longs[i];
+    }
+
+    // Entry i as a boxed value, as SQLColumn.getValue gives it
+    Object getValue(int i) {
+        if (isNull(i) || type == SQLType.NULL) {
+            return null;
+        }
+        switch (type) {
+            case DOUBLE: return doubles[i];
+            case VARCHAR: return strings[i];
+            case DATE: return LocalDate.ofEpochDay(longs[i]);
+            case BOOLEAN: return longs[i] != 0;
+            default: return longs[i];
+        }
+    }
+}
+
+// Vectorized expression interpreter. Evaluates expressions over the rows
+// of an input table a batch at a time: select() sets the rows, evaluate()
+// fills and returns the node's vector. Each node keeps its vector and any
+// derived state (resolved column, parsed constant, per-dictionary truth
+// table) across batches, so steady-state evaluation allocates nothing
+// except computed strings.
+// Predicates over a dictionary-encoded column and constants (=, <, LIKE,
+// IN, ...) are decided once per dictionary entry and then looked up by
+// code. NULLs follow SQL's three-valued logic. Division by zero yields NULL.
+// An evaluator belongs to one query execution and one thread.
+final class SQLEvaluator {
+    static final int BATCH_SIZE = 1024;
+
+    private final SQLTable input;
+    private final String qualifier;
+    private final String[] qualifiers; // per input column, for a join result
+    private final Object[] parameters;
+    private final Map<Expression, Integer> bindings;
+    private final boolean bareColumns;
+    private final Map<Expression, SQLVector> vectors = new IdentityHashMap<>();
+    private final Map<Object, SQLVector> scratch = new IdentityHashMap<>();
+    private final Map<Expression, Object> prepared = new IdentityHashMap<>();
+    private final Map<Expression, SQLType> types = new IdentityHashMap<>();
+    private final Map<Expression, SQLFilter> filters = new IdentityHashMap<>();
+    private int[] rows;
+    private int count;
+
+    // Expressions in bindings are read straight from that input column.
+    // Other column references resolve by name against input, qualified by
+    // qualifier (its table name or alias), unless bareColumns is false:
+    // then every column must come through a binding, as after GROUP BY.
+    SQLEvaluator(SQLTable input, String qualifier, Object[] parameters, Map<Expression, Integer> bindings,
+                 boolean bareColumns) {
+        this.input = input;
+        this.qualifier = qualifier;
+        this.qualifiers = null;
+        this.parameters = parameters;
+        this.bindings = bindings;
+        this.bareColumns = bareColumns;
+    }
+
+    // Over the columns of several tables, column i coming from the table
+    // named or aliased qualifiers[i]. An unqualified reference must match
+    // exactly one column.
+    SQLEvaluator(SQLTable input, String[] qualifiers, Object[] parameters) {
+        this.input = input;
+        this.qualifier = null;
+        this.qualifiers = qualifiers;
+        this.parameters = parameters;
+        this.bindings = Collections.emptyMap();
+        this.bareColumns = true;
+    }
+
+    private SQLEvaluator(SQLEvaluator other) {
+        this.input = other.input;
+        this.qualifier = other.qualifier;
+        this.qualifiers = other.qualifiers;
+        this.parameters = other.parameters;
+        this.bindings = other.bindings;
+        this.bareColumns = other.bareColumns;
+    }
+
+    // An evaluator over the same input and names with none of this one's
+    // per-node state, for another thread
+    SQLEvaluator copy() {
+        return new SQLEvaluator(this);
+    }
+
+    SQLTable getInput() { return input; }
+
+    // Name or alias of the table input column i belongs to, or null
+    String qualifierOf(int column) {
+        return qualifiers != null ? qualifiers[column] : qualifier;
+    }
+
+    // Sets the batch: the input rows at rows[0..count), count <= BATCH_SIZE
+    void select(int[] rows, int count) {
+        this.rows = rows;
+        this.count = count;
+    }
+
+    // Keeps the rows of rows[0..count) for which the predicate is TRUE,
+    // compacting them to the front, and returns how many there are. The
+    // predicate is compiled into an SQLFilter on first use.
+    int filter(Expression predicate, int[] rows, int count) {
+        SQLFilter compiled = filters.get(predicate);
+        if (compiled == null) {
+            compiled = new SQLFilterCompiler(this).compile(predicate);
+            filters.put(predicate, compiled);
+        }
+        return compiled.apply(rows, count);
+    }
+
+    // =============== TYPES ===============
+
+    SQLType typeOf(Expression expression) {
+        SQLType type = types.get(expression);
+        if (type == null) {
+            type = computeType(expression);
+            types.put(expression, type);
+        }
+        return type;
+    }
+
+    private SQLType computeType(Expression expression) {
+        Integer bound = bindings.get(expression);
+        if (bound != null) {
+            return input.getColumn(bound).getType();
+        }
+        if (expression instanceof ColumnReference) {
+            return input.getColumn(resolve((ColumnReference) expression)).getType();
+        }
+        if (expression instanceof LiteralExpression || expression instanceof ParameterExpression) {
+            return constant(expression).type;
+        }
+        if (isLogical(expression)) {
+            return logicalType((BinaryExpression) expression);
+        }
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) expression;
+            SQLType left = typeOf(binary.getLeft());
+            SQLType right = binary.getRight() instanceof ExpressionList || binary.getRight() instanceof SubqueryExpression
+                            ? null : typeOf(binary.getRight());
+            if (right == null && binary.getOperator() != BinaryExpression.Operator.IN) {
+                throw new SQLExecutionException("Subqueries are not supported here", binary.getRight());
+            }
+            switch (binary.getOperator()) {
+                case PLUS:
+                case MINUS:
+                case MULTIPLY:
+                case DIVIDE:
+                case MODULO:
+                    return arithmeticType(binary, left, right);
+                case LIKE:
+                    requireType(binary.getLeft(), SQLType.VARCHAR);
+                    if (!(isConstant(binary.getRight()) && right == SQLType.VARCHAR)) {
+                        throw new SQLExecutionException("LIKE needs a constant pattern", binary.getRight());
+                    }
+                    return SQLType.BOOLEAN;
+                case IN:
+                    if (!(binary.getRight() instanceof ExpressionList)) {
+                        throw new SQLExecutionException("IN (subquery) is not supported", binary.getRight());
+                    }
+                    for (Expression item : ((ExpressionList) binary.getRight()).getExpressions()) {
+                        comparisonType(binary, left, typeOf(item), binary.getLeft(), item);
+                    }
+                    return SQLType.BOOLEAN;
+                case EXISTS:
+                    throw new SQLExecutionException("EXISTS is not supported", binary);
+                default:
+                    comparisonType(binary, left, right, binary.getLeft(), binary.getRight());
+                    return SQLType.BOOLEAN;
+            }
+        }
+        if (expression instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression) expression;
+            switch (unary.getOperator()) {
+                case NOT:
+                    requireType(unary.getOperand(), SQLType.BOOLEAN);
+                    return SQLType.BOOLEAN;
+                case NEGATE: {
+                    SQLType type = typeOf(unary.getOperand());
+                    if (!type.isNumeric() && type != SQLType.NULL) {
+                        throw new SQLExecutionException("Cannot negate " + type, unary);
+                    }
+                    return type == SQLType.NULL ? SQLType.BIGINT : type;
+                }
+                case IS_NULL:
+                case IS_NOT_NULL:
+                    typeOf(unary.getOperand());
+                    return SQLType.BOOLEAN;
+                default:
+                    throw new SQLExecutionException("EXISTS is not supported", unary);
+            }
+        }
+        if (expression instanceof CaseExpression) {
+            CaseExpression caseExpression = (CaseExpression) expression;
+            SQLType type = SQLType.NULL;
+            for (WhenClause when : caseExpression.getWhenClauses()) {
+                if (caseExpression.isSearchedCase()) {
+                    requireType(when.getWhenCondition(), SQLType.BOOLEAN);
+                } else {
+                    comparisonType(when, typeOf(caseExpression.getCaseOperand()), typeOf(when.getWhenCondition()),
+                                   caseExpression.getCaseOperand(), when.getWhenCondition());
+                }
+                type = unify(type, typeOf(when.getThenExpression()), when.getThenExpression());
+            }
+            if (caseExpression.getElseExpression() != null) {
+                type = unify(type, typeOf(caseExpression.getElseExpression()), caseExpression.getElseExpression());
+            }
+            return type;
+        }
+        if (expression instanceof FunctionCall) {
+            return functionType((FunctionCall) expression);
+        }
+        if (expression instanceof BooleanExpression) {
+            requireType(((BooleanExpression) expression).getCondition(), SQLType.BOOLEAN);
+            return SQLType.BOOLEAN;
+        }
+        if (expression instanceof SubqueryExpression) {
+            throw new SQLExecutionException("Subqueries are not supported here", expression);
+        }
+        throw new SQLExecutionException("Cannot evaluate " + expression.getClass().getSimpleName(), expression);
+    }
+
+    private static boolean isLogical(Expression expression) {
+        if (!(expression instanceof BinaryExpression)) {
+            return false;
+        }
+        BinaryExpression.Operator op = ((BinaryExpression) expression).getOperator();
+        return op == BinaryExpression.Operator.AND || op == BinaryExpression.Operator.OR;
+    }
+
+    // The AND/OR nodes down the left operands of binary, itself first,
+    // stopping at one bound to an input column or, when typing, already
+    // typed. A generated chain of conditions nests as deep as it is long,
+    // so chains are typed and evaluated along this list rather than by
+    // recursion.
+    private List<BinaryExpression> logicalSpine(BinaryExpression binary, boolean typing) {
+        List<BinaryExpression> spine = new ArrayList<>();
+        spine.add(binary);
+        Expression left = binary.getLeft();
+        while (isLogical(left) && !(typing && types.containsKey(left)) && !bindings.containsKey(left)) {
+            spine.add((BinaryExpression) left);
+            left = ((BinaryExpression) left).getLeft();
+        }
+        return spine;
+    }
+
+    private SQLType logicalType(BinaryExpression binary) {
+        List<BinaryExpression> spine = logicalSpine(binary, true);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            BinaryExpression link = spine.get(i);
+            requireType(link.getLeft(), SQLType.BOOLEAN);
+            requireType(link.getRight(), SQLType.BOOLEAN);
+            types.put(link, SQLType.BOOLEAN);
+        }
+        return SQLType.BOOLEAN;
+    }
+
+    private SQLType arithmeticType(BinaryExpression binary, SQLType left, SQLType right) {
+        BinaryExpression.Operator op = binary.getOperator();
+        if (left == SQLType.NULL) {
+            left = right == SQLType.NULL ? SQLType.BIGINT : right;
+        }
+        if (right == SQLType.NULL) {
+            right = left;
+        }
+        if (left.isNumeric() && right.isNumeric()) {
+            return left == SQLType.BIGINT && right == SQLType.BIGINT ? SQLType.BIGINT : SQLType.DOUBLE;
+        }
+        if (left == SQLType.DATE && right == SQLType.BIGINT
+                && (op == BinaryExpression.Operator.PLUS || op == BinaryExpression.Operator.MINUS)) {
+            return SQLType.DATE;
+        }
+        if (left == SQLType.DATE && right == SQLType.DATE && op == BinaryExpression.Operator.MINUS) {
+            return SQLType.BIGINT;
+        }
+        throw new SQLExecutionException("Operator " + op + " does not apply to " + left + " and " + right, binary);
+    }
+
+    // Checks two sides can be compared. A constant string compared with a
+    // DATE is read as a date.
+    private void comparisonType(ASTNode where, SQLType left, SQLType right, Expression leftNode, Expression rightNode) {
+        if (left == right || left == SQLType.NULL || right == SQLType.NULL || (left.isNumeric() && right.isNumeric())) {
+            return;
+        }
+        if (left == SQLType.DATE && right == SQLType.VARCHAR && isConstant(rightNode)) {
+            dateConstant(rightNode);
+            return;
+        }
+        if (right == SQLType.DATE && left == SQLType.VARCHAR && isConstant(leftNode)) {
+            dateConstant(leftNode);
+            return;
+        }
+        throw new SQLExecutionException("Cannot compare " + left + " with " + right, where);
+    }
+
+    private SQLType functionType(FunctionCall call) {
+        String name = call.getFunctionName().toUpperCase(Locale.ROOT);
+        if (SQLEngine.isAggregate(call)) {
+            throw new SQLExecutionException("Aggregate " + name + " is not allowed here", call);
+        }
+        List<Expression> arguments = call.getArguments();
+        switch (name) {
+            case "ABS": {
+                arity(call, 1);
+                SQLType type = typeOf(arguments.get(0));
+                if (!type.isNumeric()) {
+                    throw new SQLExecutionException("ABS needs a number, not " + type, call);
+                }
+                return type;
+            }
+            case "UPPER":
+            case "LOWER":
+                arity(call, 1);
+                requireType(arguments.get(0), SQLType.VARCHAR);
+                return SQLType.VARCHAR;
+            case "COALESCE": {
+                if (arguments.isEmpty()) {
+                    throw new SQLExecutionException("COALESCE needs arguments", call);
+                }
+                SQLType type = SQLType.NULL;
+                for (Expression argument : arguments) {
+                    type = unify(type, typeOf(argument), argument);
+                }
+                return type;
+            }
+            default:
+                throw new SQLExecutionException("Unknown function " + call.getFunctionName(), call);
+        }
+    }
+
+    private static void arity(FunctionCall call, int arguments) {
+        if (call.getArguments().size() != arguments || call.isDistinct()) {
+            throw new SQLExecutionException(call.getFunctionName() + " takes " + arguments + " argument"
+                                            + (arguments == 1 ? "" : "s"), call);
+        }
+    }
+
+    // Common type of CASE branches and COALESCE arguments
+    private static SQLType unify(SQLType a, SQLType b, ASTNode where) {
+        if (a == SQLType.NULL || a == b) {
+            return b;
+        }
+        if (b == SQLType.NULL) {
+            return a;
+        }
+        if (a.isNumeric() && b.isNumeric()) {
+            return SQLType.DOUBLE;
+        }
+        throw new SQLExecutionException("Cannot mix " + a + " and " + b, where);
+    }
+
+    void requireType(Expression expression, SQLType type) {
+        SQLType actual = typeOf(expression);
+        if (actual != type && actual != SQLType.NULL) {
+            throw new SQLExecutionException("Expected " + type + " but found " + actual, expression);
+        }
+    }
+
+    // =============== EVALUATION ===============
+
+    SQLVector evaluate(Expression expression) {
+        SQLType type = typeOf(expression);
+        SQLVector out = vectors.get(expression);
+        if (out == null) {
+            out = new SQLVector();
+            vectors.put(expression, out);
+        }
+        Integer bound = bindings.get(expression);
+        if (bound != null) {
+            gather(input.getColumn(bound), out);
+        } else if (expression instanceof ColumnReference) {
+            gather(input.getColumn(resolve((ColumnReference) expression)), out);
+        } else if (expression instanceof LiteralExpression || expression instanceof ParameterExpression) {
+            fill(constant(expression), out);
+        } else if (expression instanceof BinaryExpression) {
+            binary((BinaryExpression) expression, type, out);
+        } else if (expression instanceof UnaryExpression) {
+            unary((UnaryExpression) expression, type, out);
+        } else if (expression instanceof CaseExpression) {
+            caseExpression((CaseExpression) expression, type, out);
+        } else if (expression instanceof FunctionCall) {
+            function((FunctionCall) expression, type, out);
+        } else if (expression instanceof BooleanExpression) {
+            copy(evaluate(((BooleanExpression) expression).getCondition()), out);
+        } else {
+            throw new SQLExecutionException("Cannot evaluate " + expression.getClass().getSimpleName(), expression);
+        }
+        return out;
+    }
+
+    private void gather(SQLColumn column, SQLVector out) {
+        int[] rows = this.rows;
+        int count = this.count;
+        out.reset(column.getType(), count);
+        if (column instanceof LongColumn) {
+            long[] values = ((LongColumn) column).values;
+            long[] longs = out.longs;
+            for (int i = 0; i < count; i++) {
+                longs[i] = values[rows[i]];
+            }
+        } else if (column instanceof DoubleColumn) {
+            double[] values = ((DoubleColumn) column).values;
+            double[] doubles = out.doubles;
+            for (int i = 0; i < count; i++) {
+                doubles[i] = values[rows[i]];
+            }
+        } else {
+            StringColumn strings = (StringColumn) column;
+            int[] codes = strings.codes;
+            String[] dictionary = strings.dictionary;
+            String[] values = out.strings;
+            for (int i = 0; i < count; i++) {
+                values[i] = dictionary.length == 0 ? null : dictionary[codes[rows[i]]];
+            }
+        }
+        if (column.nulls != null) {
+            boolean[] nulls = column.nulls;
+            out.clearNulls();
+            for (int i = 0; i < count; i++) {
+                out.nulls[i] = nulls[rows[i]];
+            }
+        }
+    }
+
+    private void fill(Constant constant, SQLVector out) {
+        out.reset(constant.type, count);
+        switch (constant.type) {
+            case NULL:
+                break;
+            case DOUBLE:
+                Arrays.fill(out.doubles, 0, count, constant.doubleValue);
+                break;
+            case VARCHAR:
+                Arrays.fill(out.strings, 0, count, constant.stringValue);
+                break;
+            default:
+                Arrays.fill(out.longs, 0, count, constant.longValue);
+                break;
+        }
+    }
+
+    private void copy(SQLVector from, SQLVector out) {
+        out.reset(from.type, from.count);
+        switch (from.type) {
+            case NULL: break;
+            case DOUBLE: System.arraycopy(from.doubles, 0, out.doubles, 0, from.count); break;
+            case VARCHAR: System.arraycopy(from.strings, 0, out.strings, 0, from.count); break;
+            default: System.arraycopy(from.longs, 0, out.longs, 0, from.count); break;
+        }
+        if (from.hasNulls && from.type != SQLType.NULL) {
+            out.clearNulls();
+            System.arraycopy(from.nulls, 0, out.nulls, 0, from.count);
+        }
+    }
+
+    private void binary(BinaryExpression binary, SQLType type, SQLVector out) {
+        BinaryExpression.Operator op = binary.getOperator();
+        switch (op) {
+            case AND:
+            case OR: {
+                // Bottom up along the chain, each link's result the left
+                // operand of the next
+                List<BinaryExpression> spine = logicalSpine(binary, false);
+                SQLVector left = null;
+                for (int i = spine.size() - 1; i >= 0; i--) {
+                    BinaryExpression link = spine.get(i);
+                    SQLVector result = i == 0 ? out : vectors.computeIfAbsent(link, k -> new SQLVector());
+                    logical(link.getOperator(), left != null ? left : evaluate(link.getLeft()),
+                            evaluate(link.getRight()), result);
+                    left = result;
+                }
+                return;
+            }
+            case PLUS:
+            case MINUS:
+            case MULTIPLY:
+            case DIVIDE:
+            case MODULO:
+                arithmetic(binary, evaluate(binary.getLeft()), evaluate(binary.getRight()), type, out);
+                return;
+            case LIKE:
+                like(binary, out);
+                return;
+            case IN:
+                in(binary, out);
+                return;
+            default:
+                if (!dictionaryComparison(binary, out)) {
+                    compare(op, evaluate(binary.getLeft()), evaluate(binary.getRight()), out);
+                }
+        }
+    }
+
+    // Three-valued AND/OR on BOOLEAN vectors
+    private void logical(BinaryExpression.Operator op, SQLVector left, SQLVector right, SQLVector out) {
+        int count = this.count;
+        out.reset(SQLType.BOOLEAN, count);
+        long[] result = out.longs;
+        boolean and = op == BinaryExpression.Operator.AND;
+        if (!left.hasNulls && !right.hasNulls && left.type != SQLType.NULL && right.type != SQLType.NULL) {
+            long[] a = left.longs;
+            long[] b = right.longs;
+            for (int i = 0; i < count; i++) {
+                result[i] = and ? a[i] & b[i] : a[i] | b[i];
+            }
+            return;
+        }
+        out.clearNulls();
+        for (int i = 0; i < count; i++) {
+            boolean aNull = left.type == SQLType.NULL || left.isNull(i);
+            boolean bNull = right.type == SQLType.NULL || right.isNull(i);
+            boolean a = !aNull && left.longs[i] != 0;
+            boolean b = !bNull && right.longs[i] != 0;
+            if (and) {
+                // FALSE wins over NULL
+                if ((!aNull && !a) || (!bNull && !b)) {
+                    result[i] = 0;
+                } else if (aNull || bNull) {
+                    out.nulls[i] = true;
+                } else {
+                    result[i] = 1;
+                }
+            } else {
+                // TRUE wins over NULL
+                if (a || b) {
+                    result[i] = 1;
+                } else if (aNull || bNull) {
+                    out.nulls[i] = true;
+                } else {
+                    result[i] = 0;
+                }
+            }
+        }
+    }
+
+    private void arithmetic(BinaryExpression binary, SQLVector left, SQLVector right, SQLType type, SQLVector out) {
+        BinaryExpression.Operator op = binary.getOperator();
+        int count = this.count;
+        out.reset(type, count);
+        if (left.type == SQLType.NULL || right.type == SQLType.NULL) {
+            out.setAllNull();
+            return;
+        }
+        mergeNulls(left, right, out);
+        if (type == SQLType.DOUBLE) {
+            double[] result = out.doubles;
+            for (int i = 0; i < count; i++) {
+                double a = left.doubleAt(i);
+                double b = right.doubleAt(i);
+                switch (op) {
+                    case PLUS: result[i] = a + b; break;
+                    case MINUS: result[i] = a - b; break;
+                    case MULTIPLY: result[i] = a * b; break;
+                    case DIVIDE:
+                        if (b == 0) {
+                            out.setNull(i);
+                        } else {
+                            result[i] = a / b;
+                        }
+                        break;
+                    default:
+                        if (b == 0) {
+                            out.setNull(i);
+                        } else {
+                            result[i] = a % b;
+                        }
+                        break;
+                }
+            }
+            return;
+        }
+        // BIGINT, and DATE +/- days, DATE - DATE
+        long[] a = left.longs;
+        long[] b = right.longs;
+        long[] result = out.longs;
+        // A result outside BIGINT is an error, as in SUM. NULL rows hold
+        // whatever their slots did, so they are skipped rather than checked.
+        boolean[] nulls = out.hasNulls ? out.nulls : null;
+        try {
+            for (int i = 0; i < count; i++) {
+                if (nulls != null && nulls[i]) {
+                    continue;
+                }
+                switch (op) {
+                    case PLUS: result[i] = Math.addExact(a[i], b[i]); break;
+                    case MINUS: result[i] = Math.subtractExact(a[i], b[i]); break;
+                    case MULTIPLY: result[i] = Math.multiplyExact(a[i], b[i]); break;
+                    default:
+                        if (b[i] == 0) {
+                            out.setNull(i);
+                        } else if (b[i] == -1) {
+                            result[i] = op == BinaryExpression.Operator.DIVIDE ? Math.negateExact(a[i]) : 0;
+                        } else {
+                            result[i] = op == BinaryExpression.Operator.DIVIDE ? a[i] / b[i] : a[i] % b[i];
+                        }
+                        break;
+                }
+            }
+        } catch (ArithmeticException e) {
+            throw new SQLExecutionException("Arithmetic passes the range of BIGINT", binary);
+        }
+    }
+
+    // out's nulls become left's OR right's
+    private static void mergeNulls(SQLVector left, SQLVector right, SQLVector out) {
+        if (!left.hasNulls && !right.hasNulls) {
+            return;
+        }
+        out.clearNulls();
+        boolean[] nulls = out.nulls;
+        for (int i = 0, n = out.count; i < n; i++) {
+            nulls[i] = left.isNull(i) || right.isNull(i);
+        }
+    }
+
+    private void compare(BinaryExpression.Operator op, SQLVector left, SQLVector right, SQLVector out) {
+        int count = this.count;
+        out.reset(SQLType.BOOLEAN, count);
+        if (left.type == SQLType.NULL || right.type == SQLType.NULL) {
+            out.setAllNull();
+            return;
+        }
+        mergeNulls(left, right, out);
+        long[] result = out.longs;
+        if (left.type == SQLType.VARCHAR) {
+            String[] a = left.strings;
+            String[] b = right.strings;
+            for (int i = 0; i < count; i++) {
+                result[i] = a[i] == null || b[i] == null ? 0 : test(op, a[i].compareTo(b[i]));
+            }
+        } else if (left.type == SQLType.DOUBLE && right.type == SQLType.DOUBLE) {
+            compareDoubles(op, left.doubles, right.doubles, result, count);
+        } else if (left.type == SQLType.DOUBLE || right.type == SQLType.DOUBLE) {
+            for (int i = 0; i < count; i++) {
+                double a = left.doubleAt(i);
+                double b = right.doubleAt(i);
+                result[i] = test(op, a < b ? -1 : a > b ? 1 : 0);
+            }
+        } else {
+            compareLongs(op, left.longs, right.longs, result, count);
+        }
+    }
+
+    // One loop per operator, so the loop body has no switch in it
+    private static void compareLongs(BinaryExpression.Operator op, long[] a, long[] b, long[] result, int count) {
+        switch (op) {
+            case EQUALS:
+                for (int i = 0; i < count; i++) result[i] = a[i] == b[i] ? 1 : 0;
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < count; i++) result[i] = a[i] != b[i] ? 1 : 0;
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < count; i++) result[i] = a[i] < b[i] ? 1 : 0;
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < count; i++) result[i] = a[i] > b[i] ? 1 : 0;
+                break;
+            case LESS_THAN_OR_EQUAL:
+                for (int i = 0; i < count; i++) result[i] = a[i] <= b[i] ? 1 : 0;
+                break;
+            default:
+                for (int i = 0; i < count; i++) result[i] = a[i] >= b[i] ? 1 : 0;
+                break;
+        }
+    }
+
+    private static void compareDoubles(BinaryExpression.Operator op, double[] a, double[] b, long[] result, int count) {
+        switch (op) {
+            case EQUALS:
+                for (int i = 0; i < count; i++) result[i] = a[i] == b[i] ? 1 : 0;
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < count; i++) result[i] = a[i] != b[i] ? 1 : 0;
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < count; i++) result[i] = a[i] < b[i] ? 1 : 0;
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < count; i++) result[i] = a[i] > b[i] ? 1 : 0;
+                break;
+            case LESS_THAN_OR_EQUAL:
+                for (int i = 0; i < count; i++) result[i] = a[i] <= b[i] ? 1 : 0;
+                break;
+            default:
+                for (int i = 0; i < count; i++) result[i] = a[i] >= b[i] ? 1 : 0;
+                break;
+        }
+    }
+
+    static long test(BinaryExpression.Operator op, int comparison) {
+        boolean result;
+        switch (op) {
+            case EQUALS: result = comparison == 0; break;
+            case NOT_EQUALS: result = comparison != 0; break;
+            case LESS_THAN: result = comparison < 0; break;
+            case GREATER_THAN: result = comparison > 0; break;
+            case LESS_THAN_OR_EQUAL: result = comparison <= 0; break;
+            default: result = comparison >= 0; break;
+        }
+        return result ? 1 : 0;
+    }
+
+    static BinaryExpression.Operator flip(BinaryExpression.Operator op) {
+        switch (op) {
+            case LESS_THAN: return BinaryExpression.Operator.GREATER_THAN;
+            case GREATER_THAN: return BinaryExpression.Operator.LESS_THAN;
+            case LESS_THAN_OR_EQUAL: return BinaryExpression.Operator.GREATER_THAN_OR_EQUAL;
+            case GREATER_THAN_OR_EQUAL: return BinaryExpression.Operator.LESS_THAN_OR_EQUAL;
+            default: return op;
+        }
+    }
+
+    // column op 'constant' (either way round) on a dictionary column
+    private boolean dictionaryComparison(BinaryExpression binary, SQLVector out) {
+        boolean[] truth = (boolean[]) prepared.get(binary);
+        if (truth == null) {
+            StringColumn column = dictionaryColumn(binary.getLeft());
+            Expression constantSide = binary.getRight();
+            BinaryExpression.Operator op = binary.getOperator();
+            if (column == null) {
+                column = dictionaryColumn(binary.getRight());
+                constantSide = binary.getLeft();
+                op = flip(op);
+            }
+            if (column == null || !isConstant(constantSide) || typeOf(constantSide) != SQLType.VARCHAR) {
+                return false;
+            }
+            String value = constant(constantSide).stringValue;
+            truth = new boolean[column.dictionary.length];
+            for (int code = 0; code < truth.length; code++) {
+                truth[code] = test(op, column.dictionary[code].compareTo(value)) != 0;
+            }
+            prepared.put(binary, truth);
+        }
+        StringColumn column = dictionaryColumn(binary.getLeft());
+        lookup(column != null ? column : dictionaryColumn(binary.getRight()), truth, out);
+        return true;
+    }
+
+    // The dictionary column an expression reads directly, or null
+    private StringColumn dictionaryColumn(Expression expression) {
+        SQLColumn column = columnOf(expression);
+        return column instanceof StringColumn ? (StringColumn) column : null;
+    }
+
+    // The input column an expression reads as it is (through a binding or
+    // as a column reference), or null if it computes something
+    SQLColumn columnOf(Expression expression) {
+        Integer bound = bindings.get(expression);
+        if (bound != null) {
+            return input.getColumn(bound);
+        }
+        return expression instanceof ColumnReference ? input.getColumn(resolve((ColumnReference) expression)) : null;
+    }
+
+    // Result of a per-dictionary-entry truth table for the selected rows
+    private void lookup(StringColumn column, boolean[] truth, SQLVector out) {
+        int[] rows = this.rows;
+        int count = this.count;
+        out.reset(SQLType.BOOLEAN, count);
+        int[] codes = column.codes;
+        long[] result = out.longs;
+        for (int i = 0; i < count; i++) {
+            result[i] = truth.length != 0 && truth[codes[rows[i]]] ? 1 : 0;
+        }
+        if (column.nulls != null) {
+            out.clearNulls();
+            for (int i = 0; i < count; i++) {
+                out.nulls[i] = column.nulls[rows[i]];
+            }
+        }
+    }
+
+    private void like(BinaryExpression binary, SQLVector out) {
+        String pattern = constant(binary.getRight()).stringValue;
+        if (pattern == null) {
+            out.reset(SQLType.BOOLEAN, count);
+            out.setAllNull();
+            return;
+        }
+        StringColumn column = dictionaryColumn(binary.getLeft());
+        if (column != null) {
+            boolean[] truth = (boolean[]) prepared.get(binary);
+            if (truth == null) {
+                truth = new boolean[column.dictionary.length];
+                for (int code = 0; code < truth.length; code++) {
+                    truth[code] = like(column.dictionary[code], pattern);
+                }
+                prepared.put(binary, truth);
+            }
+            lookup(column, truth, out);
+            return;
+        }
+        SQLVector left = evaluate(binary.getLeft());
+        out.reset(SQLType.BOOLEAN, count);
+        if (left.type == SQLType.NULL) {
+            out.setAllNull();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            out.longs[i] = !left.isNull(i) && like(left.strings[i], pattern) ? 1 : 0;
+        }
+        mergeNulls(left, left, out);
+    }
+
+    // SQL LIKE: % matches any run of characters, _ any one character
+    static boolean like(String value, String pattern) {
+        int v = 0;
+        int p = 0;
+        int starP = -1;
+        int starV = 0;
+        while (v < value.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '_' || pattern.charAt(p) == value.charAt(v))
+                    && pattern.charAt(p) != '%') {
+                v++;
+                p++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '%') {
+                starP = p++;
+                starV = v;
+            } else if (starP >= 0) {
+                p = starP + 1;
+                v = ++starV;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '%') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    // x IN (a, b, ...) as x = a OR x = b OR ..., with a truth table when x
+    // is a dictionary column and the list is constant strings
+    private void in(BinaryExpression binary, SQLVector out) {
+        List<Expression> items = ((ExpressionList) binary.getRight()).getExpressions();
+        StringColumn column = dictionaryColumn(binary.getLeft());
+        if (column != null) {
+            boolean[] truth = (boolean[]) prepared.get(binary);
+            if (truth == null && allConstantStrings(items)) {
+                truth = new boolean[column.dictionary.length];
+                for (Expression item : items) {
+                    String value = constant(item).stringValue;
+                    int code = value == null ? -1 : column.find(value);
+                    if (code >= 0) {
+                        truth[code] = true;
+                    }
+                }
+                prepared.put(binary, truth);
+            }
+            if (truth != null) {
+                lookup(column, truth, out);
+                return;
+            }
+        }
+        SQLVector left = evaluate(binary.getLeft());
+        SQLVector any = scratch.computeIfAbsent(binary, k -> new SQLVector());
+        for (int i = 0; i < items.size(); i++) {
+            Expression item = items.get(i);
+            if (i == 0) {
+                compare(BinaryExpression.Operator.EQUALS, left, evaluate(item), out);
+                continue;
+            }
+            SQLVector equal = scratch.computeIfAbsent(item, k -> new SQLVector());
+            compare(BinaryExpression.Operator.EQUALS, left, evaluate(item), equal);
+            // logical() resets its output before reading its inputs, so the
+            // running result cannot be both
+            logical(BinaryExpression.Operator.OR, out, equal, any);
+            copy(any, out);
+        }
+    }
+
+    private boolean allConstantStrings(List<Expression> items) {
+        for (Expression item : items) {
+            if (!isConstant(item) || typeOf(item) != SQLType.VARCHAR) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void unary(UnaryExpression unary, SQLType type, SQLVector out) {
+        SQLVector operand = evaluate(unary.getOperand());
+        int count = this.count;
+        switch (unary.getOperator()) {
+            case NOT:
+                out.reset(SQLType.BOOLEAN, count);
+                if (operand.type == SQLType.NULL) {
+                    out.setAllNull();
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    out.longs[i] = operand.longs[i] ^ 1;
+                }
+                mergeNulls(operand, operand, out);
+                return;
+            case NEGATE:
+                out.reset(type, count);
+                if (operand.type == SQLType.NULL) {
+                    out.setAllNull();
+                    return;
+                }
+                if (type == SQLType.DOUBLE) {
+                    for (int i = 0; i < count; i++) out.doubles[i] = -operand.doubles[i];
+                } else {
+                    for (int i = 0; i < count; i++) out.longs[i] = -operand.longs[i];
+                }
+                mergeNulls(operand, operand, out);
+                return;
+            default: {
+                boolean wantNull = unary.getOperator() == UnaryExpression.Operator.IS_NULL;
+                out.reset(SQLType.BOOLEAN, count);
+                for (int i = 0; i < count; i++) {
+                    boolean isNull = operand.type == SQLType.NULL || operand.isNull(i);
+                    out.longs[i] = isNull == wantNull ? 1 : 0;
+                }
+            }
+        }
+    }
+
+    private void caseExpression(CaseExpression caseExpression, SQLType type, SQLVector out) {
+        int count = this.count;
+        SQLVector decided = scratch.computeIfAbsent(caseExpression, k -> new SQLVector());
+        decided.reset(SQLType.BOOLEAN, count);
+        Arrays.fill(decided.longs, 0, count, 0);
+        SQLVector operand = caseExpression.isSearchedCase() ? null : evaluate(caseExpression.getCaseOperand());
+        out.reset(type, count);
+        out.clearNulls();
+        for (WhenClause when : caseExpression.getWhenClauses()) {
+            SQLVector condition;
+            if (operand == null) {
+                condition = evaluate(when.getWhenCondition());
+            } else {
+                condition = scratch.computeIfAbsent(when, k -> new SQLVector());
+                compare(BinaryExpression.Operator.EQUALS, operand, evaluate(when.getWhenCondition()), condition);
+            }
+            SQLVector value = evaluate(when.getThenExpression());
+            for (int i = 0; i < count; i++) {
+                if (decided.longs[i] == 0 && condition.type != SQLType.NULL && !condition.isNull(i)
+                        && condition.longs[i] != 0) {
+                    decided.longs[i] = 1;
+                    set(out, i, value, i);
+                }
+            }
+        }
+        SQLVector otherwise = caseExpression.getElseExpression() == null ? null
+                : evaluate(caseExpression.getElseExpression());
+        for (int i = 0; i < count; i++) {
+            if (decided.longs[i] == 0) {
+                if (otherwise == null) {
+                    out.nulls[i] = true;
+                } else {
+                    set(out, i, otherwise, i);
+                }
+            }
+        }
+    }
+
+    // out[i] = from[j], converting BIGINT to DOUBLE if out is DOUBLE
+    private static void set(SQLVector out, int i, SQLVector from, int j) {
+        if (from.type == SQLType.NULL || from.isNull(j)) {
+            out.nulls[i] = true;
+            return;
+        }
+        out.nulls[i] = false;
+        switch (out.type) {
+            case DOUBLE: out.doubles[i] = from.doubleAt(j); break;
+            case VARCHAR: out.strings[i] = from.strings[j]; break;
+            default: out.longs[i] = from.longs[j]; break;
+        }
+    }
+
+    private void function(FunctionCall call, SQLType type, SQLVector out) {
+        String name = call.getFunctionName().toUpperCase(Locale.ROOT);
+        int count = this.count;
+        if (name.equals("COALESCE")) {
+            out.reset(type, count);
+            out.setAllNull();
+            for (Expression argument : call.getArguments()) {
+                SQLVector value = evaluate(argument);
+                for (int i = 0; i < count; i++) {
+                    if (out.nulls[i]) {
+                        set(out, i, value, i);
+                    }
+                }
+            }
+            return;
+        }
+        SQLVector argument = evaluate(call.getArguments().get(0));
+        out.reset(type, count);
+        if (argument.type == SQLType.NULL) {
+            out.setAllNull();
+            return;
+        }
+        switch (name) {
+            case "ABS":
+                if (type == SQLType.DOUBLE) {
+                    for (int i = 0; i < count; i++) out.doubles[i] = Math.abs(argument.doubles[i]);
+                } else {
+                    for (int i = 0; i < count; i++) out.longs[i] = Math.abs(argument.longs[i]);
+                }
+                break;
+            case "UPPER":
+                for (int i = 0; i < count; i++) {
+                    String value = argument.strings[i];
+                    out.strings[i] = value == null ? null : value.toUpperCase(Locale.ROOT);
+                }
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    String value = argument.strings[i];
+                    out.strings[i] = value == null ? null : value.toLowerCase(Locale.ROOT);
+                }
+                break;
+        }
+        mergeNulls(argument, argument, out);
+    }
+
+    // =============== NAMES AND CONSTANTS ===============
+
+    // Index of the input column a reference names
+    int resolve(ColumnReference reference) {
+        Object index = prepared.get(reference);
+        if (index == null) {
+            if (!bareColumns) {
+                throw new SQLExecutionException("Column " + describe(reference)
+                                                + " must appear in GROUP BY or be used in an aggregate", reference);
+            }
+            if (qualifiers != null) {
+                index = resolveQualified(reference);
+                prepared.put(reference, index);
+                return (Integer) index;
+            }
+            if (reference.getTableName() != null
+                    && (qualifier == null || !qualifier.equalsIgnoreCase(reference.getTableName()))) {
+                throw new SQLExecutionException("Unknown table " + reference.getTableName(), reference);
+            }
+            int column = input.indexOf(reference.getColumnName());
+            if (column < 0) {
+                throw new SQLExecutionException("Unknown column " + describe(reference), reference);
+            }
+            index = column;
+            prepared.put(reference, index);
+        }
+        return (Integer) index;
+    }
+
+    private int resolveQualified(ColumnReference reference) {
+        String table = reference.getTableName();
+        int found = -1;
+        boolean tableFound = table == null;
+        for (int i = 0; i < qualifiers.length; i++) {
+            boolean owned = table == null || table.equalsIgnoreCase(qualifiers[i]);
+            tableFound |= owned;
+            if (owned && input.getColumn(i).getName().equalsIgnoreCase(reference.getColumnName())) {
+                if (found >= 0) {
+                    throw new SQLExecutionException("Column " + describe(reference) + " is ambiguous", reference);
+                }
+                found = i;
+            }
+        }
+        if (!tableFound) {
+            throw new SQLExecutionException("Unknown table " + table, reference);
+        }
+        if (found < 0) {
+            throw new SQLExecutionException("Unknown column " + describe(reference), reference);
+        }
+        return found;
+    }
+
+    private static String describe(ColumnReference reference) {
+        return reference.getTableName() == null ? reference.getColumnName()
+                                                : reference.getTableName() + "." + reference.getColumnName();
+    }
+
+    static boolean isConstant(Expression expression) {
+        return expression instanceof LiteralExpression || expression instanceof ParameterExpression;
+    }
+
+    // A literal or bound parameter, converted once
+    static final class Constant {
+        final SQLType type;
+        final long longValue;
+        final double doubleValue;
+        final String stringValue;
+
+        Constant(SQLType type, long longValue, double doubleValue, String stringValue) {
+            this.type = type;
+            this.longValue = longValue;
+            this.doubleValue = doubleValue;
+            this.stringValue = stringValue;
+        }
+    }
+
+    Constant constant(Expression expression) {
+        Object cached = prepared.get(expression);
+        if (cached instanceof Constant) {
+            return (Constant) cached;
+        }
+        Object value;
+        if (expression instanceof ParameterExpression) {
+            int index = ((ParameterExpression) expression).getIndex();
+            if (parameters == null || index >= parameters.length) {
+                throw new SQLExecutionException("No value for parameter " + (index + 1), expression);
+            }
+            value = parameters[index];
+        } else {
+            LiteralExpression literal = (LiteralExpression) expression;
+            value = literal.getValue();
+            if (literal.getType() == LiteralExpression.LiteralType.DATE && value instanceof String) {
+                value = LocalDate.ofEpochDay(parseDate((String) value, expression));
+            } else if (literal.getType() == LiteralExpression.LiteralType.BOOLEAN && value instanceof String) {
+                value = Boolean.parseBoolean((String) value);
+            }
+        }
+        Constant constant;
+        if (value == null) {
+            constant = new Constant(SQLType.NULL, 0, 0, null);
+        } else if (value instanceof Integer || value instanceof Long) {
+            constant = new Constant(SQLType.BIGINT, ((Number) value).longValue(), 0, null);
+        } else if (value instanceof BigDecimal || value instanceof Double || value instanceof Float) {
+            constant = new Constant(SQLType.DOUBLE, 0, ((Number) value).doubleValue(), null);
+        } else if (value instanceof String) {
+            constant = new Constant(SQLType.VARCHAR, 0, 0, (String) value);
+        } else if (value instanceof LocalDate) {
+            constant = new Constant(SQLType.DATE, ((LocalDate) value).toEpochDay(), 0, null);
+        } else if (value instanceof Boolean) {
+            constant = new Constant(SQLType.BOOLEAN, (Boolean) value ? 1 : 0, 0, null);
+        } else {
+            throw new SQLExecutionException("Unsupported constant " + value.getClass().getSimpleName(), expression);
+        }
+        prepared.put(expression, constant);
+        return constant;
+    }
+
+    // Re-types a string constant compared with a DATE as that date
+    private void dateConstant(Expression expression) {
+        String value = constant(expression).stringValue;
+        prepared.put(expression, new Constant(SQLType.DATE, parseDate(value, expression), 0, null));
+        types.put(expression, SQLType.DATE);
+    }
+
+    private static long parseDate(String value, Expression where) {
+        try {
+            return LocalDate.parse(value).toEpochDay();
+        } catch (DateTimeParseException e) {
+            throw new SQLExecutionException("Expected a date as 'yyyy-mm-dd' but found '" + value + "'", where);
+        }
+    }
+}
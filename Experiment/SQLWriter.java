@@ -0,0 +1,783 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.*;
+
+// Renders statements back to SQL text by appending to one StringBuilder,
+// so printing a tree allocates nothing beyond the growth of that builder.
+// SQLPrettyPrinter, by comparison, returns a new String from every visit
+// and rebuilds the indent string for every line.
+// Pretty mode puts each clause on its own line and indents subqueries;
+// compact mode writes one line. Either way the output parses back to the
+// same tree, with parentheses only where precedence needs them and
+// identifiers quoted only where they would not lex as a name. Parameters
+// of a parameterized statement are written as '?', or as the literals
+// they are bound to when an expression is written with its parameters.
+// Not thread-safe; an instance keeps its buffers and is meant to be reused.
+final class SQLWriter {
+    private static final int INDENT_WIDTH = 2;
+    private static final int MAX_CACHED_NAMES = 4096;
+
+    // Binding strength, loosest first, as SQLParser parses it
+    private static final int OR = 1;
+    private static final int AND = 2;
+    private static final int NOT = 3;
+    private static final int COMPARISON = 4;
+    private static final int ADDITIVE = 5;
+    private static final int MULTIPLICATIVE = 6;
+    private static final int UNARY = 7;
+    private static final int PRIMARY = 8;
+
+    private static final String[] BINARY_OPERATORS = new String[BinaryExpression.Operator.values().length];
+    private static final Set<String> RESERVED = new HashSet<>();
+
+    static {
+        for (BinaryExpression.Operator op : BinaryExpression.Operator.values()) {
+            String symbol;
+            switch (op) {
+                case PLUS: symbol = " + "; break;
+                case MINUS: symbol = " - "; break;
+                case MULTIPLY: symbol = " * "; break;
+                case DIVIDE: symbol = " / "; break;
+                case MODULO: symbol = " % "; break;
+                case EQUALS: symbol = " = "; break;
+                case NOT_EQUALS: symbol = " <> "; break;
+                case LESS_THAN: symbol = " < "; break;
+                case GREATER_THAN: symbol = " > "; break;
+                case LESS_THAN_OR_EQUAL: symbol = " <= "; break;
+                case GREATER_THAN_OR_EQUAL: symbol = " >= "; break;
+                default: symbol = " " + op.name() + " "; break;
+            }
+            BINARY_OPERATORS[op.ordinal()] = symbol;
+        }
+        for (SQLTokenType type : SQLTokenType.values()) {
+            if (type.keyword) {
+                RESERVED.add(type.name().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    private final boolean pretty;
+    private final StringBuilder buffer = new StringBuilder(256); // for Appendable targets
+    private final Map<String, String> names = new HashMap<>();   // identifier -> as written
+    private char[] chars = new char[0];                          // for Writer targets
+    private char[] newline;    // '\n' followed by spaces; a prefix of it starts each line
+    private StringBuilder out;
+    private int depth;
+    private Object[] parameters; // values of ParameterExpressions, or null
+
+    private SQLWriter(boolean pretty) {
+        this.pretty = pretty;
+        this.newline = newlineAndIndent(16);
+    }
+
+    static SQLWriter pretty() {
+        return new SQLWriter(true);
+    }
+
+    static SQLWriter compact() {
+        return new SQLWriter(false);
+    }
+
+    String write(SQLStatement statement) {
+        buffer.setLength(0);
+        return write(statement, buffer).toString();
+    }
+
+    StringBuilder write(SQLStatement statement, StringBuilder out) {
+        this.out = out;
+        depth = 0;
+        try {
+            statement(statement);
+        } finally {
+            this.out = null;
+        }
+        return out;
+    }
+
+    // One expression with each parameter written as the literal bound to
+    // it, as the expression read before its literals were lifted
+    String write(Expression expression, Object[] parameters) {
+        this.parameters = parameters;
+        try {
+            return write(expression);
+        } finally {
+            this.parameters = null;
+        }
+    }
+
+    // One expression, as it would appear inside a statement
+    String write(Expression expression) {
+        buffer.setLength(0);
+        out = buffer;
+        depth = 0;
+        try {
+            expression(expression);
+        } finally {
+            out = null;
+        }
+        return buffer.toString();
+    }
+
+    // Renders into the reused buffer, then copies it to out in one call;
+    // a Writer gets it as a char[] range rather than a String
+    void write(SQLStatement statement, Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            write(statement, (StringBuilder) out);
+            return;
+        }
+        buffer.setLength(0);
+        write(statement, buffer);
+        if (out instanceof Writer) {
+            int length = buffer.length();
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            buffer.getChars(0, length, chars, 0);
+            ((Writer) out).write(chars, 0, length);
+        } else {
+            out.append(buffer);
+        }
+    }
+
+    // =============== STATEMENTS ===============
+
+    private void statement(SQLStatement statement) {
+        if (statement instanceof SelectStatement) {
+            query((SelectStatement) statement);
+        } else if (statement instanceof InsertStatement) {
+            insert((InsertStatement) statement);
+        } else if (statement instanceof UpdateStatement) {
+            update((UpdateStatement) statement);
+        } else if (statement instanceof DeleteStatement) {
+            delete((DeleteStatement) statement);
+        } else if (statement instanceof CreateTableStatement) {
+            createTable((CreateTableStatement) statement);
+        } else {
+            throw new IllegalArgumentException("Cannot write " + statement.getClass().getSimpleName());
+        }
+    }
+
+    private void query(SelectStatement query) {
+        List<CommonTableExpression> ctes = query.getCteList();
+        if (!ctes.isEmpty()) {
+            out.append("WITH ");
+            if (ctes.get(0).isRecursive()) {
+                out.append("RECURSIVE ");
+            }
+            for (int i = 0; i < ctes.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                    newline();
+                }
+                CommonTableExpression cte = ctes.get(i);
+                name(cte.getName());
+                if (cte.getColumnList() != null && !cte.getColumnList().isEmpty()) {
+                    out.append(" (");
+                    names(cte.getColumnList());
+                    out.append(')');
+                }
+                out.append(" AS ");
+                subquery(cte.getQuery());
+            }
+            newline();
+        }
+        select(query);
+        for (int i = 0; i < query.getSetOperations().size(); i++) {
+            SetOperation operation = query.getSetOperations().get(i);
+            newline();
+            switch (operation.getType()) {
+                case UNION: out.append("UNION"); break;
+                case UNION_ALL: out.append("UNION ALL"); break;
+                case INTERSECT: out.append("INTERSECT"); break;
+                case EXCEPT: out.append("EXCEPT"); break;
+            }
+            newline();
+            SelectStatement operand = operation.getQuery();
+            if (isSelectBlock(operand)) {
+                select(operand);
+            } else {
+                subquery(operand);
+            }
+        }
+        if (query.getOrderByClause() != null) {
+            newline();
+            out.append("ORDER BY ");
+            List<OrderByElement> elements = query.getOrderByClause().getOrderByElements();
+            for (int i = 0; i < elements.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                expression(elements.get(i).getExpression(), OR);
+                if (elements.get(i).getDirection() == OrderByElement.SortDirection.DESC) {
+                    out.append(" DESC");
+                }
+            }
+        }
+        if (query.getLimitClause() != null) {
+            newline();
+            out.append("LIMIT ");
+            expression(query.getLimitClause().getRowCount(), OR);
+            if (query.getLimitClause().getOffset() != null) {
+                out.append(" OFFSET ");
+                expression(query.getLimitClause().getOffset(), OR);
+            }
+        }
+    }
+
+    // SELECT through HAVING: the part of a query that can be a set
+    // operand without parentheses
+    private void select(SelectStatement query) {
+        out.append(query.isDistinct() ? "SELECT DISTINCT " : "SELECT ");
+        List<SelectItem> items = query.getSelectList();
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            expression(items.get(i).getExpression(), OR);
+            if (items.get(i).getAlias() != null) {
+                out.append(" AS ");
+                name(items.get(i).getAlias());
+            }
+        }
+        if (query.getFromClause() != null) {
+            newline();
+            out.append("FROM ");
+            table(query.getFromClause().getTableExpression());
+        }
+        if (query.getWhereClause() != null) {
+            newline();
+            out.append("WHERE ");
+            expression(query.getWhereClause().getCondition(), OR);
+        }
+        if (query.getGroupByClause() != null) {
+            newline();
+            out.append("GROUP BY ");
+            expressions(query.getGroupByClause().getGroupingExpressions());
+        }
+        if (query.getHavingClause() != null) {
+            newline();
+            out.append("HAVING ");
+            expression(query.getHavingClause().getCondition(), OR);
+        }
+    }
+
+    private static boolean isSelectBlock(SelectStatement query) {
+        return query.getCteList().isEmpty() && query.getSetOperations().isEmpty()
+                && query.getOrderByClause() == null && query.getLimitClause() == null;
+    }
+
+    private void subquery(SelectStatement query) {
+        out.append('(');
+        if (pretty) {
+            depth++;
+            newline();
+            query(query);
+            depth--;
+            newline();
+        } else {
+            query(query);
+        }
+        out.append(')');
+    }
+
+    private void insert(InsertStatement insert) {
+        out.append("INSERT INTO ");
+        name(insert.getTableName());
+        if (!insert.getColumnList().isEmpty()) {
+            out.append(" (");
+            names(insert.getColumnList());
+            out.append(')');
+        }
+        if (insert.getValuesClause() != null) {
+            out.append(" VALUES ");
+            List<List<Expression>> rows = insert.getValuesClause().getValuesList();
+            for (int i = 0; i < rows.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                out.append('(');
+                expressions(rows.get(i));
+                out.append(')');
+            }
+        } else if (insert.getSelectStatement() != null) {
+            newline();
+            query(insert.getSelectStatement());
+        }
+    }
+
+    private void update(UpdateStatement update) {
+        out.append("UPDATE ");
+        name(update.getTableName());
+        if (update.getTableAlias() != null) {
+            out.append(" AS ");
+            name(update.getTableAlias());
+        }
+        out.append(" SET ");
+        List<SetClause> sets = update.getSetClauses();
+        for (int i = 0; i < sets.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            name(sets.get(i).getColumnName());
+            out.append(" = ");
+            expression(sets.get(i).getValue(), OR);
+        }
+        where(update.getWhereClause());
+    }
+
+    private void delete(DeleteStatement delete) {
+        out.append("DELETE FROM ");
+        name(delete.getTableName());
+        if (delete.getTableAlias() != null) {
+            out.append(" AS ");
+            name(delete.getTableAlias());
+        }
+        where(delete.getWhereClause());
+    }
+
+    private void where(WhereClause where) {
+        if (where != null) {
+            newline();
+            out.append("WHERE ");
+            expression(where.getCondition(), OR);
+        }
+    }
+
+    private void createTable(CreateTableStatement create) {
+        out.append("CREATE TABLE ");
+        name(create.getTableName());
+        out.append(" (");
+        depth++;
+        boolean first = true;
+        for (ColumnDefinition column : create.getColumnDefinitions()) {
+            first = element(first);
+            name(column.getColumnName());
+            out.append(' ');
+            dataType(column.getDataType());
+            for (ColumnConstraint constraint : column.getConstraints()) {
+                out.append(' ');
+                constraintName(constraint);
+                if (constraint instanceof NotNullConstraint) {
+                    out.append("NOT NULL");
+                } else if (constraint instanceof PrimaryKeyConstraint) {
+                    out.append("PRIMARY KEY");
+                }
+            }
+        }
+        for (TableConstraint constraint : create.getTableConstraints()) {
+            if (constraint instanceof PrimaryKeyTableConstraint) {
+                first = element(first);
+                constraintName(constraint);
+                out.append("PRIMARY KEY (");
+                names(((PrimaryKeyTableConstraint) constraint).getColumnNames());
+                out.append(')');
+            }
+        }
+        depth--;
+        if (pretty) {
+            newline();
+        }
+        out.append(')');
+    }
+
+    // Starts an element of a CREATE TABLE list, one per line when pretty
+    private boolean element(boolean first) {
+        if (!first) {
+            out.append(',');
+        }
+        if (pretty) {
+            newline();
+        } else if (!first) {
+            out.append(' ');
+        }
+        return false;
+    }
+
+    private void constraintName(Constraint constraint) {
+        if (constraint.getConstraintName() != null) {
+            out.append("CONSTRAINT ");
+            name(constraint.getConstraintName());
+            out.append(' ');
+        }
+    }
+
+    private void dataType(DataType type) {
+        if (type instanceof CharacterType) {
+            CharacterType character = (CharacterType) type;
+            out.append(character.getType().name());
+            if (character.getLength() != null) {
+                out.append('(').append(character.getLength().intValue()).append(')');
+            }
+        } else if (type instanceof NumericType) {
+            NumericType numeric = (NumericType) type;
+            out.append(numeric.getType().name());
+            if (numeric.getPrecision() != null) {
+                out.append('(').append(numeric.getPrecision().intValue());
+                if (numeric.getScale() != null) {
+                    out.append(", ").append(numeric.getScale().intValue());
+                }
+                out.append(')');
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot write " + type.getClass().getSimpleName());
+        }
+    }
+
+    // =============== TABLE EXPRESSIONS ===============
+
+    private void table(TableExpression table) {
+        if (table instanceof TableReference) {
+            TableReference reference = (TableReference) table;
+            qualifiedName(reference.getTableName());
+            alias(reference.getAlias());
+        } else if (table instanceof DerivedTable) {
+            DerivedTable derived = (DerivedTable) table;
+            subquery(derived.getQuery());
+            alias(derived.getAlias());
+        } else if (table instanceof JoinExpression) {
+            JoinExpression join = (JoinExpression) table;
+            table(join.getLeftTable());
+            newline();
+            switch (join.getJoinType()) {
+                case INNER: out.append("JOIN "); break;
+                case LEFT: out.append("LEFT JOIN "); break;
+                case RIGHT: out.append("RIGHT JOIN "); break;
+                case FULL: out.append("FULL JOIN "); break;
+                case CROSS: out.append("CROSS JOIN "); break;
+            }
+            // Joins nest to the left; a join on the right needs parentheses
+            if (join.getRightTable() instanceof JoinExpression) {
+                out.append('(');
+                table(join.getRightTable());
+                out.append(')');
+            } else {
+                table(join.getRightTable());
+            }
+            if (join.getJoinCondition() != null) {
+                out.append(" ON ");
+                expression(join.getJoinCondition(), OR);
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot write " + table.getClass().getSimpleName());
+        }
+    }
+
+    private void alias(String alias) {
+        if (alias != null) {
+            out.append(" AS ");
+            name(alias);
+        }
+    }
+
+    // =============== EXPRESSIONS ===============
+
+    // Writes the expression, in parentheses if it binds looser than minimum
+    private void expression(Expression expression, int minimum) {
+        if (precedence(expression) < minimum) {
+            out.append('(');
+            expression(expression);
+            out.append(')');
+        } else {
+            expression(expression);
+        }
+    }
+
+    private void expression(Expression expression) {
+        if (expression instanceof ColumnReference) {
+            ColumnReference column = (ColumnReference) expression;
+            if (column.getTableName() != null) {
+                name(column.getTableName());
+                out.append('.');
+            }
+            if (column.getColumnName().equals("*")) {
+                out.append('*');
+            } else {
+                name(column.getColumnName());
+            }
+        } else if (expression instanceof LiteralExpression) {
+            literal((LiteralExpression) expression);
+        } else if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) expression;
+            int precedence = precedence(binary);
+            if (precedence == COMPARISON) {
+                expression(binary.getLeft(), ADDITIVE);
+                out.append(BINARY_OPERATORS[binary.getOperator().ordinal()]);
+                expression(binary.getRight(), ADDITIVE);
+            } else {
+                chain(binary, precedence);
+            }
+        } else if (expression instanceof UnaryExpression) {
+            unary((UnaryExpression) expression);
+        } else if (expression instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expression;
+            out.append(call.getFunctionName()).append('(');
+            if (call.isDistinct()) {
+                out.append("DISTINCT ");
+            }
+            expressions(call.getArguments());
+            out.append(')');
+        } else if (expression instanceof CaseExpression) {
+            CaseExpression caseExpression = (CaseExpression) expression;
+            out.append("CASE");
+            if (caseExpression.getCaseOperand() != null) {
+                out.append(' ');
+                expression(caseExpression.getCaseOperand(), OR);
+            }
+            for (int i = 0; i < caseExpression.getWhenClauses().size(); i++) {
+                WhenClause when = caseExpression.getWhenClauses().get(i);
+                out.append(" WHEN ");
+                expression(when.getWhenCondition(), OR);
+                out.append(" THEN ");
+                expression(when.getThenExpression(), OR);
+            }
+            if (caseExpression.getElseExpression() != null) {
+                out.append(" ELSE ");
+                expression(caseExpression.getElseExpression(), OR);
+            }
+            out.append(" END");
+        } else if (expression instanceof ExpressionList) {
+            out.append('(');
+            expressions(((ExpressionList) expression).getExpressions());
+            out.append(')');
+        } else if (expression instanceof SubqueryExpression) {
+            subquery(((SubqueryExpression) expression).getQuery());
+        } else if (expression instanceof BooleanExpression) {
+            expression(((BooleanExpression) expression).getCondition());
+        } else if (expression instanceof ParameterExpression) {
+            ParameterExpression parameter = (ParameterExpression) expression;
+            if (parameters != null && parameter.getIndex() < parameters.length) {
+                literal(new LiteralExpression(parameter.getType(), parameters[parameter.getIndex()], parameter.line,
+                                              parameter.column));
+            } else {
+                out.append('?');
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot write " + expression.getClass().getSimpleName());
+        }
+    }
+
+    // Left-associative: an equal-precedence right operand was parenthesised
+    // in the source, and an equal-precedence left operand needs none. A
+    // generated chain (a = 1 OR a = 2 OR ...) nests as deep as it is long
+    // on its left operands, so those links are written in a loop.
+    private void chain(BinaryExpression binary, int precedence) {
+        List<BinaryExpression> links = new ArrayList<>();
+        Expression bottom = binary;
+        while (bottom instanceof BinaryExpression && precedence(bottom) == precedence) {
+            links.add((BinaryExpression) bottom);
+            bottom = ((BinaryExpression) bottom).getLeft();
+        }
+        expression(bottom, precedence);
+        for (int i = links.size() - 1; i >= 0; i--) {
+            BinaryExpression link = links.get(i);
+            out.append(BINARY_OPERATORS[link.getOperator().ordinal()]);
+            expression(link.getRight(), precedence + 1);
+        }
+    }
+
+    private void unary(UnaryExpression unary) {
+        Expression operand = unary.getOperand();
+        switch (unary.getOperator()) {
+            case NOT:
+                out.append("NOT ");
+                expression(operand, NOT);
+                break;
+            case NEGATE:
+                // Never write "--", which would start a comment
+                out.append('-');
+                expression(operand, startsWithMinus(operand) ? PRIMARY + 1 : UNARY);
+                break;
+            case IS_NULL:
+                expression(operand, ADDITIVE);
+                out.append(" IS NULL");
+                break;
+            case IS_NOT_NULL:
+                expression(operand, ADDITIVE);
+                out.append(" IS NOT NULL");
+                break;
+            case EXISTS:
+                out.append("EXISTS ");
+                expression(operand, PRIMARY);
+                break;
+        }
+    }
+
+    private static boolean startsWithMinus(Expression expression) {
+        if (expression instanceof UnaryExpression) {
+            return ((UnaryExpression) expression).getOperator() == UnaryExpression.Operator.NEGATE;
+        }
+        if (expression instanceof LiteralExpression) {
+            Object value = ((LiteralExpression) expression).getValue();
+            if (value instanceof BigDecimal) {
+                return ((BigDecimal) value).signum() < 0;
+            }
+            return value instanceof Number && ((Number) value).longValue() < 0;
+        }
+        return false;
+    }
+
+    private static int precedence(Expression expression) {
+        if (expression instanceof BinaryExpression) {
+            switch (((BinaryExpression) expression).getOperator()) {
+                case OR: return OR;
+                case AND: return AND;
+                case PLUS:
+                case MINUS: return ADDITIVE;
+                case MULTIPLY:
+                case DIVIDE:
+                case MODULO: return MULTIPLICATIVE;
+                default: return COMPARISON;
+            }
+        }
+        if (expression instanceof UnaryExpression) {
+            switch (((UnaryExpression) expression).getOperator()) {
+                case NOT: return NOT;
+                case IS_NULL:
+                case IS_NOT_NULL: return COMPARISON;
+                case NEGATE: return UNARY;
+                default: return PRIMARY;
+            }
+        }
+        if (expression instanceof BooleanExpression) {
+            return precedence(((BooleanExpression) expression).getCondition());
+        }
+        return PRIMARY;
+    }
+
+    private void literal(LiteralExpression literal) {
+        Object value = literal.getValue();
+        switch (literal.getType()) {
+            case STRING:
+                string(value.toString());
+                break;
+            case INTEGER:
+            case DECIMAL:
+                if (value instanceof Integer) {
+                    out.append(((Integer) value).intValue());
+                } else if (value instanceof Long) {
+                    out.append(((Long) value).longValue());
+                } else {
+                    out.append(value.toString()); // BigDecimal caches its string
+                }
+                break;
+            case BOOLEAN:
+                out.append(Boolean.TRUE.equals(value) || "true".equalsIgnoreCase(String.valueOf(value))
+                           ? "TRUE" : "FALSE");
+                break;
+            case NULL:
+                out.append("NULL");
+                break;
+            case DATE:
+                out.append("DATE ");
+                if (value instanceof LocalDate) {
+                    LocalDate date = (LocalDate) value;
+                    out.append('\'').append(date.getYear()).append('-');
+                    twoDigits(date.getMonthValue());
+                    out.append('-');
+                    twoDigits(date.getDayOfMonth());
+                    out.append('\'');
+                } else {
+                    string(value.toString());
+                }
+                break;
+        }
+    }
+
+    private void twoDigits(int value) {
+        out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private void string(String value) {
+        out.append('\'');
+        int from = 0;
+        for (int quote = value.indexOf('\''); quote >= 0; quote = value.indexOf('\'', from)) {
+            out.append(value, from, quote + 1).append('\'');
+            from = quote + 1;
+        }
+        if (from == 0) {
+            out.append(value);
+        } else {
+            out.append(value, from, value.length());
+        }
+        out.append('\'');
+    }
+
+    private void expressions(List<Expression> expressions) {
+        for (int i = 0; i < expressions.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            expression(expressions.get(i), OR);
+        }
+    }
+
+    // =============== NAMES AND LAYOUT ===============
+
+    // Identifiers come interned from the lexer, so the cache is keyed by
+    // a handful of Strings and holds the form to write for each
+    private void name(String name) {
+        String written = names.get(name);
+        if (written == null) {
+            if (names.size() >= MAX_CACHED_NAMES) {
+                names.clear();
+            }
+            written = quoteIfNeeded(name);
+            names.put(name, written);
+        }
+        out.append(written);
+    }
+
+    private void names(List<String> names) {
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            name(names.get(i));
+        }
+    }
+
+    // SQLParser joins schema.table into one name
+    private void qualifiedName(String name) {
+        int dot = name.indexOf('.');
+        if (dot < 0) {
+            name(name);
+        } else {
+            name(name.substring(0, dot));
+            out.append('.');
+            name(name.substring(dot + 1));
+        }
+    }
+
+    static String quoteIfNeeded(String name) {
+        boolean plain = !name.isEmpty() && !RESERVED.contains(name.toLowerCase(Locale.ROOT));
+        for (int i = 0; plain && i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+                    || (c > 127 && Character.isLetter(c));
+            plain = letter || (i > 0 && ((c >= '0' && c <= '9') || c == '$'));
+        }
+        return plain ? name : '"' + name.replace("\"", "\"\"") + '"';
+    }
+
+    // A line break at the current depth when pretty, a space when compact
+    private void newline() {
+        if (!pretty) {
+            out.append(' ');
+            return;
+        }
+        int length = 1 + depth * INDENT_WIDTH;
+        if (length > newline.length) {
+            newline = newlineAndIndent(Math.max(length, newline.length * 2));
+        }
+        out.append(newline, 0, length);
+    }
+
+    private static char[] newlineAndIndent(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, ' ');
+        chars[0] = '\n';
+        return chars;
+    }
+}